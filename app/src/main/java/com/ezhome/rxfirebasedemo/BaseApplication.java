@@ -1,15 +1,32 @@
 package com.ezhome.rxfirebasedemo;
 
 import android.support.multidex.MultiDexApplication;
+import com.ezhome.rxfirebase2.database.Prefetch;
+import com.ezhome.rxfirebase2.database.Prefetcher;
+import com.ezhome.rxfirebase2.database.RxFirebaseDatabase;
 import com.google.firebase.database.FirebaseDatabase;
+import java.util.Collections;
 
 /**
  *  Base application
  */
 public class BaseApplication extends MultiDexApplication {
 
+  private Prefetcher prefetcher;
+
   @Override public void onCreate() {
     super.onCreate();
     FirebaseDatabase.getInstance().setPersistenceEnabled(true);
+    //Warm up the child listener of the posts list while the first activity is created
+    prefetcher = RxFirebaseDatabase.getInstance()
+        .prefetch(Collections.singletonList(
+            Prefetch.ofChildEvents(FirebaseDatabase.getInstance().getReference("fireblog"))), 2);
+  }
+
+  /**
+   * Releases the prefetch once the posts list observes the warmed up listener
+   */
+  public void releasePrefetch() {
+    prefetcher.release();
   }
 }
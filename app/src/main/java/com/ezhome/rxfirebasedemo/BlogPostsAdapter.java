@@ -2,6 +2,7 @@ package com.ezhome.rxfirebasedemo;
 
 import android.support.v7.widget.RecyclerView;
 import android.view.ViewGroup;
+import com.ezhome.rxfirebase2.FirebaseListEvent;
 import com.ezhome.rxfirebasedemo.model.BlogPostEntity;
 import java.util.List;
 
@@ -40,6 +41,32 @@ class BlogPostsAdapter extends RecyclerView.Adapter<BlogPostViewHolder> {
     this.notifyDataSetChanged();
   }
 
+  /**
+   * Sets the data for adapter and notifies only the changed ranges
+   *
+   * @param listEvent {@link FirebaseListEvent} of {@link BlogPostEntity}
+   */
+  public void setData(FirebaseListEvent<BlogPostEntity> listEvent) {
+    this.validateData(listEvent.getList());
+    this.blogPostEntities = listEvent.getList();
+    for (FirebaseListEvent.Change change : listEvent.getChanges()) {
+      switch (change.getType()) {
+        case INSERTED:
+          this.notifyItemRangeInserted(change.getIndex(), change.getCount());
+          break;
+        case REMOVED:
+          this.notifyItemRangeRemoved(change.getIndex(), change.getCount());
+          break;
+        case MOVED:
+          this.notifyItemMoved(change.getIndex(), change.getToIndex());
+          break;
+        case CHANGED:
+          this.notifyItemRangeChanged(change.getIndex(), change.getCount());
+          break;
+      }
+    }
+  }
+
   /**
    * Validates the data
    *
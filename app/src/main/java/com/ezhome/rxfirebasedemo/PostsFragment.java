@@ -12,15 +12,14 @@ import android.widget.ProgressBar;
 import android.widget.Toast;
 import butterknife.BindView;
 import butterknife.ButterKnife;
+import com.ezhome.rxfirebase2.FirebaseListEvent;
 import com.ezhome.rxfirebase2.database.RxFirebaseDatabase;
 import com.ezhome.rxfirebasedemo.model.BlogPostEntity;
-import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.FirebaseDatabase;
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.List;
 import rx.Subscriber;
+import rx.android.schedulers.AndroidSchedulers;
 
 /**
  * The {@link Fragment} to show a list with posts
@@ -66,17 +65,22 @@ public class PostsFragment extends Fragment {
    */
   private void loadPosts() {
     PostsFragment.this.showProgress(true);
-    RxFirebaseDatabase.getInstance().observeValueEvent(firebaseRef.child("fireblog")).subscribe(new GetPostsSubscriber());
+    RxFirebaseDatabase.getInstance()
+        .observeList(firebaseRef.child("fireblog"), BlogPostEntity.class)
+        .observeOn(AndroidSchedulers.mainThread())
+        .subscribe(new GetPostsSubscriber());
+    //The list took over the prefetched listener, which stays attached for it
+    ((BaseApplication) getActivity().getApplication()).releasePrefetch();
   }
 
   /**
    * Renders in UI the available {@link BlogPostEntity}
    *
-   * @param blogPostEntities {@link List} of {@link BlogPostEntity}
+   * @param listEvent {@link FirebaseListEvent} of {@link BlogPostEntity}
    */
-  private void renderBlogPosts(List<BlogPostEntity> blogPostEntities) {
+  private void renderBlogPosts(FirebaseListEvent<BlogPostEntity> listEvent) {
     this.showProgress(false);
-    this.blogPostsAdapter.setData(blogPostEntities);
+    this.blogPostsAdapter.setData(listEvent);
   }
 
   /**
@@ -102,7 +106,7 @@ public class PostsFragment extends Fragment {
   /**
    * Subscriber for {@link RxFirebaseDatabase} query
    */
-  private final class GetPostsSubscriber extends Subscriber<DataSnapshot> {
+  private final class GetPostsSubscriber extends Subscriber<FirebaseListEvent<BlogPostEntity>> {
     @Override public void onCompleted() {
       PostsFragment.this.showProgress(false);
     }
@@ -112,12 +116,8 @@ public class PostsFragment extends Fragment {
       PostsFragment.this.showError(e.getMessage());
     }
 
-    @SuppressWarnings("unchecked") @Override public void onNext(DataSnapshot dataSnapshot) {
-      List<BlogPostEntity> blogPostEntities = new ArrayList<>();
-      for (DataSnapshot childDataSnapshot : dataSnapshot.getChildren()) {
-        blogPostEntities.add(childDataSnapshot.getValue(BlogPostEntity.class));
-      }
-      PostsFragment.this.renderBlogPosts(blogPostEntities);
+    @Override public void onNext(FirebaseListEvent<BlogPostEntity> listEvent) {
+      PostsFragment.this.renderBlogPosts(listEvent);
     }
   }
 }
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.benchmark;
+
+import com.ezhome.rxfirebase2.FirebaseChildEvent;
+import com.google.firebase.database.BenchmarkQuery;
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import rx.Emitter;
+import rx.Subscription;
+import rx.functions.Action1;
+
+/**
+ * Measures the delivery of a child changed event from the shared child
+ * listener to a subscriber of {@code observeChildEvent} across the
+ * backpressure modes and the observe schedulers applied by {@code applyScheduler}
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChildEventBenchmark {
+
+  /**
+   * The number of children of the query, a power of two
+   */
+  static final int CHILDREN = 256;
+
+  @Param({ "NONE", "BUFFER", "DROP", "LATEST", "ERROR" }) public Emitter.BackpressureMode mode;
+
+  @Param({ "none", "immediate", "trampoline" }) public String observeOn;
+
+  private ChildEventListener listener;
+  private DataSnapshot[] children;
+  private Subscription subscription;
+  private int next;
+
+  @Setup public void setUp(final Blackhole blackhole) {
+    final BenchmarkQuery query = new BenchmarkQuery();
+    subscription = StandIns.database(observeOn)
+        .observeChildEvent(query, mode)
+        .subscribe(new Action1<FirebaseChildEvent>() {
+          @Override public void call(FirebaseChildEvent firebaseChildEvent) {
+            blackhole.consume(firebaseChildEvent);
+          }
+        });
+    listener = query.getChildEventListener();
+    children = addChildren(listener);
+  }
+
+  @TearDown public void tearDown() {
+    subscription.unsubscribe();
+  }
+
+  @Benchmark public void onChildChanged() {
+    final DataSnapshot dataSnapshot = children[next++ & (CHILDREN - 1)];
+    listener.onChildChanged(dataSnapshot, null);
+  }
+
+  /**
+   * Adds the children of the query through its child listener
+   *
+   * @param listener {@link ChildEventListener} the listener of the query
+   * @return the added {@link DataSnapshot}s in order
+   */
+  static DataSnapshot[] addChildren(ChildEventListener listener) {
+    final DataSnapshot[] children = new DataSnapshot[CHILDREN];
+    String previousChildName = null;
+    for (int index = 0; index < CHILDREN; index++) {
+      children[index] = StandIns.snapshot("child" + index);
+      listener.onChildAdded(children[index], previousChildName);
+      previousChildName = children[index].getKey();
+    }
+    return children;
+  }
+}
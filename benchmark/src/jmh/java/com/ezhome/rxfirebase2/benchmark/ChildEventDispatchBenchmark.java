@@ -0,0 +1,96 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.benchmark;
+
+import com.ezhome.rxfirebase2.FirebaseChildEvent;
+import com.ezhome.rxfirebase2.database.RxFirebaseDatabase;
+import com.google.firebase.database.BenchmarkQuery;
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import rx.Observable;
+import rx.Subscription;
+import rx.functions.Action1;
+
+/**
+ * Measures the dispatch of child changed events by event type, which replaced
+ * filtering one stream of child events per type. The added subscription
+ * measures the cost of an event nobody listens to.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChildEventDispatchBenchmark {
+
+  @Param({ "all", "changed", "added", "every-type" }) public String subscription;
+
+  private ChildEventListener listener;
+  private DataSnapshot[] children;
+  private Subscription subscriptions;
+  private int next;
+
+  @Setup public void setUp(final Blackhole blackhole) {
+    final RxFirebaseDatabase rxFirebaseDatabase = StandIns.database("none");
+    final Action1<FirebaseChildEvent> consumer = new Action1<FirebaseChildEvent>() {
+      @Override public void call(FirebaseChildEvent firebaseChildEvent) {
+        blackhole.consume(firebaseChildEvent);
+      }
+    };
+    final BenchmarkQuery query = new BenchmarkQuery();
+    final Observable<FirebaseChildEvent> events;
+    switch (subscription) {
+      case "all":
+        events = rxFirebaseDatabase.observeChildEvent(query);
+        break;
+      case "changed":
+        events = rxFirebaseDatabase.observeChildChanged(query);
+        break;
+      case "added":
+        events = rxFirebaseDatabase.observeChildAdded(query);
+        break;
+      case "every-type":
+        events = Observable.merge(rxFirebaseDatabase.observeChildAdded(query),
+            rxFirebaseDatabase.observeChildChanged(query),
+            rxFirebaseDatabase.observeChildRemoved(query),
+            rxFirebaseDatabase.observeChildMoved(query));
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown subscription " + subscription);
+    }
+    subscriptions = events.subscribe(consumer);
+    listener = query.getChildEventListener();
+    children = ChildEventBenchmark.addChildren(listener);
+  }
+
+  @TearDown public void tearDown() {
+    subscriptions.unsubscribe();
+  }
+
+  @Benchmark public void onChildChanged() {
+    final DataSnapshot dataSnapshot = children[next++ & (ChildEventBenchmark.CHILDREN - 1)];
+    listener.onChildChanged(dataSnapshot, null);
+  }
+}
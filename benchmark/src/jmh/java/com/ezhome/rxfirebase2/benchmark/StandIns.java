@@ -0,0 +1,68 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.benchmark;
+
+import com.ezhome.rxfirebase2.database.RxFirebaseDatabase;
+import com.google.firebase.database.BenchmarkSnapshot;
+import com.google.firebase.database.DataSnapshot;
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+
+/**
+ * Synthetic stand-ins of the Firebase classes. They are hand-written, so the
+ * measurements do not include the dispatch of a mocking framework.
+ */
+final class StandIns {
+
+  private StandIns() {
+    //empty constructor prevent initialisation
+  }
+
+  /**
+   * Creates a new {@link RxFirebaseDatabase} which observes on the provided scheduler
+   *
+   * @param observeOn {@link String} none, immediate or trampoline
+   * @return {@link RxFirebaseDatabase}
+   */
+  static RxFirebaseDatabase database(String observeOn) {
+    final Scheduler scheduler;
+    switch (observeOn) {
+      case "none":
+        scheduler = null;
+        break;
+      case "immediate":
+        scheduler = Schedulers.immediate();
+        break;
+      case "trampoline":
+        scheduler = Schedulers.trampoline();
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown scheduler " + observeOn);
+    }
+    return new RxFirebaseDatabase() {
+    }.observeOn(scheduler);
+  }
+
+  /**
+   * Creates a {@link DataSnapshot} of the provided key
+   *
+   * @param key {@link String} the key of the snapshot
+   * @return {@link DataSnapshot}
+   */
+  static DataSnapshot snapshot(String key) {
+    return new BenchmarkSnapshot(key, key);
+  }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.benchmark;
+
+import com.google.firebase.database.BenchmarkQuery;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.ValueEventListener;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import rx.Emitter;
+import rx.Subscription;
+import rx.functions.Action1;
+
+/**
+ * Measures the delivery of a snapshot from the shared value listener to a
+ * subscriber of {@code observeValueEvent} across the backpressure modes and
+ * the observe schedulers applied by {@code applyScheduler}
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ValueEventBenchmark {
+
+  @Param({ "NONE", "BUFFER", "DROP", "LATEST", "ERROR" }) public Emitter.BackpressureMode mode;
+
+  @Param({ "none", "immediate", "trampoline" }) public String observeOn;
+
+  private ValueEventListener listener;
+  private DataSnapshot dataSnapshot;
+  private Subscription subscription;
+
+  @Setup public void setUp(final Blackhole blackhole) {
+    final BenchmarkQuery query = new BenchmarkQuery();
+    dataSnapshot = StandIns.snapshot("value");
+    subscription = StandIns.database(observeOn)
+        .observeValueEvent(query, mode)
+        .subscribe(new Action1<DataSnapshot>() {
+          @Override public void call(DataSnapshot dataSnapshot) {
+            blackhole.consume(dataSnapshot);
+          }
+        });
+    listener = query.getValueEventListener();
+  }
+
+  @TearDown public void tearDown() {
+    subscription.unsubscribe();
+  }
+
+  @Benchmark public void onDataChange() {
+    listener.onDataChange(dataSnapshot);
+  }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.database;
+
+/**
+ * A hand-written {@link Query} for the benchmarks which keeps the listeners
+ * added to it, so a benchmark can call them directly. It lives in the package
+ * of the SDK to call its package-private constructor, the SDK repo and path
+ * are never used since every listener method is overridden.
+ */
+public final class BenchmarkQuery extends Query {
+
+  private ValueEventListener valueEventListener;
+  private ChildEventListener childEventListener;
+
+  public BenchmarkQuery() {
+    super(null, null);
+  }
+
+  public ValueEventListener getValueEventListener() {
+    return valueEventListener;
+  }
+
+  public ChildEventListener getChildEventListener() {
+    return childEventListener;
+  }
+
+  @Override public ValueEventListener addValueEventListener(ValueEventListener listener) {
+    valueEventListener = listener;
+    return listener;
+  }
+
+  @Override public ChildEventListener addChildEventListener(ChildEventListener listener) {
+    childEventListener = listener;
+    return listener;
+  }
+
+  @Override public void removeEventListener(ValueEventListener listener) {
+    if (valueEventListener == listener) {
+      valueEventListener = null;
+    }
+  }
+
+  @Override public void removeEventListener(ChildEventListener listener) {
+    if (childEventListener == listener) {
+      childEventListener = null;
+    }
+  }
+
+  @Override public DatabaseReference getRef() {
+    return null;
+  }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.firebase.database;
+
+/**
+ * A hand-written {@link DataSnapshot} of a key and a value for the benchmarks.
+ * It lives in the package of the SDK to call its package-private constructor,
+ * the SDK node and reference are never used since every read is overridden.
+ */
+public final class BenchmarkSnapshot extends DataSnapshot {
+
+  private final String key;
+  private final Object value;
+
+  public BenchmarkSnapshot(String key, Object value) {
+    super(null, null);
+    this.key = key;
+    this.value = value;
+  }
+
+  @Override public String getKey() {
+    return key;
+  }
+
+  @Override public Object getValue() {
+    return value;
+  }
+
+  @Override public Object getValue(boolean useExportFormat) {
+    return value;
+  }
+
+  @Override public boolean exists() {
+    return value != null;
+  }
+
+  @Override public String toString() {
+    return "BenchmarkSnapshot{key='" + key + '\'' + ", value=" + value + '}';
+  }
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2;
+
+import com.google.firebase.auth.FirebaseUser;
+
+/**
+ * This class represents the authentication state of Firebase,
+ * either signed in with a user or signed out
+ */
+public class FirebaseAuthState {
+
+  /**
+   * The signed in user, null when signed out
+   */
+  private final FirebaseUser user;
+
+  public FirebaseAuthState(FirebaseUser user) {
+    this.user = user;
+  }
+
+  public FirebaseUser getUser() {
+    return user;
+  }
+
+  public boolean isSignedIn() {
+    return user != null;
+  }
+
+  @Override public String toString() {
+    return "FirebaseAuthState{user=" + (user == null ? null : user.getUid()) + '}';
+  }
+}
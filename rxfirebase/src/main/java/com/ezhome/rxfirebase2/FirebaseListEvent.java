@@ -0,0 +1,140 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2;
+
+import java.util.List;
+
+/**
+ * This class represents a change of a list materialized from the child
+ * events of a query, with the current immutable list after the change
+ *
+ * @param <T> the type of the list values
+ */
+public class FirebaseListEvent<T> {
+
+  /**
+   * The immutable values of the list after the changes
+   */
+  private final List<T> list;
+
+  /**
+   * The immutable keys of the list values
+   */
+  private final List<String> keys;
+
+  /**
+   * The changes applied to the previous list, in order
+   */
+  private final List<Change> changes;
+
+  public FirebaseListEvent(List<T> list, List<String> keys, List<Change> changes) {
+    this.list = list;
+    this.keys = keys;
+    this.changes = changes;
+  }
+
+  public List<T> getList() {
+    return list;
+  }
+
+  public List<String> getKeys() {
+    return keys;
+  }
+
+  public List<Change> getChanges() {
+    return changes;
+  }
+
+  /**
+   * A range change of the list
+   */
+  public static class Change {
+
+    public enum Type {
+      INSERTED, REMOVED, MOVED, CHANGED
+    }
+
+    /**
+     * Represents the type of the change
+     */
+    private final Type type;
+
+    /**
+     * The first position of the range
+     */
+    private final int index;
+
+    /**
+     * The new position of a moved item, the same as the index otherwise
+     */
+    private final int toIndex;
+
+    /**
+     * The number of items of the range
+     */
+    private final int count;
+
+    public Change(Type type, int index, int toIndex, int count) {
+      this.type = type;
+      this.index = index;
+      this.toIndex = toIndex;
+      this.count = count;
+    }
+
+    public Type getType() {
+      return type;
+    }
+
+    public int getIndex() {
+      return index;
+    }
+
+    public int getToIndex() {
+      return toIndex;
+    }
+
+    public int getCount() {
+      return count;
+    }
+
+    @Override public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      final Change change = (Change) o;
+      return type == change.type
+          && index == change.index
+          && toIndex == change.toIndex
+          && count == change.count;
+    }
+
+    @Override public int hashCode() {
+      int result = type.hashCode();
+      result = 31 * result + index;
+      result = 31 * result + toIndex;
+      result = 31 * result + count;
+      return result;
+    }
+
+    @Override public String toString() {
+      return "Change{" + type + ", index=" + index + ", toIndex=" + toIndex + ", count=" + count
+          + '}';
+    }
+  }
+}
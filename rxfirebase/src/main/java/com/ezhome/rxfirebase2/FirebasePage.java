@@ -0,0 +1,73 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2;
+
+import com.google.firebase.database.DataSnapshot;
+import java.util.List;
+
+/**
+ * This class represents a page of the children of a query ordered by key
+ */
+public class FirebasePage {
+
+  /**
+   * The position of the page, starting from 0
+   */
+  private final int index;
+
+  /**
+   * The immutable snapshots of the children of the page
+   */
+  private final List<DataSnapshot> snapshots;
+
+  /**
+   * Whether there are no children after this page
+   */
+  private final boolean last;
+
+  /**
+   * Whether this is a change of a page which was already emitted
+   */
+  private final boolean update;
+
+  public FirebasePage(int index, List<DataSnapshot> snapshots, boolean last, boolean update) {
+    this.index = index;
+    this.snapshots = snapshots;
+    this.last = last;
+    this.update = update;
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  public List<DataSnapshot> getSnapshots() {
+    return snapshots;
+  }
+
+  public boolean isLast() {
+    return last;
+  }
+
+  public boolean isUpdate() {
+    return update;
+  }
+
+  @Override public String toString() {
+    return "FirebasePage{index=" + index + ", size=" + snapshots.size() + ", last=" + last
+        + ", update=" + update + '}';
+  }
+}
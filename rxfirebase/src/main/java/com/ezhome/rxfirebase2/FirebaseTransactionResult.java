@@ -0,0 +1,53 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2;
+
+import com.google.firebase.database.DataSnapshot;
+
+/**
+ * This class represents a transaction committed by the Firebase server
+ */
+public class FirebaseTransactionResult {
+
+  /**
+   * The committed data
+   */
+  private final DataSnapshot dataSnapshot;
+
+  /**
+   * The number of times the handler ran before the commit, without the rejected run
+   * on the locally cached value, more than one under contention
+   */
+  private final int attempts;
+
+  public FirebaseTransactionResult(DataSnapshot dataSnapshot, int attempts) {
+    this.dataSnapshot = dataSnapshot;
+    this.attempts = attempts;
+  }
+
+  public DataSnapshot getDataSnapshot() {
+    return dataSnapshot;
+  }
+
+  public int getAttempts() {
+    return attempts;
+  }
+
+  @Override public String toString() {
+    return "FirebaseTransactionResult{key='" + dataSnapshot.getKey() + '\'' + ", attempts="
+        + attempts + '}';
+  }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2;
+
+import com.google.firebase.database.DataSnapshot;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class represents the children which changed between two consecutive
+ * value snapshots of a query
+ */
+public class FirebaseValueDiff {
+
+  /**
+   * The whole snapshot after the changes
+   */
+  private final DataSnapshot dataSnapshot;
+
+  /**
+   * The snapshots of the added children by key, in the order of the snapshot
+   */
+  private final Map<String, DataSnapshot> added;
+
+  /**
+   * The snapshots of the modified children by key, in the order of the snapshot
+   */
+  private final Map<String, DataSnapshot> modified;
+
+  /**
+   * The keys of the removed children
+   */
+  private final List<String> removed;
+
+  public FirebaseValueDiff(DataSnapshot dataSnapshot, Map<String, DataSnapshot> added,
+      Map<String, DataSnapshot> modified, List<String> removed) {
+    this.dataSnapshot = dataSnapshot;
+    this.added = added;
+    this.modified = modified;
+    this.removed = removed;
+  }
+
+  public DataSnapshot getDataSnapshot() {
+    return dataSnapshot;
+  }
+
+  public Map<String, DataSnapshot> getAdded() {
+    return added;
+  }
+
+  public Map<String, DataSnapshot> getModified() {
+    return modified;
+  }
+
+  public List<String> getRemoved() {
+    return removed;
+  }
+
+  public boolean isEmpty() {
+    return added.isEmpty() && modified.isEmpty() && removed.isEmpty();
+  }
+
+  @Override public String toString() {
+    return "FirebaseValueDiff{added=" + added.keySet() + ", modified=" + modified.keySet()
+        + ", removed=" + removed + '}';
+  }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2;
+
+/**
+ * This class represents the result of a write acknowledged by the
+ * Firebase server
+ */
+public class FirebaseWriteResult {
+
+  /**
+   * The key of the written location
+   */
+  private final String key;
+
+  /**
+   * The wall clock time in milliseconds when the write was enqueued locally
+   */
+  private final long enqueueTimeMillis;
+
+  /**
+   * The time in milliseconds from the local enqueue to the server acknowledgement
+   */
+  private final long ackLatencyMillis;
+
+  public FirebaseWriteResult(String key, long enqueueTimeMillis, long ackLatencyMillis) {
+    this.key = key;
+    this.enqueueTimeMillis = enqueueTimeMillis;
+    this.ackLatencyMillis = ackLatencyMillis;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public long getEnqueueTimeMillis() {
+    return enqueueTimeMillis;
+  }
+
+  public long getAckLatencyMillis() {
+    return ackLatencyMillis;
+  }
+
+  @Override public String toString() {
+    return "FirebaseWriteResult{key='" + key + '\'' + ", enqueueTimeMillis=" + enqueueTimeMillis
+        + ", ackLatencyMillis=" + ackLatencyMillis + '}';
+  }
+}
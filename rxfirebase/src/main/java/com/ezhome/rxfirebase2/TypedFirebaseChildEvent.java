@@ -0,0 +1,46 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2;
+
+import com.google.firebase.database.DataSnapshot;
+
+/**
+ * A {@link FirebaseChildEvent} which carries the decoded value of its
+ * {@link DataSnapshot}
+ *
+ * @param <T> the decoded type
+ */
+public class TypedFirebaseChildEvent<T> extends FirebaseChildEvent {
+
+  /**
+   * The decoded value of the data snapshot
+   */
+  private T value;
+
+  public TypedFirebaseChildEvent(FirebaseChildEvent firebaseChildEvent, T value) {
+    super(firebaseChildEvent.getDataSnapshot(), firebaseChildEvent.getPreviousChildName(),
+        firebaseChildEvent.getEventType());
+    this.value = value;
+  }
+
+  public T getValue() {
+    return value;
+  }
+
+  public void setValue(T value) {
+    this.value = value;
+  }
+}
@@ -30,17 +30,6 @@ public class FirebaseAuthErrorFactory {
     //empty constructor prevent initialisation
   }
 
-  /**
-   * This method add to subscriber the proper error according to the
-   *
-   * @param subscriber {@link Subscriber}
-   * @param exception {@link Exception}
-   * @param <T> generic subscriber
-   */
-  static <T> void buildError(Subscriber<T> subscriber, Exception exception) {
-    subscriber.onError(exception);
-  }
-
   /**
    * This method adds to subscriber {@link FirebaseSignOutException}
    *
@@ -52,12 +41,12 @@ public class FirebaseAuthErrorFactory {
   }
 
   /**
-   * This method adds to subscriber {@link FirebaseSignOutException}
+   * This method creates the {@link FirebaseSignInException} of a failed sign-in
    *
-   * @param subscriber {@link Subscriber}
-   * @param <T> generic subscriber
+   * @param cause {@link Throwable} the failure of the sign-in task
+   * @return {@link FirebaseSignInException}
    */
-  static <T> void createSignInError(Subscriber<T> subscriber) {
-    subscriber.onError(new FirebaseSignInException("User signed out"));
+  static FirebaseSignInException createSignInError(Throwable cause) {
+    return new FirebaseSignInException("User didn't sign in successfully", cause);
   }
 }
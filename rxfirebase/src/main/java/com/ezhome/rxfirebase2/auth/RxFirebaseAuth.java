@@ -16,17 +16,26 @@
 package com.ezhome.rxfirebase2.auth;
 
 import android.support.annotation.NonNull;
-import com.google.android.gms.tasks.OnCompleteListener;
-import com.google.android.gms.tasks.OnFailureListener;
+import com.ezhome.rxfirebase2.FirebaseAuthState;
+import com.ezhome.rxfirebase2.instrumentation.FirebaseInstrumentation;
+import com.ezhome.rxfirebase2.instrumentation.NoOpFirebaseInstrumentation;
+import com.ezhome.rxfirebase2.task.RxTask;
 import com.google.android.gms.tasks.Task;
 import com.google.firebase.auth.AuthCredential;
 import com.google.firebase.auth.AuthResult;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseAuth.AuthStateListener;
 import com.google.firebase.auth.FirebaseUser;
+import java.util.concurrent.Executor;
+import rx.Emitter;
 import rx.Observable;
 import rx.Subscriber;
 import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Cancellable;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
 import rx.subscriptions.Subscriptions;
 
 /**
@@ -35,8 +44,48 @@ import rx.subscriptions.Subscriptions;
  */
 public class RxFirebaseAuth {
 
+  /**
+   * Function which returns the uid of the user of an auth state, null when signed out
+   */
+  private static final Func1<FirebaseAuthState, String> USER_ID =
+      new Func1<FirebaseAuthState, String>() {
+        @Override public String call(FirebaseAuthState authState) {
+          return authState.isSignedIn() ? authState.getUser().getUid() : null;
+        }
+      };
+
   private final FirebaseAuth firebaseAuth;
 
+  /**
+   * Receives the sign-in latencies
+   */
+  private volatile FirebaseInstrumentation instrumentation = NoOpFirebaseInstrumentation.INSTANCE;
+
+  /**
+   * Function which returns the user of an {@link AuthResult}
+   */
+  private static final Func1<AuthResult, FirebaseUser> USER =
+      new Func1<AuthResult, FirebaseUser>() {
+        @Override public FirebaseUser call(AuthResult authResult) {
+          return authResult.getUser();
+        }
+      };
+
+  /**
+   * Executor of the task callbacks, off the main thread by default
+   */
+  private volatile Executor callbackExecutor = RxTask.executorOf(Schedulers.io());
+
+  /**
+   * Refreshes the token after the token errors, created on first use
+   */
+  private TokenRefresher tokenRefresher;
+
+  /**
+   * The auth state stream shared by all the subscribers, created on first use
+   */
+  private Observable<FirebaseAuthState> authStateChanges;
+
   public static volatile RxFirebaseAuth instance;
 
   /**
@@ -60,6 +109,64 @@ public class RxFirebaseAuth {
     this.firebaseAuth = firebaseAuth;
   }
 
+  /**
+   * This method will set the instrumentation which receives the sign-in latencies
+   *
+   * @param instrumentation {@link FirebaseInstrumentation}, null to disable it
+   * @return {@link RxFirebaseAuth}
+   */
+  public RxFirebaseAuth setInstrumentation(FirebaseInstrumentation instrumentation) {
+    this.instrumentation =
+        instrumentation == null ? NoOpFirebaseInstrumentation.INSTANCE : instrumentation;
+    return this;
+  }
+
+  /**
+   * This method will set the executor on which the callbacks of the tasks run,
+   * e.g. {@link RxTask#executorOf(rx.Scheduler)}
+   *
+   * @param callbackExecutor {@link Executor} of the callbacks
+   * @return {@link RxFirebaseAuth}
+   */
+  public RxFirebaseAuth setCallbackExecutor(Executor callbackExecutor) {
+    if (callbackExecutor == null) {
+      throw new IllegalArgumentException("The callback executor cannot be null");
+    }
+    this.callbackExecutor = callbackExecutor;
+    return this;
+  }
+
+  /**
+   * Returns the executor on which the callbacks of the tasks run
+   *
+   * @return {@link Executor}
+   */
+  Executor getCallbackExecutor() {
+    return callbackExecutor;
+  }
+
+  /**
+   * Returns the authentication instance
+   *
+   * @return {@link FirebaseAuth}
+   */
+  FirebaseAuth getFirebaseAuth() {
+    return firebaseAuth;
+  }
+
+  /**
+   * Returns the token refresher of the signed in user, which can be set to
+   * {@link com.ezhome.rxfirebase2.database.RxFirebaseDatabase#setTokenRefresher(TokenRefresher)}
+   *
+   * @return {@link TokenRefresher}
+   */
+  public synchronized TokenRefresher getTokenRefresher() {
+    if (tokenRefresher == null) {
+      tokenRefresher = new TokenRefresher(this);
+    }
+    return tokenRefresher;
+  }
+
   /**
    * Attempts to authenticate to Firebase with {@link com.google.firebase.auth.AuthCredential}
    *
@@ -68,10 +175,9 @@ public class RxFirebaseAuth {
    * @return an {@link rx.Observable} of {@link com.google.firebase.auth.FirebaseUser} to use
    */
   public Observable<FirebaseUser> observeSignIn(final AuthCredential authCredential) {
-    return Observable.create(new Observable.OnSubscribe<FirebaseUser>() {
-      @Override public void call(final Subscriber<? super FirebaseUser> subscriber) {
-        final Task<AuthResult> authResultTask = firebaseAuth.signInWithCredential(authCredential);
-        attachListenSignIn(subscriber, authResultTask);
+    return signIn(new Func0<Task<AuthResult>>() {
+      @Override public Task<AuthResult> call() {
+        return firebaseAuth.signInWithCredential(authCredential);
       }
     });
   }
@@ -83,10 +189,9 @@ public class RxFirebaseAuth {
    * @return an {@link rx.Observable} of {@link com.google.firebase.auth.FirebaseUser} to use
    */
   public Observable<FirebaseUser> observeSignIn(final String token) {
-    return Observable.create(new Observable.OnSubscribe<FirebaseUser>() {
-      @Override public void call(final Subscriber<? super FirebaseUser> subscriber) {
-        final Task<AuthResult> authResultTask = firebaseAuth.signInWithCustomToken(token);
-        attachListenSignIn(subscriber, authResultTask);
+    return signIn(new Func0<Task<AuthResult>>() {
+      @Override public Task<AuthResult> call() {
+        return firebaseAuth.signInWithCustomToken(token);
       }
     });
   }
@@ -121,7 +226,9 @@ public class RxFirebaseAuth {
   }
 
   /**
-   * Observes the authentication state for {@link com.google.firebase.auth.FirebaseAuth}
+   * Observes the authentication state for {@link com.google.firebase.auth.FirebaseAuth}.
+   * Each subscriber registers its own listener and the stream fails when the user
+   * signs out, see {@link #observeAuthStateChanges()} for a shared stream.
    *
    * @return {@link rx.Observable} of {@link com.google.firebase.auth.FirebaseUser}
    */
@@ -149,25 +256,57 @@ public class RxFirebaseAuth {
   }
 
   /**
-   * Attaches the required listeners to observe the result
+   * Observes the authentication state changes for {@link com.google.firebase.auth.FirebaseAuth}.
+   * All the subscribers share a single listener, which stays registered while there is
+   * a subscriber, and late subscribers receive the current state. Signing out is
+   * emitted as a state and the consecutive states of the same user are dropped.
    *
-   * @param subscriber {@link rx.Subscriber} of a {@link com.google.firebase.auth.FirebaseUser}
-   * @param task {@link com.google.android.gms.tasks.Task}
-   */
-  private void attachListenSignIn(final Subscriber<? super FirebaseUser> subscriber,
-      Task<AuthResult> task) {
-    task.addOnCompleteListener(new OnCompleteListener<AuthResult>() {
-      @Override public void onComplete(@NonNull Task<AuthResult> task) {
-        if (!task.isSuccessful()) {
-          FirebaseAuthErrorFactory.createSignInError(subscriber);
-        } else {
-          subscriber.onNext(task.getResult().getUser());
+   * @return {@link rx.Observable} of {@link FirebaseAuthState} which does not terminate
+   */
+  public synchronized Observable<FirebaseAuthState> observeAuthStateChanges() {
+    if (authStateChanges == null) {
+      authStateChanges = Observable.create(new Action1<Emitter<FirebaseAuthState>>() {
+        @Override public void call(final Emitter<FirebaseAuthState> emitter) {
+          final AuthStateListener authStateListener = new AuthStateListener() {
+            @Override public void onAuthStateChanged(@NonNull FirebaseAuth firebaseAuth) {
+              emitter.onNext(new FirebaseAuthState(firebaseAuth.getCurrentUser()));
+            }
+          };
+          firebaseAuth.addAuthStateListener(authStateListener);
+          emitter.setCancellation(new Cancellable() {
+            @Override public void cancel() throws Exception {
+              firebaseAuth.removeAuthStateListener(authStateListener);
+            }
+          });
         }
-        subscriber.onCompleted();
-      }
-    }).addOnFailureListener(new OnFailureListener() {
-      @Override public void onFailure(@NonNull Exception e) {
-        FirebaseAuthErrorFactory.buildError(subscriber, e);
+      }, Emitter.BackpressureMode.LATEST).distinctUntilChanged(USER_ID).replay(1).refCount();
+    }
+    return authStateChanges;
+  }
+
+  /**
+   * Starts a sign-in task for each subscriber and observes its user on the callback executor
+   *
+   * @param taskFactory {@link Func0} which starts the sign-in task
+   * @return an {@link rx.Observable} of {@link com.google.firebase.auth.FirebaseUser}
+   */
+  private Observable<FirebaseUser> signIn(final Func0<Task<AuthResult>> taskFactory) {
+    return Observable.defer(new Func0<Observable<FirebaseUser>>() {
+      @Override public Observable<FirebaseUser> call() {
+        final FirebaseInstrumentation instrumentation = RxFirebaseAuth.this.instrumentation;
+        final long startNanos = System.nanoTime();
+        return RxTask.from(taskFactory.call(), callbackExecutor).map(USER)
+            .doOnNext(new Action1<FirebaseUser>() {
+              @Override public void call(FirebaseUser firebaseUser) {
+                instrumentation.onSignIn(System.nanoTime() - startNanos, true);
+              }
+            })
+            .onErrorResumeNext(new Func1<Throwable, Observable<FirebaseUser>>() {
+              @Override public Observable<FirebaseUser> call(Throwable throwable) {
+                instrumentation.onSignIn(System.nanoTime() - startNanos, false);
+                return Observable.error(FirebaseAuthErrorFactory.createSignInError(throwable));
+              }
+            });
       }
     });
   }
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.auth;
+
+import com.ezhome.rxfirebase2.exception.FirebaseExpiredTokenException;
+import com.ezhome.rxfirebase2.exception.FirebaseInvalidTokenException;
+import com.ezhome.rxfirebase2.task.RxTask;
+import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.auth.GetTokenResult;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import rx.Observable;
+import rx.functions.Action0;
+import rx.functions.Func0;
+import rx.functions.Func1;
+
+/**
+ * Refreshes the token of the signed in user when a stream fails with an expired
+ * or invalid token and resubscribes to the stream. The concurrent refreshes share
+ * a single token request, so the streams which expired together refresh once.
+ */
+public final class TokenRefresher {
+
+  /**
+   * Function which returns the token of a {@link GetTokenResult}
+   */
+  private static final Func1<GetTokenResult, String> TOKEN = new Func1<GetTokenResult, String>() {
+    @Override public String call(GetTokenResult tokenResult) {
+      return tokenResult.getToken();
+    }
+  };
+
+  private final RxFirebaseAuth rxFirebaseAuth;
+
+  /**
+   * The refresh in progress, null when there is none
+   */
+  private Observable<String> pending;
+
+  private int maxRefreshes = 1;
+  private long refreshCount;
+
+  TokenRefresher(RxFirebaseAuth rxFirebaseAuth) {
+    this.rxFirebaseAuth = rxFirebaseAuth;
+  }
+
+  /**
+   * Sets the max refreshes of a subscription before it receives a value, so a
+   * token which is rejected again after the refresh terminates the stream
+   *
+   * @param maxRefreshes the max refreshes, 0 to never refresh
+   * @return {@link TokenRefresher}
+   */
+  public synchronized TokenRefresher setMaxRefreshes(int maxRefreshes) {
+    if (maxRefreshes < 0) {
+      throw new IllegalArgumentException("The max refreshes cannot be negative");
+    }
+    this.maxRefreshes = maxRefreshes;
+    return this;
+  }
+
+  /**
+   * Returns the number of token requests
+   *
+   * @return the count of the refreshes
+   */
+  public synchronized long getRefreshCount() {
+    return refreshCount;
+  }
+
+  /**
+   * Returns whether an error is caused by the token of the user
+   *
+   * @param throwable {@link Throwable} the error
+   * @return true for {@link FirebaseExpiredTokenException} and
+   * {@link FirebaseInvalidTokenException}
+   */
+  public static boolean isTokenError(Throwable throwable) {
+    return throwable instanceof FirebaseExpiredTokenException
+        || throwable instanceof FirebaseInvalidTokenException;
+  }
+
+  /**
+   * Forces a refresh of the token of the signed in user, or joins the refresh in progress
+   *
+   * @return an {@link rx.Observable} of the new token
+   */
+  public synchronized Observable<String> refresh() {
+    if (pending == null) {
+      refreshCount++;
+      pending = createRefresh().doOnTerminate(new Action0() {
+        @Override public void call() {
+          synchronized (TokenRefresher.this) {
+            pending = null;
+          }
+        }
+      }).cache();
+    }
+    return pending;
+  }
+
+  /**
+   * Returns a transformer which refreshes the token and resubscribes after a token error
+   *
+   * @param <T> the type of the values
+   * @return {@link Observable.Transformer}
+   */
+  public <T> Observable.Transformer<T, T> resubscribeOnExpiry() {
+    return resubscribeOnExpiry(null, null);
+  }
+
+  /**
+   * Returns a transformer which refreshes the token and resubscribes after a token
+   * error. After a resubscription, the first value of each key whose fingerprint is
+   * the same as the one of the last value delivered with that key is not delivered
+   * again. The last delivered value of each key is kept, and the fingerprints are
+   * only computed for the first values after a resubscription.
+   *
+   * @param keySelector {@link Func1} which returns the key of a value
+   * @param fingerprint {@link Func1} which returns the fingerprint of a value,
+   * compared with {@link Object#equals(Object)}
+   * @param <T> the type of the values
+   * @return {@link Observable.Transformer}
+   */
+  public <T> Observable.Transformer<T, T> resubscribeOnExpiry(
+      final Func1<? super T, ?> keySelector, final Func1<? super T, ?> fingerprint) {
+    return new Observable.Transformer<T, T>() {
+      @Override public Observable<T> call(final Observable<T> source) {
+        return Observable.defer(new Func0<Observable<T>>() {
+          @Override public Observable<T> call() {
+            return resubscribe(source, keySelector, fingerprint);
+          }
+        });
+      }
+    };
+  }
+
+  private <T> Observable<T> resubscribe(Observable<T> source,
+      final Func1<? super T, ?> keySelector, final Func1<? super T, ?> fingerprint) {
+    final Map<Object, T> delivered = new HashMap<>();
+    final Set<Object> resubscribedKeys = new HashSet<>();
+    final int[] refreshes = new int[1];
+    return source.filter(new Func1<T, Boolean>() {
+      @Override public Boolean call(T value) {
+        final Object key;
+        final T previous;
+        synchronized (delivered) {
+          refreshes[0] = 0;
+          if (keySelector == null) {
+            return true;
+          }
+          key = keySelector.call(value);
+          if (!resubscribedKeys.remove(key)) {
+            delivered.put(key, value);
+            return true;
+          }
+          previous = delivered.get(key);
+        }
+        // Only the first value of a key after a resubscription is compared
+        if (fingerprint.call(previous).equals(fingerprint.call(value))) {
+          return false;
+        }
+        synchronized (delivered) {
+          delivered.put(key, value);
+        }
+        return true;
+      }
+    }).retryWhen(new Func1<Observable<? extends Throwable>, Observable<?>>() {
+      @Override public Observable<?> call(Observable<? extends Throwable> errors) {
+        return errors.flatMap(new Func1<Throwable, Observable<?>>() {
+          @Override public Observable<?> call(Throwable error) {
+            final int maxRefreshes;
+            synchronized (TokenRefresher.this) {
+              maxRefreshes = TokenRefresher.this.maxRefreshes;
+            }
+            synchronized (delivered) {
+              if (!isTokenError(error) || refreshes[0] >= maxRefreshes) {
+                return Observable.error(error);
+              }
+              refreshes[0]++;
+              resubscribedKeys.addAll(delivered.keySet());
+            }
+            return refresh();
+          }
+        });
+      }
+    });
+  }
+
+  private Observable<String> createRefresh() {
+    return Observable.defer(new Func0<Observable<String>>() {
+      @Override public Observable<String> call() {
+        final FirebaseUser firebaseUser = rxFirebaseAuth.getFirebaseAuth().getCurrentUser();
+        if (firebaseUser == null) {
+          return Observable.error(new FirebaseInvalidTokenException("No user is signed in"));
+        }
+        return RxTask.from(firebaseUser.getToken(true), rxFirebaseAuth.getCallbackExecutor())
+            .map(TOKEN);
+      }
+    });
+  }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import com.ezhome.rxfirebase2.FirebaseChildEvent;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import rx.Emitter;
+import rx.Observable;
+import rx.Observer;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Cancellable;
+
+/**
+ * Groups the child events of a query into ordered batches which are emitted
+ * when they reach the max size or when the time window of their first event
+ * ends. The events come from the shared listener of the query, and the batches
+ * of a subscription are taken from a small pool, see {@link #RECYCLE_DELIVERED}.
+ */
+final class BatchedChildEventOnSubscribe implements Action1<Emitter<FirebaseChildEventBatch>> {
+
+  /**
+   * The number of recycled batches kept per subscription
+   */
+  private static final int POOL_SIZE = 4;
+
+  /**
+   * Operator which recycles each batch once the subscriber returns from its delivery,
+   * lifted after the scheduler so that the batch was consumed on the delivery thread
+   */
+  static final Observable.Operator<FirebaseChildEventBatch, FirebaseChildEventBatch>
+      RECYCLE_DELIVERED =
+      new Observable.Operator<FirebaseChildEventBatch, FirebaseChildEventBatch>() {
+        @Override public Subscriber<? super FirebaseChildEventBatch> call(
+            final Subscriber<? super FirebaseChildEventBatch> child) {
+          return new Subscriber<FirebaseChildEventBatch>(child) {
+            @Override public void onNext(FirebaseChildEventBatch batch) {
+              try {
+                child.onNext(batch);
+              } finally {
+                batch.recycle();
+              }
+            }
+
+            @Override public void onError(Throwable e) {
+              child.onError(e);
+            }
+
+            @Override public void onCompleted() {
+              child.onCompleted();
+            }
+          };
+        }
+      };
+
+  private final Observable<FirebaseChildEvent> childEvents;
+  private final long windowMillis;
+  private final int maxSize;
+  private final Scheduler scheduler;
+
+  /**
+   * @param childEvents {@link Observable} of the shared child events of the query
+   * @param window the time window of a batch
+   * @param unit {@link TimeUnit} of the window
+   * @param maxSize the max number of events of a batch
+   * @param scheduler {@link Scheduler} on which the window is timed
+   */
+  BatchedChildEventOnSubscribe(Observable<FirebaseChildEvent> childEvents, long window,
+      TimeUnit unit, int maxSize, Scheduler scheduler) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("The max size should be positive");
+    }
+    this.childEvents = childEvents;
+    this.windowMillis = unit.toMillis(window);
+    this.maxSize = maxSize;
+    this.scheduler = scheduler;
+  }
+
+  @Override public void call(final Emitter<FirebaseChildEventBatch> emitter) {
+    final Batcher batcher = new Batcher(emitter);
+    final Subscription subscription = childEvents.subscribe(batcher);
+
+    // this is used to release the shared listener when the subscriber is
+    // cancelled (unsubscribe)
+    emitter.setCancellation(new Cancellable() {
+      @Override public void cancel() throws Exception {
+        subscription.unsubscribe();
+        batcher.worker.unsubscribe();
+      }
+    });
+  }
+
+  /**
+   * The {@link Observer} of the child events which fills the batches of a subscription
+   */
+  private final class Batcher implements Observer<FirebaseChildEvent> {
+
+    private final Emitter<FirebaseChildEventBatch> emitter;
+    private final Queue<FirebaseChildEventBatch> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final Scheduler.Worker worker = scheduler.createWorker();
+    private final Action0 flushAction = new Action0() {
+      @Override public void call() {
+        synchronized (Batcher.this) {
+          timer = null;
+          flush();
+        }
+      }
+    };
+    private FirebaseChildEventBatch current;
+    private Subscription timer;
+
+    Batcher(Emitter<FirebaseChildEventBatch> emitter) {
+      this.emitter = emitter;
+    }
+
+    @Override public void onNext(FirebaseChildEvent event) {
+      add(event);
+    }
+
+    @Override public synchronized void onError(Throwable throwable) {
+      flush();
+      emitter.onError(throwable);
+    }
+
+    @Override public void onCompleted() {
+      // The shared child events never complete
+    }
+
+    private synchronized void add(FirebaseChildEvent event) {
+      if (current == null) {
+        current = FirebaseChildEventBatch.obtain(maxSize, pool);
+      }
+      current.add(event);
+      if (current.size() >= maxSize) {
+        flush();
+      } else if (timer == null) {
+        timer = worker.schedule(flushAction, windowMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    /**
+     * Emits the current batch and cancels its timer
+     */
+    private void flush() {
+      if (timer != null) {
+        timer.unsubscribe();
+        timer = null;
+      }
+      if (current != null && !current.isEmpty()) {
+        final FirebaseChildEventBatch batch = current;
+        current = null;
+        emitter.onNext(batch);
+      }
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+/**
+ * A bounded backpressure buffer for the values a slow subscriber did not
+ * request yet, with the strategy applied when the buffer is full
+ */
+public final class BoundedBuffer {
+
+  public enum Overflow {
+    /**
+     * Drops the oldest buffered value to make room for the new one
+     */
+    DROP_OLDEST,
+    /**
+     * Drops the new value
+     */
+    DROP_NEWEST,
+    /**
+     * Merges the buffered value of the same key, e.g. the same child, with the new
+     * one and queues it again after the other keys. A child added and then removed
+     * is dropped. The oldest value is dropped when a new key does not fit.
+     */
+    CONFLATE,
+    /**
+     * Terminates the subscription with a {@link rx.exceptions.MissingBackpressureException}
+     */
+    ERROR
+  }
+
+  private final int capacity;
+  private final Overflow overflow;
+
+  private BoundedBuffer(int capacity, Overflow overflow) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("The capacity should be positive");
+    }
+    this.capacity = capacity;
+    this.overflow = overflow;
+  }
+
+  /**
+   * Creates a bounded buffer
+   *
+   * @param capacity the max number of buffered values
+   * @param overflow {@link Overflow} strategy when the buffer is full
+   * @return {@link BoundedBuffer}
+   */
+  public static BoundedBuffer of(int capacity, Overflow overflow) {
+    return new BoundedBuffer(capacity, overflow);
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public Overflow getOverflow() {
+    return overflow;
+  }
+}
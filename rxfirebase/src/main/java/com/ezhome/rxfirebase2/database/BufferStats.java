@@ -0,0 +1,94 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+/**
+ * The counters of the bounded buffer of a subscription
+ */
+public final class BufferStats {
+
+  private final String name;
+  private final int capacity;
+  private volatile int queueDepth;
+  private volatile int maxQueueDepth;
+  private volatile long deliveredCount;
+  private volatile long droppedCount;
+
+  BufferStats(String name, int capacity) {
+    this.name = name;
+    this.capacity = capacity;
+  }
+
+  /**
+   * Returns the name of the subscription, the key of its query and the kind of its events
+   *
+   * @return {@link String} the name
+   */
+  public String getName() {
+    return name;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Returns the number of values waiting for the subscriber to request them
+   *
+   * @return the current queue depth
+   */
+  public int getQueueDepth() {
+    return queueDepth;
+  }
+
+  public int getMaxQueueDepth() {
+    return maxQueueDepth;
+  }
+
+  public long getDeliveredCount() {
+    return deliveredCount;
+  }
+
+  /**
+   * Returns the number of values dropped or conflated because the buffer was full
+   *
+   * @return the count of dropped values
+   */
+  public long getDroppedCount() {
+    return droppedCount;
+  }
+
+  void onQueueDepth(int depth) {
+    queueDepth = depth;
+    if (depth > maxQueueDepth) {
+      maxQueueDepth = depth;
+    }
+  }
+
+  void onDelivered() {
+    deliveredCount++;
+  }
+
+  void onDropped() {
+    droppedCount++;
+  }
+
+  @Override public String toString() {
+    return "BufferStats{name='" + name + '\'' + ", capacity=" + capacity + ", queueDepth="
+        + queueDepth + ", maxQueueDepth=" + maxQueueDepth + ", deliveredCount=" + deliveredCount
+        + ", droppedCount=" + droppedCount + '}';
+  }
+}
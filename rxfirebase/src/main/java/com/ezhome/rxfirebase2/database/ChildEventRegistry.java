@@ -0,0 +1,373 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import com.ezhome.rxfirebase2.FirebaseChildEvent;
+import com.ezhome.rxfirebase2.FirebaseChildEvent.EventType;
+import com.ezhome.rxfirebase2.instrumentation.FirebaseInstrumentation;
+import com.ezhome.rxfirebase2.instrumentation.NoOpFirebaseInstrumentation;
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.Query;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import rx.Emitter;
+import rx.Observable;
+import rx.functions.Action1;
+import rx.functions.Cancellable;
+
+/**
+ * Keeps a single {@link ChildEventListener} per query and dispatches each
+ * child event only to the subscribers of its type. Since a new listener
+ * receives the existing children as added events, the current children are
+ * kept in order and replayed to the late subscribers of added events.
+ */
+final class ChildEventRegistry {
+
+  /**
+   * The group of the subscribers to every event type
+   */
+  private static final int ALL_EVENTS = EventType.values().length;
+
+  /**
+   * The shared listeners by query key
+   */
+  private final Map<String, SharedListener> listeners = new HashMap<>();
+
+  /**
+   * Receives the listener counts, emissions and errors
+   */
+  private volatile FirebaseInstrumentation instrumentation = NoOpFirebaseInstrumentation.INSTANCE;
+
+  /**
+   * Sets the instrumentation of the listeners
+   *
+   * @param instrumentation {@link FirebaseInstrumentation} to report to
+   */
+  void setInstrumentation(FirebaseInstrumentation instrumentation) {
+    this.instrumentation = instrumentation;
+  }
+
+  /**
+   * Returns the number of listeners currently attached
+   *
+   * @return the count of attached listeners
+   */
+  synchronized int size() {
+    return listeners.size();
+  }
+
+  /**
+   * Observes the child events of the provided query through the shared listener of it
+   *
+   * @param query {@link Query} this is reference of a Firebase Query
+   * @param eventType {@link EventType} of the observed events, null for all of them
+   * @param backPressureMode {@link Emitter.BackpressureMode} backpressure mode
+   * @return an {@link rx.Observable} of {@link FirebaseChildEvent}
+   */
+  Observable<FirebaseChildEvent> observe(final Query query, final EventType eventType,
+      Emitter.BackpressureMode backPressureMode) {
+    return Observable.create(new Action1<Emitter<FirebaseChildEvent>>() {
+      @Override public void call(final Emitter<FirebaseChildEvent> emitter) {
+        final int group = eventType == null ? ALL_EVENTS : eventType.ordinal();
+        final SerialEmitter<FirebaseChildEvent> serialEmitter =
+            new SerialEmitter<>(emitter, true);
+        final SharedListener sharedListener = attach(query, group, serialEmitter);
+
+        // When the subscription is cancelled, release the shared listener
+        emitter.setCancellation(new Cancellable() {
+          @Override public void cancel() throws Exception {
+            release(sharedListener, group, serialEmitter);
+          }
+        });
+      }
+    }, backPressureMode);
+  }
+
+  /**
+   * Adds a subscriber to the shared listener of a query. The current children are
+   * replayed and a new listener is added to the query after releasing the lock,
+   * since the SDK may call back synchronously.
+   */
+  private SharedListener attach(Query query, int group,
+      SerialEmitter<FirebaseChildEvent> emitter) {
+    final SharedListener sharedListener;
+    final boolean created;
+    final List<FirebaseChildEvent> replay;
+    synchronized (this) {
+      final String key = QueryKey.of(query);
+      final SharedListener existing = listeners.get(key);
+      created = existing == null;
+      sharedListener = created ? new SharedListener(key, query) : existing;
+      if (created) {
+        listeners.put(key, sharedListener);
+      }
+      replay = !created && (group == ALL_EVENTS || group == EventType.ADDED.ordinal())
+          ? sharedListener.currentChildren() : Collections.<FirebaseChildEvent>emptyList();
+      sharedListener.emitters.get(group).add(emitter);
+      sharedListener.subscriberCount++;
+      instrumentation.onListenerCountChanged(key, sharedListener.subscriberCount);
+    }
+    emitter.replay(replay);
+    if (created) {
+      query.addChildEventListener(sharedListener);
+      final boolean detached;
+      synchronized (this) {
+        detached = listeners.get(sharedListener.key) != sharedListener;
+      }
+      if (detached) {
+        // The last subscriber left before the listener was added
+        query.removeEventListener(sharedListener);
+      }
+    }
+    return sharedListener;
+  }
+
+  private synchronized void release(SharedListener sharedListener, int group,
+      SerialEmitter<FirebaseChildEvent> emitter) {
+    if (!sharedListener.emitters.get(group).remove(emitter)
+        || listeners.get(sharedListener.key) != sharedListener) {
+      return;
+    }
+    sharedListener.subscriberCount--;
+    instrumentation.onListenerCountChanged(sharedListener.key, sharedListener.subscriberCount);
+    if (sharedListener.isEmpty()) {
+      listeners.remove(sharedListener.key);
+      sharedListener.query.removeEventListener(sharedListener);
+    }
+  }
+
+  /**
+   * The {@link ChildEventListener} shared between the subscribers of a query
+   */
+  private final class SharedListener implements ChildEventListener {
+
+    private final String key;
+    private final Query query;
+    private final List<List<SerialEmitter<FirebaseChildEvent>>> emitters =
+        new ArrayList<>(ALL_EVENTS + 1);
+    private final LinkedChildren children = new LinkedChildren();
+    private final long attachNanos = System.nanoTime();
+    private int subscriberCount;
+    private boolean received;
+
+    SharedListener(String key, Query query) {
+      this.key = key;
+      this.query = query;
+      for (int group = 0; group <= ALL_EVENTS; group++) {
+        emitters.add(new ArrayList<SerialEmitter<FirebaseChildEvent>>());
+      }
+    }
+
+    boolean isEmpty() {
+      for (List<SerialEmitter<FirebaseChildEvent>> group : emitters) {
+        if (!group.isEmpty()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Returns the current children as added events, as a new listener would receive them
+     */
+    List<FirebaseChildEvent> currentChildren() {
+      final List<FirebaseChildEvent> events = new ArrayList<>(children.size());
+      String previousChildName = null;
+      for (Child child = children.first; child != null; child = child.next) {
+        events.add(
+            new FirebaseChildEvent(child.dataSnapshot, previousChildName, EventType.ADDED));
+        previousChildName = child.key;
+      }
+      return events;
+    }
+
+    @Override public void onChildAdded(DataSnapshot dataSnapshot, String previousChildName) {
+      dispatch(EventType.ADDED, dataSnapshot, previousChildName);
+    }
+
+    @Override public void onChildChanged(DataSnapshot dataSnapshot, String previousChildName) {
+      dispatch(EventType.CHANGED, dataSnapshot, previousChildName);
+    }
+
+    @Override public void onChildRemoved(DataSnapshot dataSnapshot) {
+      dispatch(EventType.REMOVED, dataSnapshot, null);
+    }
+
+    @Override public void onChildMoved(DataSnapshot dataSnapshot, String previousChildName) {
+      dispatch(EventType.MOVED, dataSnapshot, previousChildName);
+    }
+
+    @Override public void onCancelled(DatabaseError error) {
+      final Exception exception = FirebaseDatabaseErrorFactory.createError(error);
+      final List<SerialEmitter<FirebaseChildEvent>> cancelled = new ArrayList<>();
+      synchronized (ChildEventRegistry.this) {
+        // The SDK already removed the listener, a new subscriber has to attach again
+        if (listeners.get(key) == this) {
+          listeners.remove(key);
+          instrumentation.onListenerCountChanged(key, 0);
+        }
+        // The error is counted once for the listener, not for each of its subscribers
+        instrumentation.onError(key, exception);
+        for (List<SerialEmitter<FirebaseChildEvent>> group : emitters) {
+          cancelled.addAll(group);
+          group.clear();
+        }
+      }
+      for (SerialEmitter<FirebaseChildEvent> emitter : cancelled) {
+        emitter.onError(exception);
+      }
+    }
+
+    private void dispatch(EventType eventType, DataSnapshot dataSnapshot,
+        String previousChildName) {
+      final List<SerialEmitter<FirebaseChildEvent>> current;
+      synchronized (ChildEventRegistry.this) {
+        if (!received) {
+          received = true;
+          instrumentation.onFirstSnapshot(key, System.nanoTime() - attachNanos);
+        }
+        instrumentation.onEmission(key);
+        children.apply(eventType, dataSnapshot, previousChildName);
+        final List<SerialEmitter<FirebaseChildEvent>> typeEmitters =
+            emitters.get(eventType.ordinal());
+        final List<SerialEmitter<FirebaseChildEvent>> allEmitters = emitters.get(ALL_EVENTS);
+        if (typeEmitters.isEmpty() && allEmitters.isEmpty()) {
+          return;
+        }
+        current = new ArrayList<>(typeEmitters.size() + allEmitters.size());
+        current.addAll(typeEmitters);
+        current.addAll(allEmitters);
+      }
+      final FirebaseChildEvent event =
+          eventType == EventType.REMOVED ? new FirebaseChildEvent(dataSnapshot, eventType)
+              : new FirebaseChildEvent(dataSnapshot, previousChildName, eventType);
+      for (SerialEmitter<FirebaseChildEvent> emitter : current) {
+        emitter.onNext(event);
+      }
+    }
+  }
+
+  /**
+   * The current children of a query in order, a linked list indexed by key so
+   * that every child event is applied in O(1) without copying the list
+   */
+  private static final class LinkedChildren {
+
+    private final Map<String, Child> children = new HashMap<>();
+    private Child first;
+    private Child last;
+
+    int size() {
+      return children.size();
+    }
+
+    void apply(EventType eventType, DataSnapshot dataSnapshot, String previousChildName) {
+      final String key = dataSnapshot.getKey();
+      switch (eventType) {
+        case ADDED:
+        case MOVED: {
+          Child child = children.get(key);
+          if (child == null && eventType == EventType.MOVED) {
+            return;
+          }
+          if (child == null) {
+            child = new Child(key);
+            children.put(key, child);
+          } else {
+            unlink(child);
+          }
+          child.dataSnapshot = dataSnapshot;
+          linkAfter(child, previousChildName);
+          return;
+        }
+        case CHANGED: {
+          final Child child = children.get(key);
+          if (child != null) {
+            child.dataSnapshot = dataSnapshot;
+          }
+          return;
+        }
+        case REMOVED: {
+          final Child child = children.remove(key);
+          if (child != null) {
+            unlink(child);
+          }
+          return;
+        }
+        default:
+          // No other event types
+      }
+    }
+
+    /**
+     * Links a child after its previous sibling, first when there is no previous
+     * sibling and last when the previous sibling is unknown
+     */
+    private void linkAfter(Child child, String previousChildName) {
+      final Child previous;
+      if (previousChildName == null) {
+        previous = null;
+      } else {
+        final Child sibling = children.get(previousChildName);
+        previous = sibling == null ? last : sibling;
+      }
+      child.previous = previous;
+      child.next = previous == null ? first : previous.next;
+      if (child.next == null) {
+        last = child;
+      } else {
+        child.next.previous = child;
+      }
+      if (previous == null) {
+        first = child;
+      } else {
+        previous.next = child;
+      }
+    }
+
+    private void unlink(Child child) {
+      if (child.previous == null) {
+        first = child.next;
+      } else {
+        child.previous.next = child.next;
+      }
+      if (child.next == null) {
+        last = child.previous;
+      } else {
+        child.next.previous = child.previous;
+      }
+      child.previous = null;
+      child.next = null;
+    }
+  }
+
+  private static final class Child {
+
+    private final String key;
+    private DataSnapshot dataSnapshot;
+    private Child previous;
+    private Child next;
+
+    Child(String key) {
+      this.key = key;
+    }
+  }
+}
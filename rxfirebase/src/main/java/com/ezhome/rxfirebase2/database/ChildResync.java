@@ -0,0 +1,156 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import com.ezhome.rxfirebase2.FirebaseChildEvent;
+import com.ezhome.rxfirebase2.FirebaseChildEvent.EventType;
+import com.google.firebase.database.DataSnapshot;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import rx.Observable;
+import rx.functions.Func0;
+import rx.functions.Func1;
+
+/**
+ * Reconciles the child events of a subscription whose listener is attached again,
+ * e.g. when the connection gate re-opens it. The replayed children are compared
+ * with the keys and fingerprints of the delivered ones: an unchanged child is not
+ * delivered again, a changed one is delivered as changed, and the delivered
+ * children which are missing once the query is loaded are delivered as removed.
+ * A subscription to the added events only receives the children it did not
+ * receive yet. Computing the fingerprint of a child costs a read of its value.
+ */
+final class ChildResync {
+
+  /**
+   * The fingerprints of the delivered children by key
+   */
+  private final EventType eventType;
+  private final Map<String, Long> fingerprints = new HashMap<>();
+
+  /**
+   * The keys replayed since the last attachment
+   */
+  private final Set<String> replayed = new HashSet<>();
+
+  private boolean attached;
+  private boolean resyncing;
+
+  private ChildResync(EventType eventType) {
+    this.eventType = eventType;
+  }
+
+  /**
+   * Reconciles the child events of the attachments made by the resubscriber
+   *
+   * @param events {@link Observable} which attaches the child listener
+   * @param eventType {@link EventType} of the events, null for all of them or
+   * {@link EventType#ADDED}
+   * @param loaded {@link Observable} of a single value read of the query, which
+   * the SDK delivers after the initial child events
+   * @param resubscriber {@link Observable.Transformer} which subscribes again to
+   * the attachments
+   * @return an {@link rx.Observable} of {@link FirebaseChildEvent}
+   */
+  static Observable<FirebaseChildEvent> resync(final Observable<FirebaseChildEvent> events,
+      final EventType eventType, final Observable<DataSnapshot> loaded,
+      final Observable.Transformer<Object, Object> resubscriber) {
+    return Observable.defer(new Func0<Observable<FirebaseChildEvent>>() {
+      @Override public Observable<FirebaseChildEvent> call() {
+        final ChildResync resync = new ChildResync(eventType);
+        return Observable.defer(new Func0<Observable<Object>>() {
+          @Override public Observable<Object> call() {
+            return resync.attach(events, loaded);
+          }
+        }).compose(resubscriber).flatMapIterable(
+            new Func1<Object, Iterable<FirebaseChildEvent>>() {
+              @Override public Iterable<FirebaseChildEvent> call(Object item) {
+                return resync.apply(item);
+              }
+            });
+      }
+    });
+  }
+
+  private synchronized Observable<Object> attach(Observable<FirebaseChildEvent> events,
+      Observable<DataSnapshot> loaded) {
+    if (!attached) {
+      attached = true;
+      return events.cast(Object.class);
+    }
+    // The previous attachment is unsubscribed, its events were already applied
+    resyncing = true;
+    replayed.clear();
+    return Observable.merge(events.cast(Object.class), loaded.cast(Object.class));
+  }
+
+  private synchronized List<FirebaseChildEvent> apply(Object item) {
+    if (item instanceof DataSnapshot) {
+      return removeMissing((DataSnapshot) item);
+    }
+    final FirebaseChildEvent event = (FirebaseChildEvent) item;
+    final DataSnapshot dataSnapshot = event.getDataSnapshot();
+    final String key = dataSnapshot.getKey();
+    if (event.getEventType() == EventType.REMOVED) {
+      fingerprints.remove(key);
+      replayed.remove(key);
+      return Collections.singletonList(event);
+    }
+    final Long fingerprint = ValueDiffer.fingerprint(dataSnapshot.getValue(true));
+    final Long previous = fingerprints.put(key, fingerprint);
+    if (!resyncing) {
+      return Collections.singletonList(event);
+    }
+    replayed.add(key);
+    if (event.getEventType() != EventType.ADDED || previous == null) {
+      return Collections.singletonList(event);
+    }
+    if (previous.equals(fingerprint) || eventType != null) {
+      return Collections.emptyList();
+    }
+    return Collections.singletonList(
+        new FirebaseChildEvent(dataSnapshot, event.getPreviousChildName(), EventType.CHANGED));
+  }
+
+  /**
+   * Ends the resync, the delivered children which were not replayed are removed
+   */
+  private List<FirebaseChildEvent> removeMissing(DataSnapshot loaded) {
+    if (!resyncing) {
+      return Collections.emptyList();
+    }
+    resyncing = false;
+    final List<FirebaseChildEvent> removed = new ArrayList<>();
+    final Iterator<String> keys = fingerprints.keySet().iterator();
+    while (keys.hasNext()) {
+      final String key = keys.next();
+      if (!replayed.contains(key)) {
+        keys.remove();
+        if (eventType == null) {
+          removed.add(new FirebaseChildEvent(loaded.child(key), EventType.REMOVED));
+        }
+      }
+    }
+    replayed.clear();
+    return removed;
+  }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import android.view.Choreographer;
+import rx.functions.Action0;
+
+/**
+ * A {@link FrameClock} of the {@link Choreographer} of the main thread
+ */
+public final class ChoreographerFrameClock implements FrameClock {
+
+  private final Choreographer choreographer;
+
+  private ChoreographerFrameClock(Choreographer choreographer) {
+    this.choreographer = choreographer;
+  }
+
+  /**
+   * Creates the frame clock of the {@link Choreographer} of the calling thread,
+   * so it should be called on the main thread
+   *
+   * @return {@link ChoreographerFrameClock}
+   */
+  public static ChoreographerFrameClock create() {
+    return new ChoreographerFrameClock(Choreographer.getInstance());
+  }
+
+  @Override public void postFrameCallback(final Action0 callback) {
+    choreographer.postFrameCallback(new Choreographer.FrameCallback() {
+      @Override public void doFrame(long frameTimeNanos) {
+        callback.call();
+      }
+    });
+  }
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.subjects.BehaviorSubject;
+
+/**
+ * Detaches the non critical listeners while the client is offline and
+ * re-attaches them on reconnect in priority order, one query per stagger
+ * delay, so a reconnect does not re-sync every query at once. The listeners
+ * are gated only after the client was connected once, so a cold start offline
+ * still attaches them to the local cache.
+ */
+final class ConnectionGate {
+
+  private final long staggerMillis;
+  private final Scheduler scheduler;
+
+  /**
+   * The gates of the active subscriptions in subscription order
+   */
+  private final List<Gate> gates = new ArrayList<>();
+
+  private boolean connected = true;
+  private boolean wasConnected;
+  private Scheduler.Worker reattachWorker;
+  private long sequence;
+
+  ConnectionGate(long staggerMillis, Scheduler scheduler) {
+    this.staggerMillis = staggerMillis;
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Subscribes to the source only while the gate of the subscription is open
+   *
+   * @param key {@link String} the key of the query, its subscriptions open together
+   * @param priority {@link ListenerPriority} of the subscription
+   * @param source {@link Observable} which attaches the listener
+   * @param <T> the type of the values
+   * @return the gated {@link Observable}
+   */
+  <T> Observable<T> gate(final String key, final ListenerPriority priority,
+      final Observable<T> source) {
+    if (priority == ListenerPriority.CRITICAL) {
+      return source;
+    }
+    return Observable.defer(new Func0<Observable<T>>() {
+      @Override public Observable<T> call() {
+        final Gate gate = register(key, priority);
+        return gate.open.distinctUntilChanged()
+            .switchMap(new Func1<Boolean, Observable<T>>() {
+              @Override public Observable<T> call(Boolean open) {
+                return open ? source : Observable.<T>never();
+              }
+            })
+            .doOnUnsubscribe(new Action0() {
+              @Override public void call() {
+                unregister(gate);
+              }
+            });
+      }
+    });
+  }
+
+  /**
+   * Receives the connection state of the client
+   *
+   * @param connected whether the client is connected
+   */
+  void onConnectionChanged(boolean connected) {
+    final List<Gate> closed = new ArrayList<>();
+    final List<List<Gate>> reopened = new ArrayList<>();
+    final Scheduler.Worker worker;
+    synchronized (this) {
+      if (connected == this.connected) {
+        wasConnected |= connected;
+        return;
+      }
+      this.connected = connected;
+      if (reattachWorker != null) {
+        reattachWorker.unsubscribe();
+        reattachWorker = null;
+      }
+      if (!connected) {
+        if (wasConnected) {
+          for (Gate gate : gates) {
+            gate.opened = false;
+            closed.add(gate);
+          }
+        }
+        worker = null;
+      } else {
+        wasConnected = true;
+        reopened.addAll(closedGatesByQuery());
+        worker = reopened.isEmpty() ? null : scheduler.createWorker();
+        reattachWorker = worker;
+      }
+    }
+    for (Gate gate : closed) {
+      publish(gate);
+    }
+    for (int index = 0; index < reopened.size(); index++) {
+      final List<Gate> query = reopened.get(index);
+      final boolean last = index == reopened.size() - 1;
+      worker.schedule(new Action0() {
+        @Override public void call() {
+          reopen(worker, query);
+          if (last) {
+            worker.unsubscribe();
+          }
+        }
+      }, index * staggerMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Opens the gates of all the subscriptions, when the gate is disabled or replaced
+   */
+  void openAll() {
+    final List<Gate> closed = new ArrayList<>();
+    synchronized (this) {
+      if (reattachWorker != null) {
+        reattachWorker.unsubscribe();
+        reattachWorker = null;
+      }
+      connected = true;
+      wasConnected = false;
+      for (Gate gate : gates) {
+        if (!gate.opened) {
+          gate.opened = true;
+          closed.add(gate);
+        }
+      }
+    }
+    for (Gate gate : closed) {
+      publish(gate);
+    }
+  }
+
+  private void reopen(Scheduler.Worker worker, List<Gate> query) {
+    synchronized (this) {
+      if (reattachWorker != worker) {
+        return;
+      }
+      for (Gate gate : query) {
+        gate.opened = true;
+      }
+    }
+    for (Gate gate : query) {
+      publish(gate);
+    }
+  }
+
+  /**
+   * Emits the current state of a gate after it changed. The emissions of a gate
+   * are serialized and each one reads the state again, so a late emission of a
+   * reopen racing with a disconnect can not leave the gate open while offline.
+   */
+  private void publish(Gate gate) {
+    synchronized (gate) {
+      final boolean opened;
+      synchronized (this) {
+        opened = gate.opened;
+      }
+      gate.open.onNext(opened);
+    }
+  }
+
+  private synchronized Gate register(String key, ListenerPriority priority) {
+    final Gate gate = new Gate(key, priority, sequence++, connected || !wasConnected);
+    gates.add(gate);
+    return gate;
+  }
+
+  private synchronized void unregister(Gate gate) {
+    gates.remove(gate);
+  }
+
+  /**
+   * Groups the closed gates by query, in the order of their highest priority
+   * and then of their first subscription
+   */
+  private List<List<Gate>> closedGatesByQuery() {
+    final Map<String, List<Gate>> byQuery = new LinkedHashMap<>();
+    for (Gate gate : gates) {
+      if (gate.opened) {
+        continue;
+      }
+      List<Gate> query = byQuery.get(gate.key);
+      if (query == null) {
+        query = new ArrayList<>();
+        byQuery.put(gate.key, query);
+      }
+      query.add(gate);
+    }
+    final List<List<Gate>> queries = new ArrayList<>(byQuery.values());
+    Collections.sort(queries, new Comparator<List<Gate>>() {
+      @Override public int compare(List<Gate> first, List<Gate> second) {
+        final int priority = highestPriority(first).compareTo(highestPriority(second));
+        if (priority != 0) {
+          return priority;
+        }
+        return first.get(0).sequence < second.get(0).sequence ? -1
+            : first.get(0).sequence == second.get(0).sequence ? 0 : 1;
+      }
+    });
+    return queries;
+  }
+
+  private static ListenerPriority highestPriority(List<Gate> query) {
+    ListenerPriority highest = ListenerPriority.LOW;
+    for (Gate gate : query) {
+      if (gate.priority.compareTo(highest) < 0) {
+        highest = gate.priority;
+      }
+    }
+    return highest;
+  }
+
+  /**
+   * The gate of a subscription
+   */
+  private static final class Gate {
+
+    private final String key;
+    private final ListenerPriority priority;
+    private final long sequence;
+    private final BehaviorSubject<Boolean> open;
+    private boolean opened;
+
+    Gate(String key, ListenerPriority priority, long sequence, boolean opened) {
+      this.key = key;
+      this.priority = priority;
+      this.sequence = sequence;
+      this.open = BehaviorSubject.create(opened);
+      this.opened = opened;
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import com.google.firebase.database.DataSnapshot;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import rx.functions.Func1;
+
+/**
+ * A function which decodes a {@link DataSnapshot} into a typed value. The mappers
+ * are cached per class so the decode metadata is resolved once per type.
+ *
+ * @param <T> the decoded type
+ */
+public abstract class DataSnapshotMapper<T> implements Func1<DataSnapshot, T> {
+
+  private static final ConcurrentMap<Class<?>, DataSnapshotMapper<?>> VALUE_MAPPERS =
+      new ConcurrentHashMap<>();
+
+  private static final ConcurrentMap<Class<?>, DataSnapshotMapper<?>> LIST_MAPPERS =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Returns a mapper which decodes the value of a {@link DataSnapshot}
+   *
+   * @param clazz {@link Class} of the decoded value
+   * @param <T> the decoded type
+   * @return {@link DataSnapshotMapper} of the provided class
+   */
+  @SuppressWarnings("unchecked") public static <T> DataSnapshotMapper<T> of(
+      final Class<T> clazz) {
+    DataSnapshotMapper<T> mapper = (DataSnapshotMapper<T>) VALUE_MAPPERS.get(clazz);
+    if (mapper == null) {
+      mapper = new DataSnapshotMapper<T>() {
+        @Override public T call(DataSnapshot dataSnapshot) {
+          return dataSnapshot.getValue(clazz);
+        }
+      };
+      final DataSnapshotMapper<?> previous = VALUE_MAPPERS.putIfAbsent(clazz, mapper);
+      if (previous != null) {
+        mapper = (DataSnapshotMapper<T>) previous;
+      }
+    }
+    return mapper;
+  }
+
+  /**
+   * Returns a mapper which decodes the children of a {@link DataSnapshot}
+   * into an unmodifiable {@link List} keeping the order of the query
+   *
+   * @param clazz {@link Class} of the decoded children
+   * @param <T> the decoded type
+   * @return {@link DataSnapshotMapper} of a list of the provided class
+   */
+  @SuppressWarnings("unchecked") public static <T> DataSnapshotMapper<List<T>> listOf(
+      final Class<T> clazz) {
+    DataSnapshotMapper<List<T>> mapper = (DataSnapshotMapper<List<T>>) LIST_MAPPERS.get(clazz);
+    if (mapper == null) {
+      final DataSnapshotMapper<T> valueMapper = of(clazz);
+      mapper = new DataSnapshotMapper<List<T>>() {
+        @Override public List<T> call(DataSnapshot dataSnapshot) {
+          final List<T> values = new ArrayList<>((int) dataSnapshot.getChildrenCount());
+          for (DataSnapshot childDataSnapshot : dataSnapshot.getChildren()) {
+            values.add(valueMapper.call(childDataSnapshot));
+          }
+          return Collections.unmodifiableList(values);
+        }
+      };
+      final DataSnapshotMapper<?> previous = LIST_MAPPERS.putIfAbsent(clazz, mapper);
+      if (previous != null) {
+        mapper = (DataSnapshotMapper<List<T>>) previous;
+      }
+    }
+    return mapper;
+  }
+}
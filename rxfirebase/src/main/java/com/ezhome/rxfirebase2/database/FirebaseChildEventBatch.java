@@ -0,0 +1,126 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import com.ezhome.rxfirebase2.FirebaseChildEvent;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * This class represents an ordered batch of {@link FirebaseChildEvent}.
+ * Batches come from a small pool and a batch is recycled once its delivery
+ * returns, so that its storage is reused by the next batch instead of
+ * allocating a new one. Copy the events to keep them after the delivery,
+ * a recycled batch throws {@link IllegalStateException} when it is read.
+ */
+public final class FirebaseChildEventBatch implements Iterable<FirebaseChildEvent> {
+
+  /**
+   * The pool the batch returns to, null if it is not pooled
+   */
+  private final Queue<FirebaseChildEventBatch> pool;
+
+  private final ArrayList<FirebaseChildEvent> events;
+
+  private final List<FirebaseChildEvent> unmodifiableEvents;
+
+  /**
+   * Whether the batch was recycled and not taken from its pool again
+   */
+  private volatile boolean recycled;
+
+  FirebaseChildEventBatch(int capacity, Queue<FirebaseChildEventBatch> pool) {
+    this.pool = pool;
+    this.events = new ArrayList<>(capacity);
+    this.unmodifiableEvents = Collections.unmodifiableList(events);
+  }
+
+  /**
+   * Takes a recycled batch from the pool, or creates a new one when the pool is empty
+   *
+   * @param capacity the initial capacity of a new batch
+   * @param pool {@link Queue} of the recycled batches
+   * @return {@link FirebaseChildEventBatch} an empty batch
+   */
+  static FirebaseChildEventBatch obtain(int capacity, Queue<FirebaseChildEventBatch> pool) {
+    final FirebaseChildEventBatch batch = pool.poll();
+    if (batch == null) {
+      return new FirebaseChildEventBatch(capacity, pool);
+    }
+    batch.recycled = false;
+    return batch;
+  }
+
+  /**
+   * Appends an event to the batch
+   *
+   * @param event {@link FirebaseChildEvent}
+   */
+  void add(FirebaseChildEvent event) {
+    checkNotRecycled();
+    events.add(event);
+  }
+
+  public FirebaseChildEvent get(int index) {
+    checkNotRecycled();
+    return events.get(index);
+  }
+
+  public int size() {
+    checkNotRecycled();
+    return events.size();
+  }
+
+  public boolean isEmpty() {
+    checkNotRecycled();
+    return events.isEmpty();
+  }
+
+  public List<FirebaseChildEvent> getEvents() {
+    checkNotRecycled();
+    return unmodifiableEvents;
+  }
+
+  @Override public Iterator<FirebaseChildEvent> iterator() {
+    checkNotRecycled();
+    return unmodifiableEvents.iterator();
+  }
+
+  /**
+   * Clears the batch and returns it to its pool
+   *
+   * @throws IllegalStateException if the batch was already recycled
+   */
+  void recycle() {
+    synchronized (this) {
+      checkNotRecycled();
+      recycled = true;
+    }
+    events.clear();
+    if (pool != null) {
+      pool.offer(this);
+    }
+  }
+
+  private void checkNotRecycled() {
+    if (recycled) {
+      throw new IllegalStateException("The batch was recycled");
+    }
+  }
+}
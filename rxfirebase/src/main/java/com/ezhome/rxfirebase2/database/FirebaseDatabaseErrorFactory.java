@@ -1,13 +1,18 @@
 package com.ezhome.rxfirebase2.database;
 
 import com.ezhome.rxfirebase2.auth.RxFirebaseAuth;
+import com.ezhome.rxfirebase2.exception.FirebaseDisconnectedException;
 import com.ezhome.rxfirebase2.exception.FirebaseExpiredTokenException;
 import com.ezhome.rxfirebase2.exception.FirebaseGeneralException;
 import com.ezhome.rxfirebase2.exception.FirebaseInvalidTokenException;
 import com.ezhome.rxfirebase2.exception.FirebaseNetworkErrorException;
 import com.ezhome.rxfirebase2.exception.FirebaseOperationFailedException;
 import com.ezhome.rxfirebase2.exception.FirebasePermissionDeniedException;
+import com.ezhome.rxfirebase2.exception.FirebaseUnavailableException;
+import com.ezhome.rxfirebase2.instrumentation.FirebaseInstrumentation;
+import com.ezhome.rxfirebase2.instrumentation.NoOpFirebaseInstrumentation;
 import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.Query;
 import rx.Emitter;
 import rx.Subscriber;
 
@@ -29,25 +34,65 @@ public class FirebaseDatabaseErrorFactory {
    * @param <T> generic subscriber
    */
   static <T> void buildError(Emitter<T> emitter, DatabaseError error) {
+    emitter.onError(createError(error));
+  }
+
+  /**
+   * This method add to emitter the proper error according to the
+   * and reports it to the instrumentation
+   *
+   * @param emitter {@link rx.Emitter}
+   * @param error {@link DatabaseError}
+   * @param instrumentation {@link FirebaseInstrumentation} counting the errors
+   * @param query {@link Query} the observed or written location
+   * @param <T> generic subscriber
+   */
+  static <T> void buildError(Emitter<T> emitter, DatabaseError error,
+      FirebaseInstrumentation instrumentation, Query query) {
+    final Exception exception = createError(error);
+    reportError(instrumentation, query, exception);
+    emitter.onError(exception);
+  }
+
+  /**
+   * Reports an error to the instrumentation. The key of the query is built
+   * only when an instrumentation is set.
+   *
+   * @param instrumentation {@link FirebaseInstrumentation} counting the errors
+   * @param query {@link Query} the observed or written location
+   * @param error {@link Throwable} the delivered error
+   */
+  static void reportError(FirebaseInstrumentation instrumentation, Query query,
+      Throwable error) {
+    if (instrumentation != NoOpFirebaseInstrumentation.INSTANCE) {
+      instrumentation.onError(QueryKey.of(query), error);
+    }
+  }
+
+  /**
+   * This method creates the proper exception according to the error code
+   *
+   * @param error {@link DatabaseError}
+   * @return the {@link Exception} of the error
+   */
+  static Exception createError(DatabaseError error) {
     switch (error.getCode()) {
       case DatabaseError.INVALID_TOKEN:
-        emitter.onError(new FirebaseInvalidTokenException(error.getMessage()));
-        break;
+        return new FirebaseInvalidTokenException(error.getMessage());
       case DatabaseError.EXPIRED_TOKEN:
-        emitter.onError(new FirebaseExpiredTokenException(error.getMessage()));
-        break;
+        return new FirebaseExpiredTokenException(error.getMessage());
       case DatabaseError.NETWORK_ERROR:
-        emitter.onError(new FirebaseNetworkErrorException(error.getMessage()));
-        break;
+        return new FirebaseNetworkErrorException(error.getMessage());
+      case DatabaseError.DISCONNECTED:
+        return new FirebaseDisconnectedException(error.getMessage());
+      case DatabaseError.UNAVAILABLE:
+        return new FirebaseUnavailableException(error.getMessage());
       case DatabaseError.PERMISSION_DENIED:
-        emitter.onError(new FirebasePermissionDeniedException(error.getMessage()));
-        break;
+        return new FirebasePermissionDeniedException(error.getMessage());
       case DatabaseError.OPERATION_FAILED:
-        emitter.onError(new FirebaseOperationFailedException(error.getMessage()));
-        break;
+        return new FirebaseOperationFailedException(error.getMessage());
       default:
-        emitter.onError(new FirebaseGeneralException(error.getMessage()));
-        break;
+        return new FirebaseGeneralException(error.getMessage());
     }
   }
 }
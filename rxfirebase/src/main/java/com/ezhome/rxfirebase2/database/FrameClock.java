@@ -0,0 +1,31 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import rx.functions.Action0;
+
+/**
+ * Calls back once on the next display frame, on the thread which renders it
+ */
+public interface FrameClock {
+
+  /**
+   * Posts a callback for the next frame. It is called from any thread.
+   *
+   * @param callback {@link Action0} to call on the next frame
+   */
+  void postFrameCallback(Action0 callback);
+}
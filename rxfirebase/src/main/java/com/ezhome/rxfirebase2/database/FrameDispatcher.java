@@ -0,0 +1,94 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import java.util.ArrayList;
+import java.util.List;
+import rx.functions.Action0;
+
+/**
+ * Delivers the pending events of all the frame aligned subscriptions in one
+ * pass on the next frame of a {@link FrameClock}
+ */
+final class FrameDispatcher {
+
+  /**
+   * A subscription with pending events
+   */
+  interface Drain {
+
+    /**
+     * Delivers the pending events the subscriber requested
+     *
+     * @return the number of delivered events
+     */
+    int drain();
+  }
+
+  private final FrameClock frameClock;
+  private final FrameStats stats = new FrameStats();
+  private final Action0 frameCallback = new Action0() {
+    @Override public void call() {
+      doFrame();
+    }
+  };
+
+  /**
+   * The subscriptions to drain on the next frame
+   */
+  private List<Drain> pending = new ArrayList<>();
+  private boolean posted;
+
+  FrameDispatcher(FrameClock frameClock) {
+    this.frameClock = frameClock;
+  }
+
+  FrameStats getStats() {
+    return stats;
+  }
+
+  /**
+   * Drains the subscription on the next frame
+   *
+   * @param drain {@link Drain} the subscription with pending events
+   */
+  void schedule(Drain drain) {
+    synchronized (this) {
+      pending.add(drain);
+      if (posted) {
+        return;
+      }
+      posted = true;
+    }
+    frameClock.postFrameCallback(frameCallback);
+  }
+
+  private void doFrame() {
+    final List<Drain> drains;
+    synchronized (this) {
+      drains = pending;
+      pending = new ArrayList<>();
+      posted = false;
+    }
+    int events = 0;
+    for (Drain drain : drains) {
+      events += drain.drain();
+    }
+    if (events > 0) {
+      stats.onFrame(events);
+    }
+  }
+}
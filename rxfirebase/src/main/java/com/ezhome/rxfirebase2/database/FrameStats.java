@@ -0,0 +1,65 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+/**
+ * The counters of the frame aligned delivery, how many events were folded into each frame
+ */
+public final class FrameStats {
+
+  private long frameCount;
+  private long eventCount;
+  private int maxEventsPerFrame;
+  private int lastEventsPerFrame;
+
+  /**
+   * Returns the number of frames which delivered at least one event
+   *
+   * @return the count of frames
+   */
+  public synchronized long getFrameCount() {
+    return frameCount;
+  }
+
+  public synchronized long getEventCount() {
+    return eventCount;
+  }
+
+  public synchronized int getMaxEventsPerFrame() {
+    return maxEventsPerFrame;
+  }
+
+  public synchronized int getLastEventsPerFrame() {
+    return lastEventsPerFrame;
+  }
+
+  public synchronized double getMeanEventsPerFrame() {
+    return frameCount == 0 ? 0 : (double) eventCount / frameCount;
+  }
+
+  synchronized void onFrame(int events) {
+    frameCount++;
+    eventCount += events;
+    lastEventsPerFrame = events;
+    maxEventsPerFrame = Math.max(maxEventsPerFrame, events);
+  }
+
+  @Override public synchronized String toString() {
+    return "FrameStats{frameCount=" + frameCount + ", eventCount=" + eventCount
+        + ", maxEventsPerFrame=" + maxEventsPerFrame + ", lastEventsPerFrame="
+        + lastEventsPerFrame + '}';
+  }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import com.ezhome.rxfirebase2.FirebaseChildEvent.EventType;
+import com.ezhome.rxfirebase2.FirebaseListEvent;
+import com.ezhome.rxfirebase2.FirebaseListEvent.Change;
+import com.ezhome.rxfirebase2.TypedFirebaseChildEvent;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Materializes the child events of a query into an ordered, key indexed list.
+ * Every child event costs O(log n) and produces the changes applied to the
+ * list together with an immutable snapshot of it.
+ *
+ * @param <T> the type of the list values
+ */
+final class ListMaterializer<T> {
+
+  private final PositionIndex positions = new PositionIndex();
+  private PersistentList<T> list = PersistentList.empty();
+
+  /**
+   * Applies a child event to the list
+   *
+   * @param event {@link TypedFirebaseChildEvent} the child event
+   * @return {@link FirebaseListEvent} with the change and the current list
+   */
+  FirebaseListEvent<T> apply(TypedFirebaseChildEvent<T> event) {
+    return apply(Collections.singletonList(event));
+  }
+
+  /**
+   * Applies the child events to the list, merging the contiguous changes of
+   * the same type into ranges
+   *
+   * @param events {@link List} of {@link TypedFirebaseChildEvent} in order
+   * @return {@link FirebaseListEvent} with the changes and the current list
+   */
+  FirebaseListEvent<T> apply(List<? extends TypedFirebaseChildEvent<T>> events) {
+    final List<Change> changes = new ArrayList<>();
+    for (TypedFirebaseChildEvent<T> event : events) {
+      applyEvent(event.getEventType(), event.getDataSnapshot().getKey(),
+          event.getPreviousChildName(), event.getValue(), changes);
+    }
+    return new FirebaseListEvent<>(list, list.keys(), Collections.unmodifiableList(changes));
+  }
+
+  /**
+   * Returns the current immutable list
+   *
+   * @return {@link PersistentList} of the values
+   */
+  PersistentList<T> list() {
+    return list;
+  }
+
+  /**
+   * Applies a child event to the list
+   *
+   * @param eventType {@link EventType} of the child event
+   * @param key {@link String} the key of the child
+   * @param previousChildName {@link String} the key of the previous sibling
+   * @param value the current value of the child
+   * @param changes {@link List} of {@link Change} to which the applied changes are appended
+   */
+  void applyEvent(EventType eventType, String key, String previousChildName, T value,
+      List<Change> changes) {
+    switch (eventType) {
+      case ADDED: {
+        final int fromIndex = positions.remove(key);
+        if (fromIndex >= 0) {
+          // Never expected from the SDK, treat it as the item being replaced
+          list = list.without(fromIndex);
+        }
+        final int index = positionAfter(previousChildName);
+        positions.insert(index, key);
+        list = list.with(index, key, value);
+        if (fromIndex == index) {
+          append(changes, new Change(Change.Type.CHANGED, index, index, 1));
+          return;
+        }
+        if (fromIndex >= 0) {
+          append(changes, new Change(Change.Type.REMOVED, fromIndex, fromIndex, 1));
+        }
+        append(changes, new Change(Change.Type.INSERTED, index, index, 1));
+        return;
+      }
+      case CHANGED: {
+        final int index = positions.indexOf(key);
+        if (index >= 0) {
+          list = list.withValue(index, value);
+          append(changes, new Change(Change.Type.CHANGED, index, index, 1));
+        }
+        return;
+      }
+      case REMOVED: {
+        final int index = positions.remove(key);
+        if (index >= 0) {
+          list = list.without(index);
+          append(changes, new Change(Change.Type.REMOVED, index, index, 1));
+        }
+        return;
+      }
+      case MOVED: {
+        final int fromIndex = positions.remove(key);
+        if (fromIndex < 0) {
+          return;
+        }
+        list = list.without(fromIndex);
+        final int toIndex = positionAfter(previousChildName);
+        positions.insert(toIndex, key);
+        list = list.with(toIndex, key, value);
+        append(changes, new Change(Change.Type.MOVED, fromIndex, toIndex, 1));
+        return;
+      }
+      default:
+        // No other event types
+    }
+  }
+
+  /**
+   * Returns the position after the previous child, the start of the list when
+   * there is no previous child and the end of it when the child is unknown
+   */
+  private int positionAfter(String previousChildName) {
+    if (previousChildName == null) {
+      return 0;
+    }
+    final int index = positions.indexOf(previousChildName);
+    return index < 0 ? positions.size() : index + 1;
+  }
+
+  private static void append(List<Change> changes, Change change) {
+    if (!changes.isEmpty()) {
+      final int last = changes.size() - 1;
+      final Change merged = merge(changes.get(last), change);
+      if (merged != null) {
+        changes.set(last, merged);
+        return;
+      }
+    }
+    changes.add(change);
+  }
+
+  private static Change merge(Change previous, Change next) {
+    if (previous.getType() != next.getType()) {
+      return null;
+    }
+    final int count = previous.getCount() + next.getCount();
+    switch (next.getType()) {
+      case INSERTED:
+      case CHANGED:
+        if (next.getIndex() == previous.getIndex() + previous.getCount()) {
+          return new Change(next.getType(), previous.getIndex(), previous.getIndex(), count);
+        }
+        if (next.getType() == Change.Type.INSERTED && next.getIndex() == previous.getIndex()) {
+          return new Change(next.getType(), previous.getIndex(), previous.getIndex(), count);
+        }
+        return null;
+      case REMOVED:
+        if (next.getIndex() == previous.getIndex()) {
+          return new Change(next.getType(), previous.getIndex(), previous.getIndex(), count);
+        }
+        if (next.getIndex() + next.getCount() == previous.getIndex()) {
+          return new Change(next.getType(), next.getIndex(), next.getIndex(), count);
+        }
+        return null;
+      default:
+        return null;
+    }
+  }
+}
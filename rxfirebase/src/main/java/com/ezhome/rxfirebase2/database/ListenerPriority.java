@@ -0,0 +1,40 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+/**
+ * The priority of a connection aware listener, see
+ * {@link RxFirebaseDatabase#setConnectionAware(com.google.firebase.database.DatabaseReference,
+ * long, java.util.concurrent.TimeUnit)}
+ */
+public enum ListenerPriority {
+  /**
+   * Stays attached while the client is offline
+   */
+  CRITICAL,
+  /**
+   * Detached while the client is offline and re-attached first on reconnect
+   */
+  HIGH,
+  /**
+   * Detached while the client is offline and re-attached after the high ones
+   */
+  NORMAL,
+  /**
+   * Detached while the client is offline and re-attached last on reconnect
+   */
+  LOW
+}
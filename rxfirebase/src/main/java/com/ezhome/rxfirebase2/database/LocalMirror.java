@@ -0,0 +1,514 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import com.ezhome.rxfirebase2.FirebaseChildEvent;
+import com.ezhome.rxfirebase2.FirebaseChildEvent.EventType;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.Query;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import rx.Observable;
+import rx.Subscription;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.subjects.BehaviorSubject;
+
+/**
+ * Keeps the children of a query in memory through its child events, with a
+ * lookup by key in O(1) and sorted indexes on child fields. The filters, sorts
+ * and range scans of a {@link MirrorQuery} are answered locally in
+ * O(log n + k), and an observed query is evaluated again only when a change
+ * falls in its range, so one listener serves every ordering of the subtree.
+ *
+ * @param <T> the type of the decoded children
+ */
+public final class LocalMirror<T> {
+
+  /**
+   * The name of the index of the keys
+   */
+  static final String KEY_INDEX = ".key";
+
+  private final RxFirebaseDatabase rxFirebaseDatabase;
+  private final Query query;
+  private final DataSnapshotMapper<T> mapper;
+
+  /**
+   * The children by key
+   */
+  private final Map<String, Entry<T>> entries = new HashMap<>();
+
+  /**
+   * The sorted indexes by child path, the first one is the index of the keys
+   */
+  private final List<Index<T>> indexes = new ArrayList<>();
+
+  /**
+   * The changes of the children, the latest one is replayed to new observers. It is
+   * created again by {@link #connect()} once an error of the listener terminated it.
+   */
+  private BehaviorSubject<Change<T>> changes = BehaviorSubject.create(new Change<T>(null));
+
+  private LocalMirror(RxFirebaseDatabase rxFirebaseDatabase, Query query, Class<T> clazz) {
+    this.rxFirebaseDatabase = rxFirebaseDatabase;
+    this.query = query;
+    this.mapper = DataSnapshotMapper.of(clazz);
+    this.indexes.add(new Index<T>(KEY_INDEX, 0));
+  }
+
+  /**
+   * Creates the mirror of the children of a query
+   *
+   * @param rxFirebaseDatabase {@link RxFirebaseDatabase} which observes the children
+   * @param query {@link Query} this is reference of a Firebase Query
+   * @param clazz {@link Class} of the decoded children
+   * @param <T> the decoded type
+   * @return {@link LocalMirror}
+   */
+  public static <T> LocalMirror<T> create(RxFirebaseDatabase rxFirebaseDatabase, Query query,
+      Class<T> clazz) {
+    return new LocalMirror<>(rxFirebaseDatabase, query, clazz);
+  }
+
+  /**
+   * Adds an index on a child field, e.g. "author", which is filled with the current children
+   *
+   * @param path {@link String} the path of the indexed child
+   * @return {@link LocalMirror}
+   */
+  public synchronized LocalMirror<T> addIndex(String path) {
+    if (findIndex(path) != null) {
+      return this;
+    }
+    final Index<T> index = new Index<>(path, indexes.size());
+    indexes.add(index);
+    for (Entry<T> entry : entries.values()) {
+      entry.values.add(index.position, entry.dataSnapshot.child(path).getValue());
+      index.entries.add(entry);
+    }
+    return this;
+  }
+
+  /**
+   * Attaches the child listener which keeps the mirror up to date. An error of the
+   * listener is delivered to the observed queries, which are observed again after
+   * the next connect. The children removed while the mirror was not connected are
+   * removed once the listener replayed the current ones.
+   *
+   * @return {@link Subscription} to unsubscribe to detach the listener
+   */
+  public Subscription connect() {
+    final BehaviorSubject<Change<T>> subject;
+    synchronized (this) {
+      if (changes.hasThrowable()) {
+        changes = BehaviorSubject.create(new Change<T>(null));
+      }
+      subject = changes;
+    }
+    return rxFirebaseDatabase.observeChildEventThenValue(query)
+        .compose(rxFirebaseDatabase.<Object>applyScheduler())
+        .subscribe(new Action1<Object>() {
+
+          /**
+           * The keys replayed by the listener, null once the initial children were loaded
+           */
+          private Set<String> replayed = new HashSet<>();
+
+          @Override public void call(Object item) {
+            if (item instanceof DataSnapshot) {
+              if (replayed != null) {
+                for (Change<T> change : removeMissing(replayed)) {
+                  subject.onNext(change);
+                }
+                replayed = null;
+              }
+              return;
+            }
+            final FirebaseChildEvent firebaseChildEvent = (FirebaseChildEvent) item;
+            if (replayed != null) {
+              replayed.add(firebaseChildEvent.getDataSnapshot().getKey());
+            }
+            final Change<T> change = apply(firebaseChildEvent);
+            if (change != null) {
+              subject.onNext(change);
+            }
+          }
+        }, new Action1<Throwable>() {
+          @Override public void call(Throwable throwable) {
+            subject.onError(throwable);
+          }
+        });
+  }
+
+  /**
+   * Returns the decoded child of a key
+   *
+   * @param key {@link String} the key of the child
+   * @return the decoded child, null when there is none
+   */
+  public synchronized T get(String key) {
+    final Entry<T> entry = entries.get(key);
+    return entry == null ? null : entry.value;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Answers a query with the current children
+   *
+   * @param mirrorQuery {@link MirrorQuery} the query
+   * @return the decoded children in the order of the query
+   */
+  public synchronized List<T> query(MirrorQuery mirrorQuery) {
+    final NavigableSet<Entry<T>> range = range(index(mirrorQuery), mirrorQuery);
+    final int limit = mirrorQuery.getLimit() == 0 ? range.size() : mirrorQuery.getLimit();
+    final List<T> values = new ArrayList<>(Math.min(limit, range.size()));
+    final Iterator<Entry<T>> iterator =
+        mirrorQuery.isLimitToLast() ? range.descendingIterator() : range.iterator();
+    while (iterator.hasNext() && values.size() < limit) {
+      values.add(iterator.next().value);
+    }
+    if (mirrorQuery.isLimitToLast()) {
+      Collections.reverse(values);
+    }
+    return values;
+  }
+
+  /**
+   * Observes the answer of a query, emitted again after each change in its range
+   *
+   * @param mirrorQuery {@link MirrorQuery} the query
+   * @return an {@link rx.Observable} of the decoded children in the order of the query,
+   * which signals an {@link IllegalArgumentException} when the mirror has no index of the query
+   */
+  public Observable<List<T>> observe(MirrorQuery query) {
+    // The stream keeps its own copy, the caller may change the query later
+    final MirrorQuery mirrorQuery = query.copy();
+    final Index<T> index;
+    synchronized (this) {
+      index = findIndex(mirrorQuery.getIndex());
+    }
+    if (index == null) {
+      return Observable.error(
+          new IllegalArgumentException("The mirror has no index " + mirrorQuery.getIndex()));
+    }
+    final int position = index.position;
+    return Observable.defer(new Func0<Observable<List<T>>>() {
+      @Override public Observable<List<T>> call() {
+        final boolean[] first = new boolean[] { true };
+        final BehaviorSubject<Change<T>> subject;
+        synchronized (LocalMirror.this) {
+          subject = changes;
+        }
+        return subject.filter(new Func1<Change<T>, Boolean>() {
+          @Override public Boolean call(Change<T> change) {
+            // The first change is the latest one, which the current answer includes
+            final boolean emit = first[0] || change.affects(mirrorQuery, position);
+            first[0] = false;
+            return emit;
+          }
+        }).map(new Func1<Change<T>, List<T>>() {
+          @Override public List<T> call(Change<T> change) {
+            return query(mirrorQuery);
+          }
+        });
+      }
+    });
+  }
+
+  private synchronized Change<T> apply(FirebaseChildEvent firebaseChildEvent) {
+    final DataSnapshot dataSnapshot = firebaseChildEvent.getDataSnapshot();
+    final String key = dataSnapshot.getKey();
+    if (firebaseChildEvent.getEventType() == EventType.MOVED) {
+      // The mirror keeps its own orders
+      return null;
+    }
+    final Entry<T> previous = remove(key);
+    Entry<T> current = null;
+    if (firebaseChildEvent.getEventType() != EventType.REMOVED) {
+      current = new Entry<>(key, dataSnapshot, mapper.call(dataSnapshot));
+      current.values.add(key);
+      for (int position = 1; position < indexes.size(); position++) {
+        current.values.add(dataSnapshot.child(indexes.get(position).path).getValue());
+      }
+      entries.put(key, current);
+      for (Index<T> index : indexes) {
+        index.entries.add(current);
+      }
+    }
+    final Change<T> change = new Change<>(previous);
+    change.current = current;
+    return change;
+  }
+
+  /**
+   * Removes the children which the listener did not replay
+   *
+   * @param replayed {@link Set} of the replayed keys
+   * @return {@link List} of the changes of the removed children
+   */
+  private synchronized List<Change<T>> removeMissing(Set<String> replayed) {
+    final List<String> missing = new ArrayList<>();
+    for (String key : entries.keySet()) {
+      if (!replayed.contains(key)) {
+        missing.add(key);
+      }
+    }
+    final List<Change<T>> removed = new ArrayList<>(missing.size());
+    for (String key : missing) {
+      removed.add(new Change<>(remove(key)));
+    }
+    return removed;
+  }
+
+  private Entry<T> remove(String key) {
+    final Entry<T> previous = entries.remove(key);
+    if (previous != null) {
+      for (Index<T> index : indexes) {
+        index.entries.remove(previous);
+      }
+    }
+    return previous;
+  }
+
+  private Index<T> index(MirrorQuery mirrorQuery) {
+    final Index<T> index = findIndex(mirrorQuery.getIndex());
+    if (index == null) {
+      throw new IllegalArgumentException("The mirror has no index " + mirrorQuery.getIndex());
+    }
+    return index;
+  }
+
+  private Index<T> findIndex(String path) {
+    for (Index<T> index : indexes) {
+      if (index.path.equals(path)) {
+        return index;
+      }
+    }
+    return null;
+  }
+
+  private NavigableSet<Entry<T>> range(Index<T> index, MirrorQuery mirrorQuery) {
+    NavigableSet<Entry<T>> range = index.entries;
+    if (mirrorQuery.getStartAt() != null && mirrorQuery.getEndAt() != null
+        && compareValues(index.path, mirrorQuery.getStartAt(), mirrorQuery.getEndAt()) > 0) {
+      return new TreeSet<>(index.entries.comparator());
+    }
+    if (mirrorQuery.getStartAt() != null) {
+      range = range.tailSet(Entry.<T>bound(index.position, mirrorQuery.getStartAt(), -1), true);
+    }
+    if (mirrorQuery.getEndAt() != null) {
+      range = range.headSet(Entry.<T>bound(index.position, mirrorQuery.getEndAt(), 1), true);
+    }
+    return range;
+  }
+
+  /**
+   * Compares two values in the order of Firebase, null first, then the booleans,
+   * the numbers, the strings and the objects
+   *
+   * @param a the first value
+   * @param b the second value
+   * @return negative, zero or positive when the first value is lower, equal or greater
+   */
+  static int compareValues(Object a, Object b) {
+    final int rank = rank(a) - rank(b);
+    if (rank != 0) {
+      return rank;
+    }
+    if (a instanceof Boolean) {
+      return ((Boolean) a).compareTo((Boolean) b);
+    }
+    if (a instanceof Number) {
+      return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+    }
+    if (a instanceof String) {
+      return ((String) a).compareTo((String) b);
+    }
+    return 0;
+  }
+
+  /**
+   * Compares two values of an index, the keys in the order of Firebase and the
+   * values of the other indexes with {@link #compareValues(Object, Object)}
+   *
+   * @param index {@link String} the path of the index
+   * @param a the first value
+   * @param b the second value
+   * @return negative, zero or positive when the first value is lower, equal or greater
+   */
+  static int compareValues(String index, Object a, Object b) {
+    if (KEY_INDEX.equals(index) && a instanceof String && b instanceof String) {
+      return compareKeys((String) a, (String) b);
+    }
+    return compareValues(a, b);
+  }
+
+  /**
+   * Compares two keys in the order of Firebase, the keys which are 32 bit integers
+   * first and by their value, then the other keys as strings
+   *
+   * @param a {@link String} the first key
+   * @param b {@link String} the second key
+   * @return negative, zero or positive when the first key is lower, equal or greater
+   */
+  static int compareKeys(String a, String b) {
+    final Integer intA = parseInt(a);
+    final Integer intB = parseInt(b);
+    if (intA != null && intB != null) {
+      final int value = intA.compareTo(intB);
+      // "01" and "1" are the same integer, the shorter key is first
+      return value != 0 ? value : a.length() - b.length();
+    }
+    if (intA != null) {
+      return -1;
+    }
+    if (intB != null) {
+      return 1;
+    }
+    return a.compareTo(b);
+  }
+
+  private static Integer parseInt(String key) {
+    if (key.isEmpty() || key.length() > 11) {
+      return null;
+    }
+    final boolean negative = key.charAt(0) == '-';
+    if (negative && key.length() == 1) {
+      return null;
+    }
+    long number = 0;
+    for (int index = negative ? 1 : 0; index < key.length(); index++) {
+      final char digit = key.charAt(index);
+      if (digit < '0' || digit > '9') {
+        return null;
+      }
+      number = number * 10 + (digit - '0');
+    }
+    number = negative ? -number : number;
+    if (number < Integer.MIN_VALUE || number > Integer.MAX_VALUE) {
+      return null;
+    }
+    return (int) number;
+  }
+
+  private static int rank(Object value) {
+    if (value == null) {
+      return 0;
+    }
+    if (value instanceof Boolean) {
+      return 1;
+    }
+    if (value instanceof Number) {
+      return 2;
+    }
+    return value instanceof String ? 3 : 4;
+  }
+
+  /**
+   * A sorted index of the children by the value of a child path and then by key
+   */
+  private static final class Index<T> {
+
+    private final String path;
+    private final int position;
+    private final TreeSet<Entry<T>> entries;
+
+    Index(final String path, final int position) {
+      this.path = path;
+      this.position = position;
+      this.entries = new TreeSet<>(new Comparator<Entry<T>>() {
+        @Override public int compare(Entry<T> a, Entry<T> b) {
+          final int value = compareValues(path, a.values.get(position), b.values.get(position));
+          if (value != 0) {
+            return value;
+          }
+          if (a.bound != b.bound) {
+            return a.bound - b.bound;
+          }
+          return a.key == null ? 0 : compareKeys(a.key, b.key);
+        }
+      });
+    }
+  }
+
+  /**
+   * A child of the mirror with its indexed values, or a bound of a range
+   */
+  private static final class Entry<T> {
+
+    private final String key;
+    private final DataSnapshot dataSnapshot;
+    private final T value;
+
+    /**
+     * The indexed values by index position
+     */
+    private final List<Object> values = new ArrayList<>();
+
+    /**
+     * 0 for a child, -1 or 1 for the bound before or after the children of a value
+     */
+    private int bound;
+
+    Entry(String key, DataSnapshot dataSnapshot, T value) {
+      this.key = key;
+      this.dataSnapshot = dataSnapshot;
+      this.value = value;
+    }
+
+    static <T> Entry<T> bound(int position, Object value, int bound) {
+      final Entry<T> entry = new Entry<>(null, null, null);
+      for (int index = 0; index < position; index++) {
+        entry.values.add(null);
+      }
+      entry.values.add(value);
+      entry.bound = bound;
+      return entry;
+    }
+  }
+
+  /**
+   * A change of a child, from its previous entry to its current one
+   */
+  private static final class Change<T> {
+
+    private final Entry<T> previous;
+    private Entry<T> current;
+
+    Change(Entry<T> previous) {
+      this.previous = previous;
+    }
+
+    boolean affects(MirrorQuery mirrorQuery, int position) {
+      return (previous != null && mirrorQuery.contains(previous.values.get(position)))
+          || (current != null && mirrorQuery.contains(current.values.get(position)));
+    }
+  }
+}
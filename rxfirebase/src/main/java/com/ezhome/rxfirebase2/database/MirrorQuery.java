@@ -0,0 +1,163 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+/**
+ * A query answered locally by a {@link LocalMirror}, ordered by the key or by
+ * an index of the mirror and optionally limited to a range and a count
+ */
+public final class MirrorQuery {
+
+  private final String index;
+  private Object startAt;
+  private Object endAt;
+  private int limit;
+  private boolean limitToLast;
+
+  private MirrorQuery(String index) {
+    this.index = index;
+  }
+
+  /**
+   * Creates a query ordered by the keys of the children
+   *
+   * @return {@link MirrorQuery}
+   */
+  public static MirrorQuery orderByKey() {
+    return new MirrorQuery(LocalMirror.KEY_INDEX);
+  }
+
+  /**
+   * Creates a query ordered by an index of the mirror, see {@link LocalMirror#addIndex(String)}
+   *
+   * @param index {@link String} the path of the indexed child
+   * @return {@link MirrorQuery}
+   */
+  public static MirrorQuery orderBy(String index) {
+    return new MirrorQuery(index);
+  }
+
+  /**
+   * Starts the range at a value, included
+   *
+   * @param value the first value of the range
+   * @return {@link MirrorQuery}
+   */
+  public MirrorQuery startAt(Object value) {
+    this.startAt = value;
+    return this;
+  }
+
+  /**
+   * Ends the range at a value, included
+   *
+   * @param value the last value of the range
+   * @return {@link MirrorQuery}
+   */
+  public MirrorQuery endAt(Object value) {
+    this.endAt = value;
+    return this;
+  }
+
+  /**
+   * Limits the range to a single value
+   *
+   * @param value the value
+   * @return {@link MirrorQuery}
+   */
+  public MirrorQuery equalTo(Object value) {
+    return startAt(value).endAt(value);
+  }
+
+  /**
+   * Limits the result to the first children of the range
+   *
+   * @param limit the max number of children
+   * @return {@link MirrorQuery}
+   */
+  public MirrorQuery limitToFirst(int limit) {
+    return limit(limit, false);
+  }
+
+  /**
+   * Limits the result to the last children of the range
+   *
+   * @param limit the max number of children
+   * @return {@link MirrorQuery}
+   */
+  public MirrorQuery limitToLast(int limit) {
+    return limit(limit, true);
+  }
+
+  public String getIndex() {
+    return index;
+  }
+
+  Object getStartAt() {
+    return startAt;
+  }
+
+  Object getEndAt() {
+    return endAt;
+  }
+
+  int getLimit() {
+    return limit;
+  }
+
+  boolean isLimitToLast() {
+    return limitToLast;
+  }
+
+  /**
+   * Returns whether an indexed value is in the range of the query
+   *
+   * @param value the indexed value
+   * @return true when it is between the start and the end
+   */
+  boolean contains(Object value) {
+    return (startAt == null || LocalMirror.compareValues(index, value, startAt) >= 0)
+        && (endAt == null || LocalMirror.compareValues(index, value, endAt) <= 0);
+  }
+
+  /**
+   * Copies the query, so a stream observing the copy ignores the later changes of this one
+   *
+   * @return {@link MirrorQuery}
+   */
+  MirrorQuery copy() {
+    final MirrorQuery copy = new MirrorQuery(index);
+    copy.startAt = startAt;
+    copy.endAt = endAt;
+    copy.limit = limit;
+    copy.limitToLast = limitToLast;
+    return copy;
+  }
+
+  private MirrorQuery limit(int limit, boolean limitToLast) {
+    if (limit < 1) {
+      throw new IllegalArgumentException("The limit should be positive");
+    }
+    this.limit = limit;
+    this.limitToLast = limitToLast;
+    return this;
+  }
+
+  @Override public String toString() {
+    return "MirrorQuery{index='" + index + '\'' + ", startAt=" + startAt + ", endAt=" + endAt
+        + ", limit=" + limit + ", limitToLast=" + limitToLast + '}';
+  }
+}
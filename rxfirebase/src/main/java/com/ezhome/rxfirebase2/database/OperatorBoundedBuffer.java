@@ -0,0 +1,281 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import rx.Observable;
+import rx.Producer;
+import rx.Subscriber;
+import rx.exceptions.MissingBackpressureException;
+import rx.functions.Action0;
+import rx.functions.Func1;
+import rx.functions.Func2;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Buffers the values the subscriber did not request yet in a
+ * {@link BoundedBuffer} and keeps the {@link BufferStats} of the subscription
+ * in the provided list while it is active
+ *
+ * @param <T> the type of the values
+ */
+final class OperatorBoundedBuffer<T> implements Observable.Operator<T, T> {
+
+  private final BoundedBuffer buffer;
+  private final Func1<? super T, ?> keySelector;
+  private final Func2<T, T, T> conflater;
+  private final String name;
+  private final List<BufferStats> activeStats;
+
+  /**
+   * @param buffer {@link BoundedBuffer} the capacity and overflow strategy
+   * @param keySelector {@link Func1} returning the key a value is conflated by
+   * @param conflater {@link Func2} merging the buffered value of a key with the new one,
+   * returning null when both are dropped
+   * @param name {@link String} the name of the subscriptions
+   * @param activeStats {@link List} of the stats of the active subscriptions
+   */
+  OperatorBoundedBuffer(BoundedBuffer buffer, Func1<? super T, ?> keySelector,
+      Func2<T, T, T> conflater, String name, List<BufferStats> activeStats) {
+    this.buffer = buffer;
+    this.keySelector = keySelector;
+    this.conflater = conflater;
+    this.name = name;
+    this.activeStats = activeStats;
+  }
+
+  @Override public Subscriber<? super T> call(final Subscriber<? super T> child) {
+    final BufferStats stats = new BufferStats(name, buffer.getCapacity());
+    final BufferSubscriber parent = new BufferSubscriber(child, stats);
+    activeStats.add(stats);
+    child.add(parent);
+    child.add(Subscriptions.create(new Action0() {
+      @Override public void call() {
+        activeStats.remove(stats);
+      }
+    }));
+    child.setProducer(new Producer() {
+      @Override public void request(long n) {
+        parent.requestMore(n);
+      }
+    });
+    return parent;
+  }
+
+  private final class BufferSubscriber extends Subscriber<T> {
+
+    private final Subscriber<? super T> child;
+    private final BufferStats stats;
+    private final ArrayDeque<T> queue;
+    private final LinkedHashMap<Object, T> conflated;
+    private long requested;
+    private boolean emitting;
+    private boolean missed;
+    private boolean done;
+    private Throwable error;
+
+    BufferSubscriber(Subscriber<? super T> child, BufferStats stats) {
+      this.child = child;
+      this.stats = stats;
+      if (buffer.getOverflow() == BoundedBuffer.Overflow.CONFLATE) {
+        this.queue = null;
+        this.conflated = new LinkedHashMap<>();
+      } else {
+        this.queue = new ArrayDeque<>(Math.min(buffer.getCapacity(), 16));
+        this.conflated = null;
+      }
+    }
+
+    @Override public void onStart() {
+      request(Long.MAX_VALUE);
+    }
+
+    @Override public void onNext(T value) {
+      synchronized (this) {
+        if (done) {
+          return;
+        }
+        if (!offer(value)) {
+          done = true;
+          error = new MissingBackpressureException(
+              name + " overflowed its buffer of " + buffer.getCapacity());
+          unsubscribe();
+        }
+        stats.onQueueDepth(size());
+      }
+      drain();
+    }
+
+    @Override public void onError(Throwable e) {
+      synchronized (this) {
+        if (done) {
+          return;
+        }
+        done = true;
+        error = e;
+      }
+      drain();
+    }
+
+    @Override public void onCompleted() {
+      synchronized (this) {
+        if (done) {
+          return;
+        }
+        done = true;
+      }
+      drain();
+    }
+
+    void requestMore(long n) {
+      if (n < 0) {
+        throw new IllegalArgumentException("n >= 0 required but it was " + n);
+      }
+      if (n == 0) {
+        return;
+      }
+      synchronized (this) {
+        requested = Requests.addCap(requested, n);
+      }
+      drain();
+    }
+
+    private void drain() {
+      synchronized (this) {
+        if (emitting) {
+          missed = true;
+          return;
+        }
+        emitting = true;
+      }
+      for (;;) {
+        for (;;) {
+          final T value;
+          synchronized (this) {
+            if (child.isUnsubscribed()) {
+              clear();
+              return;
+            }
+            if (size() == 0) {
+              if (!done) {
+                break;
+              }
+              final Throwable terminalError = error;
+              if (terminalError != null) {
+                child.onError(terminalError);
+              } else {
+                child.onCompleted();
+              }
+              return;
+            }
+            if (requested == 0) {
+              break;
+            }
+            value = poll();
+            if (requested != Long.MAX_VALUE) {
+              requested--;
+            }
+            stats.onQueueDepth(size());
+            stats.onDelivered();
+          }
+          child.onNext(value);
+        }
+        synchronized (this) {
+          if (!missed) {
+            emitting = false;
+            return;
+          }
+          missed = false;
+        }
+      }
+    }
+
+    private boolean offer(T value) {
+      final int capacity = buffer.getCapacity();
+      switch (buffer.getOverflow()) {
+        case DROP_OLDEST:
+          if (queue.size() >= capacity) {
+            queue.poll();
+            stats.onDropped();
+          }
+          queue.offer(value);
+          return true;
+        case DROP_NEWEST:
+          if (queue.size() >= capacity) {
+            stats.onDropped();
+          } else {
+            queue.offer(value);
+          }
+          return true;
+        case CONFLATE:
+          final Object key = keySelector.call(value);
+          // The merged value keeps the position of the first buffered value of its key,
+          // so it is never delivered after a value queued later which refers to it
+          final T previous = conflated.get(key);
+          if (previous != null) {
+            final T merged = conflater.call(previous, value);
+            if (merged == null) {
+              conflated.remove(key);
+              stats.onDropped();
+              stats.onDropped();
+            } else {
+              stats.onDropped();
+              conflated.put(key, merged);
+            }
+            return true;
+          }
+          if (conflated.size() >= capacity) {
+            poll();
+            stats.onDropped();
+          }
+          conflated.put(key, value);
+          return true;
+        default:
+          if (queue.size() >= capacity) {
+            return false;
+          }
+          queue.offer(value);
+          return true;
+      }
+    }
+
+    private T poll() {
+      if (conflated == null) {
+        return queue.poll();
+      }
+      final Iterator<Map.Entry<Object, T>> iterator = conflated.entrySet().iterator();
+      final T value = iterator.next().getValue();
+      iterator.remove();
+      return value;
+    }
+
+    private int size() {
+      return conflated == null ? queue.size() : conflated.size();
+    }
+
+    private void clear() {
+      if (conflated == null) {
+        queue.clear();
+      } else {
+        conflated.clear();
+      }
+    }
+  }
+}
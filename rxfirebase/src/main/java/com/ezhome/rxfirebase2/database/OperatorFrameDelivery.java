@@ -0,0 +1,185 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import rx.Observable;
+import rx.Producer;
+import rx.Subscriber;
+
+/**
+ * Queues the events of a subscription and delivers them in order on the next
+ * frame of a {@link FrameDispatcher}, instead of one scheduler hop per event
+ *
+ * @param <T> the type of the values
+ */
+final class OperatorFrameDelivery<T> implements Observable.Operator<T, T> {
+
+  private final FrameDispatcher dispatcher;
+  private final int bufferSize;
+
+  /**
+   * @param dispatcher {@link FrameDispatcher} which delivers the events
+   * @param bufferSize the number of values requested ahead from the source
+   */
+  OperatorFrameDelivery(FrameDispatcher dispatcher, int bufferSize) {
+    this.dispatcher = dispatcher;
+    this.bufferSize = bufferSize;
+  }
+
+  @Override public Subscriber<? super T> call(Subscriber<? super T> child) {
+    final FrameSubscriber parent = new FrameSubscriber(child);
+    child.add(parent);
+    child.setProducer(new Producer() {
+      @Override public void request(long n) {
+        parent.requestMore(n);
+      }
+    });
+    return parent;
+  }
+
+  private final class FrameSubscriber extends Subscriber<T> implements FrameDispatcher.Drain {
+
+    private final Subscriber<? super T> child;
+    /**
+     * The undelivered values, which can be null when a mapper returns null
+     */
+    private final Queue<T> queue = new LinkedList<>();
+    private long requested;
+    private boolean scheduled;
+    private boolean done;
+    private boolean terminated;
+    private Throwable error;
+
+    FrameSubscriber(Subscriber<? super T> child) {
+      this.child = child;
+    }
+
+    @Override public void onStart() {
+      request(bufferSize);
+    }
+
+    @Override public void onNext(T value) {
+      synchronized (this) {
+        if (done) {
+          return;
+        }
+        queue.offer(value);
+      }
+      schedule();
+    }
+
+    @Override public void onError(Throwable e) {
+      synchronized (this) {
+        if (done) {
+          return;
+        }
+        done = true;
+        error = e;
+      }
+      schedule();
+    }
+
+    @Override public void onCompleted() {
+      synchronized (this) {
+        if (done) {
+          return;
+        }
+        done = true;
+      }
+      schedule();
+    }
+
+    void requestMore(long n) {
+      if (n < 0) {
+        throw new IllegalArgumentException("n >= 0 required but it was " + n);
+      }
+      if (n == 0) {
+        return;
+      }
+      synchronized (this) {
+        requested = Requests.addCap(requested, n);
+      }
+      schedule();
+    }
+
+    private void schedule() {
+      synchronized (this) {
+        if (scheduled || terminated || (queue.isEmpty() && !done)
+            || (requested == 0 && !queue.isEmpty())) {
+          return;
+        }
+        scheduled = true;
+      }
+      dispatcher.schedule(this);
+    }
+
+    /**
+     * Called on the frame thread only, so the events are delivered one at a time.
+     * The terminal event is delivered once, a later schedule is ignored.
+     */
+    @Override public int drain() {
+      int delivered = 0;
+      for (;;) {
+        final T value;
+        final boolean terminal;
+        final Throwable terminalError;
+        synchronized (this) {
+          if (terminated || child.isUnsubscribed()) {
+            queue.clear();
+            scheduled = false;
+            return delivered;
+          }
+          if (queue.isEmpty()) {
+            scheduled = false;
+            if (!done) {
+              break;
+            }
+            terminated = true;
+            terminal = true;
+            value = null;
+            terminalError = error;
+          } else if (requested == 0) {
+            scheduled = false;
+            break;
+          } else {
+            terminal = false;
+            value = queue.poll();
+            terminalError = null;
+            if (requested != Long.MAX_VALUE) {
+              requested--;
+            }
+          }
+        }
+        if (terminal) {
+          if (terminalError != null) {
+            child.onError(terminalError);
+          } else {
+            child.onCompleted();
+          }
+          return delivered;
+        }
+        child.onNext(value);
+        delivered++;
+      }
+      if (delivered > 0) {
+        request(delivered);
+      }
+      return delivered;
+    }
+  }
+}
@@ -0,0 +1,366 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import com.ezhome.rxfirebase2.FirebasePage;
+import com.ezhome.rxfirebase2.instrumentation.FirebaseInstrumentation;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import rx.Observable;
+import rx.Producer;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Reads the children of a query ordered by key one page per requested item,
+ * with {@code startAt(nextKey).limitToFirst(pageSize + 1)} reads where the
+ * extra child is the first one of the next page. When live, each loaded page
+ * keeps a listener on its key range, up to the first key of the next page so
+ * that a child inserted between two pages is in the range of the first one, and
+ * its changes are emitted again, the latest change of a page replacing the
+ * undelivered ones.
+ */
+final class PagedOnSubscribe implements Observable.OnSubscribe<FirebasePage> {
+
+  private final Query query;
+  private final int pageSize;
+  private final boolean live;
+  private final FirebaseInstrumentation instrumentation;
+
+  PagedOnSubscribe(Query query, int pageSize, boolean live,
+      FirebaseInstrumentation instrumentation) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("The page size should be positive");
+    }
+    this.query = query;
+    this.pageSize = pageSize;
+    this.live = live;
+    this.instrumentation = instrumentation;
+  }
+
+  @Override public void call(Subscriber<? super FirebasePage> subscriber) {
+    final Pager pager = new Pager(subscriber);
+    subscriber.add(Subscriptions.create(new Action0() {
+      @Override public void call() {
+        pager.cancel();
+      }
+    }));
+    subscriber.setProducer(pager);
+  }
+
+  /**
+   * Loads the pages of a subscriber as it requests them. The state is guarded by
+   * the pager, while the emissions and the listener calls are made outside of
+   * its lock by the single thread which holds the work in progress.
+   */
+  private final class Pager implements Producer {
+
+    private final Subscriber<? super FirebasePage> subscriber;
+    private final AtomicInteger wip = new AtomicInteger();
+    private final Map<Integer, FirebasePage> pending = new LinkedHashMap<>();
+    private final List<LivePage> livePages = new ArrayList<>();
+    private long requested;
+    private boolean loading;
+    private boolean done;
+    private boolean terminated;
+    private Throwable error;
+    private String nextKey;
+    private int pageCount;
+    private Query loadingQuery;
+    private ValueEventListener loadingListener;
+
+    Pager(Subscriber<? super FirebasePage> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    @Override public void request(long n) {
+      if (n < 0) {
+        throw new IllegalArgumentException("n >= 0 required but it was " + n);
+      }
+      if (n == 0) {
+        return;
+      }
+      synchronized (this) {
+        requested = Requests.addCap(requested, n);
+      }
+      drain();
+    }
+
+    void cancel() {
+      final Query query;
+      final ValueEventListener listener;
+      final List<LivePage> cancelled;
+      synchronized (this) {
+        terminated = true;
+        pending.clear();
+        query = loadingQuery;
+        listener = loadingListener;
+        loadingListener = null;
+        cancelled = new ArrayList<>(livePages);
+        livePages.clear();
+      }
+      if (listener != null) {
+        query.removeEventListener(listener);
+      }
+      for (LivePage livePage : cancelled) {
+        livePage.query.removeEventListener(livePage);
+      }
+    }
+
+    private void drain() {
+      if (wip.getAndIncrement() != 0) {
+        return;
+      }
+      int missed = 1;
+      for (;;) {
+        for (;;) {
+          FirebasePage page = null;
+          Throwable terminalError = null;
+          boolean completed = false;
+          boolean load = false;
+          synchronized (this) {
+            if (terminated || subscriber.isUnsubscribed()) {
+              return;
+            }
+            if (error != null) {
+              terminalError = error;
+            } else if (requested > 0 && !pending.isEmpty()) {
+              final Iterator<FirebasePage> iterator = pending.values().iterator();
+              page = iterator.next();
+              iterator.remove();
+              if (requested != Long.MAX_VALUE) {
+                requested--;
+              }
+            } else if (pending.isEmpty() && done && !live) {
+              completed = true;
+            } else if (requested > 0 && !loading && !done) {
+              loading = true;
+              load = true;
+            }
+          }
+          if (terminalError != null) {
+            cancel();
+            subscriber.onError(terminalError);
+            return;
+          }
+          if (completed) {
+            cancel();
+            subscriber.onCompleted();
+            return;
+          }
+          if (page != null) {
+            subscriber.onNext(page);
+          } else if (load) {
+            loadNextPage();
+          } else {
+            break;
+          }
+        }
+        missed = wip.addAndGet(-missed);
+        if (missed == 0) {
+          return;
+        }
+      }
+    }
+
+    private void loadNextPage() {
+      final Query ordered = query.orderByKey();
+      final ValueEventListener listener = new ValueEventListener() {
+        @Override public void onDataChange(DataSnapshot dataSnapshot) {
+          onPageLoaded(this, dataSnapshot);
+        }
+
+        @Override public void onCancelled(DatabaseError databaseError) {
+          onError(databaseError);
+        }
+      };
+      final Query page;
+      synchronized (this) {
+        page = (nextKey == null ? ordered : ordered.startAt(nextKey)).limitToFirst(pageSize + 1);
+        loadingQuery = page;
+        loadingListener = listener;
+      }
+      page.addListenerForSingleValueEvent(listener);
+    }
+
+    private void onPageLoaded(ValueEventListener listener, DataSnapshot dataSnapshot) {
+      final int index;
+      final List<DataSnapshot> snapshots;
+      final boolean last;
+      final String end;
+      synchronized (this) {
+        if (terminated || listener != loadingListener) {
+          return;
+        }
+        loading = false;
+        loadingListener = null;
+        final List<DataSnapshot> children = new ArrayList<>(pageSize + 1);
+        for (DataSnapshot child : dataSnapshot.getChildren()) {
+          children.add(child);
+        }
+        last = children.size() <= pageSize;
+        snapshots = last ? children : children.subList(0, pageSize);
+        index = pageCount++;
+        end = last ? null : children.get(pageSize).getKey();
+        nextKey = end;
+        done = last;
+        pending.put(index, new FirebasePage(index, Collections.unmodifiableList(snapshots), last,
+            false));
+      }
+      if (live) {
+        listen(index, snapshots, end);
+      }
+      drain();
+    }
+
+    /**
+     * Listens to the key range of a loaded page, which ends at the first key of the
+     * next page excluded. The last page is bounded by its first key and by the count
+     * of a page plus one, so it is split when it grows.
+     *
+     * @param end the first key of the next page, null for the last page
+     */
+    private void listen(int index, List<DataSnapshot> snapshots, String end) {
+      Query range = query.orderByKey();
+      if (!snapshots.isEmpty()) {
+        range = range.startAt(snapshots.get(0).getKey());
+      }
+      range = end == null ? range.limitToFirst(pageSize + 1) : range.endAt(end);
+      final LivePage livePage = new LivePage(index, range, end, snapshots);
+      synchronized (this) {
+        if (terminated) {
+          return;
+        }
+        livePages.add(livePage);
+      }
+      range.addValueEventListener(livePage);
+    }
+
+    private void onError(DatabaseError databaseError) {
+      synchronized (this) {
+        if (terminated) {
+          return;
+        }
+        final Exception exception = FirebaseDatabaseErrorFactory.createError(databaseError);
+        FirebaseDatabaseErrorFactory.reportError(instrumentation, query, exception);
+        error = exception;
+      }
+      drain();
+    }
+
+    /**
+     * The listener of the key range of a loaded page
+     */
+    private final class LivePage implements ValueEventListener {
+
+      private final int index;
+      private final Query query;
+
+      /**
+       * The first key of the next page, which the range includes but the page does not
+       */
+      private final String end;
+      private List<DataSnapshot> loaded;
+      private boolean replaced;
+
+      LivePage(int index, Query query, String end, List<DataSnapshot> loaded) {
+        this.index = index;
+        this.query = query;
+        this.end = end;
+        this.loaded = loaded;
+      }
+
+      @Override public void onDataChange(DataSnapshot dataSnapshot) {
+        List<DataSnapshot> split = null;
+        String splitEnd = null;
+        boolean changed = false;
+        synchronized (Pager.this) {
+          if (terminated || replaced) {
+            return;
+          }
+          List<DataSnapshot> snapshots = new ArrayList<>();
+          for (DataSnapshot child : dataSnapshot.getChildren()) {
+            if (!child.getKey().equals(end)) {
+              snapshots.add(child);
+            }
+          }
+          if (end == null && snapshots.size() > pageSize) {
+            // The last page grew past its size, its extra child starts the next page
+            // and the page is listened up to it from now on
+            splitEnd = snapshots.get(pageSize).getKey();
+            if (done) {
+              nextKey = splitEnd;
+              done = false;
+            }
+            snapshots = snapshots.subList(0, pageSize);
+            split = snapshots;
+            replaced = true;
+            livePages.remove(this);
+          }
+          // The first data of the listener is usually the page which was just loaded
+          if (loaded == null || !sameContent(loaded, snapshots)) {
+            // A change of a page which was not delivered yet replaces it
+            final FirebasePage undelivered = pending.get(index);
+            pending.put(index, new FirebasePage(index, Collections.unmodifiableList(snapshots),
+                end == null && split == null, undelivered == null || undelivered.isUpdate()));
+            changed = true;
+          }
+          loaded = null;
+        }
+        if (split != null) {
+          query.removeEventListener(this);
+          listen(index, split, splitEnd);
+        }
+        if (changed) {
+          drain();
+        }
+      }
+
+      @Override public void onCancelled(DatabaseError databaseError) {
+        onError(databaseError);
+      }
+
+      private boolean sameContent(List<DataSnapshot> first, List<DataSnapshot> second) {
+        if (first.size() != second.size()) {
+          return false;
+        }
+        for (int index = 0; index < first.size(); index++) {
+          final DataSnapshot firstChild = first.get(index);
+          final DataSnapshot secondChild = second.get(index);
+          if (!firstChild.getKey().equals(secondChild.getKey())) {
+            return false;
+          }
+          final Object firstValue = firstChild.getValue();
+          final Object secondValue = secondChild.getValue();
+          if (firstValue == null ? secondValue != null : !firstValue.equals(secondValue)) {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+  }
+}
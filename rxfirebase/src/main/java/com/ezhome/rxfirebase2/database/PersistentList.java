@@ -0,0 +1,246 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.RandomAccess;
+
+/**
+ * An immutable list of keyed values. Every update returns a new list which
+ * shares all but O(log n) nodes with the previous one, so a snapshot of the
+ * list can be emitted after every change without copying it.
+ *
+ * @param <T> the type of the values
+ */
+final class PersistentList<T> extends AbstractList<T> implements RandomAccess {
+
+  private static final PersistentList<?> EMPTY = new PersistentList<>(null);
+  private static final Random RANDOM = new Random();
+
+  private final Node<T> root;
+
+  private PersistentList(Node<T> root) {
+    this.root = root;
+  }
+
+  @SuppressWarnings("unchecked") static <T> PersistentList<T> empty() {
+    return (PersistentList<T>) EMPTY;
+  }
+
+  @Override public int size() {
+    return size(root);
+  }
+
+  @Override public T get(int index) {
+    return node(index).value;
+  }
+
+  /**
+   * Returns the key of the value at the provided position
+   *
+   * @param index the position of the value
+   * @return {@link String} the key
+   */
+  String keyAt(int index) {
+    return node(index).key;
+  }
+
+  /**
+   * Returns a view of the keys in the order of the values
+   *
+   * @return an unmodifiable {@link List} of the keys
+   */
+  List<String> keys() {
+    return new KeysView();
+  }
+
+  /**
+   * Returns a new list with the keyed value inserted at the provided position
+   *
+   * @param index the position of the value
+   * @param key {@link String} the key of the value
+   * @param value the value
+   * @return {@link PersistentList} the new list
+   */
+  PersistentList<T> with(int index, String key, T value) {
+    checkPosition(index, size());
+    final Node<T>[] parts = split(root, index);
+    final Node<T> node = new Node<>(key, value, RANDOM.nextInt(), null, null);
+    return new PersistentList<>(merge(merge(parts[0], node), parts[1]));
+  }
+
+  /**
+   * Returns a new list without the value at the provided position
+   *
+   * @param index the position of the value
+   * @return {@link PersistentList} the new list
+   */
+  PersistentList<T> without(int index) {
+    checkPosition(index, size() - 1);
+    final Node<T>[] parts = split(root, index);
+    final Node<T>[] rest = split(parts[1], 1);
+    return new PersistentList<>(merge(parts[0], rest[1]));
+  }
+
+  /**
+   * Returns a new list with the value at the provided position replaced
+   *
+   * @param index the position of the value
+   * @param value the new value
+   * @return {@link PersistentList} the new list
+   */
+  PersistentList<T> withValue(int index, T value) {
+    checkPosition(index, size() - 1);
+    return new PersistentList<>(replace(root, index, value));
+  }
+
+  @Override public Iterator<T> iterator() {
+    return new Iterator<T>() {
+      private final Deque<Node<T>> path = new ArrayDeque<>();
+      private Node<T> next = root;
+
+      @Override public boolean hasNext() {
+        return next != null || !path.isEmpty();
+      }
+
+      @Override public T next() {
+        while (next != null) {
+          path.push(next);
+          next = next.left;
+        }
+        if (path.isEmpty()) {
+          throw new NoSuchElementException();
+        }
+        final Node<T> node = path.pop();
+        next = node.right;
+        return node.value;
+      }
+
+      @Override public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private Node<T> node(int index) {
+    checkPosition(index, size() - 1);
+    Node<T> node = root;
+    while (true) {
+      final int leftSize = size(node.left);
+      if (index < leftSize) {
+        node = node.left;
+      } else if (index == leftSize) {
+        return node;
+      } else {
+        index -= leftSize + 1;
+        node = node.right;
+      }
+    }
+  }
+
+  private static void checkPosition(int index, int max) {
+    if (index < 0 || index > max) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Max: " + max);
+    }
+  }
+
+  private static int size(Node<?> node) {
+    return node == null ? 0 : node.size;
+  }
+
+  private static <T> Node<T> copy(Node<T> node, Node<T> left, Node<T> right) {
+    return new Node<>(node.key, node.value, node.priority, left, right);
+  }
+
+  private static <T> Node<T> replace(Node<T> node, int index, T value) {
+    final int leftSize = size(node.left);
+    if (index < leftSize) {
+      return copy(node, replace(node.left, index, value), node.right);
+    } else if (index > leftSize) {
+      return copy(node, node.left, replace(node.right, index - leftSize - 1, value));
+    }
+    return new Node<>(node.key, value, node.priority, node.left, node.right);
+  }
+
+  private static <T> Node<T> merge(Node<T> left, Node<T> right) {
+    if (left == null) {
+      return right;
+    }
+    if (right == null) {
+      return left;
+    }
+    if (left.priority > right.priority) {
+      return copy(left, left.left, merge(left.right, right));
+    }
+    return copy(right, merge(left, right.left), right.right);
+  }
+
+  /**
+   * Splits a tree into the first count nodes and the rest
+   */
+  @SuppressWarnings("unchecked") private static <T> Node<T>[] split(Node<T> node, int count) {
+    if (node == null) {
+      return (Node<T>[]) new Node<?>[2];
+    }
+    final Node<T>[] parts;
+    if (size(node.left) >= count) {
+      parts = split(node.left, count);
+      parts[1] = copy(node, parts[1], node.right);
+    } else {
+      parts = split(node.right, count - size(node.left) - 1);
+      parts[0] = copy(node, node.left, parts[0]);
+    }
+    return parts;
+  }
+
+  /**
+   * The keys of the list
+   */
+  private final class KeysView extends AbstractList<String> implements RandomAccess {
+
+    @Override public String get(int index) {
+      return keyAt(index);
+    }
+
+    @Override public int size() {
+      return PersistentList.this.size();
+    }
+  }
+
+  private static final class Node<T> {
+    final String key;
+    final T value;
+    final int priority;
+    final int size;
+    final Node<T> left;
+    final Node<T> right;
+
+    Node(String key, T value, int priority, Node<T> left, Node<T> right) {
+      this.key = key;
+      this.value = value;
+      this.priority = priority;
+      this.left = left;
+      this.right = right;
+      this.size = 1 + size(left) + size(right);
+    }
+  }
+}
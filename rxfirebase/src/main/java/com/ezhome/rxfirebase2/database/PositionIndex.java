@@ -0,0 +1,180 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Keeps the position of the children keys of a query. It is an implicit treap
+ * with parent links, so inserting, removing and finding the index of a key
+ * cost O(log n).
+ */
+final class PositionIndex {
+
+  private final Map<String, Node> nodes = new HashMap<>();
+  private final Random random = new Random();
+  private Node root;
+
+  /**
+   * Returns the number of keys
+   *
+   * @return the count of keys
+   */
+  int size() {
+    return size(root);
+  }
+
+  /**
+   * Checks if the key is indexed
+   *
+   * @param key {@link String} the key of the child
+   * @return true if the key is indexed
+   */
+  boolean contains(String key) {
+    return nodes.containsKey(key);
+  }
+
+  /**
+   * Finds the position of a key
+   *
+   * @param key {@link String} the key of the child
+   * @return the index of the key or -1 if it is not indexed
+   */
+  int indexOf(String key) {
+    Node node = nodes.get(key);
+    if (node == null) {
+      return -1;
+    }
+    int index = size(node.left);
+    while (node.parent != null) {
+      if (node == node.parent.right) {
+        index += size(node.parent.left) + 1;
+      }
+      node = node.parent;
+    }
+    return index;
+  }
+
+  /**
+   * Inserts a key at the provided position
+   *
+   * @param index the position of the key
+   * @param key {@link String} the key of the child
+   */
+  void insert(int index, String key) {
+    final Node node = new Node(key, random.nextInt());
+    nodes.put(key, node);
+    final Node[] parts = split(root, index);
+    root = merge(merge(parts[0], node), parts[1]);
+    root.parent = null;
+  }
+
+  /**
+   * Removes a key
+   *
+   * @param key {@link String} the key of the child
+   * @return the index the key had or -1 if it was not indexed
+   */
+  int remove(String key) {
+    final int index = indexOf(key);
+    if (index < 0) {
+      return index;
+    }
+    nodes.remove(key);
+    final Node[] parts = split(root, index);
+    final Node[] rest = split(parts[1], 1);
+    root = merge(parts[0], rest[1]);
+    if (root != null) {
+      root.parent = null;
+    }
+    return index;
+  }
+
+  private static int size(Node node) {
+    return node == null ? 0 : node.size;
+  }
+
+  private static void update(Node node) {
+    node.size = 1 + size(node.left) + size(node.right);
+    if (node.left != null) {
+      node.left.parent = node;
+    }
+    if (node.right != null) {
+      node.right.parent = node;
+    }
+  }
+
+  private static Node merge(Node left, Node right) {
+    if (left == null) {
+      return right;
+    }
+    if (right == null) {
+      return left;
+    }
+    if (left.priority > right.priority) {
+      left.right = merge(left.right, right);
+      update(left);
+      return left;
+    }
+    right.left = merge(left, right.left);
+    update(right);
+    return right;
+  }
+
+  /**
+   * Splits a tree into the first count nodes and the rest
+   */
+  private static Node[] split(Node node, int count) {
+    if (node == null) {
+      return new Node[2];
+    }
+    final Node[] parts;
+    if (size(node.left) >= count) {
+      parts = split(node.left, count);
+      node.left = parts[1];
+      update(node);
+      parts[1] = node;
+    } else {
+      parts = split(node.right, count - size(node.left) - 1);
+      node.right = parts[0];
+      update(node);
+      parts[0] = node;
+    }
+    if (parts[0] != null) {
+      parts[0].parent = null;
+    }
+    if (parts[1] != null) {
+      parts[1].parent = null;
+    }
+    return parts;
+  }
+
+  private static final class Node {
+    final String key;
+    final int priority;
+    int size = 1;
+    Node left;
+    Node right;
+    Node parent;
+
+    Node(String key, int priority) {
+      this.key = key;
+      this.priority = priority;
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import com.google.firebase.database.Query;
+
+/**
+ * A query to warm up before its first subscriber, with the listener type the
+ * subscriber uses, see {@link RxFirebaseDatabase#prefetch(java.util.Collection, int)}
+ */
+public final class Prefetch {
+
+  private final Query query;
+  private final boolean childEvents;
+  private int priority;
+  private boolean keepSynced;
+
+  private Prefetch(Query query, boolean childEvents) {
+    this.query = query;
+    this.childEvents = childEvents;
+  }
+
+  /**
+   * Creates the prefetch of the value listener of a query, claimed by the value
+   * observers such as {@link RxFirebaseDatabase#observeValueEvent(Query)}
+   *
+   * @param query {@link Query} this is reference of a Firebase Query
+   * @return {@link Prefetch}
+   */
+  public static Prefetch of(Query query) {
+    return new Prefetch(query, false);
+  }
+
+  /**
+   * Creates the prefetch of the child listener of a query, claimed by the child
+   * observers such as {@link RxFirebaseDatabase#observeList(Query, Class)}
+   *
+   * @param query {@link Query} this is reference of a Firebase Query
+   * @return {@link Prefetch}
+   */
+  public static Prefetch ofChildEvents(Query query) {
+    return new Prefetch(query, true);
+  }
+
+  /**
+   * Sets the priority of the prefetch, higher priorities are attached first
+   *
+   * @param priority the priority, 0 by default
+   * @return {@link Prefetch}
+   */
+  public Prefetch setPriority(int priority) {
+    this.priority = priority;
+    return this;
+  }
+
+  /**
+   * Sets whether the query is also kept synced by the SDK until the prefetch is released
+   *
+   * @param keepSynced true to call {@link Query#keepSynced(boolean)}
+   * @return {@link Prefetch}
+   */
+  public Prefetch setKeepSynced(boolean keepSynced) {
+    this.keepSynced = keepSynced;
+    return this;
+  }
+
+  public Query getQuery() {
+    return query;
+  }
+
+  public boolean isChildEvents() {
+    return childEvents;
+  }
+
+  public int getPriority() {
+    return priority;
+  }
+
+  public boolean isKeepSynced() {
+    return keepSynced;
+  }
+}
@@ -0,0 +1,308 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import com.ezhome.rxfirebase2.FirebaseChildEvent;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.Query;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import rx.Emitter;
+import rx.Subscriber;
+import rx.Subscription;
+import rx.functions.Action1;
+import rx.subscriptions.CompositeSubscription;
+
+/**
+ * Keeps the shared value or child listeners of prefetched queries attached until
+ * it is released, so their later subscribers receive the latest data without a
+ * round trip. At most a bounded number of queries wait for their first snapshot
+ * at a time, in the order of their priorities. The prefetches are matched by the
+ * key of their query, the url of a reference or the instance of a derived query,
+ * and by their listener type.
+ */
+public final class Prefetcher {
+
+  private final ValueEventRegistry valueRegistry;
+  private final ChildEventRegistry childRegistry;
+  private final int maxConcurrent;
+  private final Action1<Prefetcher> onRelease;
+
+  /**
+   * The entries by listener type and query key
+   */
+  private final Map<String, Entry> entries = new HashMap<>();
+
+  /**
+   * The entries which are not attached yet, by priority
+   */
+  private final LinkedList<Entry> queue = new LinkedList<>();
+
+  private int loading;
+  private int readyCount;
+  private int failedCount;
+  private int claimedCount;
+  private long savedNanos;
+  private boolean released;
+
+  Prefetcher(ValueEventRegistry valueRegistry, ChildEventRegistry childRegistry,
+      Collection<Prefetch> prefetches, int maxConcurrent, Action1<Prefetcher> onRelease) {
+    if (maxConcurrent < 1) {
+      throw new IllegalArgumentException("The max concurrent prefetches should be positive");
+    }
+    this.valueRegistry = valueRegistry;
+    this.childRegistry = childRegistry;
+    this.maxConcurrent = maxConcurrent;
+    this.onRelease = onRelease;
+    final List<Prefetch> sorted = new ArrayList<>(prefetches);
+    Collections.sort(sorted, new Comparator<Prefetch>() {
+      @Override public int compare(Prefetch first, Prefetch second) {
+        return first.getPriority() < second.getPriority() ? 1
+            : first.getPriority() == second.getPriority() ? 0 : -1;
+      }
+    });
+    for (Prefetch prefetch : sorted) {
+      final String key = entryKey(QueryKey.of(prefetch.getQuery()), prefetch.isChildEvents());
+      if (!entries.containsKey(key)) {
+        final Entry entry = new Entry(prefetch);
+        entries.put(key, entry);
+        queue.add(entry);
+      }
+    }
+  }
+
+  /**
+   * Attaches the first queries, up to the max concurrent prefetches
+   */
+  void start() {
+    attach(next());
+  }
+
+  /**
+   * Records that a subscriber observes the query of the key, and the part of
+   * the round trip it did not wait for
+   *
+   * @param key {@link String} the key of the observed query
+   * @param childEvents true when the subscriber observes the child events
+   */
+  synchronized void claim(String key, boolean childEvents) {
+    final Entry entry = entries.get(entryKey(key, childEvents));
+    if (entry == null || entry.claimed || released) {
+      return;
+    }
+    entry.claimed = true;
+    claimedCount++;
+    if (queue.remove(entry)) {
+      // The subscriber attaches the listener itself
+      return;
+    }
+    final long claimNanos = System.nanoTime();
+    final long firstSnapshotNanos = entry.readyNanos == 0 ? claimNanos
+        : Math.min(claimNanos, entry.readyNanos);
+    savedNanos += firstSnapshotNanos - entry.startNanos;
+  }
+
+  /**
+   * Detaches the prefetch listeners, the listeners of the other subscribers stay
+   * attached. The prefetch can not be used again.
+   */
+  public void release() {
+    final List<Entry> attached = new ArrayList<>();
+    synchronized (this) {
+      if (released) {
+        return;
+      }
+      released = true;
+      queue.clear();
+      for (Entry entry : entries.values()) {
+        if (entry.subscription != null) {
+          attached.add(entry);
+        }
+      }
+    }
+    for (Entry entry : attached) {
+      entry.subscription.unsubscribe();
+      if (entry.prefetch.isKeepSynced()) {
+        entry.prefetch.getQuery().keepSynced(false);
+      }
+    }
+    onRelease.call(this);
+  }
+
+  public synchronized int getQueryCount() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the number of queries which received their first snapshot
+   *
+   * @return the count of ready queries
+   */
+  public synchronized int getReadyCount() {
+    return readyCount;
+  }
+
+  public synchronized int getFailedCount() {
+    return failedCount;
+  }
+
+  /**
+   * Returns the number of queries observed by a subscriber after they were prefetched
+   *
+   * @return the count of claimed queries
+   */
+  public synchronized int getClaimedCount() {
+    return claimedCount;
+  }
+
+  /**
+   * Returns the time the first subscribers of the prefetched queries did not
+   * wait for, from the prefetch attach to the first snapshot or the subscription
+   *
+   * @param unit {@link TimeUnit} of the returned time
+   * @return the saved time
+   */
+  public synchronized long getSavedTime(TimeUnit unit) {
+    return unit.convert(savedNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Picks the entries to attach within the max concurrent prefetches
+   */
+  private synchronized List<Entry> next() {
+    final List<Entry> next = new ArrayList<>();
+    while (!released && loading < maxConcurrent && !queue.isEmpty()) {
+      final Entry entry = queue.removeFirst();
+      entry.startNanos = System.nanoTime();
+      loading++;
+      next.add(entry);
+    }
+    return next;
+  }
+
+  /**
+   * Attaches the listeners outside of the lock, since the registry calls back
+   * on the subscribing thread with the latest data. A child listener is ready
+   * with the first snapshot of a single value read, which the SDK serves after
+   * the initial children.
+   */
+  private void attach(List<Entry> next) {
+    for (final Entry entry : next) {
+      final Query query = entry.prefetch.getQuery();
+      if (entry.prefetch.isKeepSynced()) {
+        query.keepSynced(true);
+      }
+      final Subscription subscription;
+      if (entry.prefetch.isChildEvents()) {
+        final CompositeSubscription listeners = new CompositeSubscription();
+        listeners.add(childRegistry.observe(query, null, Emitter.BackpressureMode.NONE)
+            .subscribe(new LoadSubscriber<FirebaseChildEvent>(entry, false)));
+        listeners.add(valueRegistry.observe(query, Emitter.BackpressureMode.LATEST).first()
+            .subscribe(new LoadSubscriber<DataSnapshot>(entry, true)));
+        subscription = listeners;
+      } else {
+        subscription = valueRegistry.observe(query, Emitter.BackpressureMode.LATEST)
+            .subscribe(new LoadSubscriber<DataSnapshot>(entry, true));
+      }
+      final boolean attached;
+      synchronized (this) {
+        attached = !released;
+        if (attached) {
+          entry.subscription = subscription;
+        }
+      }
+      if (!attached) {
+        subscription.unsubscribe();
+        if (entry.prefetch.isKeepSynced()) {
+          entry.prefetch.getQuery().keepSynced(false);
+        }
+      }
+    }
+  }
+
+  private void loaded(Entry entry, boolean successful) {
+    synchronized (this) {
+      if (entry.readyNanos != 0 || entry.failed) {
+        return;
+      }
+      if (successful) {
+        entry.readyNanos = System.nanoTime();
+        readyCount++;
+      } else {
+        entry.failed = true;
+        failedCount++;
+      }
+      loading--;
+    }
+    attach(next());
+  }
+
+  private static String entryKey(String queryKey, boolean childEvents) {
+    return (childEvents ? "child:" : "value:") + queryKey;
+  }
+
+  /**
+   * Marks an entry as loaded on its first item or as failed on an error
+   */
+  private final class LoadSubscriber<T> extends Subscriber<T> {
+
+    private final Entry entry;
+    private final boolean ready;
+
+    LoadSubscriber(Entry entry, boolean ready) {
+      this.entry = entry;
+      this.ready = ready;
+    }
+
+    @Override public void onCompleted() {
+      //the listeners do not complete, the single value read already reported its item
+    }
+
+    @Override public void onError(Throwable e) {
+      loaded(entry, false);
+    }
+
+    @Override public void onNext(T item) {
+      if (ready) {
+        loaded(entry, true);
+      }
+    }
+  }
+
+  /**
+   * The state of a prefetched query
+   */
+  private static final class Entry {
+
+    private final Prefetch prefetch;
+    private long startNanos;
+    private long readyNanos;
+    private boolean failed;
+    private boolean claimed;
+    private Subscription subscription;
+
+    Entry(Prefetch prefetch) {
+      this.prefetch = prefetch;
+    }
+  }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.Query;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Builds the keys under which the listeners of a query are shared
+ */
+final class QueryKey {
+
+  /**
+   * The keys of the derived queries. They are weakly held by the query, whose
+   * equality is the identity, so a key is never shared by two live queries.
+   */
+  private static final Map<Query, String> DERIVED_KEYS = new WeakHashMap<>();
+
+  /**
+   * The id of the next derived query, never reused
+   */
+  private static long nextId;
+
+  private QueryKey() {
+    //empty constructor prevent initialisation
+  }
+
+  /**
+   * Builds the key of a query. The SDK does not expose the params of a derived
+   * {@link Query} so they are shared only when the same instance is observed,
+   * while a {@link DatabaseReference} is shared by its location.
+   *
+   * @param query {@link Query}
+   * @return {@link String} the key of the query
+   */
+  static String of(Query query) {
+    if (query instanceof DatabaseReference) {
+      return query.toString();
+    }
+    synchronized (DERIVED_KEYS) {
+      String key = DERIVED_KEYS.get(query);
+      if (key == null) {
+        final DatabaseReference reference = query.getRef();
+        key = (reference == null ? "" : reference.toString()) + "#query-" + ++nextId;
+        DERIVED_KEYS.put(query, key);
+      }
+      return key;
+    }
+  }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+/**
+ * The arithmetic of the amounts requested by the subscribers
+ */
+final class Requests {
+
+  private Requests() {
+    //empty constructor prevent initialisation
+  }
+
+  /**
+   * Adds an amount to the requested amount, an unbounded request stays unbounded
+   *
+   * @param requested the current requested amount
+   * @param n the added amount
+   * @return the sum capped at {@link Long#MAX_VALUE}
+   */
+  static long addCap(long requested, long n) {
+    final long sum = requested + n;
+    return sum < 0 ? Long.MAX_VALUE : sum;
+  }
+}
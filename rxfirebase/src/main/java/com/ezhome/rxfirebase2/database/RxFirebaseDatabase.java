@@ -17,19 +17,46 @@ package com.ezhome.rxfirebase2.database;
 
 import com.ezhome.rxfirebase2.FirebaseChildEvent;
 import com.ezhome.rxfirebase2.FirebaseChildEvent.EventType;
+import com.ezhome.rxfirebase2.FirebaseDatabaseNodes;
+import com.ezhome.rxfirebase2.FirebaseListEvent;
+import com.ezhome.rxfirebase2.FirebasePage;
+import com.ezhome.rxfirebase2.FirebaseTransactionResult;
+import com.ezhome.rxfirebase2.FirebaseValueDiff;
+import com.ezhome.rxfirebase2.FirebaseWriteResult;
+import com.ezhome.rxfirebase2.TypedFirebaseChildEvent;
+import com.ezhome.rxfirebase2.auth.TokenRefresher;
+import com.ezhome.rxfirebase2.exception.FirebaseTransactionAbortedException;
+import com.ezhome.rxfirebase2.instrumentation.FirebaseInstrumentation;
+import com.ezhome.rxfirebase2.instrumentation.NoOpFirebaseInstrumentation;
 import com.google.firebase.database.ChildEventListener;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.MutableData;
 import com.google.firebase.database.Query;
+import com.google.firebase.database.Transaction;
 import com.google.firebase.database.ValueEventListener;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import rx.Emitter;
 import rx.Observable;
 import rx.Scheduler;
+import rx.Subscription;
+import rx.exceptions.Exceptions;
+import rx.functions.Action0;
 import rx.functions.Action1;
 import rx.functions.Cancellable;
+import rx.functions.Func0;
 import rx.functions.Func1;
+import rx.functions.Func2;
+import rx.schedulers.Schedulers;
 
 /**
  * The class is used as Decorator to
@@ -39,11 +66,179 @@ public class RxFirebaseDatabase {
 
   public static volatile RxFirebaseDatabase instance;
 
+  /**
+   * Function which returns the same key for every value snapshot, so they are conflated
+   */
+  private static final Func1<DataSnapshot, Object> VALUE_KEY = new Func1<DataSnapshot, Object>() {
+    @Override public Object call(DataSnapshot dataSnapshot) {
+      return DataSnapshot.class;
+    }
+  };
+
+  /**
+   * Function which returns the child key of a {@link FirebaseChildEvent}
+   */
+  private static final Func1<FirebaseChildEvent, Object> CHILD_KEY =
+      new Func1<FirebaseChildEvent, Object>() {
+        @Override public Object call(FirebaseChildEvent firebaseChildEvent) {
+          return firebaseChildEvent.getDataSnapshot().getKey();
+        }
+      };
+
+  /**
+   * Function which conflates two snapshots of a query into the latest one
+   */
+  private static final Func2<DataSnapshot, DataSnapshot, DataSnapshot> LATEST_VALUE =
+      new Func2<DataSnapshot, DataSnapshot, DataSnapshot>() {
+        @Override public DataSnapshot call(DataSnapshot previous, DataSnapshot next) {
+          return next;
+        }
+      };
+
+  /**
+   * Function which conflates two events of the same child into one with the latest
+   * snapshot and previous child name. A child added and then removed is dropped, an
+   * added child stays added and a moved child stays moved. A child removed and then
+   * added again is moved, unless both events report the same previous child.
+   */
+  private static final Func2<FirebaseChildEvent, FirebaseChildEvent, FirebaseChildEvent>
+      CONFLATE_CHILD =
+      new Func2<FirebaseChildEvent, FirebaseChildEvent, FirebaseChildEvent>() {
+        @Override public FirebaseChildEvent call(FirebaseChildEvent previous,
+            FirebaseChildEvent next) {
+          final EventType previousType = previous.getEventType();
+          final EventType nextType = next.getEventType();
+          if (nextType == EventType.REMOVED) {
+            return previousType == EventType.ADDED ? null : next;
+          }
+          final EventType type;
+          if (previousType == EventType.ADDED) {
+            type = EventType.ADDED;
+          } else if (previousType == EventType.REMOVED) {
+            // A removed child reports no position, the new one is only known to be the same
+            // when both events name the same previous child
+            final String previousChildName = previous.getPreviousChildName();
+            type = previousChildName != null
+                && previousChildName.equals(next.getPreviousChildName()) ? EventType.CHANGED
+                : EventType.MOVED;
+          } else if (previousType == EventType.MOVED) {
+            type = EventType.MOVED;
+          } else {
+            type = nextType;
+          }
+          return new FirebaseChildEvent(next.getDataSnapshot(), next.getPreviousChildName(),
+              type);
+        }
+      };
+
+  /**
+   * Function which returns whether a snapshot of {@link FirebaseDatabaseNodes#NODE_CONNECTED}
+   * reports a connected client
+   */
+  private static final Func1<DataSnapshot, Boolean> CONNECTED =
+      new Func1<DataSnapshot, Boolean>() {
+        @Override public Boolean call(DataSnapshot dataSnapshot) {
+          return Boolean.TRUE.equals(dataSnapshot.getValue());
+        }
+      };
+
+  /**
+   * Function which returns the 64 bit fingerprint of the value and priorities of a
+   * snapshot, computed only for the first snapshot after a token refresh
+   */
+  private static final Func1<DataSnapshot, Object> VALUE_FINGERPRINT =
+      new Func1<DataSnapshot, Object>() {
+        @Override public Object call(DataSnapshot dataSnapshot) {
+          return ValueDiffer.fingerprint(dataSnapshot.getValue(true));
+        }
+      };
+
+  /**
+   * Function which returns the key of a {@link FirebaseWriteResult}
+   */
+  private static final Func1<FirebaseWriteResult, String> WRITE_RESULT_KEY =
+      new Func1<FirebaseWriteResult, String>() {
+        @Override public String call(FirebaseWriteResult writeResult) {
+          return writeResult.getKey();
+        }
+      };
+
   /**
    * Observe Scheduler
    */
   private Scheduler observeOnScheduler;
 
+  /**
+   * Frame aligned delivery, null when the values are delivered on the observe scheduler
+   */
+  private FrameDispatcher frameDispatcher;
+
+  /**
+   * Decode Scheduler of the typed observables
+   */
+  private Scheduler decodeOnScheduler = Schedulers.computation();
+
+  /**
+   * The max attempts of a transaction, the same as the retries of the Firebase client
+   */
+  static final int DEFAULT_MAX_ATTEMPTS = 25;
+
+  /**
+   * The number of values requested ahead by the frame delivery, the size of the
+   * ring buffers of RxJava on Android
+   */
+  private static final int FRAME_BUFFER_SIZE = 16;
+
+  /**
+   * Shared value listeners by query
+   */
+  private final ValueEventRegistry valueEventRegistry = new ValueEventRegistry();
+
+  /**
+   * Shared child listeners by query
+   */
+  private final ChildEventRegistry childEventRegistry = new ChildEventRegistry();
+
+  /**
+   * Counters of the bounded buffers of the active subscriptions
+   */
+  private final List<BufferStats> bufferStats = new CopyOnWriteArrayList<>();
+
+  /**
+   * Receives the runtime events of the observables
+   */
+  private volatile FirebaseInstrumentation instrumentation = NoOpFirebaseInstrumentation.INSTANCE;
+
+  /**
+   * The prefetches which are not released yet
+   */
+  private final List<Prefetcher> prefetchers = new CopyOnWriteArrayList<>();
+
+  /**
+   * Gates the connection aware listeners, null when disabled
+   */
+  private volatile ConnectionGate connectionGate;
+
+  /**
+   * Subscription to the connection state of the connection gate
+   */
+  private Subscription connectionSubscription;
+
+  /**
+   * Counters of the transactions
+   */
+  private final TransactionStats transactionStats = new TransactionStats();
+
+  /**
+   * Cache of the single value reads, null when disabled
+   */
+  private volatile SnapshotCache snapshotCache;
+
+  /**
+   * Refreshes the token and resubscribes the listeners after a token error, null when disabled
+   */
+  private volatile TokenRefresher tokenRefresher;
+
   /**
    * Singleton pattern
    *
@@ -56,137 +251,814 @@ public class RxFirebaseDatabase {
           instance = new RxFirebaseDatabase();
         }
       }
-    }
-    return instance;
+    }
+    return instance;
+  }
+
+  protected RxFirebaseDatabase() {
+    //empty constructor, prevent initialisation
+  }
+
+  /**
+   * This method will set specific Scheduler on what values will be Observed on
+   *
+   * @param observeOnScheduler {@link Scheduler} for observed on
+   * @return {@link RxFirebaseDatabase}
+   */
+  public RxFirebaseDatabase observeOn(Scheduler observeOnScheduler) {
+    this.observeOnScheduler = observeOnScheduler;
+    this.frameDispatcher = null;
+    return this;
+  }
+
+  /**
+   * This method will deliver the values on the frames of the provided clock, e.g.
+   * {@link ChoreographerFrameClock#create()} on the main thread. The pending values
+   * of every subscription are delivered in order, in one pass per frame, instead
+   * of one scheduler hop per value. It replaces the observe on scheduler.
+   *
+   * @param frameClock {@link FrameClock} of the frames
+   * @return {@link RxFirebaseDatabase}
+   */
+  public RxFirebaseDatabase observeOnFrames(FrameClock frameClock) {
+    this.frameDispatcher = new FrameDispatcher(frameClock);
+    this.observeOnScheduler = null;
+    return this;
+  }
+
+  /**
+   * Returns the counters of the frame aligned delivery
+   *
+   * @return {@link FrameStats}, null when the values are not delivered on frames
+   */
+  public FrameStats getFrameStats() {
+    final FrameDispatcher dispatcher = frameDispatcher;
+    return dispatcher == null ? null : dispatcher.getStats();
+  }
+
+  /**
+   * Returns the counters of the transactions, e.g. the mean attempts per commit
+   * which grows with the contention of the transactions
+   *
+   * @return {@link TransactionStats}
+   */
+  public TransactionStats getTransactionStats() {
+    return transactionStats;
+  }
+
+  /**
+   * This method will set the instrumentation which receives the listener counts,
+   * emissions, first snapshot and write latencies and errors
+   *
+   * @param instrumentation {@link FirebaseInstrumentation}, null to disable it
+   * @return {@link RxFirebaseDatabase}
+   */
+  public RxFirebaseDatabase setInstrumentation(FirebaseInstrumentation instrumentation) {
+    this.instrumentation =
+        instrumentation == null ? NoOpFirebaseInstrumentation.INSTANCE : instrumentation;
+    this.valueEventRegistry.setInstrumentation(this.instrumentation);
+    this.childEventRegistry.setInstrumentation(this.instrumentation);
+    return this;
+  }
+
+  /**
+   * Returns the instrumentation of the observables
+   *
+   * @return {@link FirebaseInstrumentation}
+   */
+  public FirebaseInstrumentation getInstrumentation() {
+    return instrumentation;
+  }
+
+  /**
+   * Returns the counters of the bounded buffers of the active subscriptions
+   *
+   * @return {@link List} of {@link BufferStats}
+   */
+  public List<BufferStats> getBufferStats() {
+    return Collections.unmodifiableList(new ArrayList<>(bufferStats));
+  }
+
+  /**
+   * This method will set the cache which serves the single value reads of the
+   * references until they expire or a write through this class changes their location
+   *
+   * @param snapshotCache {@link SnapshotCache}, null to disable it
+   * @return {@link RxFirebaseDatabase}
+   */
+  public RxFirebaseDatabase setSnapshotCache(SnapshotCache snapshotCache) {
+    this.snapshotCache = snapshotCache;
+    return this;
+  }
+
+  /**
+   * Returns the cache of the single value reads
+   *
+   * @return {@link SnapshotCache}, null when disabled
+   */
+  public SnapshotCache getSnapshotCache() {
+    return snapshotCache;
+  }
+
+  /**
+   * This method will set the token refresher of the listeners. When a listener
+   * fails with an expired or invalid token, the token is refreshed once for all
+   * the failed listeners and they are attached again. The snapshots which did not
+   * change in the meantime are not delivered again.
+   *
+   * @param tokenRefresher {@link TokenRefresher}, null to disable it
+   * @return {@link RxFirebaseDatabase}
+   */
+  public RxFirebaseDatabase setTokenRefresher(TokenRefresher tokenRefresher) {
+    this.tokenRefresher = tokenRefresher;
+    return this;
+  }
+
+  /**
+   * This method enables the connection aware listeners. While the client is
+   * offline the listeners observed with a non critical {@link ListenerPriority}
+   * are detached, and on reconnect they are re-attached in priority order, one
+   * query per stagger delay.
+   *
+   * @param reference {@link DatabaseReference} any reference of the database, null to disable it
+   * @param stagger the delay between the re-attached queries
+   * @param unit {@link TimeUnit} of the delay
+   * @return {@link RxFirebaseDatabase}
+   */
+  public RxFirebaseDatabase setConnectionAware(DatabaseReference reference, long stagger,
+      TimeUnit unit) {
+    return setConnectionAware(reference, stagger, unit, Schedulers.computation());
+  }
+
+  /**
+   * This method enables the connection aware listeners. While the client is
+   * offline the listeners observed with a non critical {@link ListenerPriority}
+   * are detached, and on reconnect they are re-attached in priority order, one
+   * query per stagger delay.
+   *
+   * @param reference {@link DatabaseReference} any reference of the database, null to disable it
+   * @param stagger the delay between the re-attached queries
+   * @param unit {@link TimeUnit} of the delay
+   * @param scheduler {@link Scheduler} on which the listeners are re-attached
+   * @return {@link RxFirebaseDatabase}
+   */
+  public synchronized RxFirebaseDatabase setConnectionAware(DatabaseReference reference,
+      long stagger, TimeUnit unit, Scheduler scheduler) {
+    if (stagger < 0) {
+      throw new IllegalArgumentException("The stagger delay cannot be negative");
+    }
+    if (connectionSubscription != null) {
+      connectionSubscription.unsubscribe();
+      connectionSubscription = null;
+    }
+    final ConnectionGate previous = connectionGate;
+    connectionGate = null;
+    if (previous != null) {
+      // The subscriptions of the previous gate no longer receive the connection state
+      previous.openAll();
+    }
+    if (reference == null) {
+      return this;
+    }
+    final ConnectionGate gate = new ConnectionGate(unit.toMillis(stagger), scheduler);
+    connectionGate = gate;
+    connectionSubscription =
+        valueEventRegistry.observe(connectedReference(reference), Emitter.BackpressureMode.LATEST)
+            .map(CONNECTED)
+            .subscribe(new Action1<Boolean>() {
+              @Override public void call(Boolean connected) {
+                gate.onConnectionChanged(connected);
+              }
+            }, new Action1<Throwable>() {
+              @Override public void call(Throwable throwable) {
+                //the listeners stay attached without the connection state
+              }
+            });
+    return this;
+  }
+
+  /**
+   * This method attaches the shared value or child listeners of the provided queries
+   * ahead of their subscribers, e.g. from {@code Application#onCreate()}. The later
+   * subscribers of these queries receive the latest snapshot without a second
+   * round trip, until the returned {@link Prefetcher} is released.
+   *
+   * @param prefetches {@link Collection} of {@link Prefetch} with the queries to warm up
+   * @param maxConcurrent the max number of queries waiting for their first snapshot
+   * @return {@link Prefetcher} which reports the ready queries and the saved time
+   */
+  public Prefetcher prefetch(Collection<Prefetch> prefetches, int maxConcurrent) {
+    final Prefetcher prefetcher =
+        new Prefetcher(valueEventRegistry, childEventRegistry, prefetches, maxConcurrent,
+            new Action1<Prefetcher>() {
+              @Override public void call(Prefetcher released) {
+                prefetchers.remove(released);
+              }
+            });
+    prefetchers.add(prefetcher);
+    prefetcher.start();
+    return prefetcher;
+  }
+
+  /**
+   * This method will set specific Scheduler on what snapshots will be decoded
+   * by the typed observables
+   *
+   * @param decodeOnScheduler {@link Scheduler} for decoding on
+   * @return {@link RxFirebaseDatabase}
+   */
+  public RxFirebaseDatabase decodeOn(Scheduler decodeOnScheduler) {
+    this.decodeOnScheduler = decodeOnScheduler;
+    return this;
+  }
+
+  /**
+   * This method will set how long a shared value listener stays attached after
+   * its last subscriber unsubscribed, e.g. to survive a screen rotation
+   *
+   * @param time the linger time, 0 to detach immediately
+   * @param unit {@link TimeUnit} of the time
+   * @return {@link RxFirebaseDatabase}
+   */
+  public RxFirebaseDatabase setListenerLinger(long time, TimeUnit unit) {
+    return setListenerLinger(time, unit, Schedulers.computation());
+  }
+
+  /**
+   * This method will set how long a shared value listener stays attached after
+   * its last subscriber unsubscribed, e.g. to survive a screen rotation
+   *
+   * @param time the linger time, 0 to detach immediately
+   * @param unit {@link TimeUnit} of the time
+   * @param scheduler {@link Scheduler} on which the listener is detached
+   * @return {@link RxFirebaseDatabase}
+   */
+  public RxFirebaseDatabase setListenerLinger(long time, TimeUnit unit, Scheduler scheduler) {
+    this.valueEventRegistry.setLinger(time, unit, scheduler);
+    return this;
+  }
+
+  /**
+   * This methods observes data saving with push in order to generate the key
+   * automatically according to Firebase hashing key rules.
+   *
+   * @param reference {@link Query} this is reference of a Firebase Query
+   * @param object {@link Object} whatever object we want to save
+   * @return an {@link rx.Observable} of the generated key after
+   * the object persistence
+   */
+  public Observable<String> observeSetValuePush(final DatabaseReference reference,
+      final Object object) {
+    return createSetValuePush(reference, object).map(WRITE_RESULT_KEY)
+        .compose(this.<String>applyScheduler());
+  }
+
+  /**
+   * This methods observes data saving with push in order to generate the key
+   * automatically according to Firebase hashing key rules. The write is
+   * observed with a completion listener, without reading the value back.
+   *
+   * @param reference {@link Query} this is reference of a Firebase Query
+   * @param object {@link Object} whatever object we want to save
+   * @return an {@link rx.Observable} of {@link FirebaseWriteResult} with the
+   * generated key after the server acknowledged the write
+   */
+  public Observable<FirebaseWriteResult> observeSetValuePushResult(
+      final DatabaseReference reference, final Object object) {
+    return createSetValuePush(reference, object)
+        .compose(this.<FirebaseWriteResult>applyScheduler());
+  }
+
+  /**
+   * This methods observes data saving under the provided {@link DatabaseReference}
+   *
+   * @param reference {@link DatabaseReference} this is reference of a Firebase Query
+   * @param object {@link Object} whatever object we want to save
+   * @return an {@link rx.Observable} of the generated key after
+   * the object persistence
+   */
+  public Observable<String> observeSetValue(final DatabaseReference reference,
+      final Object object) {
+    return createSetValue(reference, object).map(WRITE_RESULT_KEY);
+  }
+
+  /**
+   * This methods observes data saving under the provided {@link DatabaseReference}.
+   * The write is observed with a completion listener, without reading the value back.
+   *
+   * @param reference {@link DatabaseReference} this is reference of a Firebase Query
+   * @param object {@link Object} whatever object we want to save
+   * @return an {@link rx.Observable} of {@link FirebaseWriteResult} after the
+   * server acknowledged the write
+   */
+  public Observable<FirebaseWriteResult> observeSetValueResult(final DatabaseReference reference,
+      final Object object) {
+    return createSetValue(reference, object).compose(this.<FirebaseWriteResult>applyScheduler());
+  }
+
+  /**
+   * This methods observes children update for provided {@link DatabaseReference}
+   *
+   * @param reference {@link DatabaseReference}
+   * @param data {@link Map} the children items which should be updated
+   * @return {@link rx.Observable} which emits the key of reference {@link String}
+   */
+  public Observable<String> observeUpdateChildren(final DatabaseReference reference,
+      final Map<String, Object> data) {
+    return createUpdateChildren(reference, data).map(WRITE_RESULT_KEY)
+        .compose(this.<String>applyScheduler());
+  }
+
+  /**
+   * This methods observes children update for provided {@link DatabaseReference}.
+   * The write is observed with a completion listener, without reading the value back.
+   *
+   * @param reference {@link DatabaseReference}
+   * @param data {@link Map} the children items which should be updated
+   * @return {@link rx.Observable} of {@link FirebaseWriteResult} after the
+   * server acknowledged the update
+   */
+  public Observable<FirebaseWriteResult> observeUpdateChildrenResult(
+      final DatabaseReference reference, final Map<String, Object> data) {
+    return createUpdateChildren(reference, data)
+        .compose(this.<FirebaseWriteResult>applyScheduler());
+  }
+
+  /**
+   * This methods runs a transaction on the provided {@link DatabaseReference}.
+   * The handler runs again each time the data changed on the server before the
+   * commit, up to the client max retries.
+   *
+   * @param reference {@link DatabaseReference}
+   * @param handler {@link Func1} which updates the data and returns {@link Transaction#success}
+   * or {@link Transaction#abort()}
+   * @return {@link rx.Observable} of {@link FirebaseTransactionResult} after the commit
+   */
+  public Observable<FirebaseTransactionResult> observeRunTransaction(
+      final DatabaseReference reference, final Func1<MutableData, Transaction.Result> handler) {
+    return observeRunTransaction(reference, handler, DEFAULT_MAX_ATTEMPTS);
+  }
+
+  /**
+   * This methods runs a transaction on the provided {@link DatabaseReference}.
+   * The handler runs again each time the data changed on the server before the
+   * commit, and the transaction is aborted with {@link FirebaseTransactionAbortedException}
+   * when the handler would run more than the max attempts. The first run of the SDK
+   * on the locally cached value is not counted as an attempt.
+   *
+   * @param reference {@link DatabaseReference}
+   * @param handler {@link Func1} which updates the data and returns {@link Transaction#success}
+   * or {@link Transaction#abort()}
+   * @param maxAttempts the max number of times the handler runs after the local run
+   * @return {@link rx.Observable} of {@link FirebaseTransactionResult} after the commit
+   */
+  public Observable<FirebaseTransactionResult> observeRunTransaction(
+      final DatabaseReference reference, final Func1<MutableData, Transaction.Result> handler,
+      int maxAttempts) {
+    return createTransaction(reference, handler, maxAttempts)
+        .compose(this.<FirebaseTransactionResult>applyScheduler());
+  }
+
+  /**
+   * This methods runs a transaction which updates the value of the provided
+   * {@link DatabaseReference} decoded into the provided class, e.g. a counter.
+   * The committed value is decoded on the decode scheduler. The update and the
+   * decode of the current value run on the SDK thread, since the SDK needs the
+   * result of each run before it commits or runs it again, so keep them cheap.
+   *
+   * @param reference {@link DatabaseReference}
+   * @param clazz {@link Class} of the value
+   * @param update {@link Func1} which returns the new value of the current one, null
+   * when there is no value
+   * @param maxAttempts the max number of times the update runs after the local run
+   * @param <T> the decoded type
+   * @return {@link rx.Observable} of the committed value
+   */
+  public <T> Observable<T> observeRunTransaction(final DatabaseReference reference,
+      final Class<T> clazz, final Func1<T, T> update, int maxAttempts) {
+    final DataSnapshotMapper<T> mapper = DataSnapshotMapper.of(clazz);
+    return createTransaction(reference, new Func1<MutableData, Transaction.Result>() {
+      @Override public Transaction.Result call(MutableData mutableData) {
+        mutableData.setValue(update.call(mutableData.getValue(clazz)));
+        return Transaction.success(mutableData);
+      }
+    }, maxAttempts).compose(applyDecoder(new Func1<FirebaseTransactionResult, T>() {
+      @Override public T call(FirebaseTransactionResult transactionResult) {
+        return mapper.call(transactionResult.getDataSnapshot());
+      }
+    }));
+  }
+
+  private Observable<FirebaseWriteResult> createSetValuePush(final DatabaseReference reference,
+      final Object object) {
+    return Observable.defer(new Func0<Observable<FirebaseWriteResult>>() {
+      @Override public Observable<FirebaseWriteResult> call() {
+        return createSetValue(reference.push(), object);
+      }
+    });
+  }
+
+  private Observable<FirebaseWriteResult> createSetValue(final DatabaseReference reference,
+      final Object object) {
+    return createWrite(reference, new Write() {
+      @Override public void write(DatabaseReference.CompletionListener listener) {
+        reference.setValue(object, listener);
+      }
+    });
+  }
+
+  private Observable<FirebaseWriteResult> createUpdateChildren(final DatabaseReference reference,
+      final Map<String, Object> data) {
+    return createWrite(reference, data, new Write() {
+      @Override public void write(DatabaseReference.CompletionListener listener) {
+        reference.updateChildren(data, listener);
+      }
+    });
+  }
+
+  /**
+   * Creates the observable of a write which completes when the server
+   * acknowledges it through a {@link DatabaseReference.CompletionListener}
+   *
+   * @param reference {@link DatabaseReference} the written location
+   * @param write {@link Write} the write operation
+   * @return an {@link rx.Observable} of {@link FirebaseWriteResult}
+   */
+  private Observable<FirebaseWriteResult> createWrite(final DatabaseReference reference,
+      final Write write) {
+    return createWrite(reference, null, write);
+  }
+
+  /**
+   * Creates the observable of a write which completes when the server
+   * acknowledges it through a {@link DatabaseReference.CompletionListener}
+   *
+   * @param reference {@link DatabaseReference} the written location
+   * @param children {@link Map} of the written child paths, null when
+   * the whole location is written
+   * @param write {@link Write} the write operation
+   * @return an {@link rx.Observable} of {@link FirebaseWriteResult}
+   */
+  private Observable<FirebaseWriteResult> createWrite(final DatabaseReference reference,
+      final Map<String, Object> children, final Write write) {
+    return Observable.create(new Action1<Emitter<FirebaseWriteResult>>() {
+      @Override public void call(final Emitter<FirebaseWriteResult> emitter) {
+        final FirebaseInstrumentation instrumentation = RxFirebaseDatabase.this.instrumentation;
+        invalidateCache(reference, children);
+        final long enqueueTimeMillis = System.currentTimeMillis();
+        final long enqueueTimeNanos = System.nanoTime();
+        write.write(new DatabaseReference.CompletionListener() {
+          @Override public void onComplete(DatabaseError error, DatabaseReference ref) {
+            if (error != null) {
+              FirebaseDatabaseErrorFactory.buildError(emitter, error, instrumentation, reference);
+              return;
+            }
+            final long ackLatencyNanos = System.nanoTime() - enqueueTimeNanos;
+            reportWrite(instrumentation, reference, ackLatencyNanos);
+            final long ackLatencyMillis = TimeUnit.NANOSECONDS.toMillis(ackLatencyNanos);
+            emitter.onNext(
+                new FirebaseWriteResult(reference.getKey(), enqueueTimeMillis, ackLatencyMillis));
+            emitter.onCompleted();
+          }
+        });
+      }
+    }, Emitter.BackpressureMode.LATEST);
+  }
+
+  /**
+   * Creates the observable of a transaction which completes when the server
+   * commits it, counting the runs of the handler. The SDK runs the handler on the
+   * locally cached value first, that run is an attempt only when it is committed.
+   *
+   * @param reference {@link DatabaseReference} the location of the transaction
+   * @param handler {@link Func1} which updates the data
+   * @param maxAttempts the max number of times the handler runs after the local run
+   * @return an {@link rx.Observable} of {@link FirebaseTransactionResult}
+   */
+  private Observable<FirebaseTransactionResult> createTransaction(
+      final DatabaseReference reference, final Func1<MutableData, Transaction.Result> handler,
+      final int maxAttempts) {
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("A transaction needs at least one attempt");
+    }
+    return Observable.create(new Action1<Emitter<FirebaseTransactionResult>>() {
+      @Override public void call(final Emitter<FirebaseTransactionResult> emitter) {
+        final FirebaseInstrumentation instrumentation = RxFirebaseDatabase.this.instrumentation;
+        final AtomicInteger runs = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final long startNanos = System.nanoTime();
+        invalidateCache(reference, null);
+        reference.runTransaction(new Transaction.Handler() {
+          @Override public Transaction.Result doTransaction(MutableData mutableData) {
+            if (runs.get() > maxAttempts) {
+              failure.set(new FirebaseTransactionAbortedException(
+                  "The transaction ran out of its " + maxAttempts + " attempts"));
+              return Transaction.abort();
+            }
+            runs.incrementAndGet();
+            try {
+              return handler.call(mutableData);
+            } catch (Throwable throwable) {
+              Exceptions.throwIfFatal(throwable);
+              failure.set(throwable);
+              return Transaction.abort();
+            }
+          }
+
+          @Override public void onComplete(DatabaseError error, boolean committed,
+              DataSnapshot dataSnapshot) {
+            final Throwable abort = failure.get();
+            final int attempts = attemptsOf(runs.get());
+            if (error != null || !committed) {
+              transactionStats.onAbort(attempts,
+                  abort instanceof FirebaseTransactionAbortedException);
+            }
+            if (error != null) {
+              FirebaseDatabaseErrorFactory.buildError(emitter, error, instrumentation, reference);
+              return;
+            }
+            if (!committed) {
+              final Throwable exception = abort != null ? abort
+                  : new FirebaseTransactionAbortedException("The handler aborted the transaction");
+              FirebaseDatabaseErrorFactory.reportError(instrumentation, reference, exception);
+              emitter.onError(exception);
+              return;
+            }
+            // A read started while the transaction ran may have cached the previous value
+            invalidateCache(reference, null);
+            transactionStats.onCommit(attempts);
+            reportWrite(instrumentation, reference, System.nanoTime() - startNanos);
+            emitter.onNext(new FirebaseTransactionResult(dataSnapshot, attempts));
+            emitter.onCompleted();
+          }
+        });
+      }
+    }, Emitter.BackpressureMode.LATEST);
+  }
+
+  /**
+   * Returns the attempts of a transaction from the runs of its handler, the first
+   * local run is an attempt only when no other run followed it
+   *
+   * @param runs the number of times the handler ran
+   * @return the number of attempts
+   */
+  private static int attemptsOf(int runs) {
+    return runs <= 1 ? runs : runs - 1;
+  }
+
+  /**
+   * This methods observes a firebase query and returns back
+   * an Observable of the {@link DataSnapshot}
+   * when the firebase client uses a {@link ValueEventListener}
+   *
+   * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @return an {@link rx.Observable} of datasnapshot to use
+   */
+  public Observable<DataSnapshot> observeValueEvent(final Query firebaseRef) {
+    return observeValueEvent(firebaseRef, Emitter.BackpressureMode.BUFFER);
+  }
+
+  /**
+   * This methods observes a firebase query and returns back
+   * an Observable of the {@link DataSnapshot}
+   * when the firebase client uses a {@link ValueEventListener}. Subscribers of
+   * the same query share one listener and late subscribers receive the latest
+   * {@link DataSnapshot}
+   *
+   * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @param backPressureMode {@link Emitter.BackpressureMode} backpressure mode
+   * @return an {@link rx.Observable} of datasnapshot to use
+   */
+  public Observable<DataSnapshot> observeValueEvent(final Query firebaseRef,
+      Emitter.BackpressureMode backPressureMode) {
+    return observeSharedValue(firebaseRef, backPressureMode)
+        .compose(this.<DataSnapshot>applyScheduler());
+  }
+
+  /**
+   * This methods observes a firebase query and returns back an Observable of
+   * the value decoded into the provided class on the decode scheduler
+   *
+   * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @param clazz {@link Class} of the decoded value
+   * @param <T> the decoded type
+   * @return an {@link rx.Observable} of the decoded value
+   */
+  public <T> Observable<T> observeValueEvent(final Query firebaseRef, Class<T> clazz) {
+    return observeValueEvent(firebaseRef, DataSnapshotMapper.of(clazz));
+  }
+
+  /**
+   * This methods observes a firebase query and returns back an Observable of
+   * the value decoded by the provided mapper on the decode scheduler,
+   * e.g. {@link DataSnapshotMapper#listOf(Class)} for the children of a node
+   *
+   * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @param mapper {@link DataSnapshotMapper} which decodes the snapshots
+   * @param <T> the decoded type
+   * @return an {@link rx.Observable} of the decoded value
+   */
+  public <T> Observable<T> observeValueEvent(final Query firebaseRef,
+      DataSnapshotMapper<T> mapper) {
+    return observeSharedValue(firebaseRef, Emitter.BackpressureMode.LATEST)
+        .compose(this.applyDecoder(mapper));
+  }
+
+  /**
+   * This methods observes a firebase query and returns back
+   * an Observable of the {@link DataSnapshot} through a bounded backpressure
+   * buffer, whose counters are available from {@link #getBufferStats()}
+   *
+   * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @param buffer {@link BoundedBuffer} capacity and overflow strategy
+   * @return an {@link rx.Observable} of datasnapshot to use
+   */
+  public Observable<DataSnapshot> observeValueEvent(final Query firebaseRef,
+      BoundedBuffer buffer) {
+    return observeSharedValue(firebaseRef, Emitter.BackpressureMode.NONE)
+        .lift(new OperatorBoundedBuffer<>(buffer, VALUE_KEY, LATEST_VALUE,
+            QueryKey.of(firebaseRef) + "#value", bufferStats))
+        .compose(this.<DataSnapshot>applyScheduler());
+  }
+
+  /**
+   * This methods observes a firebase query and returns back the children which
+   * were added, modified or removed since its previous {@link DataSnapshot}. The
+   * children are compared by a fingerprint of their content on the decode
+   * scheduler, and the snapshots without any child change are skipped after the
+   * first one.
+   *
+   * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @return an {@link rx.Observable} of {@link FirebaseValueDiff}
+   */
+  public Observable<FirebaseValueDiff> observeValueEventDiff(final Query firebaseRef) {
+    return Observable.defer(new Func0<Observable<FirebaseValueDiff>>() {
+      @Override public Observable<FirebaseValueDiff> call() {
+        final ValueDiffer differ = new ValueDiffer();
+        final boolean[] first = { true };
+        return observeSharedValue(firebaseRef, Emitter.BackpressureMode.LATEST)
+            .observeOn(decodeOnScheduler)
+            .map(new Func1<DataSnapshot, FirebaseValueDiff>() {
+              @Override public FirebaseValueDiff call(DataSnapshot dataSnapshot) {
+                return differ.diff(dataSnapshot);
+              }
+            })
+            .filter(new Func1<FirebaseValueDiff, Boolean>() {
+              @Override public Boolean call(FirebaseValueDiff valueDiff) {
+                final boolean emit = first[0] || !valueDiff.isEmpty();
+                first[0] = false;
+                return emit;
+              }
+            })
+            .compose(RxFirebaseDatabase.this.<FirebaseValueDiff>applyScheduler());
+      }
+    });
   }
 
-  protected RxFirebaseDatabase() {
-    //empty constructor, prevent initialisation
+  /**
+   * This methods observes whether the client is connected to the database,
+   * through {@link FirebaseDatabaseNodes#NODE_CONNECTED}
+   *
+   * @param reference {@link DatabaseReference} any reference of the database
+   * @return an {@link rx.Observable} of the connection state, true when connected
+   */
+  public Observable<Boolean> observeConnectionState(final DatabaseReference reference) {
+    return valueEventRegistry.observe(connectedReference(reference),
+        Emitter.BackpressureMode.LATEST)
+        .map(CONNECTED)
+        .distinctUntilChanged()
+        .compose(this.<Boolean>applyScheduler());
   }
 
   /**
-   * This method will set specific Scheduler on what values will be Observed on
+   * This methods observes a firebase query and returns back
+   * an Observable of the {@link DataSnapshot}. When connection awareness is
+   * enabled, a non critical listener is detached while the client is offline
+   * and re-attached on reconnect according to its priority.
    *
-   * @param observeOnScheduler {@link Scheduler} for observed on
-   * @return {@link RxFirebaseDatabase}
+   * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @param priority {@link ListenerPriority} of the listener
+   * @return an {@link rx.Observable} of datasnapshot to use
    */
-  public RxFirebaseDatabase observeOn(Scheduler observeOnScheduler) {
-    this.observeOnScheduler = observeOnScheduler;
-    return this;
+  public Observable<DataSnapshot> observeValueEvent(final Query firebaseRef,
+      ListenerPriority priority) {
+    return gate(firebaseRef, priority,
+        observeSharedValue(firebaseRef, Emitter.BackpressureMode.BUFFER))
+        .compose(this.<DataSnapshot>applyScheduler());
   }
 
   /**
-   * This methods observes data saving with push in order to generate the key
-   * automatically according to Firebase hashing key rules.
+   * Observes the shared value listener of a query and claims its prefetch, if any
    *
-   * @param reference {@link Query} this is reference of a Firebase Query
-   * @param object {@link Object} whatever object we want to save
-   * @return an {@link rx.Observable} of the generated key after
-   * the object persistence
+   * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @param backPressureMode {@link Emitter.BackpressureMode} backpressure mode
+   * @return an {@link rx.Observable} of datasnapshot to use
    */
-  public Observable<String> observeSetValuePush(final DatabaseReference reference,
-      final Object object) {
-    return Observable.create(new Action1<Emitter<String>>() {
-      @Override public void call(final Emitter<String> emitter) {
-        final DatabaseReference ref = reference.push();
-        ref.addListenerForSingleValueEvent(new ValueEventListener() {
-          @Override public void onDataChange(DataSnapshot dataSnapshot) {
-            emitter.onNext(ref.getKey());
-            emitter.onCompleted();
-          }
-
-          @Override public void onCancelled(DatabaseError error) {
-            FirebaseDatabaseErrorFactory.buildError(emitter, error);
-          }
-        });
-        ref.setValue(object);
-      }
-    }, Emitter.BackpressureMode.LATEST).compose(this.<String>applyScheduler());
+  private Observable<DataSnapshot> observeSharedValue(final Query firebaseRef,
+      Emitter.BackpressureMode backPressureMode) {
+    return valueEventRegistry.observe(firebaseRef, backPressureMode)
+        .doOnSubscribe(claimPrefetch(firebaseRef, false))
+        .compose(this.refreshToken(VALUE_KEY, VALUE_FINGERPRINT));
   }
 
   /**
-   * This methods observes data saving under the provided {@link DatabaseReference}
+   * Claims the prefetch of a query, if any, when it is subscribed
    *
-   * @param reference {@link DatabaseReference} this is reference of a Firebase Query
-   * @param object {@link Object} whatever object we want to save
-   * @return an {@link rx.Observable} of the generated key after
-   * the object persistence
+   * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @param childEvents true when the child events of the query are observed
+   * @return {@link Action0} to call on subscribe
    */
-  public Observable<String> observeSetValue(final DatabaseReference reference,
-      final Object object) {
-    return Observable.create(new Action1<Emitter<String>>() {
-      @Override public void call(final Emitter<String> emitter) {
-        final ValueEventListener listener = new ValueEventListener() {
-          @Override public void onDataChange(DataSnapshot dataSnapshot) {
-            emitter.onNext(reference.getKey());
-            emitter.onCompleted();
-          }
-
-          @Override public void onCancelled(DatabaseError error) {
-            FirebaseDatabaseErrorFactory.buildError(emitter, error);
-          }
-        };
-        reference.addListenerForSingleValueEvent(listener);
-        reference.setValue(object);
-
-        // When the subscription is cancelled, remove the listener
-        emitter.setCancellation(new Cancellable() {
-          @Override public void cancel() throws Exception {
-            reference.removeEventListener(listener);
-          }
-        });
+  private Action0 claimPrefetch(final Query firebaseRef, final boolean childEvents) {
+    return new Action0() {
+      @Override public void call() {
+        if (prefetchers.isEmpty()) {
+          return;
+        }
+        final String key = QueryKey.of(firebaseRef);
+        for (Prefetcher prefetcher : prefetchers) {
+          prefetcher.claim(key, childEvents);
+        }
       }
-    }, Emitter.BackpressureMode.LATEST);
+    };
   }
 
   /**
-   * This methods observes children update for provided {@link DatabaseReference}
+   * Observes the shared child listener of a query and claims its prefetch, if any
    *
-   * @param reference {@link DatabaseReference}
-   * @param data {@link Map} the children items which should be updated
-   * @return {@link rx.Observable} which emits the key of reference {@link String}
+   * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @param eventType {@link EventType} of the observed events, null for all of them
+   * @param backPressureMode {@link Emitter.BackpressureMode} backpressure mode
+   * @param priority {@link ListenerPriority} of the listener
+   * @return an {@link rx.Observable} of {@link FirebaseChildEvent}
    */
-  public Observable<String> observeUpdateChildren(final DatabaseReference reference,
-      final Map<String, Object> data) {
-    return Observable.create(new Action1<Emitter<String>>() {
-      @Override public void call(final Emitter<String> emitter) {
-        final ValueEventListener listener = new ValueEventListener() {
-          @Override public void onDataChange(DataSnapshot dataSnapshot) {
-            emitter.onNext(reference.getKey());
-            emitter.onCompleted();
-          }
-
-          @Override public void onCancelled(DatabaseError databaseError) {
-            FirebaseDatabaseErrorFactory.buildError(emitter, databaseError);
-          }
-        };
-        reference.addListenerForSingleValueEvent(listener);
-        reference.updateChildren(data);
+  private Observable<FirebaseChildEvent> observeSharedChild(final Query firebaseRef,
+      EventType eventType, Emitter.BackpressureMode backPressureMode,
+      ListenerPriority priority) {
+    return childEventRegistry.observe(firebaseRef, eventType, backPressureMode)
+        .doOnSubscribe(claimPrefetch(firebaseRef, true))
+        .compose(this.resyncChildren(firebaseRef, eventType, priority));
+  }
 
-        // When the subscription is cancelled, remove the listener
-        emitter.setCancellation(new Cancellable() {
-          @Override public void cancel() throws Exception {
-            reference.removeEventListener(listener);
+  /**
+   * Function that receives the child events of a query and attaches their listener
+   * again after a token error, when the token refresher is enabled, and on reconnect,
+   * when the connection gate detached it. The replayed children are reconciled with
+   * the delivered ones.
+   *
+   * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @param eventType {@link EventType} of the observed events, null for all of them
+   * @param priority {@link ListenerPriority} of the listener
+   * @return an {@link rx.Observable} which survives the token errors and reconnects
+   */
+  private Observable.Transformer<FirebaseChildEvent, FirebaseChildEvent> resyncChildren(
+      final Query firebaseRef, final EventType eventType, final ListenerPriority priority) {
+    return new Observable.Transformer<FirebaseChildEvent, FirebaseChildEvent>() {
+      @Override
+      public Observable<FirebaseChildEvent> call(final Observable<FirebaseChildEvent> events) {
+        return Observable.defer(new Func0<Observable<FirebaseChildEvent>>() {
+          @Override public Observable<FirebaseChildEvent> call() {
+            final TokenRefresher refresher = tokenRefresher;
+            final boolean gated =
+                connectionGate != null && priority != ListenerPriority.CRITICAL;
+            if (refresher == null && !gated) {
+              return events;
+            }
+            final Observable.Transformer<Object, Object> resubscriber =
+                new Observable.Transformer<Object, Object>() {
+                  @Override public Observable<Object> call(Observable<Object> attachments) {
+                    final Observable<Object> refreshed = refresher == null ? attachments
+                        : attachments.compose(refresher.resubscribeOnExpiry());
+                    return gated ? gate(firebaseRef, priority, refreshed) : refreshed;
+                  }
+                };
+            if (eventType != null && eventType != EventType.ADDED) {
+              // A replay only adds children, the other event types are not replayed
+              return events.cast(Object.class).compose(resubscriber)
+                  .cast(FirebaseChildEvent.class);
+            }
+            return ChildResync.resync(events, eventType,
+                createSingleValue(firebaseRef, Emitter.BackpressureMode.BUFFER), resubscriber);
           }
         });
       }
-    }, Emitter.BackpressureMode.LATEST).compose(this.<String>applyScheduler());
+    };
   }
 
   /**
-   * This methods observes a firebase query and returns back
+   * This methods observes a firebase query and returns back ONCE
    * an Observable of the {@link DataSnapshot}
    * when the firebase client uses a {@link ValueEventListener}
    *
    * @param firebaseRef {@link Query} this is reference of a Firebase Query
    * @return an {@link rx.Observable} of datasnapshot to use
    */
-  public Observable<DataSnapshot> observeValueEvent(final Query firebaseRef) {
-    return observeValueEvent(firebaseRef, Emitter.BackpressureMode.BUFFER);
+  public Observable<DataSnapshot> observeSingleValue(final Query firebaseRef) {
+    return observeSingleValue(firebaseRef, Emitter.BackpressureMode.BUFFER);
   }
 
   /**
-   * This methods observes a firebase query and returns back
+   * This methods observes a firebase query and returns back ONCE
    * an Observable of the {@link DataSnapshot}
    * when the firebase client uses a {@link ValueEventListener}
    *
@@ -194,53 +1066,117 @@ public class RxFirebaseDatabase {
    * @param backPressureMode {@link Emitter.BackpressureMode} backpressure mode
    * @return an {@link rx.Observable} of datasnapshot to use
    */
-  public Observable<DataSnapshot> observeValueEvent(final Query firebaseRef,
+  public Observable<DataSnapshot> observeSingleValue(final Query firebaseRef,
       Emitter.BackpressureMode backPressureMode) {
-    return Observable.create(new Action1<Emitter<DataSnapshot>>() {
-      @Override public void call(final Emitter<DataSnapshot> emitter) {
-        final ValueEventListener listener =
-            firebaseRef.addValueEventListener(new ValueEventListener() {
-              @Override public void onDataChange(DataSnapshot dataSnapshot) {
-                emitter.onNext(dataSnapshot);
-              }
+    return createCachedSingleValue(firebaseRef, backPressureMode)
+        .compose(this.<DataSnapshot>applyScheduler());
+  }
 
-              @Override public void onCancelled(DatabaseError error) {
-                FirebaseDatabaseErrorFactory.buildError(emitter, error);
-              }
-            });
+  /**
+   * This methods observes a firebase query and returns back ONCE an Observable
+   * of the value decoded into the provided class on the decode scheduler
+   *
+   * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @param clazz {@link Class} of the decoded value
+   * @param <T> the decoded type
+   * @return an {@link rx.Observable} of the decoded value
+   */
+  public <T> Observable<T> observeSingleValue(final Query firebaseRef, Class<T> clazz) {
+    return observeSingleValue(firebaseRef, DataSnapshotMapper.of(clazz));
+  }
 
-        // When the subscription is cancelled, remove the listener
-        emitter.setCancellation(new Cancellable() {
-          @Override public void cancel() throws Exception {
-            firebaseRef.removeEventListener(listener);
-          }
-        });
-      }
-    }, backPressureMode).compose(this.<DataSnapshot>applyScheduler());
+  /**
+   * This methods observes a firebase query and returns back ONCE an Observable
+   * of the value decoded by the provided mapper on the decode scheduler
+   *
+   * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @param mapper {@link DataSnapshotMapper} which decodes the snapshot
+   * @param <T> the decoded type
+   * @return an {@link rx.Observable} of the decoded value
+   */
+  public <T> Observable<T> observeSingleValue(final Query firebaseRef,
+      DataSnapshotMapper<T> mapper) {
+    return createCachedSingleValue(firebaseRef, Emitter.BackpressureMode.BUFFER)
+        .compose(this.applyDecoder(mapper));
   }
 
   /**
-   * This methods observes a firebase query and returns back ONCE
-   * an Observable of the {@link DataSnapshot}
-   * when the firebase client uses a {@link ValueEventListener}
+   * Creates the observable of a single value event which is served from the
+   * snapshot cache when it is enabled and holds the location. The reads of the
+   * derived queries are not cached, their key is only valid for their instance.
    *
    * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @param backPressureMode {@link Emitter.BackpressureMode} backpressure mode
    * @return an {@link rx.Observable} of datasnapshot to use
    */
-  public Observable<DataSnapshot> observeSingleValue(final Query firebaseRef) {
-    return observeSingleValue(firebaseRef, Emitter.BackpressureMode.BUFFER);
+  private Observable<DataSnapshot> createCachedSingleValue(final Query firebaseRef,
+      final Emitter.BackpressureMode backPressureMode) {
+    return Observable.defer(new Func0<Observable<DataSnapshot>>() {
+      @Override public Observable<DataSnapshot> call() {
+        final SnapshotCache cache = snapshotCache;
+        if (cache == null || !(firebaseRef instanceof DatabaseReference)) {
+          return createSingleValue(firebaseRef, backPressureMode);
+        }
+        final DatabaseReference reference = (DatabaseReference) firebaseRef;
+        final DataSnapshot cached = cache.get(reference);
+        if (cached != null) {
+          return Observable.just(cached);
+        }
+        final long generation = cache.generation();
+        return createSingleValue(firebaseRef, backPressureMode)
+            .doOnNext(new Action1<DataSnapshot>() {
+              @Override public void call(DataSnapshot dataSnapshot) {
+                cache.put(reference, dataSnapshot, generation);
+              }
+            });
+      }
+    });
   }
 
   /**
-   * This methods observes a firebase query and returns back ONCE
-   * an Observable of the {@link DataSnapshot}
-   * when the firebase client uses a {@link ValueEventListener}
+   * Reports an acknowledged write to the instrumentation. The key of the
+   * location is built only when an instrumentation is set.
+   *
+   * @param instrumentation {@link FirebaseInstrumentation} receiving the latencies
+   * @param reference {@link DatabaseReference} the written location
+   * @param latencyNanos the time from the local enqueue to the acknowledgement
+   */
+  private static void reportWrite(FirebaseInstrumentation instrumentation,
+      DatabaseReference reference, long latencyNanos) {
+    if (instrumentation != NoOpFirebaseInstrumentation.INSTANCE) {
+      instrumentation.onWriteAcknowledged(QueryKey.of(reference), latencyNanos);
+    }
+  }
+
+  /**
+   * Invalidates the cached snapshots of a written location
+   *
+   * @param reference {@link DatabaseReference} the written location
+   * @param children {@link Map} of the written child paths, null when
+   * the whole location is written
+   */
+  private void invalidateCache(DatabaseReference reference, Map<String, Object> children) {
+    final SnapshotCache cache = snapshotCache;
+    if (cache == null) {
+      return;
+    }
+    if (children == null) {
+      cache.invalidate(reference);
+      return;
+    }
+    for (String child : children.keySet()) {
+      cache.invalidate(reference.child(child));
+    }
+  }
+
+  /**
+   * Creates the observable of a single value event without any scheduler applied
    *
    * @param firebaseRef {@link Query} this is reference of a Firebase Query
    * @param backPressureMode {@link Emitter.BackpressureMode} backpressure mode
    * @return an {@link rx.Observable} of datasnapshot to use
    */
-  public Observable<DataSnapshot> observeSingleValue(final Query firebaseRef,
+  private Observable<DataSnapshot> createSingleValue(final Query firebaseRef,
       Emitter.BackpressureMode backPressureMode) {
     return Observable.create(new Action1<Emitter<DataSnapshot>>() {
       @Override public void call(final Emitter<DataSnapshot> emitter) {
@@ -251,7 +1187,7 @@ public class RxFirebaseDatabase {
           }
 
           @Override public void onCancelled(DatabaseError error) {
-            FirebaseDatabaseErrorFactory.buildError(emitter, error);
+            FirebaseDatabaseErrorFactory.buildError(emitter, error, instrumentation, firebaseRef);
           }
         };
 
@@ -265,7 +1201,7 @@ public class RxFirebaseDatabase {
           }
         });
       }
-    }, backPressureMode).compose(this.<DataSnapshot>applyScheduler());
+    }, backPressureMode);
   }
 
   /**
@@ -284,7 +1220,8 @@ public class RxFirebaseDatabase {
   /**
    * This methods observes a firebase query and returns back
    * an Observable of the {@link DataSnapshot}
-   * when the firebase client uses a {@link ChildEventListener}
+   * when the firebase client uses a {@link ChildEventListener}. Subscribers of
+   * the same query share one listener.
    *
    * @param firebaseRef {@link Query} this is reference of a Firebase Query
    * @param backPressureMode {@link Emitter.BackpressureMode} backpressure mode
@@ -293,47 +1230,206 @@ public class RxFirebaseDatabase {
    */
   public Observable<FirebaseChildEvent> observeChildEvent(final Query firebaseRef,
       Emitter.BackpressureMode backPressureMode) {
-    return Observable.create(new Action1<Emitter<FirebaseChildEvent>>() {
-      @Override public void call(final Emitter<FirebaseChildEvent> emitter) {
-        final ChildEventListener childEventListener =
-            firebaseRef.addChildEventListener(new ChildEventListener() {
-
-              @Override
-              public void onChildAdded(DataSnapshot dataSnapshot, String previousChildName) {
-                emitter.onNext(
-                    new FirebaseChildEvent(dataSnapshot, previousChildName, EventType.ADDED));
-              }
-
-              @Override
-              public void onChildChanged(DataSnapshot dataSnapshot, String previousChildName) {
-                emitter.onNext(
-                    new FirebaseChildEvent(dataSnapshot, previousChildName, EventType.CHANGED));
-              }
+    return observeSharedChild(firebaseRef, null, backPressureMode, ListenerPriority.CRITICAL)
+        .compose(this.<FirebaseChildEvent>applyScheduler());
+  }
 
-              @Override public void onChildRemoved(DataSnapshot dataSnapshot) {
-                emitter.onNext(
-                    new FirebaseChildEvent(dataSnapshot, EventType.REMOVED));
-              }
+  /**
+   * This methods observes the child events of a firebase query. When connection
+   * awareness is enabled, a non critical listener is detached while the client
+   * is offline and re-attached on reconnect according to its priority. On
+   * re-attach, only the children which changed or were removed while offline
+   * are received again, as changed or removed events.
+   *
+   * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @param priority {@link ListenerPriority} of the listener
+   * @return an {@link rx.Observable} of {@link FirebaseChildEvent}
+   */
+  public Observable<FirebaseChildEvent> observeChildEvent(final Query firebaseRef,
+      final ListenerPriority priority) {
+    return observeSharedChild(firebaseRef, null, Emitter.BackpressureMode.BUFFER, priority)
+        .compose(this.<FirebaseChildEvent>applyScheduler());
+  }
 
-              @Override
-              public void onChildMoved(DataSnapshot dataSnapshot, String previousChildName) {
-                emitter.onNext(
-                    new FirebaseChildEvent(dataSnapshot, previousChildName, EventType.MOVED));
-              }
+  /**
+   * This methods observes the child events of a firebase query and returns back
+   * an Observable of {@link TypedFirebaseChildEvent} with the value of each child
+   * decoded into the provided class on the decode scheduler. Subscribers of the
+   * same query share one listener.
+   *
+   * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @param clazz {@link Class} of the decoded children
+   * @param <T> the decoded type
+   * @return an {@link rx.Observable} of {@link TypedFirebaseChildEvent}
+   */
+  public <T> Observable<TypedFirebaseChildEvent<T>> observeChildEvent(final Query firebaseRef,
+      Class<T> clazz) {
+    return observeSharedChild(firebaseRef, null, Emitter.BackpressureMode.BUFFER,
+        ListenerPriority.CRITICAL)
+        .compose(this.applyDecoder(decodeChildEvent(DataSnapshotMapper.of(clazz))));
+  }
 
-              @Override public void onCancelled(DatabaseError error) {
-                FirebaseDatabaseErrorFactory.buildError(emitter, error);
+  /**
+   * This methods observes the child events of a firebase query and materializes
+   * them into an ordered, key indexed list of values decoded into the provided
+   * class. Each child event costs O(log n) and emits a {@link FirebaseListEvent}
+   * with the changes applied and the current immutable list. Subscribers of the
+   * same query share one listener.
+   *
+   * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @param clazz {@link Class} of the decoded children
+   * @param <T> the decoded type
+   * @return an {@link rx.Observable} of {@link FirebaseListEvent}
+   */
+  public <T> Observable<FirebaseListEvent<T>> observeList(final Query firebaseRef,
+      final Class<T> clazz) {
+    return Observable.defer(new Func0<Observable<FirebaseListEvent<T>>>() {
+      @Override public Observable<FirebaseListEvent<T>> call() {
+        final Func1<FirebaseChildEvent, TypedFirebaseChildEvent<T>> decoder =
+            decodeChildEvent(DataSnapshotMapper.of(clazz));
+        final ListMaterializer<T> materializer = new ListMaterializer<>();
+        return observeSharedChild(firebaseRef, null, Emitter.BackpressureMode.BUFFER,
+            ListenerPriority.CRITICAL)
+            .compose(applyDecoder(new Func1<FirebaseChildEvent, FirebaseListEvent<T>>() {
+              @Override public FirebaseListEvent<T> call(FirebaseChildEvent firebaseChildEvent) {
+                return materializer.apply(decoder.call(firebaseChildEvent));
               }
-            });
-        // this is used to remove the listener when the subscriber is
-        // cancelled (unsubscribe)
-        emitter.setCancellation(new Cancellable() {
-          @Override public void cancel() throws Exception {
-            firebaseRef.removeEventListener(childEventListener);
-          }
-        });
+            }));
       }
-    }, backPressureMode).compose(this.<FirebaseChildEvent>applyScheduler());
+    });
+  }
+
+  /**
+   * This methods observes the child events of a firebase query through a
+   * bounded backpressure buffer, whose counters are available from
+   * {@link #getBufferStats()}. The events are conflated by child key.
+   *
+   * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @param buffer {@link BoundedBuffer} capacity and overflow strategy
+   * @return an {@link rx.Observable} of {@link FirebaseChildEvent}
+   */
+  public Observable<FirebaseChildEvent> observeChildEvent(final Query firebaseRef,
+      BoundedBuffer buffer) {
+    return observeSharedChild(firebaseRef, null, Emitter.BackpressureMode.NONE,
+        ListenerPriority.CRITICAL)
+        .lift(new OperatorBoundedBuffer<>(buffer, CHILD_KEY, CONFLATE_CHILD,
+            QueryKey.of(firebaseRef) + "#child", bufferStats))
+        .compose(this.<FirebaseChildEvent>applyScheduler());
+  }
+
+  /**
+   * Observes the shared child events of a query followed by a single value read
+   * of it, without any scheduler applied. The SDK raises the value event after
+   * the child events of the same data, so the {@link DataSnapshot} marks the end
+   * of the initial children.
+   *
+   * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @return an {@link rx.Observable} of {@link FirebaseChildEvent} and {@link DataSnapshot}
+   */
+  Observable<Object> observeChildEventThenValue(final Query firebaseRef) {
+    return Observable.merge(
+        observeSharedChild(firebaseRef, null, Emitter.BackpressureMode.BUFFER,
+            ListenerPriority.CRITICAL),
+        createSingleValue(firebaseRef, Emitter.BackpressureMode.BUFFER));
+  }
+
+  /**
+   * This methods observes the children of a firebase location ordered by key
+   * in pages, reading one page from the database for each requested item.
+   * The observable completes after the last page. Since it reads a page per
+   * request, observe it on another thread with a small buffer, e.g.
+   * {@code observeOn(scheduler, 1)}.
+   *
+   * @param firebaseRef {@link Query} this is reference of a Firebase location without ordering
+   * @param pageSize the number of children of a page
+   * @return an {@link rx.Observable} of {@link FirebasePage}
+   */
+  public Observable<FirebasePage> observePaged(final Query firebaseRef, int pageSize) {
+    return observePaged(firebaseRef, pageSize, false);
+  }
+
+  /**
+   * This methods observes the children of a firebase location ordered by key
+   * in pages, reading one page from the database for each requested item.
+   * When live, the loaded pages keep a listener on their key range and are
+   * emitted again when they change, with {@link FirebasePage#isUpdate()}, so
+   * the observable does not complete. The last page also receives the
+   * children added after it.
+   *
+   * @param firebaseRef {@link Query} this is reference of a Firebase location without ordering
+   * @param pageSize the number of children of a page
+   * @param live whether the loaded pages are kept up to date
+   * @return an {@link rx.Observable} of {@link FirebasePage}
+   */
+  public Observable<FirebasePage> observePaged(final Query firebaseRef, int pageSize,
+      boolean live) {
+    final Observable<FirebasePage> pages = Observable.unsafeCreate(
+        new PagedOnSubscribe(firebaseRef, pageSize, live, instrumentation));
+    // The default buffer of observeOn would request many pages ahead
+    final FrameDispatcher dispatcher = frameDispatcher;
+    if (dispatcher != null) {
+      return pages.lift(new OperatorFrameDelivery<FirebasePage>(dispatcher, 1));
+    }
+    return observeOnScheduler == null ? pages : pages.observeOn(observeOnScheduler, 1);
+  }
+
+  /**
+   * This methods observes the child events of a firebase query grouped in
+   * ordered batches, emitted when they reach the max size or when the time
+   * window of their first event ends. Subscribers of the same query share one
+   * listener. A batch is recycled once its delivery returns, copy its events to
+   * keep them.
+   *
+   * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @param window the time window of a batch
+   * @param unit {@link TimeUnit} of the window
+   * @param maxSize the max number of events of a batch
+   * @return an {@link rx.Observable} of {@link FirebaseChildEventBatch}
+   */
+  public Observable<FirebaseChildEventBatch> observeChildEventBatched(final Query firebaseRef,
+      long window, TimeUnit unit, int maxSize) {
+    return observeChildEventBatched(firebaseRef, window, unit, maxSize,
+        Schedulers.computation());
+  }
+
+  /**
+   * This methods observes the child events of a firebase query grouped in
+   * ordered batches, emitted when they reach the max size or when the time
+   * window of their first event ends. Subscribers of the same query share one
+   * listener. A batch is recycled once its delivery returns, copy its events to
+   * keep them.
+   *
+   * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @param window the time window of a batch
+   * @param unit {@link TimeUnit} of the window
+   * @param maxSize the max number of events of a batch
+   * @param scheduler {@link Scheduler} on which the window is timed
+   * @return an {@link rx.Observable} of {@link FirebaseChildEventBatch}
+   */
+  public Observable<FirebaseChildEventBatch> observeChildEventBatched(final Query firebaseRef,
+      long window, TimeUnit unit, int maxSize, Scheduler scheduler) {
+    return Observable.create(new BatchedChildEventOnSubscribe(
+        observeSharedChild(firebaseRef, null, Emitter.BackpressureMode.BUFFER,
+            ListenerPriority.CRITICAL), window, unit, maxSize, scheduler),
+        Emitter.BackpressureMode.BUFFER)
+        .compose(this.<FirebaseChildEventBatch>applyScheduler())
+        .lift(BatchedChildEventOnSubscribe.RECYCLE_DELIVERED);
+  }
+
+  /**
+   * Observes only the child events of the provided type. All the child event
+   * observables of a query share one listener which dispatches each event
+   * only to the subscribers of its type.
+   *
+   * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @param eventType {@link EventType} of the observed events
+   * @return an {@link rx.Observable} of {@link FirebaseChildEvent}
+   */
+  private Observable<FirebaseChildEvent> observeChildEvent(final Query firebaseRef,
+      EventType eventType) {
+    return observeSharedChild(firebaseRef, eventType, Emitter.BackpressureMode.BUFFER,
+        ListenerPriority.CRITICAL)
+        .compose(this.<FirebaseChildEvent>applyScheduler());
   }
 
   /**
@@ -344,7 +1440,7 @@ public class RxFirebaseDatabase {
    * to use
    */
   public Observable<FirebaseChildEvent> observeChildAdded(final Query firebaseRef) {
-    return observeChildEvent(firebaseRef).filter(filterChildEvent(EventType.ADDED));
+    return observeChildEvent(firebaseRef, EventType.ADDED);
   }
 
   /**
@@ -355,7 +1451,7 @@ public class RxFirebaseDatabase {
    * to use
    */
   public Observable<FirebaseChildEvent> observeChildChanged(final Query firebaseRef) {
-    return observeChildEvent(firebaseRef).filter(filterChildEvent(EventType.CHANGED));
+    return observeChildEvent(firebaseRef, EventType.CHANGED);
   }
 
   /**
@@ -366,7 +1462,7 @@ public class RxFirebaseDatabase {
    * to use
    */
   public Observable<FirebaseChildEvent> observeChildRemoved(final Query firebaseRef) {
-    return observeChildEvent(firebaseRef).filter(filterChildEvent(EventType.REMOVED));
+    return observeChildEvent(firebaseRef, EventType.REMOVED);
   }
 
   /**
@@ -377,33 +1473,112 @@ public class RxFirebaseDatabase {
    * to use
    */
   public Observable<FirebaseChildEvent> observeChildMoved(final Query firebaseRef) {
-    return observeChildEvent(firebaseRef).filter(filterChildEvent(EventType.MOVED));
+    return observeChildEvent(firebaseRef, EventType.MOVED);
   }
 
   /**
-   * Functions which filters a stream of {@link Observable} according to firebase
-   * child event type
+   * A write to a {@link DatabaseReference} reporting to a completion listener
+   */
+  private interface Write {
+    void write(DatabaseReference.CompletionListener listener);
+  }
+
+  /**
+   * Function that receives the current Observable, decodes its values on the
+   * decode scheduler and then applies the observe on scheduler
+   *
+   * @param decoder {@link Func1} which decodes the values
+   * @param <T> source type
+   * @param <R> decoded type
+   * @return an {@link rx.Observable} of the decoded values
+   */
+  private <T, R> Observable.Transformer<T, R> applyDecoder(final Func1<T, R> decoder) {
+    return new Observable.Transformer<T, R>() {
+      @Override public Observable<R> call(Observable<T> observable) {
+        return observable.observeOn(decodeOnScheduler)
+            .map(decoder)
+            .compose(RxFirebaseDatabase.this.<R>applyScheduler());
+      }
+    };
+  }
+
+  /**
+   * Function which decodes the value of a {@link FirebaseChildEvent}
+   *
+   * @param mapper {@link DataSnapshotMapper} which decodes the snapshot
+   * @param <T> the decoded type
+   * @return {@link Func1} which returns a {@link TypedFirebaseChildEvent}
+   */
+  private <T> Func1<FirebaseChildEvent, TypedFirebaseChildEvent<T>> decodeChildEvent(
+      final DataSnapshotMapper<T> mapper) {
+    return new Func1<FirebaseChildEvent, TypedFirebaseChildEvent<T>>() {
+      @Override public TypedFirebaseChildEvent<T> call(FirebaseChildEvent firebaseChildEvent) {
+        return new TypedFirebaseChildEvent<>(firebaseChildEvent,
+            mapper.call(firebaseChildEvent.getDataSnapshot()));
+      }
+    };
+  }
+
+  /**
+   * Gates the listener of a query with the connection gate, when it is enabled
+   *
+   * @param firebaseRef {@link Query} this is reference of a Firebase Query
+   * @param priority {@link ListenerPriority} of the listener
+   * @param source {@link Observable} which attaches the listener
+   * @param <T> the type of the values
+   * @return the gated {@link Observable}
+   */
+  private <T> Observable<T> gate(final Query firebaseRef, final ListenerPriority priority,
+      final Observable<T> source) {
+    return Observable.defer(new Func0<Observable<T>>() {
+      @Override public Observable<T> call() {
+        final ConnectionGate gate = connectionGate;
+        return gate == null ? source : gate.gate(QueryKey.of(firebaseRef), priority, source);
+      }
+    });
+  }
+
+  /**
+   * Function that receives the current Observable and resubscribes it after a
+   * token error, when the token refresher is enabled
    *
-   * @param type {@link FirebaseChildEvent}
-   * @return {@link rx.functions.Func1} a function which returns a boolean if the type are equals
+   * @param keySelector {@link Func1} which returns the key of a value
+   * @param fingerprint {@link Func1} which returns the fingerprint of a value
+   * @param <T> source Observable
+   * @return an {@link rx.Observable} which survives the token errors
    */
-  private Func1<FirebaseChildEvent, Boolean> filterChildEvent(final EventType type) {
-    return new Func1<FirebaseChildEvent, Boolean>() {
-      @Override public Boolean call(FirebaseChildEvent firebaseChildEvent) {
-        return firebaseChildEvent.getEventType() == type;
+  private <T> Observable.Transformer<T, T> refreshToken(final Func1<? super T, ?> keySelector,
+      final Func1<? super T, ?> fingerprint) {
+    return new Observable.Transformer<T, T>() {
+      @Override public Observable<T> call(final Observable<T> observable) {
+        return Observable.defer(new Func0<Observable<T>>() {
+          @Override public Observable<T> call() {
+            final TokenRefresher refresher = tokenRefresher;
+            return refresher == null ? observable
+                : observable.compose(refresher.<T>resubscribeOnExpiry(keySelector, fingerprint));
+          }
+        });
       }
     };
   }
 
+  private static DatabaseReference connectedReference(DatabaseReference reference) {
+    return reference.getRoot().child(FirebaseDatabaseNodes.NODE_CONNECTED);
+  }
+
   /**
    * Function that receives the current Observable and should apply scheduler
    *
    * @param <T> source Observable
    * @return an {@link rx.Observable} with new or the same observe on scheduler
    */
-  @SuppressWarnings("unchecked") private <T> Observable.Transformer<T, T> applyScheduler() {
+  @SuppressWarnings("unchecked") <T> Observable.Transformer<T, T> applyScheduler() {
     return new Observable.Transformer<T, T>() {
       @Override public Observable<T> call(Observable<T> observable) {
+        final FrameDispatcher dispatcher = frameDispatcher;
+        if (dispatcher != null) {
+          return observable.lift(new OperatorFrameDelivery<T>(dispatcher, FRAME_BUFFER_SIZE));
+        }
         if (observeOnScheduler != null) {
           return observable.observeOn(observeOnScheduler);
         }
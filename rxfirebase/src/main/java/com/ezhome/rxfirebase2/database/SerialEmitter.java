@@ -0,0 +1,102 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import java.util.ArrayList;
+import java.util.List;
+import rx.Emitter;
+
+/**
+ * An {@link Emitter} of a shared listener which the registries call after
+ * releasing their lock. The values of one subscriber are emitted one at a time,
+ * and the values received while its replay is pending are emitted after it,
+ * so a late subscriber never receives a replayed value after a newer one.
+ *
+ * @param <T> the type of the values
+ */
+final class SerialEmitter<T> {
+
+  private final Emitter<T> emitter;
+
+  /**
+   * The values received before the replay, null once it was emitted
+   */
+  private List<T> pending;
+  private Throwable error;
+  private boolean terminated;
+
+  /**
+   * Creates the emitter of a subscriber
+   *
+   * @param emitter {@link Emitter} of the subscriber
+   * @param replay true when the subscriber receives a replay before the new values
+   */
+  SerialEmitter(Emitter<T> emitter, boolean replay) {
+    this.emitter = emitter;
+    this.pending = replay ? new ArrayList<T>() : null;
+  }
+
+  /**
+   * Emits the replayed values, then the values and the error received in the meantime
+   *
+   * @param values {@link List} of the replayed values
+   */
+  synchronized void replay(List<T> values) {
+    if (pending == null) {
+      return;
+    }
+    final List<T> received = pending;
+    pending = null;
+    for (T value : values) {
+      if (terminated) {
+        return;
+      }
+      emitter.onNext(value);
+    }
+    for (T value : received) {
+      if (terminated) {
+        return;
+      }
+      emitter.onNext(value);
+    }
+    if (error != null) {
+      onError(error);
+    }
+  }
+
+  synchronized void onNext(T value) {
+    if (terminated) {
+      return;
+    }
+    if (pending != null) {
+      pending.add(value);
+      return;
+    }
+    emitter.onNext(value);
+  }
+
+  synchronized void onError(Throwable throwable) {
+    if (terminated) {
+      return;
+    }
+    if (pending != null) {
+      error = throwable;
+      return;
+    }
+    terminated = true;
+    emitter.onError(throwable);
+  }
+}
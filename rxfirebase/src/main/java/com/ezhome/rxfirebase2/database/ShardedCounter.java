@@ -0,0 +1,188 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import com.ezhome.rxfirebase2.FirebaseChildEvent;
+import com.ezhome.rxfirebase2.FirebaseChildEvent.EventType;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import rx.Observable;
+import rx.functions.Func0;
+import rx.functions.Func1;
+
+/**
+ * A counter spread over shard children of a location, so the increments of many
+ * clients are not all contending on the transaction of a single node. Each
+ * increment runs one transaction on the shard chosen by the hash of a key, the
+ * client by default. The total is read once with the initial shards, and then
+ * aggregated from the child events of the shards, applying only the difference
+ * of the changed shard.
+ */
+public final class ShardedCounter {
+
+  private static final String SHARD_PREFIX = "shard-";
+
+  private final RxFirebaseDatabase rxFirebaseDatabase;
+  private final DatabaseReference reference;
+  private final int shardCount;
+
+  /**
+   * The key of this client, which keeps its increments on one shard
+   */
+  private final String clientKey = UUID.randomUUID().toString();
+
+  private int maxAttempts = RxFirebaseDatabase.DEFAULT_MAX_ATTEMPTS;
+
+  private ShardedCounter(RxFirebaseDatabase rxFirebaseDatabase, DatabaseReference reference,
+      int shardCount) {
+    if (shardCount < 1) {
+      throw new IllegalArgumentException("A counter needs at least one shard");
+    }
+    this.rxFirebaseDatabase = rxFirebaseDatabase;
+    this.reference = reference;
+    this.shardCount = shardCount;
+  }
+
+  /**
+   * Creates a counter whose shards are the children of the provided location
+   *
+   * @param rxFirebaseDatabase {@link RxFirebaseDatabase} which observes the shards
+   * @param reference {@link DatabaseReference} the parent of the shards
+   * @param shardCount the number of shards, which should not change for a location
+   * @return {@link ShardedCounter}
+   */
+  public static ShardedCounter create(RxFirebaseDatabase rxFirebaseDatabase,
+      DatabaseReference reference, int shardCount) {
+    return new ShardedCounter(rxFirebaseDatabase, reference, shardCount);
+  }
+
+  /**
+   * Sets the max attempts of the transaction of an increment
+   *
+   * @param maxAttempts the max number of times the increment runs after the local run
+   * @return {@link ShardedCounter}
+   */
+  public synchronized ShardedCounter setMaxAttempts(int maxAttempts) {
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("An increment needs at least one attempt");
+    }
+    this.maxAttempts = maxAttempts;
+    return this;
+  }
+
+  public int getShardCount() {
+    return shardCount;
+  }
+
+  /**
+   * Adds to the shard of this client
+   *
+   * @param delta the value to add, negative to decrement
+   * @return an {@link rx.Observable} of the committed value of the shard
+   */
+  public Observable<Long> increment(long delta) {
+    return increment(clientKey, delta);
+  }
+
+  /**
+   * Adds to the shard of the provided key, e.g. the id of the user
+   *
+   * @param key {@link String} the key which chooses the shard
+   * @param delta the value to add, negative to decrement
+   * @return an {@link rx.Observable} of the committed value of the shard
+   */
+  public Observable<Long> increment(String key, final long delta) {
+    final int maxAttempts;
+    synchronized (this) {
+      maxAttempts = this.maxAttempts;
+    }
+    return rxFirebaseDatabase.observeRunTransaction(reference.child(shardOf(key)), Long.class,
+        new Func1<Long, Long>() {
+          @Override public Long call(Long value) {
+            return value == null ? delta : value + delta;
+          }
+        }, maxAttempts);
+  }
+
+  /**
+   * Observes the total of the shards. The total is emitted once the shards are
+   * loaded, 0 when there is none, and then after each shard event.
+   *
+   * @return an {@link rx.Observable} of the total
+   */
+  public Observable<Long> observeTotal() {
+    return Observable.defer(new Func0<Observable<Long>>() {
+      @Override public Observable<Long> call() {
+        final Map<String, Long> shards = new HashMap<>();
+        final long[] total = new long[1];
+        final boolean[] loaded = new boolean[1];
+        return rxFirebaseDatabase.observeChildEventThenValue(reference)
+            .map(new Func1<Object, Long>() {
+              @Override public Long call(Object event) {
+                if (event instanceof DataSnapshot) {
+                  // The initial shards, read once
+                  shards.clear();
+                  total[0] = 0;
+                  for (DataSnapshot shard : ((DataSnapshot) event).getChildren()) {
+                    final long value = valueOf(shard);
+                    shards.put(shard.getKey(), value);
+                    total[0] += value;
+                  }
+                  loaded[0] = true;
+                  return total[0];
+                }
+                final FirebaseChildEvent firebaseChildEvent = (FirebaseChildEvent) event;
+                final DataSnapshot dataSnapshot = firebaseChildEvent.getDataSnapshot();
+                final Long previous = firebaseChildEvent.getEventType() == EventType.REMOVED
+                    ? shards.remove(dataSnapshot.getKey())
+                    : shards.put(dataSnapshot.getKey(), valueOf(dataSnapshot));
+                final Long current = shards.get(dataSnapshot.getKey());
+                total[0] += (current == null ? 0 : current) - (previous == null ? 0 : previous);
+                // The partial sums of the initial shards are not totals
+                return loaded[0] ? total[0] : null;
+              }
+            })
+            .filter(new Func1<Long, Boolean>() {
+              @Override public Boolean call(Long total) {
+                return total != null;
+              }
+            })
+            .distinctUntilChanged()
+            .compose(rxFirebaseDatabase.<Long>applyScheduler());
+      }
+    });
+  }
+
+  /**
+   * Returns the shard of a key
+   *
+   * @param key {@link String} the key
+   * @return the name of the shard child
+   */
+  String shardOf(String key) {
+    int hash = key.hashCode();
+    hash ^= hash >>> 16;
+    return SHARD_PREFIX + ((hash & Integer.MAX_VALUE) % shardCount);
+  }
+
+  private static long valueOf(DataSnapshot dataSnapshot) {
+    final Object value = dataSnapshot.getValue();
+    return value instanceof Number ? ((Number) value).longValue() : 0;
+  }
+}
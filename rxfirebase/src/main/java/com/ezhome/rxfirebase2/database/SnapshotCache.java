@@ -0,0 +1,377 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseReference;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+
+/**
+ * A least recently used cache of the snapshots read once, bounded by the number
+ * of entries and their estimated size, which counts every node of a snapshot.
+ * Only the reads of a {@link DatabaseReference} are cached, by its url. Each
+ * entry expires after the time to live of its path, and the writes made through
+ * {@link RxFirebaseDatabase} invalidate the entries of the written location, its
+ * ancestors and its descendants.
+ */
+public final class SnapshotCache {
+
+  /**
+   * The estimated size of an entry without its value
+   */
+  private static final long ENTRY_BYTES = 96;
+
+  /**
+   * The estimated size of a node of a snapshot without its key and string value
+   */
+  private static final long NODE_BYTES = 64;
+
+  private final int maxEntries;
+  private final long maxBytes;
+  private final long defaultTtlMillis;
+  private final Scheduler clock;
+
+  /**
+   * The entries by url in access order
+   */
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * The time to live in millis by path, the longest matching path applies
+   */
+  private final TreeMap<String, Long> pathTtlMillis = new TreeMap<>();
+
+  /**
+   * Incremented on each invalidation so the reads started before it are not cached
+   */
+  private long generation;
+
+  private long byteSize;
+  private long hitCount;
+  private long missCount;
+  private long evictionCount;
+  private long expirationCount;
+  private long invalidationCount;
+
+  private SnapshotCache(int maxEntries, long maxBytes, long ttl, TimeUnit unit,
+      Scheduler clock) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("The max entries should be positive");
+    }
+    if (maxBytes < 1) {
+      throw new IllegalArgumentException("The max bytes should be positive");
+    }
+    if (ttl < 0) {
+      throw new IllegalArgumentException("The time to live cannot be negative");
+    }
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    this.defaultTtlMillis = unit.toMillis(ttl);
+    this.clock = clock;
+  }
+
+  /**
+   * Creates a snapshot cache
+   *
+   * @param maxEntries the max number of cached snapshots
+   * @param maxBytes the max estimated size of the cached snapshots
+   * @param ttl the default time to live of an entry
+   * @param unit {@link TimeUnit} of the time to live
+   * @return {@link SnapshotCache}
+   */
+  public static SnapshotCache of(int maxEntries, long maxBytes, long ttl, TimeUnit unit) {
+    return new SnapshotCache(maxEntries, maxBytes, ttl, unit, Schedulers.immediate());
+  }
+
+  /**
+   * Creates a snapshot cache which reads the time from the provided scheduler
+   *
+   * @param maxEntries the max number of cached snapshots
+   * @param maxBytes the max estimated size of the cached snapshots
+   * @param ttl the default time to live of an entry
+   * @param unit {@link TimeUnit} of the time to live
+   * @param clock {@link Scheduler} whose time expires the entries
+   * @return {@link SnapshotCache}
+   */
+  public static SnapshotCache of(int maxEntries, long maxBytes, long ttl, TimeUnit unit,
+      Scheduler clock) {
+    return new SnapshotCache(maxEntries, maxBytes, ttl, unit, clock);
+  }
+
+  /**
+   * Sets the time to live of the entries under the provided path, e.g. "config".
+   * The longest path which contains the location of an entry applies.
+   *
+   * @param path {@link String} relative to the root of the database
+   * @param ttl the time to live, 0 to not cache the path
+   * @param unit {@link TimeUnit} of the time to live
+   * @return {@link SnapshotCache}
+   */
+  public synchronized SnapshotCache setTtl(String path, long ttl, TimeUnit unit) {
+    if (ttl < 0) {
+      throw new IllegalArgumentException("The time to live cannot be negative");
+    }
+    pathTtlMillis.put(trimSlashes(path), unit.toMillis(ttl));
+    return this;
+  }
+
+  /**
+   * Removes the entries of the provided location, its ancestors and its descendants
+   *
+   * @param reference {@link DatabaseReference} the changed location
+   */
+  public void invalidate(DatabaseReference reference) {
+    invalidate(reference.toString());
+  }
+
+  /**
+   * Removes all the entries
+   */
+  public synchronized void invalidateAll() {
+    generation++;
+    invalidationCount += entries.size();
+    entries.clear();
+    byteSize = 0;
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * Returns the number of entries removed to respect the max entries or bytes
+   *
+   * @return the count of evicted entries
+   */
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  public synchronized long getExpirationCount() {
+    return expirationCount;
+  }
+
+  /**
+   * Returns the number of entries removed because their location was written
+   *
+   * @return the count of invalidated entries
+   */
+  public synchronized long getInvalidationCount() {
+    return invalidationCount;
+  }
+
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the estimated size of the cached snapshots
+   *
+   * @return the size in bytes
+   */
+  public synchronized long getByteSize() {
+    return byteSize;
+  }
+
+  /**
+   * Returns the cached snapshot of a location, unless it expired
+   *
+   * @param reference {@link DatabaseReference} the read location
+   * @return {@link DataSnapshot} or null on a miss
+   */
+  synchronized DataSnapshot get(DatabaseReference reference) {
+    final String key = reference.toString();
+    final Entry entry = entries.get(key);
+    if (entry == null) {
+      missCount++;
+      return null;
+    }
+    if (clock.now() >= entry.expiresAtMillis) {
+      remove(key, entry);
+      expirationCount++;
+      missCount++;
+      return null;
+    }
+    hitCount++;
+    return entry.snapshot;
+  }
+
+  /**
+   * Returns the generation to pass to {@link #put} for a read starting now
+   *
+   * @return the current generation
+   */
+  synchronized long generation() {
+    return generation;
+  }
+
+  /**
+   * Caches the snapshot of a location, unless it was invalidated since the read
+   * started. The size is estimated from the nodes of the snapshot, and the walk
+   * stops as soon as the estimate exceeds the max bytes.
+   *
+   * @param reference {@link DatabaseReference} the read location
+   * @param snapshot {@link DataSnapshot} the read snapshot
+   * @param readGeneration the generation when the read started
+   */
+  void put(DatabaseReference reference, DataSnapshot snapshot, long readGeneration) {
+    final String location = reference.toString();
+    final long bytes = ENTRY_BYTES + location.length() * 2 + estimateBytes(snapshot, maxBytes);
+    synchronized (this) {
+      final long ttlMillis = ttlMillis(relativePath(reference, location));
+      if (readGeneration != generation || ttlMillis == 0 || bytes > maxBytes) {
+        return;
+      }
+      final Entry previous = entries.remove(location);
+      if (previous != null) {
+        byteSize -= previous.bytes;
+      }
+      entries.put(location, new Entry(location, snapshot, bytes, clock.now() + ttlMillis));
+      byteSize += bytes;
+      evict();
+    }
+  }
+
+  /**
+   * Removes the entries of the provided location, its ancestors and its descendants
+   *
+   * @param location {@link String} the url of the changed location
+   */
+  synchronized void invalidate(String location) {
+    generation++;
+    final Iterator<Entry> iterator = entries.values().iterator();
+    while (iterator.hasNext()) {
+      final Entry entry = iterator.next();
+      if (overlaps(entry.location, location)) {
+        iterator.remove();
+        byteSize -= entry.bytes;
+        invalidationCount++;
+      }
+    }
+  }
+
+  private void evict() {
+    final Iterator<Entry> iterator = entries.values().iterator();
+    while ((entries.size() > maxEntries || byteSize > maxBytes) && iterator.hasNext()) {
+      final Entry eldest = iterator.next();
+      iterator.remove();
+      byteSize -= eldest.bytes;
+      evictionCount++;
+    }
+  }
+
+  private void remove(String key, Entry entry) {
+    entries.remove(key);
+    byteSize -= entry.bytes;
+  }
+
+  /**
+   * Estimates the size of the nodes of a snapshot, up to just above the budget, so
+   * a large subtree costs at most the nodes which fit in the cache
+   *
+   * @param snapshot {@link DataSnapshot} the read snapshot
+   * @param budget the size above which the walk stops
+   * @return the estimated size in bytes
+   */
+  private static long estimateBytes(DataSnapshot snapshot, long budget) {
+    long bytes = NODE_BYTES;
+    final ArrayDeque<DataSnapshot> pending = new ArrayDeque<>();
+    pending.push(snapshot);
+    while (!pending.isEmpty()) {
+      final DataSnapshot node = pending.pop();
+      if (!node.hasChildren()) {
+        final Object value = node.getValue();
+        if (value instanceof String) {
+          bytes += ((String) value).length() * 2;
+        }
+        continue;
+      }
+      for (DataSnapshot child : node.getChildren()) {
+        final String key = child.getKey();
+        bytes += NODE_BYTES + (key == null ? 0 : key.length() * 2);
+        if (bytes > budget) {
+          return bytes;
+        }
+        pending.push(child);
+      }
+    }
+    return bytes;
+  }
+
+  private long ttlMillis(String path) {
+    for (Map.Entry<String, Long> ttl = pathTtlMillis.floorEntry(path); ttl != null;
+        ttl = pathTtlMillis.lowerEntry(ttl.getKey())) {
+      if (ttl.getKey().isEmpty() || contains(ttl.getKey(), path)) {
+        return ttl.getValue();
+      }
+    }
+    return defaultTtlMillis;
+  }
+
+  private static boolean overlaps(String first, String second) {
+    return contains(first, second) || contains(second, first);
+  }
+
+  private static boolean contains(String ancestor, String location) {
+    return location.startsWith(ancestor) && (location.length() == ancestor.length()
+        || location.charAt(ancestor.length()) == '/');
+  }
+
+  private static String relativePath(DatabaseReference reference, String location) {
+    final DatabaseReference root = reference.getRoot();
+    final String rootLocation = root == null ? "" : root.toString();
+    return trimSlashes(location.startsWith(rootLocation)
+        ? location.substring(rootLocation.length()) : location);
+  }
+
+  private static String trimSlashes(String path) {
+    int start = 0;
+    int end = path.length();
+    while (start < end && path.charAt(start) == '/') {
+      start++;
+    }
+    while (end > start && path.charAt(end - 1) == '/') {
+      end--;
+    }
+    return path.substring(start, end);
+  }
+
+  private static final class Entry {
+
+    private final String location;
+    private final DataSnapshot snapshot;
+    private final long bytes;
+    private final long expiresAtMillis;
+
+    Entry(String location, DataSnapshot snapshot, long bytes, long expiresAtMillis) {
+      this.location = location;
+      this.snapshot = snapshot;
+      this.bytes = bytes;
+      this.expiresAtMillis = expiresAtMillis;
+    }
+  }
+}
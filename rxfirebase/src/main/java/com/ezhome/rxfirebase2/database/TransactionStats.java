@@ -0,0 +1,89 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+/**
+ * The counters of the transactions, how many times their handlers ran for each commit
+ */
+public final class TransactionStats {
+
+  private long commitCount;
+  private long abortCount;
+  private long budgetAbortCount;
+  private long attemptCount;
+  private long committedAttemptCount;
+  private int maxAttemptsPerCommit;
+
+  public synchronized long getCommitCount() {
+    return commitCount;
+  }
+
+  /**
+   * Returns the number of transactions which did not commit, including the failed ones
+   *
+   * @return the count of aborts
+   */
+  public synchronized long getAbortCount() {
+    return abortCount;
+  }
+
+  /**
+   * Returns the number of transactions aborted because they ran out of attempts
+   *
+   * @return the count of aborts by the attempts budget
+   */
+  public synchronized long getBudgetAbortCount() {
+    return budgetAbortCount;
+  }
+
+  /**
+   * Returns the number of times the handlers ran, without their rejected local runs
+   *
+   * @return the count of attempts
+   */
+  public synchronized long getAttemptCount() {
+    return attemptCount;
+  }
+
+  public synchronized int getMaxAttemptsPerCommit() {
+    return maxAttemptsPerCommit;
+  }
+
+  public synchronized double getMeanAttemptsPerCommit() {
+    return commitCount == 0 ? 0 : (double) committedAttemptCount / commitCount;
+  }
+
+  synchronized void onCommit(int attempts) {
+    commitCount++;
+    attemptCount += attempts;
+    committedAttemptCount += attempts;
+    maxAttemptsPerCommit = Math.max(maxAttemptsPerCommit, attempts);
+  }
+
+  synchronized void onAbort(int attempts, boolean budgetExceeded) {
+    abortCount++;
+    attemptCount += attempts;
+    if (budgetExceeded) {
+      budgetAbortCount++;
+    }
+  }
+
+  @Override public synchronized String toString() {
+    return "TransactionStats{commitCount=" + commitCount + ", abortCount=" + abortCount
+        + ", budgetAbortCount=" + budgetAbortCount + ", attemptCount=" + attemptCount
+        + ", maxAttemptsPerCommit=" + maxAttemptsPerCommit + '}';
+  }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import com.ezhome.rxfirebase2.FirebaseValueDiff;
+import com.google.firebase.database.DataSnapshot;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the consecutive value snapshots of a query by a 64 bit fingerprint
+ * of each child, so only the added, modified and removed children are reported.
+ * The fingerprints of the previous snapshot are the only state kept between them.
+ */
+final class ValueDiffer {
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /**
+   * The fingerprints of the children of the previous snapshot
+   */
+  private Map<String, Long> fingerprints = Collections.emptyMap();
+
+  /**
+   * Returns the difference of a snapshot with the previous one. Every child is materialized
+   * and fingerprinted one at a time, so the cost is linear in the size of the node but only
+   * one child value is held at once.
+   *
+   * @param dataSnapshot {@link DataSnapshot} the new snapshot
+   * @return {@link FirebaseValueDiff}
+   */
+  FirebaseValueDiff diff(DataSnapshot dataSnapshot) {
+    final Map<String, Long> current = new HashMap<>();
+    final Map<String, DataSnapshot> added = new LinkedHashMap<>();
+    final Map<String, DataSnapshot> modified = new LinkedHashMap<>();
+    for (DataSnapshot child : dataSnapshot.getChildren()) {
+      final String key = child.getKey();
+      final long fingerprint = fingerprint(child.getValue(true));
+      current.put(key, fingerprint);
+      final Long previous = fingerprints.get(key);
+      if (previous == null) {
+        added.put(key, child);
+      } else if (previous != fingerprint) {
+        modified.put(key, child);
+      }
+    }
+    final List<String> removed = new ArrayList<>();
+    for (String key : fingerprints.keySet()) {
+      if (!current.containsKey(key)) {
+        removed.add(key);
+      }
+    }
+    fingerprints = current;
+    return new FirebaseValueDiff(dataSnapshot, Collections.unmodifiableMap(added),
+        Collections.unmodifiableMap(modified), Collections.unmodifiableList(removed));
+  }
+
+  /**
+   * Returns the fingerprint of a value, independent of the order of the map entries
+   *
+   * @param value the value as {@link DataSnapshot#getValue(boolean)} returns it
+   * @return the fingerprint
+   */
+  static long fingerprint(Object value) {
+    if (value == null) {
+      return 0;
+    }
+    if (value instanceof Map) {
+      long hash = 1;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        // The sum of the mixed entries does not depend on the iteration order
+        hash += mix(hash(String.valueOf(entry.getKey())) * 31 + fingerprint(entry.getValue()));
+      }
+      return mix(hash);
+    }
+    if (value instanceof List) {
+      long hash = 2;
+      for (Object element : (List<?>) value) {
+        hash = mix(hash * 31 + fingerprint(element));
+      }
+      return hash;
+    }
+    if (value instanceof Double || value instanceof Float) {
+      final double number = ((Number) value).doubleValue();
+      return number == Math.rint(number) && !Double.isInfinite(number) ? mix((long) number)
+          : mix(Double.doubleToLongBits(number) ^ 3);
+    }
+    if (value instanceof Number) {
+      return mix(((Number) value).longValue());
+    }
+    if (value instanceof Boolean) {
+      return (Boolean) value ? 5 : 7;
+    }
+    return hash(value.toString());
+  }
+
+  private static long hash(String string) {
+    long hash = FNV_OFFSET;
+    for (int index = 0; index < string.length(); index++) {
+      hash = (hash ^ string.charAt(index)) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  /**
+   * Spreads the bits of a value, the finalizer of MurmurHash3
+   */
+  private static long mix(long value) {
+    long hash = value;
+    hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+    hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return hash ^ (hash >>> 33);
+  }
+}
@@ -0,0 +1,258 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import com.ezhome.rxfirebase2.instrumentation.FirebaseInstrumentation;
+import com.ezhome.rxfirebase2.instrumentation.NoOpFirebaseInstrumentation;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import rx.Emitter;
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Cancellable;
+import rx.schedulers.Schedulers;
+
+/**
+ * Keeps a single {@link ValueEventListener} per query and shares it between all
+ * the subscribers of that query. Late subscribers receive the latest
+ * {@link DataSnapshot} and the listener is removed only when the last
+ * subscriber leaves and the linger period has elapsed.
+ */
+final class ValueEventRegistry {
+
+  /**
+   * The shared listeners by query key
+   */
+  private final Map<String, SharedListener> listeners = new HashMap<>();
+
+  /**
+   * How long a listener stays attached after the last subscriber left
+   */
+  private long lingerMillis;
+
+  /**
+   * Scheduler used to detach the listeners after the linger period
+   */
+  private Scheduler lingerScheduler = Schedulers.computation();
+
+  /**
+   * Receives the listener counts, emissions and errors
+   */
+  private volatile FirebaseInstrumentation instrumentation = NoOpFirebaseInstrumentation.INSTANCE;
+
+  /**
+   * Sets the instrumentation of the listeners
+   *
+   * @param instrumentation {@link FirebaseInstrumentation} to report to
+   */
+  void setInstrumentation(FirebaseInstrumentation instrumentation) {
+    this.instrumentation = instrumentation;
+  }
+
+  /**
+   * Sets the period a listener stays attached after its last subscriber left
+   *
+   * @param time the linger time, 0 to detach immediately
+   * @param unit {@link TimeUnit} of the time
+   * @param scheduler {@link Scheduler} on which the detach is scheduled
+   */
+  synchronized void setLinger(long time, TimeUnit unit, Scheduler scheduler) {
+    if (time < 0) {
+      throw new IllegalArgumentException("The linger time cannot be negative");
+    }
+    this.lingerMillis = unit.toMillis(time);
+    this.lingerScheduler = scheduler;
+  }
+
+  /**
+   * Returns the number of listeners currently attached
+   *
+   * @return the count of attached listeners
+   */
+  synchronized int size() {
+    return listeners.size();
+  }
+
+  /**
+   * Observes the provided query through the shared listener of it
+   *
+   * @param query {@link Query} this is reference of a Firebase Query
+   * @param backPressureMode {@link Emitter.BackpressureMode} backpressure mode
+   * @return an {@link rx.Observable} of datasnapshot to use
+   */
+  Observable<DataSnapshot> observe(final Query query,
+      Emitter.BackpressureMode backPressureMode) {
+    return Observable.create(new Action1<Emitter<DataSnapshot>>() {
+      @Override public void call(final Emitter<DataSnapshot> emitter) {
+        final SerialEmitter<DataSnapshot> serialEmitter = new SerialEmitter<>(emitter, true);
+        final SharedListener sharedListener = attach(query, serialEmitter);
+
+        // When the subscription is cancelled, release the shared listener
+        emitter.setCancellation(new Cancellable() {
+          @Override public void cancel() throws Exception {
+            release(sharedListener, serialEmitter);
+          }
+        });
+      }
+    }, backPressureMode);
+  }
+
+  /**
+   * Adds a subscriber to the shared listener of a query. The latest snapshot is
+   * emitted and a new listener is added to the query after releasing the lock,
+   * since the SDK may call back synchronously.
+   */
+  private SharedListener attach(Query query, SerialEmitter<DataSnapshot> emitter) {
+    final SharedListener sharedListener;
+    final boolean created;
+    final DataSnapshot latest;
+    synchronized (this) {
+      final String key = QueryKey.of(query);
+      final SharedListener existing = listeners.get(key);
+      created = existing == null;
+      if (created) {
+        sharedListener = new SharedListener(key, query);
+        listeners.put(key, sharedListener);
+      } else {
+        sharedListener = existing;
+        sharedListener.cancelPendingDetach();
+      }
+      sharedListener.emitters.add(emitter);
+      latest = sharedListener.latest;
+      instrumentation.onListenerCountChanged(key, sharedListener.emitters.size());
+    }
+    emitter.replay(latest == null ? Collections.<DataSnapshot>emptyList()
+        : Collections.singletonList(latest));
+    if (created) {
+      query.addValueEventListener(sharedListener);
+      final boolean detached;
+      synchronized (this) {
+        detached = listeners.get(sharedListener.key) != sharedListener;
+      }
+      if (detached) {
+        // The last subscriber left before the listener was added
+        query.removeEventListener(sharedListener);
+      }
+    }
+    return sharedListener;
+  }
+
+  private synchronized void release(final SharedListener sharedListener,
+      SerialEmitter<DataSnapshot> emitter) {
+    sharedListener.emitters.remove(emitter);
+    if (listeners.get(sharedListener.key) == sharedListener) {
+      instrumentation.onListenerCountChanged(sharedListener.key, sharedListener.emitters.size());
+    }
+    if (!sharedListener.emitters.isEmpty()
+        || listeners.get(sharedListener.key) != sharedListener) {
+      return;
+    }
+    if (lingerMillis == 0) {
+      detach(sharedListener);
+      return;
+    }
+    final Scheduler.Worker worker = lingerScheduler.createWorker();
+    sharedListener.pendingDetach = worker;
+    worker.schedule(new Action0() {
+      @Override public void call() {
+        synchronized (ValueEventRegistry.this) {
+          if (sharedListener.pendingDetach == worker && sharedListener.emitters.isEmpty()) {
+            detach(sharedListener);
+          }
+        }
+        worker.unsubscribe();
+      }
+    }, lingerMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void detach(SharedListener sharedListener) {
+    sharedListener.pendingDetach = null;
+    if (listeners.get(sharedListener.key) == sharedListener) {
+      listeners.remove(sharedListener.key);
+      sharedListener.query.removeEventListener(sharedListener);
+    }
+  }
+
+  /**
+   * The {@link ValueEventListener} shared between the subscribers of a query
+   */
+  private final class SharedListener implements ValueEventListener {
+
+    private final String key;
+    private final Query query;
+    private final List<SerialEmitter<DataSnapshot>> emitters = new ArrayList<>();
+    private final long attachNanos = System.nanoTime();
+    private DataSnapshot latest;
+    private Scheduler.Worker pendingDetach;
+
+    SharedListener(String key, Query query) {
+      this.key = key;
+      this.query = query;
+    }
+
+    void cancelPendingDetach() {
+      if (pendingDetach != null) {
+        pendingDetach.unsubscribe();
+        pendingDetach = null;
+      }
+    }
+
+    @Override public void onDataChange(DataSnapshot dataSnapshot) {
+      final List<SerialEmitter<DataSnapshot>> current;
+      synchronized (ValueEventRegistry.this) {
+        if (latest == null) {
+          instrumentation.onFirstSnapshot(key, System.nanoTime() - attachNanos);
+        }
+        instrumentation.onEmission(key);
+        latest = dataSnapshot;
+        current = new ArrayList<>(emitters);
+      }
+      for (SerialEmitter<DataSnapshot> emitter : current) {
+        emitter.onNext(dataSnapshot);
+      }
+    }
+
+    @Override public void onCancelled(DatabaseError error) {
+      final Exception exception = FirebaseDatabaseErrorFactory.createError(error);
+      final List<SerialEmitter<DataSnapshot>> cancelled;
+      synchronized (ValueEventRegistry.this) {
+        // The SDK already removed the listener, a new subscriber has to attach again
+        cancelPendingDetach();
+        if (listeners.get(key) == this) {
+          listeners.remove(key);
+          instrumentation.onListenerCountChanged(key, 0);
+        }
+        // The error is counted once for the listener, not for each of its subscribers
+        instrumentation.onError(key, exception);
+        cancelled = new ArrayList<>(emitters);
+        emitters.clear();
+      }
+      for (SerialEmitter<DataSnapshot> emitter : cancelled) {
+        emitter.onError(exception);
+      }
+    }
+  }
+}
@@ -0,0 +1,422 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.database;
+
+import com.ezhome.rxfirebase2.FirebaseWriteResult;
+import com.google.firebase.database.DatabaseReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import rx.Emitter;
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Cancellable;
+import rx.schedulers.Schedulers;
+
+/**
+ * Collects the writes under a common root for a time or count window and
+ * flushes them as a single atomic multi-path update through
+ * {@link RxFirebaseDatabase#observeUpdateChildrenResult(DatabaseReference, Map)}.
+ * When a path is written more than once in a window only the last value is
+ * sent, while every caller still receives its own completion signal.
+ */
+public class WriteBatcher {
+
+  private final RxFirebaseDatabase rxFirebaseDatabase;
+  private final DatabaseReference root;
+  private final String rootLocation;
+  private final long windowMillis;
+  private final int maxCount;
+  private final Scheduler scheduler;
+
+  /**
+   * The pending writes of the current window by path
+   */
+  private TreeMap<String, PendingWrite> pending = new TreeMap<>();
+
+  /**
+   * Held from taking a batch until its update is issued, so that the batches reach
+   * the SDK in the order they were taken and a newer batch is never overwritten
+   */
+  private final Object flushLock = new Object();
+
+  /**
+   * The worker of the scheduled flush of the current window
+   */
+  private Scheduler.Worker flushWorker;
+
+  private long flushCount;
+  private long writeCount;
+  private long coalescedCount;
+  private long flushedPathCount;
+  private int maxBatchSize;
+  private long lastFlushLatencyMillis;
+  private long totalFlushLatencyMillis;
+
+  /**
+   * Creates a batcher which flushes on the computation scheduler
+   *
+   * @param root {@link DatabaseReference} the common root of the writes
+   * @param window the time window of a batch
+   * @param unit {@link TimeUnit} of the window
+   * @param maxCount the number of paths which flushes a batch before its window ends
+   */
+  public WriteBatcher(DatabaseReference root, long window, TimeUnit unit, int maxCount) {
+    this(RxFirebaseDatabase.getInstance(), root, window, unit, maxCount, Schedulers.computation());
+  }
+
+  /**
+   * Creates a batcher
+   *
+   * @param rxFirebaseDatabase {@link RxFirebaseDatabase} which performs the updates
+   * @param root {@link DatabaseReference} the common root of the writes
+   * @param window the time window of a batch
+   * @param unit {@link TimeUnit} of the window
+   * @param maxCount the number of paths which flushes a batch before its window ends
+   * @param scheduler {@link Scheduler} on which the window is timed
+   */
+  public WriteBatcher(RxFirebaseDatabase rxFirebaseDatabase, DatabaseReference root, long window,
+      TimeUnit unit, int maxCount, Scheduler scheduler) {
+    if (maxCount < 1) {
+      throw new IllegalArgumentException("The max count should be positive");
+    }
+    this.rxFirebaseDatabase = rxFirebaseDatabase;
+    this.root = root;
+    this.rootLocation = root.toString();
+    this.windowMillis = unit.toMillis(window);
+    this.maxCount = maxCount;
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Observes a value saving under the provided {@link DatabaseReference}, which
+   * should be a descendant of the root of the batcher
+   *
+   * @param reference {@link DatabaseReference} the written location
+   * @param value {@link Object} whatever object we want to save, null to remove
+   * @return an {@link rx.Observable} of {@link FirebaseWriteResult} after the
+   * server acknowledged the batch of the write
+   */
+  public Observable<FirebaseWriteResult> observeSetValue(DatabaseReference reference,
+      Object value) {
+    return observeSetValue(pathOf(reference), value);
+  }
+
+  /**
+   * Observes a value saving under the provided path relative to the root of the batcher
+   *
+   * @param path {@link String} the written path, e.g. "posts/-JRHTHaKuITFIhnj02kE/title"
+   * @param value {@link Object} whatever object we want to save, null to remove
+   * @return an {@link rx.Observable} of {@link FirebaseWriteResult} after the
+   * server acknowledged the batch of the write
+   */
+  public Observable<FirebaseWriteResult> observeSetValue(String path, final Object value) {
+    final String normalizedPath = normalize(path);
+    return Observable.create(new Action1<Emitter<FirebaseWriteResult>>() {
+      @Override public void call(final Emitter<FirebaseWriteResult> emitter) {
+        final Waiter waiter = new Waiter(emitter, value);
+        final PendingWrite pendingWrite = enqueue(normalizedPath, waiter);
+
+        // When the subscription is cancelled, drop the write if nobody else waits on it
+        emitter.setCancellation(new Cancellable() {
+          @Override public void cancel() throws Exception {
+            cancelWrite(pendingWrite, waiter);
+          }
+        });
+      }
+    }, Emitter.BackpressureMode.LATEST);
+  }
+
+  /**
+   * Flushes the pending writes of the current window
+   */
+  public void flush() {
+    synchronized (flushLock) {
+      final Map<String, PendingWrite> batch;
+      final Map<String, Object> update;
+      synchronized (this) {
+        if (pending.isEmpty()) {
+          return;
+        }
+        batch = pending;
+        pending = new TreeMap<>();
+        if (flushWorker != null) {
+          flushWorker.unsubscribe();
+          flushWorker = null;
+        }
+        // The cancelled writes were already dropped, the batch is no longer pending from here
+        update = new HashMap<>(batch.size());
+        for (PendingWrite pendingWrite : batch.values()) {
+          pendingWrite.flushed = true;
+          update.put(pendingWrite.path, pendingWrite.value);
+        }
+      }
+      final long flushStartNanos = System.nanoTime();
+      rxFirebaseDatabase.observeUpdateChildrenResult(root, update)
+          .subscribe(new Subscriber<FirebaseWriteResult>() {
+            @Override public void onCompleted() {
+            }
+
+            @Override public void onError(Throwable e) {
+              for (PendingWrite pendingWrite : batch.values()) {
+                for (Waiter waiter : waitersOf(pendingWrite)) {
+                  waiter.emitter.onError(e);
+                }
+              }
+            }
+
+            @Override public void onNext(FirebaseWriteResult writeResult) {
+              final long ackNanos = System.nanoTime();
+              recordFlush(batch.size(), TimeUnit.NANOSECONDS.toMillis(ackNanos - flushStartNanos));
+              for (PendingWrite pendingWrite : batch.values()) {
+                for (Waiter waiter : waitersOf(pendingWrite)) {
+                  waiter.emitter.onNext(new FirebaseWriteResult(pendingWrite.key,
+                      waiter.enqueueTimeMillis,
+                      TimeUnit.NANOSECONDS.toMillis(ackNanos - waiter.enqueueTimeNanos)));
+                  waiter.emitter.onCompleted();
+                }
+              }
+            }
+          });
+    }
+  }
+
+  /**
+   * Returns the number of flushed batches
+   *
+   * @return the count of flushes
+   */
+  public synchronized long getFlushCount() {
+    return flushCount;
+  }
+
+  /**
+   * Returns the number of writes requested through the batcher
+   *
+   * @return the count of writes
+   */
+  public synchronized long getWriteCount() {
+    return writeCount;
+  }
+
+  /**
+   * Returns the number of writes replaced by a later write of the same path
+   *
+   * @return the count of coalesced writes
+   */
+  public synchronized long getCoalescedCount() {
+    return coalescedCount;
+  }
+
+  /**
+   * Returns the largest number of paths flushed in a batch
+   *
+   * @return the max batch size
+   */
+  public synchronized int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  /**
+   * Returns the average number of paths flushed in a batch
+   *
+   * @return the average batch size
+   */
+  public synchronized double getAverageBatchSize() {
+    return flushCount == 0 ? 0 : (double) flushedPathCount / flushCount;
+  }
+
+  /**
+   * Returns the time from the last flush to its server acknowledgement
+   *
+   * @return the last flush latency in milliseconds
+   */
+  public synchronized long getLastFlushLatencyMillis() {
+    return lastFlushLatencyMillis;
+  }
+
+  /**
+   * Returns the average time from a flush to its server acknowledgement
+   *
+   * @return the average flush latency in milliseconds
+   */
+  public synchronized double getAverageFlushLatencyMillis() {
+    return flushCount == 0 ? 0 : (double) totalFlushLatencyMillis / flushCount;
+  }
+
+  private PendingWrite enqueue(String path, Waiter waiter) {
+    PendingWrite pendingWrite;
+    boolean full;
+    while (true) {
+      synchronized (this) {
+        // A multi-path update cannot contain a path and its ancestor
+        if (!conflicts(path)) {
+          writeCount++;
+          pendingWrite = pending.get(path);
+          if (pendingWrite == null) {
+            pendingWrite = new PendingWrite(path);
+            pending.put(path, pendingWrite);
+          } else {
+            coalescedCount++;
+          }
+          pendingWrite.value = waiter.value;
+          pendingWrite.waiters.add(waiter);
+          full = pending.size() >= maxCount;
+          if (!full && flushWorker == null) {
+            scheduleFlush();
+          }
+          break;
+        }
+      }
+      flush();
+    }
+    if (full) {
+      flush();
+    }
+    return pendingWrite;
+  }
+
+  private void scheduleFlush() {
+    final Scheduler.Worker worker = scheduler.createWorker();
+    flushWorker = worker;
+    worker.schedule(new Action0() {
+      @Override public void call() {
+        synchronized (WriteBatcher.this) {
+          if (flushWorker != worker) {
+            return;
+          }
+        }
+        flush();
+      }
+    }, windowMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void cancelWrite(PendingWrite pendingWrite, Waiter waiter) {
+    if (!pendingWrite.waiters.remove(waiter) || pendingWrite.flushed) {
+      return;
+    }
+    if (pendingWrite.waiters.isEmpty()) {
+      pending.remove(pendingWrite.path);
+      if (pending.isEmpty() && flushWorker != null) {
+        flushWorker.unsubscribe();
+        flushWorker = null;
+      }
+    } else {
+      // The value of a cancelled write is not sent, the latest remaining one is
+      pendingWrite.value = pendingWrite.waiters.get(pendingWrite.waiters.size() - 1).value;
+    }
+  }
+
+  private synchronized List<Waiter> waitersOf(PendingWrite pendingWrite) {
+    return new ArrayList<>(pendingWrite.waiters);
+  }
+
+  private synchronized void recordFlush(int batchSize, long latencyMillis) {
+    flushCount++;
+    flushedPathCount += batchSize;
+    maxBatchSize = Math.max(maxBatchSize, batchSize);
+    lastFlushLatencyMillis = latencyMillis;
+    totalFlushLatencyMillis += latencyMillis;
+  }
+
+  private boolean conflicts(String path) {
+    if (pending.containsKey(path)) {
+      return false;
+    }
+    int separator = path.indexOf('/');
+    while (separator >= 0) {
+      if (pending.containsKey(path.substring(0, separator))) {
+        return true;
+      }
+      separator = path.indexOf('/', separator + 1);
+    }
+    final String descendant = pending.ceilingKey(path + '/');
+    return descendant != null && descendant.startsWith(path + '/');
+  }
+
+  private String pathOf(DatabaseReference reference) {
+    final LinkedList<String> keys = new LinkedList<>();
+    DatabaseReference current = reference;
+    while (current != null && !rootLocation.equals(current.toString())) {
+      keys.addFirst(current.getKey());
+      current = current.getParent();
+    }
+    if (current == null) {
+      throw new IllegalArgumentException(reference + " is not under " + rootLocation);
+    }
+    final StringBuilder path = new StringBuilder();
+    for (String key : keys) {
+      if (path.length() > 0) {
+        path.append('/');
+      }
+      path.append(key);
+    }
+    return path.toString();
+  }
+
+  private static String normalize(String path) {
+    int start = 0;
+    int end = path.length();
+    while (start < end && path.charAt(start) == '/') {
+      start++;
+    }
+    while (end > start && path.charAt(end - 1) == '/') {
+      end--;
+    }
+    if (start == end) {
+      throw new IllegalArgumentException("The path should be a descendant of the root");
+    }
+    return path.substring(start, end);
+  }
+
+  /**
+   * The latest value of a path in the current window and its callers
+   */
+  private static final class PendingWrite {
+    final String path;
+    final String key;
+    final List<Waiter> waiters = new ArrayList<>();
+    Object value;
+    boolean flushed;
+
+    PendingWrite(String path) {
+      this.path = path;
+      this.key = path.substring(path.lastIndexOf('/') + 1);
+    }
+  }
+
+  /**
+   * A caller waiting for the completion of a write
+   */
+  private static final class Waiter {
+    final Emitter<FirebaseWriteResult> emitter;
+    final Object value;
+    final long enqueueTimeMillis = System.currentTimeMillis();
+    final long enqueueTimeNanos = System.nanoTime();
+
+    Waiter(Emitter<FirebaseWriteResult> emitter, Object value) {
+      this.emitter = emitter;
+      this.value = value;
+    }
+  }
+}
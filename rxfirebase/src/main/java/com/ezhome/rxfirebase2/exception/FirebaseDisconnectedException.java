@@ -19,7 +19,7 @@ package com.ezhome.rxfirebase2.exception;
  * This exception occurred when the firebase is disconnected
  * eg. network is turned off
  */
-public class FirebaseDisconnectedException extends Exception {
+public class FirebaseDisconnectedException extends Exception implements Retryable {
 
   public FirebaseDisconnectedException() {
     super();
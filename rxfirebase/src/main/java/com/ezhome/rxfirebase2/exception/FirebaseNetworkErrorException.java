@@ -18,7 +18,7 @@ package com.ezhome.rxfirebase2.exception;
 /**
  * Raised when the operation could not be performed due to a network error.
  */
-public class FirebaseNetworkErrorException extends Exception {
+public class FirebaseNetworkErrorException extends Exception implements Retryable {
 
   public FirebaseNetworkErrorException() {
     super();
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.exception;
+
+/**
+ * Raised when the Firebase service is unavailable
+ */
+public class FirebaseUnavailableException extends Exception implements Retryable {
+
+  public FirebaseUnavailableException() {
+    super();
+  }
+
+  public FirebaseUnavailableException(String detailMessage) {
+    super(detailMessage);
+  }
+
+  public FirebaseUnavailableException(String detailMessage, Throwable throwable) {
+    super(detailMessage, throwable);
+  }
+
+  public FirebaseUnavailableException(Throwable throwable) {
+    super(throwable);
+  }
+}
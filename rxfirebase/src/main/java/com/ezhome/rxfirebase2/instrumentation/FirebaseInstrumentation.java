@@ -0,0 +1,72 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.instrumentation;
+
+/**
+ * Receives the runtime events of {@link com.ezhome.rxfirebase2.database.RxFirebaseDatabase}
+ * and {@link com.ezhome.rxfirebase2.auth.RxFirebaseAuth}. The callbacks are invoked on
+ * the Firebase callback threads, so implementations should be thread safe and fast.
+ */
+public interface FirebaseInstrumentation {
+
+  /**
+   * Called when the number of subscribers of a shared listener changes
+   *
+   * @param path {@link String} the observed location
+   * @param count the number of subscribers, 0 when the listener was removed
+   */
+  void onListenerCountChanged(String path, int count);
+
+  /**
+   * Called for each snapshot or child event received by a listener
+   *
+   * @param path {@link String} the observed location
+   */
+  void onEmission(String path);
+
+  /**
+   * Called when a listener receives its first snapshot or child event
+   *
+   * @param path {@link String} the observed location
+   * @param latencyNanos the time from the listener attach to the first event
+   */
+  void onFirstSnapshot(String path, long latencyNanos);
+
+  /**
+   * Called when the server acknowledges a write
+   *
+   * @param path {@link String} the written location
+   * @param latencyNanos the time from the local enqueue to the acknowledgement
+   */
+  void onWriteAcknowledged(String path, long latencyNanos);
+
+  /**
+   * Called for each error of a listener or a write, once even when the shared
+   * listener delivers it to several subscribers
+   *
+   * @param path {@link String} the observed or written location
+   * @param error {@link Throwable} the delivered error
+   */
+  void onError(String path, Throwable error);
+
+  /**
+   * Called when a sign-in attempt finishes
+   *
+   * @param latencyNanos the time from the subscription to the result
+   * @param successful whether the user signed in
+   */
+  void onSignIn(long latencyNanos, boolean successful);
+}
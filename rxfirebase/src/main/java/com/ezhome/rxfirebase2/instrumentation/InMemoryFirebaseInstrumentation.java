@@ -0,0 +1,218 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.instrumentation;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link FirebaseInstrumentation} which keeps the listener counts, emission
+ * rates and error counts in memory together with {@link LatencyHistogram}s of
+ * the first snapshot, write acknowledgement and sign-in latencies
+ */
+public class InMemoryFirebaseInstrumentation implements FirebaseInstrumentation {
+
+  /**
+   * The window over which the emission rates are measured
+   */
+  private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final Map<String, Integer> listenerCounts = new ConcurrentHashMap<>();
+  private final Map<String, EmissionRate> emissionRates = new ConcurrentHashMap<>();
+  private final Map<Class<? extends Throwable>, AtomicLong> errorCounts =
+      new ConcurrentHashMap<>();
+  private final AtomicLong signInFailureCount = new AtomicLong();
+  private final LatencyHistogram firstSnapshotLatency = new LatencyHistogram();
+  private final LatencyHistogram writeAckLatency = new LatencyHistogram();
+  private final LatencyHistogram signInLatency = new LatencyHistogram();
+
+  @Override public void onListenerCountChanged(String path, int count) {
+    if (count == 0) {
+      listenerCounts.remove(path);
+    } else {
+      listenerCounts.put(path, count);
+    }
+  }
+
+  @Override public void onEmission(String path) {
+    EmissionRate emissionRate = emissionRates.get(path);
+    if (emissionRate == null) {
+      synchronized (emissionRates) {
+        emissionRate = emissionRates.get(path);
+        if (emissionRate == null) {
+          emissionRate = new EmissionRate();
+          emissionRates.put(path, emissionRate);
+        }
+      }
+    }
+    emissionRate.record(System.nanoTime());
+  }
+
+  @Override public void onFirstSnapshot(String path, long latencyNanos) {
+    firstSnapshotLatency.record(latencyNanos);
+  }
+
+  @Override public void onWriteAcknowledged(String path, long latencyNanos) {
+    writeAckLatency.record(latencyNanos);
+  }
+
+  @Override public void onError(String path, Throwable error) {
+    final Class<? extends Throwable> type = error.getClass();
+    AtomicLong errorCount = errorCounts.get(type);
+    if (errorCount == null) {
+      synchronized (errorCounts) {
+        errorCount = errorCounts.get(type);
+        if (errorCount == null) {
+          errorCount = new AtomicLong();
+          errorCounts.put(type, errorCount);
+        }
+      }
+    }
+    errorCount.incrementAndGet();
+  }
+
+  @Override public void onSignIn(long latencyNanos, boolean successful) {
+    signInLatency.record(latencyNanos);
+    if (!successful) {
+      signInFailureCount.incrementAndGet();
+    }
+  }
+
+  /**
+   * Returns the number of subscribers of the listener of a location
+   *
+   * @param path {@link String} the observed location
+   * @return the count of subscribers
+   */
+  public int getListenerCount(String path) {
+    final Integer count = listenerCounts.get(path);
+    return count == null ? 0 : count;
+  }
+
+  /**
+   * Returns the number of subscribers of the active listeners by location
+   *
+   * @return {@link Map} of the counts of subscribers by location
+   */
+  public Map<String, Integer> getListenerCounts() {
+    return Collections.unmodifiableMap(new HashMap<>(listenerCounts));
+  }
+
+  /**
+   * Returns the emissions per second of a location during the last complete
+   * second, or during the current one if none completed yet
+   *
+   * @param path {@link String} the observed location
+   * @return the emissions per second
+   */
+  public double getEmissionsPerSecond(String path) {
+    final EmissionRate emissionRate = emissionRates.get(path);
+    return emissionRate == null ? 0 : emissionRate.perSecond(System.nanoTime());
+  }
+
+  /**
+   * Returns the total number of emissions of a location
+   *
+   * @param path {@link String} the observed location
+   * @return the count of emissions
+   */
+  public long getEmissionCount(String path) {
+    final EmissionRate emissionRate = emissionRates.get(path);
+    return emissionRate == null ? 0 : emissionRate.total();
+  }
+
+  /**
+   * Returns the number of errors of an exception type
+   *
+   * @param type {@link Class} of the exception
+   * @return the count of errors
+   */
+  public long getErrorCount(Class<? extends Throwable> type) {
+    final AtomicLong errorCount = errorCounts.get(type);
+    return errorCount == null ? 0 : errorCount.get();
+  }
+
+  /**
+   * Returns the number of errors by exception type
+   *
+   * @return {@link Map} of the counts of errors by exception type
+   */
+  public Map<Class<? extends Throwable>, Long> getErrorCounts() {
+    final Map<Class<? extends Throwable>, Long> counts = new HashMap<>();
+    for (Map.Entry<Class<? extends Throwable>, AtomicLong> entry : errorCounts.entrySet()) {
+      counts.put(entry.getKey(), entry.getValue().get());
+    }
+    return Collections.unmodifiableMap(counts);
+  }
+
+  public long getSignInFailureCount() {
+    return signInFailureCount.get();
+  }
+
+  public LatencyHistogram getFirstSnapshotLatency() {
+    return firstSnapshotLatency;
+  }
+
+  public LatencyHistogram getWriteAckLatency() {
+    return writeAckLatency;
+  }
+
+  public LatencyHistogram getSignInLatency() {
+    return signInLatency;
+  }
+
+  /**
+   * Counts the emissions of a location in windows of one second
+   */
+  private static final class EmissionRate {
+
+    private long windowStartNanos = System.nanoTime();
+    private long windowCount;
+    private double lastRate = -1;
+    private long total;
+
+    synchronized void record(long nowNanos) {
+      roll(nowNanos);
+      windowCount++;
+      total++;
+    }
+
+    synchronized double perSecond(long nowNanos) {
+      roll(nowNanos);
+      return lastRate >= 0 ? lastRate : windowCount;
+    }
+
+    synchronized long total() {
+      return total;
+    }
+
+    private void roll(long nowNanos) {
+      final long elapsedNanos = nowNanos - windowStartNanos;
+      if (elapsedNanos < RATE_WINDOW_NANOS) {
+        return;
+      }
+      // A window without emissions in between means the rate dropped to 0
+      lastRate = elapsedNanos < 2 * RATE_WINDOW_NANOS
+          ? windowCount * (double) RATE_WINDOW_NANOS / elapsedNanos : 0;
+      windowStartNanos = nowNanos;
+      windowCount = 0;
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.instrumentation;
+
+/**
+ * A thread safe histogram of latencies in nanoseconds. The values are counted
+ * in buckets of powers of two, so the percentiles are upper bounds which are
+ * at most twice the real value.
+ */
+public final class LatencyHistogram {
+
+  private final long[] buckets = new long[Long.SIZE];
+  private long count;
+  private long sum;
+  private long min = Long.MAX_VALUE;
+  private long max;
+
+  /**
+   * Records a latency
+   *
+   * @param latencyNanos the latency in nanoseconds, negative values count as 0
+   */
+  public synchronized void record(long latencyNanos) {
+    final long value = Math.max(0, latencyNanos);
+    buckets[Long.SIZE - Long.numberOfLeadingZeros(value)]++;
+    count++;
+    sum += value;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+  }
+
+  public synchronized long getCount() {
+    return count;
+  }
+
+  public synchronized long getMin() {
+    return count == 0 ? 0 : min;
+  }
+
+  public synchronized long getMax() {
+    return max;
+  }
+
+  public synchronized double getMean() {
+    return count == 0 ? 0 : (double) sum / count;
+  }
+
+  /**
+   * Returns the upper bound of the provided percentile
+   *
+   * @param percentile the percentile between 0 and 100
+   * @return the latency in nanoseconds, 0 when nothing was recorded
+   */
+  public synchronized long getPercentile(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("The percentile should be between 0 and 100");
+    }
+    if (count == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+    long seen = 0;
+    for (int bucket = 0; bucket < buckets.length; bucket++) {
+      seen += buckets[bucket];
+      if (seen >= rank) {
+        return Math.max(min, Math.min(max, (1L << bucket) - 1));
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Removes every recorded latency
+   */
+  public synchronized void reset() {
+    for (int bucket = 0; bucket < buckets.length; bucket++) {
+      buckets[bucket] = 0;
+    }
+    count = 0;
+    sum = 0;
+    min = Long.MAX_VALUE;
+    max = 0;
+  }
+
+  @Override public synchronized String toString() {
+    return "LatencyHistogram{count=" + count + ", mean=" + getMean() + ", p50="
+        + getPercentile(50) + ", p99=" + getPercentile(99) + ", max=" + max + '}';
+  }
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.instrumentation;
+
+/**
+ * The default {@link FirebaseInstrumentation} which ignores every event
+ */
+public final class NoOpFirebaseInstrumentation implements FirebaseInstrumentation {
+
+  public static final NoOpFirebaseInstrumentation INSTANCE = new NoOpFirebaseInstrumentation();
+
+  private NoOpFirebaseInstrumentation() {
+    //empty constructor, use the INSTANCE
+  }
+
+  @Override public void onListenerCountChanged(String path, int count) {
+  }
+
+  @Override public void onEmission(String path) {
+  }
+
+  @Override public void onFirstSnapshot(String path, long latencyNanos) {
+  }
+
+  @Override public void onWriteAcknowledged(String path, long latencyNanos) {
+  }
+
+  @Override public void onError(String path, Throwable error) {
+  }
+
+  @Override public void onSignIn(long latencyNanos, boolean successful) {
+  }
+}
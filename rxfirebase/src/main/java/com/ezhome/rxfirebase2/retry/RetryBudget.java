@@ -0,0 +1,109 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.retry;
+
+import java.util.concurrent.TimeUnit;
+import rx.Scheduler;
+import rx.schedulers.Schedulers;
+
+/**
+ * A token bucket of retries shared by every subscription of a {@link RetryPolicy},
+ * so an outage does not turn into a storm of retries. Each retry takes a token
+ * and the tokens are refilled at a constant rate up to the capacity.
+ */
+public final class RetryBudget {
+
+  private final int capacity;
+  private final double tokensPerMilli;
+  private final Scheduler clock;
+  private double tokens;
+  private long refilledAtMillis;
+  private long acquiredCount;
+  private long rejectedCount;
+
+  private RetryBudget(int capacity, int refill, long period, TimeUnit unit, Scheduler clock) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("The capacity should be positive");
+    }
+    if (refill < 0 || period < 1) {
+      throw new IllegalArgumentException("The refill rate cannot be negative");
+    }
+    this.capacity = capacity;
+    this.tokensPerMilli = (double) refill / unit.toMillis(period);
+    this.clock = clock;
+    this.tokens = capacity;
+    this.refilledAtMillis = clock.now();
+  }
+
+  /**
+   * Creates a retry budget
+   *
+   * @param capacity the max number of retries in a burst
+   * @param refill the number of retries added per period
+   * @param period the refill period
+   * @param unit {@link TimeUnit} of the period
+   * @return {@link RetryBudget}
+   */
+  public static RetryBudget of(int capacity, int refill, long period, TimeUnit unit) {
+    return new RetryBudget(capacity, refill, period, unit, Schedulers.immediate());
+  }
+
+  /**
+   * Creates a retry budget which reads the time from the provided scheduler
+   *
+   * @param capacity the max number of retries in a burst
+   * @param refill the number of retries added per period
+   * @param period the refill period
+   * @param unit {@link TimeUnit} of the period
+   * @param clock {@link Scheduler} whose time refills the budget
+   * @return {@link RetryBudget}
+   */
+  public static RetryBudget of(int capacity, int refill, long period, TimeUnit unit,
+      Scheduler clock) {
+    return new RetryBudget(capacity, refill, period, unit, clock);
+  }
+
+  /**
+   * Takes a token for a retry
+   *
+   * @return true when the retry is allowed
+   */
+  synchronized boolean tryAcquire() {
+    final long now = clock.now();
+    tokens = Math.min(capacity, tokens + (now - refilledAtMillis) * tokensPerMilli);
+    refilledAtMillis = now;
+    if (tokens < 1) {
+      rejectedCount++;
+      return false;
+    }
+    tokens--;
+    acquiredCount++;
+    return true;
+  }
+
+  public synchronized long getAcquiredCount() {
+    return acquiredCount;
+  }
+
+  /**
+   * Returns the number of retries refused because the budget was empty
+   *
+   * @return the count of rejected retries
+   */
+  public synchronized long getRejectedCount() {
+    return rejectedCount;
+  }
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.retry;
+
+import com.ezhome.rxfirebase2.exception.Retryable;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+
+/**
+ * Resubscribes to an observable after a retryable error, with an exponential
+ * backoff and a random jitter, so the clients which failed together do not
+ * retry together. The {@link Retryable} errors are retried up to the default
+ * max retries, other error types up to the max retries configured for them,
+ * and every retry also takes a token from the global {@link RetryBudget}, if any.
+ * The retries of a subscription are counted again after it emits a value.
+ */
+public final class RetryPolicy {
+
+  private final long baseDelayMillis;
+  private final long maxDelayMillis;
+
+  /**
+   * The max retries by error type, the closest super class applies
+   */
+  private final Map<Class<? extends Throwable>, Integer> maxRetriesByType =
+      new LinkedHashMap<>();
+
+  private int defaultMaxRetries = 3;
+  private double jitter = 1;
+  private RetryBudget budget;
+  private Scheduler scheduler = Schedulers.computation();
+  private Random random = new Random();
+
+  private RetryPolicy(long baseDelay, long maxDelay, TimeUnit unit) {
+    if (baseDelay < 0 || maxDelay < baseDelay) {
+      throw new IllegalArgumentException("The delays should be positive and ordered");
+    }
+    this.baseDelayMillis = unit.toMillis(baseDelay);
+    this.maxDelayMillis = unit.toMillis(maxDelay);
+  }
+
+  /**
+   * Creates a policy whose delay doubles with each retry
+   *
+   * @param baseDelay the delay before the first retry
+   * @param maxDelay the max delay before a retry
+   * @param unit {@link TimeUnit} of the delays
+   * @return {@link RetryPolicy}
+   */
+  public static RetryPolicy exponential(long baseDelay, long maxDelay, TimeUnit unit) {
+    return new RetryPolicy(baseDelay, maxDelay, unit);
+  }
+
+  /**
+   * Sets the max retries of the {@link Retryable} errors without a max of their type
+   *
+   * @param maxRetries the max retries of a subscription
+   * @return {@link RetryPolicy}
+   */
+  public synchronized RetryPolicy setDefaultMaxRetries(int maxRetries) {
+    this.defaultMaxRetries = checkMaxRetries(maxRetries);
+    return this;
+  }
+
+  /**
+   * Sets the max retries of an error type and its sub types, e.g. 0 to never retry
+   * it or a positive number to retry an error which is not {@link Retryable}
+   *
+   * @param type {@link Class} of the error
+   * @param maxRetries the max retries of a subscription
+   * @return {@link RetryPolicy}
+   */
+  public synchronized RetryPolicy setMaxRetries(Class<? extends Throwable> type,
+      int maxRetries) {
+    maxRetriesByType.put(type, checkMaxRetries(maxRetries));
+    return this;
+  }
+
+  /**
+   * Sets the part of each delay which is random, 1 by default so the delay is
+   * anywhere between 0 and the backoff
+   *
+   * @param jitter the random part of the delay between 0 and 1
+   * @return {@link RetryPolicy}
+   */
+  public synchronized RetryPolicy setJitter(double jitter) {
+    if (jitter < 0 || jitter > 1) {
+      throw new IllegalArgumentException("The jitter should be between 0 and 1");
+    }
+    this.jitter = jitter;
+    return this;
+  }
+
+  /**
+   * Sets the budget shared by all the subscriptions of the policy
+   *
+   * @param budget {@link RetryBudget}, null for no global budget
+   * @return {@link RetryPolicy}
+   */
+  public synchronized RetryPolicy setBudget(RetryBudget budget) {
+    this.budget = budget;
+    return this;
+  }
+
+  /**
+   * Sets the scheduler on which the delays elapse
+   *
+   * @param scheduler {@link Scheduler} of the delays
+   * @return {@link RetryPolicy}
+   */
+  public synchronized RetryPolicy setScheduler(Scheduler scheduler) {
+    this.scheduler = scheduler;
+    return this;
+  }
+
+  /**
+   * Sets the source of the jitter
+   *
+   * @param random {@link Random}
+   * @return {@link RetryPolicy}
+   */
+  public synchronized RetryPolicy setRandom(Random random) {
+    this.random = random;
+    return this;
+  }
+
+  /**
+   * Returns whether an error is transient
+   *
+   * @param throwable {@link Throwable} the error
+   * @return true when the error is {@link Retryable}
+   */
+  public static boolean isRetryable(Throwable throwable) {
+    return throwable instanceof Retryable;
+  }
+
+  /**
+   * Returns a transformer which applies the policy to an observable of the library
+   *
+   * @param <T> the type of the values
+   * @return {@link Observable.Transformer}
+   */
+  public <T> Observable.Transformer<T, T> apply() {
+    return new Observable.Transformer<T, T>() {
+      @Override public Observable<T> call(final Observable<T> source) {
+        return Observable.defer(new Func0<Observable<T>>() {
+          @Override public Observable<T> call() {
+            final Map<Class<?>, Integer> retries = new HashMap<>();
+            return source.doOnNext(new Action1<T>() {
+              @Override public void call(T value) {
+                synchronized (retries) {
+                  retries.clear();
+                }
+              }
+            }).retryWhen(new Func1<Observable<? extends Throwable>, Observable<?>>() {
+              @Override public Observable<?> call(Observable<? extends Throwable> errors) {
+                return errors.flatMap(new Func1<Throwable, Observable<?>>() {
+                  @Override public Observable<?> call(Throwable error) {
+                    final int attempt;
+                    synchronized (retries) {
+                      final Integer previous = retries.get(error.getClass());
+                      attempt = previous == null ? 0 : previous;
+                      retries.put(error.getClass(), attempt + 1);
+                    }
+                    final long delayMillis = nextDelay(error, attempt);
+                    if (delayMillis < 0) {
+                      return Observable.error(error);
+                    }
+                    return Observable.timer(delayMillis, TimeUnit.MILLISECONDS, scheduler);
+                  }
+                });
+              }
+            });
+          }
+        });
+      }
+    };
+  }
+
+  /**
+   * Returns the delay before a retry of an error
+   *
+   * @param error {@link Throwable} the error
+   * @param attempt the number of previous retries of the error type
+   * @return the delay in millis, negative when the error is not retried
+   */
+  private synchronized long nextDelay(Throwable error, int attempt) {
+    if (attempt >= maxRetries(error)) {
+      return -1;
+    }
+    if (budget != null && !budget.tryAcquire()) {
+      return -1;
+    }
+    // The shift overflows past the leading zeros of the base delay
+    final long delay = attempt < Long.numberOfLeadingZeros(baseDelayMillis) - 1
+        ? Math.min(maxDelayMillis, baseDelayMillis << attempt) : maxDelayMillis;
+    return delay - (long) (delay * jitter * random.nextDouble());
+  }
+
+  private int maxRetries(Throwable error) {
+    for (Class<?> type = error.getClass(); type != null; type = type.getSuperclass()) {
+      final Integer maxRetries = maxRetriesByType.get(type);
+      if (maxRetries != null) {
+        return maxRetries;
+      }
+    }
+    return isRetryable(error) ? defaultMaxRetries : 0;
+  }
+
+  private static int checkMaxRetries(int maxRetries) {
+    if (maxRetries < 0) {
+      throw new IllegalArgumentException("The max retries cannot be negative");
+    }
+    return maxRetries;
+  }
+}
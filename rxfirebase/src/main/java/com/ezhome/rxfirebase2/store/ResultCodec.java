@@ -0,0 +1,46 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.store;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes and reads a decoded result in the binary format of a {@link ResultStore}
+ *
+ * @param <T> the type of the result
+ */
+public interface ResultCodec<T> {
+
+  /**
+   * Writes the result
+   *
+   * @param value the result to write
+   * @param output {@link DataOutput} to write to
+   * @throws IOException when the result cannot be written
+   */
+  void write(T value, DataOutput output) throws IOException;
+
+  /**
+   * Reads a result written by {@link #write(Object, DataOutput)}
+   *
+   * @param input {@link DataInput} to read from
+   * @return the read result
+   * @throws IOException when the result cannot be read
+   */
+  T read(DataInput input) throws IOException;
+}
@@ -0,0 +1,505 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.store;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+
+/**
+ * A persistent store of the last decoded result of selected queries, so they
+ * can be rendered on a cold start before the first snapshot arrives.
+ *
+ * The results are appended to segment files as records of a type, a key, the
+ * result written by its {@link ResultCodec} and a CRC32. An in memory index
+ * points to the latest record of each key, a record torn by a crash is
+ * discarded on open, and the segments are compacted once most of their bytes
+ * belong to replaced results.
+ */
+public final class ResultStore {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".bin";
+
+  private static final byte PUT = 1;
+  private static final byte REMOVE = 2;
+
+  /**
+   * The type, key size, payload size and checksum of the type, key and payload of a record
+   */
+  private static final int RECORD_OVERHEAD = 1 + 4 + 4 + 4;
+
+  private final File directory;
+  private final long maxSegmentBytes;
+  private final Scheduler ioScheduler;
+
+  /**
+   * The location of the latest record by key
+   */
+  private final Map<String, Location> index = new HashMap<>();
+
+  /**
+   * The open segment files by id, the last one is appended to
+   */
+  private final TreeMap<Integer, RandomAccessFile> segments = new TreeMap<>();
+
+  /**
+   * The results waiting to be written by key, only the latest is written
+   */
+  private final Map<String, byte[]> pendingWrites = new LinkedHashMap<>();
+
+  private boolean opened;
+  private boolean writing;
+  private long liveBytes;
+  private long totalBytes;
+
+  private ResultStore(File directory, long maxSegmentBytes, Scheduler ioScheduler) {
+    if (maxSegmentBytes < 1) {
+      throw new IllegalArgumentException("The max segment size should be positive");
+    }
+    this.directory = directory;
+    this.maxSegmentBytes = maxSegmentBytes;
+    this.ioScheduler = ioScheduler;
+  }
+
+  /**
+   * Creates a store in the provided directory, e.g. under {@code Context#getFilesDir()}.
+   * The segments are read lazily on the io scheduler.
+   *
+   * @param directory {@link File} of the segments
+   * @return {@link ResultStore}
+   */
+  public static ResultStore create(File directory) {
+    return new ResultStore(directory, 1024 * 1024, Schedulers.io());
+  }
+
+  /**
+   * Creates a store in the provided directory
+   *
+   * @param directory {@link File} of the segments
+   * @param maxSegmentBytes the size after which a new segment is started
+   * @param ioScheduler {@link Scheduler} on which the store reads and writes
+   * @return {@link ResultStore}
+   */
+  public static ResultStore create(File directory, long maxSegmentBytes,
+      Scheduler ioScheduler) {
+    return new ResultStore(directory, maxSegmentBytes, ioScheduler);
+  }
+
+  /**
+   * Returns a transformer which emits the stored result of the key, if any, then
+   * the results of the live stream, and stores the latest of them. The stored
+   * result is skipped when the live stream emits first, and the first live result
+   * is skipped when it equals the stored one.
+   *
+   * @param key {@link String} under which the result is stored
+   * @param codec {@link ResultCodec} of the result
+   * @param <T> the type of the result
+   * @return {@link Observable.Transformer}
+   */
+  public <T> Observable.Transformer<T, T> persisted(final String key,
+      final ResultCodec<T> codec) {
+    return new Observable.Transformer<T, T>() {
+      @Override public Observable<T> call(final Observable<T> source) {
+        return source.publish(new Func1<Observable<T>, Observable<T>>() {
+          @Override public Observable<T> call(Observable<T> live) {
+            final AtomicReference<T> restored = new AtomicReference<>();
+            final Observable<T> stored = read(key, codec).doOnNext(new Action1<T>() {
+              @Override public void call(T value) {
+                restored.set(value);
+              }
+            }).takeUntil(live);
+            return Observable.merge(stored, live.filter(new Func1<T, Boolean>() {
+              private boolean first = true;
+
+              @Override public Boolean call(T value) {
+                final boolean duplicate = first && value != null && value.equals(restored.get());
+                first = false;
+                return !duplicate;
+              }
+            }).doOnNext(new Action1<T>() {
+              @Override public void call(T value) {
+                write(key, value, codec);
+              }
+            }));
+          }
+        });
+      }
+    };
+  }
+
+  /**
+   * Reads the stored result of a key on the io scheduler
+   *
+   * @param key {@link String} under which the result is stored
+   * @param codec {@link ResultCodec} of the result
+   * @param <T> the type of the result
+   * @return an {@link rx.Observable} of the result, empty when there is none
+   * or it cannot be read
+   */
+  public <T> Observable<T> read(final String key, final ResultCodec<T> codec) {
+    return Observable.defer(new Func0<Observable<T>>() {
+      @Override public Observable<T> call() {
+        try {
+          final byte[] payload = get(key);
+          return payload == null ? Observable.<T>empty()
+              : Observable.just(codec.read(new DataInputStream(new ByteArrayInputStream(payload))));
+        } catch (IOException | RuntimeException e) {
+          // A result which cannot be read is ignored, the live stream replaces it
+          return Observable.empty();
+        }
+      }
+    }).subscribeOn(ioScheduler);
+  }
+
+  /**
+   * Stores the result of a key on the io scheduler. When several results of the
+   * same key are waiting to be written only the latest one is written.
+   *
+   * @param key {@link String} under which the result is stored
+   * @param value the result to store
+   * @param codec {@link ResultCodec} of the result
+   * @param <T> the type of the result
+   */
+  public <T> void write(String key, T value, ResultCodec<T> codec) {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      codec.write(value, new DataOutputStream(bytes));
+    } catch (IOException e) {
+      return;
+    }
+    synchronized (pendingWrites) {
+      pendingWrites.put(key, bytes.toByteArray());
+      if (writing) {
+        return;
+      }
+      writing = true;
+    }
+    final Scheduler.Worker worker = ioScheduler.createWorker();
+    worker.schedule(new Action0() {
+      @Override public void call() {
+        try {
+          flushPendingWrites();
+        } finally {
+          worker.unsubscribe();
+        }
+      }
+    });
+  }
+
+  /**
+   * Removes the stored result of a key
+   *
+   * @param key {@link String} under which the result is stored
+   * @throws IOException when the store cannot be written
+   */
+  public synchronized void remove(String key) throws IOException {
+    open();
+    final Location location = index.remove(key);
+    if (location != null) {
+      liveBytes -= location.recordBytes;
+      append(REMOVE, key, new byte[0]);
+    }
+  }
+
+  /**
+   * Returns the number of stored results
+   *
+   * @return the count of stored results
+   * @throws IOException when the store cannot be read
+   */
+  public synchronized int size() throws IOException {
+    open();
+    return index.size();
+  }
+
+  /**
+   * Closes the segment files, the store opens them again when it is used
+   *
+   * @throws IOException when a segment cannot be closed
+   */
+  public synchronized void close() throws IOException {
+    for (RandomAccessFile segment : segments.values()) {
+      segment.close();
+    }
+    segments.clear();
+    index.clear();
+    liveBytes = 0;
+    totalBytes = 0;
+    opened = false;
+  }
+
+  /**
+   * Returns the stored payload of a key
+   *
+   * @param key {@link String} under which the result is stored
+   * @return the payload, null when there is none
+   * @throws IOException when the store cannot be read
+   */
+  synchronized byte[] get(String key) throws IOException {
+    open();
+    final Location location = index.get(key);
+    if (location == null) {
+      return null;
+    }
+    final RandomAccessFile segment = segments.get(location.segmentId);
+    final byte[] payload = new byte[location.payloadBytes];
+    segment.seek(location.payloadOffset);
+    segment.readFully(payload);
+    return payload;
+  }
+
+  /**
+   * Returns the number of segment files
+   *
+   * @return the count of segments
+   * @throws IOException when the store cannot be read
+   */
+  synchronized int segmentCount() throws IOException {
+    open();
+    return segments.size();
+  }
+
+  private void flushPendingWrites() {
+    while (true) {
+      final Map<String, byte[]> writes;
+      synchronized (pendingWrites) {
+        if (pendingWrites.isEmpty()) {
+          writing = false;
+          return;
+        }
+        writes = new LinkedHashMap<>(pendingWrites);
+        pendingWrites.clear();
+      }
+      for (Map.Entry<String, byte[]> write : writes.entrySet()) {
+        try {
+          put(write.getKey(), write.getValue());
+        } catch (IOException e) {
+          // The store is a best effort cache, the live stream stays the source of truth
+        }
+      }
+    }
+  }
+
+  synchronized void put(String key, byte[] payload) throws IOException {
+    open();
+    final Location previous = index.get(key);
+    if (previous != null) {
+      liveBytes -= previous.recordBytes;
+    }
+    final Location location = append(PUT, key, payload);
+    index.put(key, location);
+    liveBytes += location.recordBytes;
+    if (segments.size() > 1 && totalBytes - liveBytes > liveBytes) {
+      compact();
+    }
+  }
+
+  private Location append(byte type, String key, byte[] payload) throws IOException {
+    int segmentId = segments.lastKey();
+    RandomAccessFile segment = segments.get(segmentId);
+    if (segment.length() >= maxSegmentBytes) {
+      segmentId++;
+      segment = openSegment(segmentId);
+    }
+    final byte[] keyBytes = key.getBytes(UTF_8);
+    final ByteArrayOutputStream bytes =
+        new ByteArrayOutputStream(RECORD_OVERHEAD + keyBytes.length + payload.length);
+    final DataOutputStream output = new DataOutputStream(bytes);
+    output.writeByte(type);
+    output.writeInt(keyBytes.length);
+    output.write(keyBytes);
+    output.writeInt(payload.length);
+    output.write(payload);
+    output.writeInt(checksum(type, keyBytes, payload));
+    final long offset = segment.length();
+    segment.seek(offset);
+    segment.write(bytes.toByteArray());
+    totalBytes += bytes.size();
+    return new Location(segmentId, offset + 1 + 4 + keyBytes.length + 4, payload.length,
+        bytes.size());
+  }
+
+  /**
+   * Copies the latest results to a new segment and deletes the previous ones
+   */
+  private void compact() throws IOException {
+    final List<Integer> previousIds = new ArrayList<>(segments.keySet());
+    final Map<String, byte[]> payloads = new HashMap<>();
+    for (String key : index.keySet()) {
+      payloads.put(key, get(key));
+    }
+    openSegment(segments.lastKey() + 1);
+    index.clear();
+    liveBytes = 0;
+    totalBytes = 0;
+    for (Map.Entry<String, byte[]> payload : payloads.entrySet()) {
+      final Location location = append(PUT, payload.getKey(), payload.getValue());
+      index.put(payload.getKey(), location);
+      liveBytes += location.recordBytes;
+    }
+    for (Integer segmentId : previousIds) {
+      segments.remove(segmentId).close();
+      segmentFile(segmentId).delete();
+    }
+  }
+
+  private void open() throws IOException {
+    if (opened) {
+      return;
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create the directory " + directory);
+    }
+    final String[] names = directory.list(new FilenameFilter() {
+      @Override public boolean accept(File dir, String name) {
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    final TreeMap<Integer, File> files = new TreeMap<>();
+    for (String name : names) {
+      try {
+        files.put(Integer.parseInt(
+            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())),
+            new File(directory, name));
+      } catch (NumberFormatException ignored) {
+        // Not a segment of this store
+      }
+    }
+    for (Integer segmentId : files.keySet()) {
+      scan(segmentId, openSegment(segmentId));
+    }
+    if (segments.isEmpty()) {
+      openSegment(0);
+    }
+    opened = true;
+  }
+
+  private RandomAccessFile openSegment(int segmentId) throws IOException {
+    final RandomAccessFile segment = new RandomAccessFile(segmentFile(segmentId), "rw");
+    segments.put(segmentId, segment);
+    return segment;
+  }
+
+  private File segmentFile(int segmentId) {
+    return new File(directory, SEGMENT_PREFIX + segmentId + SEGMENT_SUFFIX);
+  }
+
+  /**
+   * Indexes the records of a segment and truncates it after the last valid one
+   */
+  private void scan(int segmentId, RandomAccessFile segment) throws IOException {
+    final long length = segment.length();
+    long offset = 0;
+    final DataInputStream input = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(segmentFile(segmentId))));
+    try {
+      while (offset < length) {
+        // A size which overruns the segment is a torn or corrupted record
+        final long remaining = length - offset - RECORD_OVERHEAD;
+        final byte type = input.readByte();
+        final int keyBytes = input.readInt();
+        if ((type != PUT && type != REMOVE) || keyBytes < 0 || keyBytes > remaining) {
+          break;
+        }
+        final byte[] key = new byte[keyBytes];
+        input.readFully(key);
+        final int payloadBytes = input.readInt();
+        if (payloadBytes < 0 || payloadBytes > remaining - keyBytes) {
+          break;
+        }
+        final byte[] payload = new byte[payloadBytes];
+        input.readFully(payload);
+        if (input.readInt() != checksum(type, key, payload)) {
+          break;
+        }
+        final int recordBytes = RECORD_OVERHEAD + keyBytes + payloadBytes;
+        final String keyString = new String(key, UTF_8);
+        final Location previous = type == PUT
+            ? index.put(keyString, new Location(segmentId, offset + 1 + 4 + keyBytes + 4,
+                payloadBytes, recordBytes))
+            : index.remove(keyString);
+        if (previous != null) {
+          liveBytes -= previous.recordBytes;
+        }
+        if (type == PUT) {
+          liveBytes += recordBytes;
+        }
+        totalBytes += recordBytes;
+        offset += recordBytes;
+      }
+    } catch (EOFException ignored) {
+      // A record torn by a crash, the segment is truncated after the last valid one
+    } finally {
+      input.close();
+    }
+    if (offset < length) {
+      segment.setLength(offset);
+    }
+  }
+
+  private static int checksum(byte type, byte[] key, byte[] payload) {
+    final CRC32 crc = new CRC32();
+    crc.update(type);
+    crc.update(key);
+    crc.update(payload);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * The location of a stored payload
+   */
+  private static final class Location {
+
+    private final int segmentId;
+    private final long payloadOffset;
+    private final int payloadBytes;
+    private final int recordBytes;
+
+    Location(int segmentId, long payloadOffset, int payloadBytes, int recordBytes) {
+      this.segmentId = segmentId;
+      this.payloadOffset = payloadOffset;
+      this.payloadBytes = payloadBytes;
+      this.recordBytes = recordBytes;
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.store;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact {@link ResultCodec} of the plain values returned by
+ * {@link com.google.firebase.database.DataSnapshot#getValue()}: null, booleans,
+ * numbers, strings, maps and lists. Integers are written as variable length
+ * zigzag longs and strings as UTF-8 with a variable length size.
+ */
+public final class ValueCodec implements ResultCodec<Object> {
+
+  public static final ValueCodec INSTANCE = new ValueCodec();
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final int NULL = 0;
+  private static final int TRUE = 1;
+  private static final int FALSE = 2;
+  private static final int LONG = 3;
+  private static final int DOUBLE = 4;
+  private static final int STRING = 5;
+  private static final int MAP = 6;
+  private static final int LIST = 7;
+
+  private ValueCodec() {
+    //empty constructor, use the INSTANCE
+  }
+
+  @Override public void write(Object value, DataOutput output) throws IOException {
+    if (value == null) {
+      output.writeByte(NULL);
+    } else if (value instanceof Boolean) {
+      output.writeByte((Boolean) value ? TRUE : FALSE);
+    } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+        || value instanceof Byte) {
+      output.writeByte(LONG);
+      final long number = ((Number) value).longValue();
+      writeVarLong(output, (number << 1) ^ (number >> 63));
+    } else if (value instanceof Number) {
+      output.writeByte(DOUBLE);
+      output.writeDouble(((Number) value).doubleValue());
+    } else if (value instanceof String) {
+      output.writeByte(STRING);
+      writeString(output, (String) value);
+    } else if (value instanceof Map) {
+      output.writeByte(MAP);
+      final Map<?, ?> map = (Map<?, ?>) value;
+      writeVarLong(output, map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        writeString(output, String.valueOf(entry.getKey()));
+        write(entry.getValue(), output);
+      }
+    } else if (value instanceof List) {
+      output.writeByte(LIST);
+      final List<?> list = (List<?>) value;
+      writeVarLong(output, list.size());
+      for (Object item : list) {
+        write(item, output);
+      }
+    } else {
+      throw new IOException("Unsupported value " + value.getClass().getName());
+    }
+  }
+
+  @Override public Object read(DataInput input) throws IOException {
+    final int type = input.readUnsignedByte();
+    switch (type) {
+      case NULL:
+        return null;
+      case TRUE:
+        return Boolean.TRUE;
+      case FALSE:
+        return Boolean.FALSE;
+      case LONG:
+        final long zigzag = readVarLong(input);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+      case DOUBLE:
+        return input.readDouble();
+      case STRING:
+        return readString(input);
+      case MAP:
+        final int mapSize = readSize(input);
+        final Map<String, Object> map = new LinkedHashMap<>(mapSize * 4 / 3 + 1);
+        for (int index = 0; index < mapSize; index++) {
+          final String key = readString(input);
+          map.put(key, read(input));
+        }
+        return map;
+      case LIST:
+        final int listSize = readSize(input);
+        final List<Object> list = new ArrayList<>(listSize);
+        for (int index = 0; index < listSize; index++) {
+          list.add(read(input));
+        }
+        return list;
+      default:
+        throw new IOException("Unknown value type " + type);
+    }
+  }
+
+  private static void writeString(DataOutput output, String value) throws IOException {
+    final byte[] bytes = value.getBytes(UTF_8);
+    writeVarLong(output, bytes.length);
+    output.write(bytes);
+  }
+
+  private static String readString(DataInput input) throws IOException {
+    final byte[] bytes = new byte[readSize(input)];
+    input.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  private static void writeVarLong(DataOutput output, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      output.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    output.writeByte((int) value);
+  }
+
+  private static long readVarLong(DataInput input) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final int current = input.readUnsignedByte();
+      value |= (long) (current & 0x7F) << shift;
+      if ((current & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed variable length number");
+  }
+
+  private static int readSize(DataInput input) throws IOException {
+    final long size = readVarLong(input);
+    if (size < 0 || size > Integer.MAX_VALUE) {
+      throw new IOException("Malformed size " + size);
+    }
+    return (int) size;
+  }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.task;
+
+import android.support.annotation.NonNull;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import rx.Emitter;
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Cancellable;
+import rx.functions.Func0;
+
+/**
+ * Bridges a {@link Task} of Google Play services to an {@link Observable}. The
+ * observable emits the result of the task and completes, or fails with the
+ * exception of the task, with a single completion listener so the subscriber
+ * receives exactly one terminal signal.
+ */
+public final class RxTask {
+
+  private RxTask() {
+    //empty constructor prevent initialisation
+  }
+
+  /**
+   * Observes a task which is already started
+   *
+   * @param task {@link Task} the task
+   * @param executor {@link Executor} on which the completion listener runs
+   * @param <T> the type of the result
+   * @return an {@link rx.Observable} of the result
+   */
+  public static <T> Observable<T> from(final Task<T> task, final Executor executor) {
+    return Observable.create(new Action1<Emitter<T>>() {
+      @Override public void call(Emitter<T> emitter) {
+        // The task keeps the listener until it completes, so it must not keep the subscriber
+        final AtomicReference<Emitter<T>> target = new AtomicReference<>(emitter);
+        emitter.setCancellation(new Cancellable() {
+          @Override public void cancel() throws Exception {
+            target.set(null);
+          }
+        });
+        task.addOnCompleteListener(executor, new OnCompleteListener<T>() {
+          @Override public void onComplete(@NonNull Task<T> task) {
+            final Emitter<T> subscriber = target.getAndSet(null);
+            if (subscriber == null) {
+              return;
+            }
+            if (task.isSuccessful()) {
+              subscriber.onNext(task.getResult());
+              subscriber.onCompleted();
+            } else {
+              subscriber.onError(task.getException() != null ? task.getException()
+                  : new IllegalStateException("The task failed without an exception"));
+            }
+          }
+        });
+      }
+    }, Emitter.BackpressureMode.BUFFER);
+  }
+
+  /**
+   * Observes a task which is started for each subscriber
+   *
+   * @param taskFactory {@link Func0} which starts the task
+   * @param executor {@link Executor} on which the completion listener runs
+   * @param <T> the type of the result
+   * @return an {@link rx.Observable} of the result
+   */
+  public static <T> Observable<T> defer(final Func0<Task<T>> taskFactory,
+      final Executor executor) {
+    return Observable.defer(new Func0<Observable<T>>() {
+      @Override public Observable<T> call() {
+        return from(taskFactory.call(), executor);
+      }
+    });
+  }
+
+  /**
+   * Returns an executor which runs the completion listeners on a scheduler,
+   * e.g. {@link rx.schedulers.Schedulers#io()} to keep them off the main thread
+   *
+   * @param scheduler {@link Scheduler} of the listeners
+   * @return {@link Executor}
+   */
+  public static Executor executorOf(final Scheduler scheduler) {
+    return new Executor() {
+      @Override public void execute(@NonNull final Runnable command) {
+        final Scheduler.Worker worker = scheduler.createWorker();
+        worker.schedule(new Action0() {
+          @Override public void call() {
+            try {
+              command.run();
+            } finally {
+              worker.unsubscribe();
+            }
+          }
+        });
+      }
+    };
+  }
+}
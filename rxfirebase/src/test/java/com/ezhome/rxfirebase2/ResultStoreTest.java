@@ -0,0 +1,136 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2;
+
+import com.ezhome.rxfirebase2.store.ResultStore;
+import com.ezhome.rxfirebase2.store.ValueCodec;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import rx.observers.TestSubscriber;
+import rx.schedulers.Schedulers;
+import rx.subjects.PublishSubject;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ResultStoreTest extends ApplicationTestCase {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File directory;
+
+  @Before public void setUp() throws IOException {
+    directory = temporaryFolder.newFolder("results");
+  }
+
+  @Test public void testResultsSurviveReopen() throws IOException {
+    final ResultStore resultStore = open(1024);
+    resultStore.write("posts", post("alan", 1), ValueCodec.INSTANCE);
+    resultStore.write("posts", post("grace", 2), ValueCodec.INSTANCE);
+    resultStore.write("config", Arrays.<Object>asList(true, 1.5, null), ValueCodec.INSTANCE);
+    resultStore.close();
+
+    final ResultStore reopened = open(1024);
+    assertThat(reopened.size()).isEqualTo(2);
+    assertThat(read(reopened, "posts")).isEqualTo(post("grace", 2));
+    assertThat(read(reopened, "config")).isEqualTo(Arrays.<Object>asList(true, 1.5, null));
+    reopened.remove("config");
+    reopened.close();
+    assertThat(open(1024).size()).isEqualTo(1);
+  }
+
+  @Test public void testTornRecordIsDiscarded() throws IOException {
+    final ResultStore resultStore = open(1024);
+    resultStore.write("posts", post("alan", 1), ValueCodec.INSTANCE);
+    resultStore.close();
+    final FileOutputStream segment =
+        new FileOutputStream(new File(directory, "segment-0.bin"), true);
+    segment.write(new byte[] { 1, 0, 0, 0, 5, 'p', 'o' });
+    segment.close();
+
+    final ResultStore reopened = open(1024);
+    assertThat(read(reopened, "posts")).isEqualTo(post("alan", 1));
+    reopened.write("config", "dark", ValueCodec.INSTANCE);
+    reopened.close();
+    assertThat(read(open(1024), "config")).isEqualTo("dark");
+  }
+
+  @Test public void testRecordOverrunningSegmentIsDiscarded() throws IOException {
+    final ResultStore resultStore = open(1024);
+    resultStore.write("posts", post("alan", 1), ValueCodec.INSTANCE);
+    resultStore.close();
+    final FileOutputStream segment =
+        new FileOutputStream(new File(directory, "segment-0.bin"), true);
+    // The payload size is far larger than the bytes left in the segment
+    segment.write(new byte[] { 1, 0, 0, 0, 1, 'p', 0x03, 0x00, 0x00, 0x00, 0, 0, 0, 0 });
+    segment.close();
+
+    final ResultStore reopened = open(1024);
+    assertThat(reopened.size()).isEqualTo(1);
+    assertThat(read(reopened, "posts")).isEqualTo(post("alan", 1));
+    reopened.write("config", "dark", ValueCodec.INSTANCE);
+    reopened.close();
+    assertThat(read(open(1024), "config")).isEqualTo("dark");
+  }
+
+  @Test public void testReplacedResultsAreCompacted() throws IOException {
+    final ResultStore resultStore = open(64);
+    for (int version = 0; version < 100; version++) {
+      resultStore.write("posts", post("alan", version), ValueCodec.INSTANCE);
+    }
+    assertThat(directory.list().length).isLessThanOrEqualTo(3);
+    resultStore.close();
+    assertThat(read(open(64), "posts")).isEqualTo(post("alan", 99));
+  }
+
+  @Test public void testPersistedEmitsStoredResultThenLive() throws IOException {
+    open(1024).write("title", "stored", ValueCodec.INSTANCE);
+    final ResultStore resultStore = open(1024);
+    final PublishSubject<Object> live = PublishSubject.create();
+
+    TestSubscriber<Object> testSubscriber = new TestSubscriber<>();
+    live.compose(resultStore.persisted("title", ValueCodec.INSTANCE)).subscribe(testSubscriber);
+    testSubscriber.assertValues("stored");
+    live.onNext("stored");
+    live.onNext("live");
+    testSubscriber.assertValues("stored", "live");
+    resultStore.close();
+
+    assertThat(read(open(1024), "title")).isEqualTo("live");
+  }
+
+  private ResultStore open(long maxSegmentBytes) {
+    return ResultStore.create(directory, maxSegmentBytes, Schedulers.immediate());
+  }
+
+  private static Object read(ResultStore resultStore, String key) {
+    return resultStore.read(key, ValueCodec.INSTANCE).toBlocking().singleOrDefault(null);
+  }
+
+  private static Map<String, Object> post(String author, long version) {
+    final Map<String, Object> post = new LinkedHashMap<>();
+    post.put("author", author);
+    post.put("version", version);
+    return post;
+  }
+}
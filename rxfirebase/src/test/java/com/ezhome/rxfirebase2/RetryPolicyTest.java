@@ -0,0 +1,116 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2;
+
+import com.ezhome.rxfirebase2.exception.FirebaseNetworkErrorException;
+import com.ezhome.rxfirebase2.exception.FirebaseOperationFailedException;
+import com.ezhome.rxfirebase2.exception.FirebasePermissionDeniedException;
+import com.ezhome.rxfirebase2.retry.RetryBudget;
+import com.ezhome.rxfirebase2.retry.RetryPolicy;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import rx.Observable;
+import rx.functions.Func0;
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RetryPolicyTest extends ApplicationTestCase {
+
+  private TestScheduler testScheduler;
+  private RetryPolicy retryPolicy;
+
+  @Before public void setUp() {
+    testScheduler = new TestScheduler();
+    retryPolicy = RetryPolicy.exponential(100, 300, TimeUnit.MILLISECONDS)
+        .setJitter(0)
+        .setScheduler(testScheduler);
+  }
+
+  @Test public void testRetryableErrorsBackOffExponentially() {
+    final AtomicInteger subscriptions = new AtomicInteger();
+    TestSubscriber<String> testSubscriber = new TestSubscriber<>();
+    failing(subscriptions, 3, new FirebaseNetworkErrorException("offline"))
+        .compose(retryPolicy.<String>apply())
+        .subscribe(testSubscriber);
+    assertThat(subscriptions.get()).isEqualTo(1);
+
+    testScheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+    assertThat(subscriptions.get()).isEqualTo(2);
+    testScheduler.advanceTimeBy(199, TimeUnit.MILLISECONDS);
+    assertThat(subscriptions.get()).isEqualTo(2);
+    testScheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+    assertThat(subscriptions.get()).isEqualTo(3);
+    testScheduler.advanceTimeBy(300, TimeUnit.MILLISECONDS);
+    testSubscriber.assertValue("value");
+    testSubscriber.assertCompleted();
+  }
+
+  @Test public void testFatalErrorsAndExhaustedRetriesFail() {
+    final AtomicInteger subscriptions = new AtomicInteger();
+    TestSubscriber<String> fatalSubscriber = new TestSubscriber<>();
+    failing(subscriptions, 1, new FirebasePermissionDeniedException("denied"))
+        .compose(retryPolicy.<String>apply())
+        .subscribe(fatalSubscriber);
+    fatalSubscriber.assertError(FirebasePermissionDeniedException.class);
+
+    retryPolicy.setMaxRetries(FirebaseOperationFailedException.class, 1);
+    TestSubscriber<String> budgetSubscriber = new TestSubscriber<>();
+    failing(subscriptions, 2, new FirebaseOperationFailedException("failed"))
+        .compose(retryPolicy.<String>apply())
+        .subscribe(budgetSubscriber);
+    testScheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+    budgetSubscriber.assertError(FirebaseOperationFailedException.class);
+    assertThat(subscriptions.get()).isEqualTo(3);
+  }
+
+  @Test public void testGlobalBudgetStopsRetryStorms() {
+    final RetryBudget retryBudget = RetryBudget.of(2, 1, 1, TimeUnit.SECONDS, testScheduler);
+    retryPolicy.setBudget(retryBudget);
+    final AtomicInteger subscriptions = new AtomicInteger();
+
+    TestSubscriber<String> first = new TestSubscriber<>();
+    TestSubscriber<String> second = new TestSubscriber<>();
+    TestSubscriber<String> third = new TestSubscriber<>();
+    for (TestSubscriber<String> subscriber : Arrays.asList(first, second, third)) {
+      failing(subscriptions, 1, new FirebaseNetworkErrorException("offline"))
+          .compose(retryPolicy.<String>apply())
+          .subscribe(subscriber);
+    }
+    testScheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+
+    first.assertValue("value");
+    second.assertValue("value");
+    third.assertError(FirebaseNetworkErrorException.class);
+    assertThat(retryBudget.getRejectedCount()).isEqualTo(1);
+  }
+
+  private static Observable<String> failing(final AtomicInteger subscriptions,
+      final int failures, final Throwable error) {
+    final AtomicInteger attempts = new AtomicInteger();
+    return Observable.defer(new Func0<Observable<String>>() {
+      @Override public Observable<String> call() {
+        subscriptions.incrementAndGet();
+        return attempts.getAndIncrement() < failures ? Observable.<String>error(error)
+            : Observable.just("value");
+      }
+    });
+  }
+}
@@ -18,12 +18,18 @@ package com.ezhome.rxfirebase2;
 import com.ezhome.rxfirebase2.auth.RxFirebaseAuth;
 import com.ezhome.rxfirebase2.exception.FirebaseSignInException;
 import com.ezhome.rxfirebase2.exception.FirebaseSignOutException;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
 import com.google.firebase.auth.AuthCredential;
+import com.google.firebase.auth.AuthResult;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.database.DataSnapshot;
 import com.google.firebase.database.DatabaseReference;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -31,11 +37,20 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import rx.Observable;
 import rx.observers.TestSubscriber;
 import rx.schedulers.Schedulers;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class RxFirebaseAuthTest extends ApplicationTestCase {
@@ -148,4 +163,76 @@ public class RxFirebaseAuthTest extends ApplicationTestCase {
     testSubscriber.assertCompleted();
     testSubscriber.unsubscribe();
   }
+
+  @Test public void testObserveAuthStateChangesSharesOneListener() {
+    final List<FirebaseAuth.AuthStateListener> listeners = new ArrayList<>();
+    doAnswer(new Answer<Void>() {
+      @Override public Void answer(InvocationOnMock invocation) {
+        listeners.add((FirebaseAuth.AuthStateListener) invocation.getArguments()[0]);
+        return null;
+      }
+    }).when(mockFirebaseAuth).addAuthStateListener(any(FirebaseAuth.AuthStateListener.class));
+    when(mockFirebaseUser.getUid()).thenReturn("alan");
+    final FirebaseUser otherUser = mock(FirebaseUser.class);
+    when(otherUser.getUid()).thenReturn("alan");
+    final RxFirebaseAuth auth = new RxFirebaseAuth(mockFirebaseAuth) {
+    };
+
+    TestSubscriber<FirebaseAuthState> first = new TestSubscriber<>();
+    TestSubscriber<FirebaseAuthState> second = new TestSubscriber<>();
+    auth.observeAuthStateChanges().subscribe(first);
+    when(mockFirebaseAuth.getCurrentUser()).thenReturn(mockFirebaseUser);
+    listeners.get(0).onAuthStateChanged(mockFirebaseAuth);
+    auth.observeAuthStateChanges().subscribe(second);
+    when(mockFirebaseAuth.getCurrentUser()).thenReturn(otherUser);
+    listeners.get(0).onAuthStateChanged(mockFirebaseAuth);
+    when(mockFirebaseAuth.getCurrentUser()).thenReturn(null);
+    listeners.get(0).onAuthStateChanged(mockFirebaseAuth);
+
+    assertThat(listeners).hasSize(1);
+    first.assertNoTerminalEvent();
+    first.assertValueCount(2);
+    assertThat(first.getOnNextEvents().get(0).getUser()).isSameAs(mockFirebaseUser);
+    assertThat(first.getOnNextEvents().get(1).isSignedIn()).isFalse();
+    second.assertValueCount(2);
+
+    first.unsubscribe();
+    second.unsubscribe();
+    verify(mockFirebaseAuth).removeAuthStateListener(listeners.get(0));
+  }
+
+  @SuppressWarnings("unchecked") @Test public void testObserveSignInFailsOnceOnExecutor() {
+    final Task<AuthResult> task = mock(Task.class);
+    final List<OnCompleteListener<AuthResult>> listeners = new ArrayList<>();
+    final Executor executor = mock(Executor.class);
+    when(mockFirebaseAuth.signInWithCustomToken(FAKE_TOKEN)).thenReturn(task);
+    when(task.isSuccessful()).thenReturn(false);
+    when(task.getException()).thenReturn(new IllegalStateException("Invalid custom token"));
+    when(task.addOnCompleteListener(any(Executor.class), any(OnCompleteListener.class)))
+        .thenAnswer(new Answer<Object>() {
+          @Override public Object answer(InvocationOnMock invocation) {
+            listeners.add((OnCompleteListener<AuthResult>) invocation.getArguments()[1]);
+            return task;
+          }
+        });
+    final RxFirebaseAuth auth = new RxFirebaseAuth(mockFirebaseAuth) {
+    }.setCallbackExecutor(executor);
+
+    TestSubscriber<FirebaseUser> testSubscriber = new TestSubscriber<>();
+    TestSubscriber<FirebaseUser> cancelledSubscriber = new TestSubscriber<>();
+    auth.observeSignIn(FAKE_TOKEN).subscribe(testSubscriber);
+    auth.observeSignIn(FAKE_TOKEN).subscribe(cancelledSubscriber);
+    cancelledSubscriber.unsubscribe();
+    for (OnCompleteListener<AuthResult> listener : listeners) {
+      listener.onComplete(task);
+    }
+
+    assertThat(listeners).hasSize(2);
+    testSubscriber.assertError(FirebaseSignInException.class);
+    assertThat(testSubscriber.getOnErrorEvents()).hasSize(1);
+    assertThat(testSubscriber.getOnErrorEvents().get(0).getCause())
+        .isInstanceOf(IllegalStateException.class);
+    cancelledSubscriber.assertNoTerminalEvent();
+    verify(task, times(2)).addOnCompleteListener(eq(executor), any(OnCompleteListener.class));
+  }
 }
@@ -0,0 +1,883 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2;
+
+import com.ezhome.rxfirebase2.auth.RxFirebaseAuth;
+import com.ezhome.rxfirebase2.auth.TokenRefresher;
+import com.ezhome.rxfirebase2.database.DataSnapshotMapper;
+import com.ezhome.rxfirebase2.database.FrameClock;
+import com.ezhome.rxfirebase2.database.ListenerPriority;
+import com.ezhome.rxfirebase2.database.LocalMirror;
+import com.ezhome.rxfirebase2.database.MirrorQuery;
+import com.ezhome.rxfirebase2.database.Prefetch;
+import com.ezhome.rxfirebase2.database.Prefetcher;
+import com.ezhome.rxfirebase2.database.RxFirebaseDatabase;
+import com.ezhome.rxfirebase2.database.ShardedCounter;
+import com.ezhome.rxfirebase2.database.SnapshotCache;
+import com.ezhome.rxfirebase2.exception.FirebaseInvalidTokenException;
+import com.ezhome.rxfirebase2.exception.FirebasePermissionDeniedException;
+import com.ezhome.rxfirebase2.exception.FirebaseTransactionAbortedException;
+import com.ezhome.rxfirebase2.local.LocalFirebase;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.auth.FirebaseUser;
+import com.google.firebase.auth.GetTokenResult;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.Transaction;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import rx.Observable;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.functions.Func1;
+import rx.observers.TestSubscriber;
+import rx.schedulers.Schedulers;
+import rx.schedulers.TestScheduler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RxFirebaseDatabaseLocalTest extends ApplicationTestCase {
+
+  private LocalFirebase localFirebase;
+  private DatabaseReference fireblog;
+  private RxFirebaseDatabase rxFirebase;
+
+  @Before public void setUp() throws IOException {
+    localFirebase = LocalFirebase.fromJson(new File("../server/sample-data.json"));
+    fireblog = localFirebase.getReference("fireblog");
+    rxFirebase = new RxFirebaseDatabase() {
+    }.decodeOn(Schedulers.immediate());
+  }
+
+  @Test public void testObserveSingleValueDecodesSampleData() {
+    TestSubscriber<List<Post>> testSubscriber = new TestSubscriber<>();
+    rxFirebase.observeSingleValue(fireblog, DataSnapshotMapper.listOf(Post.class))
+        .subscribe(testSubscriber);
+
+    testSubscriber.assertCompleted();
+    final List<Post> posts = testSubscriber.getOnNextEvents().get(0);
+    assertThat(posts).hasSize(2);
+    assertThat(posts.get(0).author).isEqualTo("alan");
+    assertThat(posts.get(1).title).isEqualTo("Announcing COBOL, a New Programming Language");
+    assertThat(localFirebase.getListenerCount()).isZero();
+  }
+
+  @Test public void testObserveListFollowsWrites() {
+    TestSubscriber<FirebaseListEvent<Post>> testSubscriber = new TestSubscriber<>();
+    rxFirebase.observeList(fireblog, Post.class).subscribe(testSubscriber);
+    final String key = rxFirebase.observeSetValuePush(fireblog, new Post("grace", "COBOL"))
+        .toBlocking()
+        .single();
+    rxFirebase.observeSetValue(fireblog.child("-JRHTHaKuITFIhnj02kE"), null)
+        .toBlocking()
+        .single();
+
+    final List<FirebaseListEvent<Post>> events = testSubscriber.getOnNextEvents();
+    final FirebaseListEvent<Post> last = events.get(events.size() - 1);
+    assertThat(last.getKeys()).containsExactly(key, "JRHTHaIs-jNPLXOQivY");
+    assertThat(last.getList().get(0).author).isEqualTo("grace");
+
+    testSubscriber.unsubscribe();
+    assertThat(localFirebase.getListenerCount()).isZero();
+  }
+
+  @Test public void testSharedListenerEmitsOutsideOfTheRegistryLock() {
+    final DatabaseReference config = localFirebase.getReference("config");
+    final List<DataSnapshot> nested = new CopyOnWriteArrayList<>();
+    TestSubscriber<DataSnapshot> testSubscriber = new TestSubscriber<DataSnapshot>() {
+      @Override public void onNext(DataSnapshot dataSnapshot) {
+        super.onNext(dataSnapshot);
+        // Another query is subscribed from another thread while this one emits
+        final Thread thread = new Thread(new Runnable() {
+          @Override public void run() {
+            nested.add(rxFirebase.observeValueEvent(config).toBlocking().first());
+          }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        try {
+          thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+    };
+    rxFirebase.observeValueEvent(fireblog).subscribe(testSubscriber);
+
+    testSubscriber.assertValueCount(1);
+    assertThat(nested).hasSize(1);
+    testSubscriber.unsubscribe();
+    assertThat(localFirebase.getListenerCount()).isZero();
+  }
+
+  @Test public void testOrderedLimitedQueryMovesChildren() {
+    final Map<String, Object> scores = new HashMap<>();
+    scores.put("a/score", 1);
+    scores.put("b/score", 2);
+    scores.put("c/score", 3);
+    final DatabaseReference players = localFirebase.getReference("players");
+    rxFirebase.observeUpdateChildren(players, scores).subscribe();
+
+    TestSubscriber<FirebaseChildEvent> testSubscriber = new TestSubscriber<>();
+    rxFirebase.observeChildEvent(players.orderByChild("score").limitToLast(2))
+        .subscribe(testSubscriber);
+    rxFirebase.observeSetValue(players.child("a/score"), 4).subscribe();
+    rxFirebase.observeSetValue(players.child("b/score"), 5).subscribe();
+
+    final List<FirebaseChildEvent> events = testSubscriber.getOnNextEvents();
+    assertThat(events).hasSize(6);
+    assertThat(keyAndType(events.get(0))).isEqualTo("b ADDED");
+    assertThat(keyAndType(events.get(1))).isEqualTo("c ADDED");
+    assertThat(keyAndType(events.get(2))).isEqualTo("b REMOVED");
+    assertThat(keyAndType(events.get(3))).isEqualTo("a ADDED");
+    assertThat(keyAndType(events.get(4))).isEqualTo("c REMOVED");
+    assertThat(keyAndType(events.get(5))).isEqualTo("b ADDED");
+    assertThat(events.get(5).getPreviousChildName()).isEqualTo("a");
+    testSubscriber.unsubscribe();
+  }
+
+  @Test public void testLatencyDelaysDataAndAcknowledgements() {
+    final TestScheduler testScheduler = new TestScheduler();
+    localFirebase.setScheduler(testScheduler).setLatency(100, TimeUnit.MILLISECONDS);
+
+    TestSubscriber<DataSnapshot> valueSubscriber = new TestSubscriber<>();
+    TestSubscriber<FirebaseWriteResult> writeSubscriber = new TestSubscriber<>();
+    rxFirebase.observeValueEvent(fireblog.child("JRHTHaIs-jNPLXOQivY/author"))
+        .subscribe(valueSubscriber);
+    rxFirebase.observeSetValueResult(fireblog.child("JRHTHaIs-jNPLXOQivY/author"), "grace")
+        .subscribe(writeSubscriber);
+
+    valueSubscriber.assertNoValues();
+    writeSubscriber.assertNoValues();
+    testScheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+
+    valueSubscriber.assertValueCount(1);
+    assertThat(valueSubscriber.getOnNextEvents().get(0).getValue()).isEqualTo("grace");
+    writeSubscriber.assertCompleted();
+    valueSubscriber.unsubscribe();
+  }
+
+  @Test public void testInjectedFaults() {
+    localFirebase.failNextWrites(1, DatabaseError.PERMISSION_DENIED);
+    TestSubscriber<String> writeSubscriber = new TestSubscriber<>();
+    rxFirebase.observeSetValue(fireblog.child("denied"), "value").subscribe(writeSubscriber);
+    writeSubscriber.assertError(FirebasePermissionDeniedException.class);
+    assertThat(localFirebase.getValue("fireblog/denied")).isNull();
+
+    TestSubscriber<DataSnapshot> valueSubscriber = new TestSubscriber<>();
+    rxFirebase.observeValueEvent(fireblog).subscribe(valueSubscriber);
+    localFirebase.cancelListeners("/", DatabaseError.PERMISSION_DENIED);
+    valueSubscriber.assertValueCount(1);
+    valueSubscriber.assertError(FirebasePermissionDeniedException.class);
+    assertThat(localFirebase.getListenerCount()).isZero();
+  }
+
+  @Test public void testObservePagedReadsOnDemand() {
+    final DatabaseReference items = seedItems(5);
+
+    TestSubscriber<FirebasePage> testSubscriber = new TestSubscriber<>(0);
+    rxFirebase.observePaged(items, 2).subscribe(testSubscriber);
+    testSubscriber.assertNoValues();
+
+    testSubscriber.requestMore(1);
+    testSubscriber.assertValueCount(1);
+    assertThat(keysOf(testSubscriber.getOnNextEvents().get(0))).containsExactly("0", "1");
+
+    testSubscriber.requestMore(2);
+    testSubscriber.assertValueCount(3);
+    final FirebasePage lastPage = testSubscriber.getOnNextEvents().get(2);
+    assertThat(keysOf(lastPage)).containsExactly("4");
+    assertThat(lastPage.isLast()).isTrue();
+    testSubscriber.assertCompleted();
+    assertThat(localFirebase.getListenerCount()).isZero();
+  }
+
+  @Test public void testObservePagedLiveUpdatesLoadedPages() {
+    final DatabaseReference items = seedItems(4);
+
+    TestSubscriber<FirebasePage> testSubscriber = new TestSubscriber<>(1);
+    rxFirebase.observePaged(items, 2, true).subscribe(testSubscriber);
+    rxFirebase.observeSetValue(items.child("1"), "changed").subscribe();
+    rxFirebase.observeSetValue(items.child("3"), "unloaded").subscribe();
+    testSubscriber.assertValueCount(1);
+    assertThat(localFirebase.getListenerCount()).isEqualTo(1);
+
+    testSubscriber.requestMore(1);
+    final FirebasePage update = testSubscriber.getOnNextEvents().get(1);
+    assertThat(update.getIndex()).isZero();
+    assertThat(update.isUpdate()).isTrue();
+    assertThat(update.getSnapshots().get(1).getValue()).isEqualTo("changed");
+
+    testSubscriber.requestMore(1);
+    final FirebasePage secondPage = testSubscriber.getOnNextEvents().get(2);
+    assertThat(secondPage.getIndex()).isEqualTo(1);
+    assertThat(secondPage.getSnapshots().get(1).getValue()).isEqualTo("unloaded");
+    testSubscriber.assertNotCompleted();
+
+    testSubscriber.unsubscribe();
+    assertThat(localFirebase.getListenerCount()).isZero();
+  }
+
+  @Test public void testObservePagedLiveListensBetweenPages() {
+    final DatabaseReference items = localFirebase.getReference("items");
+    final Map<String, Object> values = new HashMap<>();
+    for (String key : new String[] { "a", "c", "e", "g" }) {
+      values.put(key, "item" + key);
+    }
+    rxFirebase.observeUpdateChildren(items, values).subscribe();
+
+    TestSubscriber<FirebasePage> testSubscriber = new TestSubscriber<>(2);
+    rxFirebase.observePaged(items, 2, true).subscribe(testSubscriber);
+    testSubscriber.assertValueCount(2);
+
+    // A child between the last key of a page and the first key of the next one
+    rxFirebase.observeSetValue(items.child("d"), "itemd").subscribe();
+    testSubscriber.requestMore(1);
+    testSubscriber.assertValueCount(3);
+    final FirebasePage update = testSubscriber.getOnNextEvents().get(2);
+    assertThat(update.getIndex()).isZero();
+    assertThat(update.isUpdate()).isTrue();
+    assertThat(keysOf(update)).containsExactly("a", "c", "d");
+
+    testSubscriber.unsubscribe();
+    assertThat(localFirebase.getListenerCount()).isZero();
+  }
+
+  @Test public void testObservePagedLiveSplitsGrowingLastPage() {
+    final DatabaseReference items = seedItems(2);
+
+    TestSubscriber<FirebasePage> testSubscriber = new TestSubscriber<>(1);
+    rxFirebase.observePaged(items, 2, true).subscribe(testSubscriber);
+    assertThat(testSubscriber.getOnNextEvents().get(0).isLast()).isTrue();
+
+    rxFirebase.observeSetValue(items.child("2"), "appended").subscribe();
+    testSubscriber.requestMore(2);
+    testSubscriber.assertValueCount(3);
+    final FirebasePage split = testSubscriber.getOnNextEvents().get(1);
+    assertThat(split.isUpdate()).isTrue();
+    assertThat(split.isLast()).isFalse();
+    assertThat(keysOf(split)).containsExactly("0", "1");
+    final FirebasePage nextPage = testSubscriber.getOnNextEvents().get(2);
+    assertThat(nextPage.getIndex()).isEqualTo(1);
+    assertThat(keysOf(nextPage)).containsExactly("2");
+    assertThat(nextPage.isLast()).isTrue();
+
+    testSubscriber.unsubscribe();
+    assertThat(localFirebase.getListenerCount()).isZero();
+  }
+
+  @Test public void testSnapshotCacheServesReadsUntilExpiryOrWrite() {
+    final TestScheduler clock = new TestScheduler();
+    final SnapshotCache cache = SnapshotCache.of(10, 1024 * 1024, 1, TimeUnit.MINUTES, clock);
+    rxFirebase.setSnapshotCache(cache);
+    final DatabaseReference post = fireblog.child("-JRHTHaKuITFIhnj02kE");
+
+    assertThat(readAuthor(post)).isEqualTo("alan");
+    // A write which bypasses the library is not seen until the entry expires
+    post.child("author").setValue("grace");
+    assertThat(readAuthor(post)).isEqualTo("alan");
+    assertThat(cache.getHitCount()).isEqualTo(1);
+    assertThat(cache.getMissCount()).isEqualTo(1);
+
+    clock.advanceTimeBy(1, TimeUnit.MINUTES);
+    assertThat(readAuthor(post)).isEqualTo("grace");
+    assertThat(cache.getExpirationCount()).isEqualTo(1);
+
+    rxFirebase.observeSetValue(post.child("author"), "ada").subscribe();
+    assertThat(cache.getInvalidationCount()).isEqualTo(1);
+    assertThat(readAuthor(post)).isEqualTo("ada");
+    assertThat(cache.getMissCount()).isEqualTo(3);
+    assertThat(localFirebase.getListenerCount()).isZero();
+  }
+
+  @Test public void testSnapshotCacheEvictsLeastRecentlyUsed() {
+    final SnapshotCache cache = SnapshotCache.of(2, 1024 * 1024, 1, TimeUnit.MINUTES)
+        .setTtl("fireblog/JRHTHaIs-jNPLXOQivY", 0, TimeUnit.MINUTES);
+    rxFirebase.setSnapshotCache(cache);
+    final DatabaseReference first = fireblog.child("-JRHTHaKuITFIhnj02kE/author");
+    final DatabaseReference second = fireblog.child("-JRHTHaKuITFIhnj02kE/title");
+    final DatabaseReference third = fireblog.child("JRHTHaIs-jNPLXOQivY");
+
+    rxFirebase.observeSingleValue(first).subscribe();
+    rxFirebase.observeSingleValue(second).subscribe();
+    rxFirebase.observeSingleValue(first).subscribe();
+    rxFirebase.observeSingleValue(fireblog).subscribe();
+    rxFirebase.observeSingleValue(third).subscribe();
+
+    assertThat(cache.getEntryCount()).isEqualTo(2);
+    assertThat(cache.getEvictionCount()).isEqualTo(1);
+    assertThat(cache.getByteSize()).isPositive();
+    rxFirebase.observeSingleValue(first).subscribe();
+    rxFirebase.observeSingleValue(second).subscribe();
+    assertThat(cache.getHitCount()).isEqualTo(2);
+    assertThat(cache.getMissCount()).isEqualTo(5);
+
+    // The reads of the derived queries are not cached
+    rxFirebase.observeSingleValue(fireblog.orderByKey()).subscribe();
+    assertThat(cache.getMissCount()).isEqualTo(5);
+    assertThat(cache.getEntryCount()).isEqualTo(2);
+  }
+
+  @Test public void testSnapshotCacheBoundsSubtreesAndTransactions() {
+    final SnapshotCache cache = SnapshotCache.of(10, 8 * 1024, 1, TimeUnit.MINUTES);
+    rxFirebase.setSnapshotCache(cache);
+    final StringBuilder text = new StringBuilder();
+    while (text.length() < 100) {
+      text.append("lorem ipsum ");
+    }
+    final Map<String, Object> values = new HashMap<>();
+    for (int index = 0; index < 100; index++) {
+      values.put("large/only/" + index, text.toString());
+    }
+    rxFirebase.observeUpdateChildren(localFirebase.getReference("subtrees"), values).subscribe();
+
+    // A single child holding a large subtree does not fit in the cache
+    rxFirebase.observeSingleValue(localFirebase.getReference("subtrees/large")).subscribe();
+    assertThat(cache.getEntryCount()).isZero();
+
+    final DatabaseReference likes = localFirebase.getReference("counters/likes");
+    rxFirebase.observeRunTransaction(likes, new Func1<MutableData, Transaction.Result>() {
+      @Override public Transaction.Result call(MutableData mutableData) {
+        // A read while the transaction runs caches the value before the commit
+        rxFirebase.observeSingleValue(likes).subscribe();
+        mutableData.setValue(1L);
+        return Transaction.success(mutableData);
+      }
+    }).subscribe();
+    assertThat(rxFirebase.observeSingleValue(likes, Long.class).toBlocking().single())
+        .isEqualTo(1L);
+    assertThat(cache.getHitCount()).isZero();
+  }
+
+  @Test public void testPrefetchWarmsQueriesByPriority() {
+    final TestScheduler testScheduler = new TestScheduler();
+    localFirebase.setScheduler(testScheduler).setLatency(100, TimeUnit.MILLISECONDS);
+    final DatabaseReference first = fireblog.child("-JRHTHaKuITFIhnj02kE");
+    final DatabaseReference second = fireblog.child("JRHTHaIs-jNPLXOQivY");
+    final DatabaseReference third = localFirebase.getReference("config");
+
+    final Prefetcher prefetcher = rxFirebase.prefetch(
+        Arrays.asList(Prefetch.of(third), Prefetch.of(first).setPriority(2),
+            Prefetch.of(second).setPriority(1)), 1);
+    assertThat(localFirebase.getListenerCount()).isEqualTo(1);
+    testScheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+    assertThat(prefetcher.getReadyCount()).isEqualTo(1);
+    assertThat(localFirebase.getListenerCount()).isEqualTo(2);
+
+    TestSubscriber<Post> testSubscriber = new TestSubscriber<>();
+    rxFirebase.observeValueEvent(first, Post.class).subscribe(testSubscriber);
+    testSubscriber.assertValueCount(1);
+    assertThat(testSubscriber.getOnNextEvents().get(0).author).isEqualTo("alan");
+    assertThat(prefetcher.getClaimedCount()).isEqualTo(1);
+
+    testScheduler.advanceTimeBy(200, TimeUnit.MILLISECONDS);
+    assertThat(prefetcher.getReadyCount()).isEqualTo(3);
+    prefetcher.release();
+    assertThat(localFirebase.getListenerCount()).isEqualTo(1);
+    testSubscriber.unsubscribe();
+    assertThat(localFirebase.getListenerCount()).isZero();
+  }
+
+  @Test public void testPrefetchChildEventsIsClaimedByChildObservers() {
+    final Prefetcher prefetcher = rxFirebase.prefetch(
+        Collections.singletonList(Prefetch.ofChildEvents(fireblog)), 1);
+    assertThat(prefetcher.getReadyCount()).isEqualTo(1);
+    assertThat(localFirebase.getListenerCount()).isEqualTo(1);
+
+    // A value observer does not claim the child listener
+    rxFirebase.observeSingleValue(fireblog).subscribe();
+    assertThat(prefetcher.getClaimedCount()).isZero();
+
+    TestSubscriber<FirebaseChildEvent> testSubscriber = new TestSubscriber<>();
+    rxFirebase.observeChildEvent(fireblog).subscribe(testSubscriber);
+    testSubscriber.assertValueCount(2);
+    assertThat(prefetcher.getClaimedCount()).isEqualTo(1);
+    assertThat(localFirebase.getListenerCount()).isEqualTo(1);
+
+    prefetcher.release();
+    testSubscriber.unsubscribe();
+    assertThat(localFirebase.getListenerCount()).isZero();
+  }
+
+  @Test public void testPrefetchChildEventsIsClaimedByObserveList() {
+    final Prefetcher prefetcher = rxFirebase.prefetch(
+        Collections.singletonList(Prefetch.ofChildEvents(fireblog)), 1);
+    assertThat(localFirebase.getListenerCount()).isEqualTo(1);
+
+    TestSubscriber<FirebaseListEvent<Post>> testSubscriber = new TestSubscriber<>();
+    rxFirebase.observeList(fireblog, Post.class).subscribe(testSubscriber);
+    testSubscriber.assertValueCount(2);
+    assertThat(testSubscriber.getOnNextEvents().get(1).getList()).hasSize(2);
+    assertThat(prefetcher.getClaimedCount()).isEqualTo(1);
+    assertThat(localFirebase.getListenerCount()).isEqualTo(1);
+
+    // The list keeps the listener it took over
+    prefetcher.release();
+    assertThat(localFirebase.getListenerCount()).isEqualTo(1);
+    rxFirebase.observeSetValuePush(fireblog, new Post("grace", "COBOL")).subscribe();
+    testSubscriber.assertValueCount(3);
+    testSubscriber.unsubscribe();
+    assertThat(localFirebase.getListenerCount()).isZero();
+  }
+
+  @Test public void testObserveOnFramesFoldsEventsIntoFrames() {
+    final List<Action0> frameCallbacks = new ArrayList<>();
+    rxFirebase.observeOnFrames(new FrameClock() {
+      @Override public void postFrameCallback(Action0 callback) {
+        frameCallbacks.add(callback);
+      }
+    });
+    final DatabaseReference items = seedItems(3);
+
+    TestSubscriber<FirebaseChildEvent> testSubscriber = new TestSubscriber<>();
+    rxFirebase.observeChildEvent(items).subscribe(testSubscriber);
+    rxFirebase.observeSetValue(items.child("1"), "changed").subscribe();
+    testSubscriber.assertNoValues();
+    assertThat(frameCallbacks).hasSize(1);
+
+    frameCallbacks.remove(0).call();
+    final List<FirebaseChildEvent> events = testSubscriber.getOnNextEvents();
+    assertThat(events).hasSize(4);
+    assertThat(keyAndType(events.get(2))).isEqualTo("2 ADDED");
+    assertThat(keyAndType(events.get(3))).isEqualTo("1 CHANGED");
+    assertThat(rxFirebase.getFrameStats().getFrameCount()).isEqualTo(1);
+    // The frame also delivered the result of the seeding update
+    assertThat(rxFirebase.getFrameStats().getMaxEventsPerFrame()).isEqualTo(5);
+
+    rxFirebase.observeSetValue(items.child("3"), "added").subscribe();
+    frameCallbacks.remove(0).call();
+    testSubscriber.assertValueCount(5);
+    assertThat(rxFirebase.getFrameStats().getLastEventsPerFrame()).isEqualTo(1);
+    testSubscriber.unsubscribe();
+  }
+
+  @Test public void testObserveOnFramesDeliversCompletionOnce() {
+    final List<Action0> frameCallbacks = new ArrayList<>();
+    rxFirebase.observeOnFrames(new FrameClock() {
+      @Override public void postFrameCallback(Action0 callback) {
+        frameCallbacks.add(callback);
+      }
+    });
+
+    TestSubscriber<DataSnapshot> testSubscriber = new TestSubscriber<>();
+    rxFirebase.observeSingleValue(fireblog).subscribe(testSubscriber);
+    frameCallbacks.remove(0).call();
+    testSubscriber.assertValueCount(1);
+    testSubscriber.assertCompleted();
+
+    testSubscriber.requestMore(1);
+    assertThat(frameCallbacks).isEmpty();
+    assertThat(testSubscriber.getOnCompletedEvents()).hasSize(1);
+  }
+
+  @Test public void testConnectionAwareListenersReattachByPriority() {
+    final TestScheduler testScheduler = new TestScheduler();
+    final DatabaseReference low = fireblog.child("-JRHTHaKuITFIhnj02kE/title");
+    final DatabaseReference high = fireblog.child("JRHTHaIs-jNPLXOQivY/title");
+    final DatabaseReference critical = fireblog.child("JRHTHaIs-jNPLXOQivY/author");
+    localFirebase.setConnected(true);
+    rxFirebase.setConnectionAware(fireblog, 100, TimeUnit.MILLISECONDS, testScheduler);
+
+    TestSubscriber<Boolean> stateSubscriber = new TestSubscriber<>();
+    TestSubscriber<DataSnapshot> lowSubscriber = new TestSubscriber<>();
+    rxFirebase.observeConnectionState(fireblog).subscribe(stateSubscriber);
+    rxFirebase.observeValueEvent(low, ListenerPriority.LOW).subscribe(lowSubscriber);
+    rxFirebase.observeValueEvent(high, ListenerPriority.HIGH).subscribe();
+    rxFirebase.observeValueEvent(critical, ListenerPriority.CRITICAL).subscribe();
+    assertThat(localFirebase.getListenerCount()).isEqualTo(4);
+
+    localFirebase.setConnected(false);
+    assertThat(localFirebase.getListenerCount()).isEqualTo(2);
+    rxFirebase.observeSetValue(low, "Offline edit").subscribe();
+    lowSubscriber.assertValueCount(1);
+
+    localFirebase.setConnected(true);
+    testScheduler.triggerActions();
+    assertThat(localFirebase.getListenerCount()).isEqualTo(3);
+    lowSubscriber.assertValueCount(1);
+    testScheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+    assertThat(localFirebase.getListenerCount()).isEqualTo(4);
+    assertThat(lowSubscriber.getOnNextEvents().get(1).getValue()).isEqualTo("Offline edit");
+    stateSubscriber.assertValues(true, false, true);
+  }
+
+  @Test public void testConnectionAwareChildEventsResyncOnReattach() {
+    final TestScheduler testScheduler = new TestScheduler();
+    final DatabaseReference items = seedItems(3);
+    localFirebase.setConnected(true);
+    rxFirebase.setConnectionAware(items, 100, TimeUnit.MILLISECONDS, testScheduler);
+
+    TestSubscriber<FirebaseChildEvent> testSubscriber = new TestSubscriber<>();
+    rxFirebase.observeChildEvent(items, ListenerPriority.LOW).subscribe(testSubscriber);
+    testSubscriber.assertValueCount(3);
+
+    localFirebase.setConnected(false);
+    items.child("1").setValue("changed");
+    items.child("2").removeValue();
+    localFirebase.setConnected(true);
+    testScheduler.triggerActions();
+
+    final List<FirebaseChildEvent> events = testSubscriber.getOnNextEvents();
+    assertThat(events).hasSize(5);
+    assertThat(keyAndType(events.get(3))).isEqualTo("1 CHANGED");
+    assertThat(events.get(3).getDataSnapshot().getValue()).isEqualTo("changed");
+    assertThat(keyAndType(events.get(4))).isEqualTo("2 REMOVED");
+
+    // Disabling the connection awareness while offline opens the gate again
+    localFirebase.setConnected(false);
+    rxFirebase.setConnectionAware(null, 0, TimeUnit.MILLISECONDS);
+    items.child("3").setValue("added");
+    testSubscriber.assertValueCount(6);
+    assertThat(keyAndType(events.get(5))).isEqualTo("3 ADDED");
+    testSubscriber.unsubscribe();
+  }
+
+  @SuppressWarnings("unchecked") @Test public void testTokenRefresherResubscribesOnExpiry() {
+    final FirebaseAuth firebaseAuth = mock(FirebaseAuth.class);
+    final FirebaseUser firebaseUser = mock(FirebaseUser.class);
+    final Task<GetTokenResult> tokenTask = mock(Task.class);
+    final List<OnCompleteListener<GetTokenResult>> tokenListeners = new ArrayList<>();
+    when(firebaseAuth.getCurrentUser()).thenReturn(firebaseUser);
+    when(firebaseUser.getToken(true)).thenReturn(tokenTask);
+    when(tokenTask.isSuccessful()).thenReturn(true);
+    when(tokenTask.getResult()).thenReturn(mock(GetTokenResult.class));
+    when(tokenTask.addOnCompleteListener(any(Executor.class), any(OnCompleteListener.class)))
+        .thenAnswer(new Answer<Object>() {
+          @Override public Object answer(InvocationOnMock invocation) {
+            tokenListeners.add((OnCompleteListener<GetTokenResult>) invocation.getArguments()[1]);
+            return tokenTask;
+          }
+        });
+    final TokenRefresher tokenRefresher = new RxFirebaseAuth(firebaseAuth) {
+    }.getTokenRefresher();
+    rxFirebase.setTokenRefresher(tokenRefresher);
+    final DatabaseReference title = fireblog.child("-JRHTHaKuITFIhnj02kE/title");
+
+    TestSubscriber<DataSnapshot> valueSubscriber = new TestSubscriber<>();
+    TestSubscriber<FirebaseChildEvent> childSubscriber = new TestSubscriber<>();
+    rxFirebase.observeValueEvent(title).subscribe(valueSubscriber);
+    rxFirebase.observeChildEvent(fireblog).subscribe(childSubscriber);
+    childSubscriber.assertValueCount(2);
+
+    localFirebase.cancelListeners("fireblog", DatabaseError.EXPIRED_TOKEN);
+    assertThat(localFirebase.getListenerCount()).isEqualTo(0);
+    assertThat(tokenListeners).hasSize(1);
+    // The child removed before the resubscription is reported once the query is loaded
+    fireblog.child("JRHTHaIs-jNPLXOQivY").removeValue();
+    tokenListeners.get(0).onComplete(tokenTask);
+    assertThat(localFirebase.getListenerCount()).isEqualTo(2);
+    assertThat(tokenRefresher.getRefreshCount()).isEqualTo(1);
+    valueSubscriber.assertNoErrors();
+    valueSubscriber.assertValueCount(1);
+    childSubscriber.assertNoErrors();
+    childSubscriber.assertValueCount(3);
+    assertThat(keyAndType(childSubscriber.getOnNextEvents().get(2)))
+        .isEqualTo("JRHTHaIs-jNPLXOQivY REMOVED");
+
+    rxFirebase.observeSetValue(title, "The Turing Test").subscribe();
+    valueSubscriber.assertValueCount(2);
+    assertThat(keyAndType(childSubscriber.getOnNextEvents().get(3)))
+        .isEqualTo("-JRHTHaKuITFIhnj02kE CHANGED");
+
+    localFirebase.failListens(DatabaseError.INVALID_TOKEN);
+    localFirebase.cancelListeners("fireblog", DatabaseError.INVALID_TOKEN);
+    tokenListeners.get(1).onComplete(tokenTask);
+    assertThat(tokenListeners).hasSize(2);
+    valueSubscriber.assertError(FirebaseInvalidTokenException.class);
+    childSubscriber.assertError(FirebaseInvalidTokenException.class);
+  }
+
+  @Test public void testRunTransactionCountsAttemptsWithinBudget() {
+    final DatabaseReference likes = localFirebase.getReference("counters/likes");
+    final Func1<Long, Long> increment = new Func1<Long, Long>() {
+      @Override public Long call(Long value) {
+        return value == null ? 1 : value + 1;
+      }
+    };
+
+    // The first run on the local value is rejected and is not an attempt
+    localFirebase.conflictNextTransactions(1);
+    TestSubscriber<Long> firstSubscriber = new TestSubscriber<>();
+    rxFirebase.observeRunTransaction(likes, Long.class, increment, 1).subscribe(firstSubscriber);
+    firstSubscriber.assertValue(1L);
+    assertThat(rxFirebase.getTransactionStats().getMaxAttemptsPerCommit()).isEqualTo(1);
+
+    localFirebase.conflictNextTransactions(3);
+    TestSubscriber<Long> testSubscriber = new TestSubscriber<>();
+    rxFirebase.observeRunTransaction(likes, Long.class, increment, 3).subscribe(testSubscriber);
+    testSubscriber.assertValue(2L);
+    assertThat(rxFirebase.getTransactionStats().getMaxAttemptsPerCommit()).isEqualTo(3);
+
+    localFirebase.conflictNextTransactions(5);
+    TestSubscriber<Long> exhaustedSubscriber = new TestSubscriber<>();
+    rxFirebase.observeRunTransaction(likes, Long.class, increment, 3)
+        .subscribe(exhaustedSubscriber);
+    exhaustedSubscriber.assertError(FirebaseTransactionAbortedException.class);
+    assertThat(localFirebase.getValue("counters/likes")).isEqualTo(2L);
+
+    TestSubscriber<FirebaseTransactionResult> abortedSubscriber = new TestSubscriber<>();
+    rxFirebase.observeRunTransaction(likes, new Func1<MutableData, Transaction.Result>() {
+      @Override public Transaction.Result call(MutableData mutableData) {
+        return Transaction.abort();
+      }
+    }).subscribe(abortedSubscriber);
+    abortedSubscriber.assertError(FirebaseTransactionAbortedException.class);
+
+    assertThat(rxFirebase.getTransactionStats().getCommitCount()).isEqualTo(2);
+    assertThat(rxFirebase.getTransactionStats().getAbortCount()).isEqualTo(2);
+    assertThat(rxFirebase.getTransactionStats().getBudgetAbortCount()).isEqualTo(1);
+    assertThat(rxFirebase.getTransactionStats().getAttemptCount()).isEqualTo(8);
+  }
+
+  @Test public void testShardedCounterAggregatesShardEvents() {
+    final DatabaseReference views = localFirebase.getReference("counters/views");
+    final ShardedCounter counter = ShardedCounter.create(rxFirebase, views, 4);
+
+    TestSubscriber<Long> totalSubscriber = new TestSubscriber<>();
+    counter.observeTotal().subscribe(totalSubscriber);
+    counter.increment(2).subscribe();
+    counter.increment(3).subscribe();
+    for (String user : Arrays.asList("alan", "spiros", "grace", "ada")) {
+      counter.increment(user, 1).subscribe();
+    }
+    counter.increment("alan", -1).subscribe();
+
+    final Map<?, ?> shards = (Map<?, ?>) localFirebase.getValue("counters/views");
+    assertThat(shards.size()).isLessThanOrEqualTo(4);
+    for (Object shard : shards.keySet()) {
+      assertThat((String) shard).startsWith("shard-");
+    }
+    totalSubscriber.assertNoErrors();
+    assertThat(totalSubscriber.getOnNextEvents()).endsWith(8L);
+
+    TestSubscriber<Long> lateSubscriber = new TestSubscriber<>();
+    counter.observeTotal().subscribe(lateSubscriber);
+    lateSubscriber.assertValue(8L);
+  }
+
+  @Test public void testShardedCounterEmitsTotalOnceLoaded() {
+    TestSubscriber<Long> emptySubscriber = new TestSubscriber<>();
+    ShardedCounter.create(rxFirebase, localFirebase.getReference("counters/empty"), 4)
+        .observeTotal()
+        .subscribe(emptySubscriber);
+    emptySubscriber.assertValue(0L);
+
+    final DatabaseReference views = localFirebase.getReference("counters/views");
+    final Map<String, Object> shards = new HashMap<>();
+    shards.put("shard-0", 2L);
+    shards.put("shard-1", 3L);
+    shards.put("shard-2", 4L);
+    rxFirebase.observeUpdateChildren(views, shards).subscribe();
+
+    // The initial shards are not emitted as partial sums
+    TestSubscriber<Long> totalSubscriber = new TestSubscriber<>();
+    final ShardedCounter counter = ShardedCounter.create(rxFirebase, views, 4);
+    counter.observeTotal().subscribe(totalSubscriber);
+    totalSubscriber.assertValue(9L);
+    counter.increment(1).subscribe();
+    totalSubscriber.assertValues(9L, 10L);
+    totalSubscriber.unsubscribe();
+    emptySubscriber.unsubscribe();
+    assertThat(localFirebase.getListenerCount()).isZero();
+  }
+
+  @Test public void testObserveValueEventDiffReportsChangedChildren() {
+    TestSubscriber<FirebaseValueDiff> testSubscriber = new TestSubscriber<>();
+    rxFirebase.observeValueEventDiff(fireblog).subscribe(testSubscriber);
+    assertThat(testSubscriber.getOnNextEvents().get(0).getAdded().keySet())
+        .containsOnly("-JRHTHaKuITFIhnj02kE", "JRHTHaIs-jNPLXOQivY");
+
+    final DatabaseReference title = fireblog.child("-JRHTHaKuITFIhnj02kE/title");
+    rxFirebase.observeSetValue(title, "On Computable Numbers").subscribe();
+    final FirebaseValueDiff modified = testSubscriber.getOnNextEvents().get(1);
+    assertThat(modified.getModified().keySet()).containsOnly("-JRHTHaKuITFIhnj02kE");
+    assertThat(modified.getModified().get("-JRHTHaKuITFIhnj02kE").child("title").getValue())
+        .isEqualTo("On Computable Numbers");
+    assertThat(modified.getAdded()).isEmpty();
+    assertThat(modified.getRemoved()).isEmpty();
+
+    final Map<String, Object> changes = new HashMap<>();
+    changes.put("JRHTHaIs-jNPLXOQivY", null);
+    changes.put("grace", new Post("grace", "Flow-Matic"));
+    rxFirebase.observeUpdateChildren(fireblog, changes).subscribe();
+    final FirebaseValueDiff replaced = testSubscriber.getOnNextEvents().get(2);
+    assertThat(replaced.getAdded().keySet()).containsOnly("grace");
+    assertThat(replaced.getRemoved()).containsOnly("JRHTHaIs-jNPLXOQivY");
+    assertThat(replaced.getModified()).isEmpty();
+    testSubscriber.assertValueCount(3);
+  }
+
+  @Test public void testLocalMirrorAnswersIndexedQueries() {
+    final LocalMirror<Post> mirror =
+        LocalMirror.create(rxFirebase, fireblog, Post.class).addIndex("author");
+    final Subscription connection = mirror.connect();
+    assertThat(mirror.size()).isEqualTo(2);
+    assertThat(mirror.get("-JRHTHaKuITFIhnj02kE").title).isEqualTo("The Turing Machine");
+    assertThat(titlesOf(mirror.query(MirrorQuery.orderBy("author").equalTo("alan"))))
+        .containsExactly("The Turing Machine");
+
+    TestSubscriber<List<Post>> testSubscriber = new TestSubscriber<>();
+    mirror.observe(MirrorQuery.orderBy("author").startAt("b")).subscribe(testSubscriber);
+    assertThat(authorsOf(testSubscriber.getOnNextEvents().get(0))).containsExactly("spiros");
+
+    // A change outside of the range is not emitted again
+    rxFirebase.observeSetValue(fireblog.child("-JRHTHaKuITFIhnj02kE/title"), "Computable Numbers")
+        .subscribe();
+    testSubscriber.assertValueCount(1);
+    assertThat(mirror.get("-JRHTHaKuITFIhnj02kE").title).isEqualTo("Computable Numbers");
+
+    rxFirebase.observeSetValue(fireblog.child("grace"), new Post("grace", "Flow-Matic"))
+        .subscribe();
+    testSubscriber.assertValueCount(2);
+    assertThat(authorsOf(testSubscriber.getOnNextEvents().get(1)))
+        .containsExactly("grace", "spiros");
+    assertThat(titlesOf(mirror.query(MirrorQuery.orderByKey().limitToLast(1))))
+        .containsExactly("Flow-Matic");
+
+    connection.unsubscribe();
+    testSubscriber.assertNoErrors();
+  }
+
+  @Test public void testLocalMirrorObservesACopyOfTheQuery() {
+    final LocalMirror<Post> mirror =
+        LocalMirror.create(rxFirebase, fireblog, Post.class).addIndex("author");
+    final Subscription connection = mirror.connect();
+
+    final MirrorQuery mirrorQuery = MirrorQuery.orderBy("author").startAt("b");
+    TestSubscriber<List<Post>> testSubscriber = new TestSubscriber<>();
+    mirror.observe(mirrorQuery).subscribe(testSubscriber);
+    // Changing the query later does not change the stream
+    mirrorQuery.startAt("a").limitToFirst(1);
+    rxFirebase.observeSetValue(fireblog.child("grace"), new Post("grace", "Flow-Matic"))
+        .subscribe();
+    assertThat(authorsOf(testSubscriber.getOnNextEvents().get(1)))
+        .containsExactly("grace", "spiros");
+
+    TestSubscriber<List<Post>> failedSubscriber = new TestSubscriber<>();
+    final Observable<List<Post>> unknown = mirror.observe(MirrorQuery.orderBy("title"));
+    failedSubscriber.assertNoErrors();
+    unknown.subscribe(failedSubscriber);
+    failedSubscriber.assertError(IllegalArgumentException.class);
+
+    connection.unsubscribe();
+    testSubscriber.assertNoErrors();
+  }
+
+  @Test public void testLocalMirrorOrdersIntegerKeysAndReconnects() {
+    final DatabaseReference items = seedItems(11);
+    rxFirebase.observeSetValue(items.child("a"), "itema").subscribe();
+    final LocalMirror<String> mirror = LocalMirror.create(rxFirebase, items, String.class);
+    mirror.connect();
+    assertThat(mirror.query(MirrorQuery.orderByKey().startAt("9").limitToFirst(3)))
+        .containsExactly("item9", "item10", "itema");
+
+    TestSubscriber<List<String>> failedSubscriber = new TestSubscriber<>();
+    mirror.observe(MirrorQuery.orderByKey()).subscribe(failedSubscriber);
+    localFirebase.cancelListeners("items", DatabaseError.PERMISSION_DENIED);
+    failedSubscriber.assertError(FirebasePermissionDeniedException.class);
+    // A child removed while the mirror is not connected is removed by the next connect
+    rxFirebase.observeUpdateChildren(items, Collections.<String, Object>singletonMap("a", null))
+        .subscribe();
+
+    // The next connect is observed again
+    final Subscription connection = mirror.connect();
+    assertThat(mirror.get("a")).isNull();
+    assertThat(mirror.size()).isEqualTo(11);
+    TestSubscriber<List<String>> testSubscriber = new TestSubscriber<>();
+    mirror.observe(MirrorQuery.orderByKey().limitToLast(1)).subscribe(testSubscriber);
+    assertThat(testSubscriber.getOnNextEvents().get(0)).containsExactly("item10");
+    rxFirebase.observeSetValue(items.child("b"), "itemb").subscribe();
+    assertThat(testSubscriber.getOnNextEvents().get(1)).containsExactly("itemb");
+    connection.unsubscribe();
+    testSubscriber.assertNoErrors();
+  }
+
+  private String readAuthor(DatabaseReference post) {
+    return rxFirebase.observeSingleValue(post, Post.class).toBlocking().single().author;
+  }
+
+  private DatabaseReference seedItems(int count) {
+    final DatabaseReference items = localFirebase.getReference("items");
+    final Map<String, Object> values = new HashMap<>();
+    for (int index = 0; index < count; index++) {
+      values.put(String.valueOf(index), "item" + index);
+    }
+    rxFirebase.observeUpdateChildren(items, values).subscribe();
+    return items;
+  }
+
+  private static List<String> keysOf(FirebasePage page) {
+    final List<String> keys = new ArrayList<>();
+    for (DataSnapshot dataSnapshot : page.getSnapshots()) {
+      keys.add(dataSnapshot.getKey());
+    }
+    return keys;
+  }
+
+  private static List<String> authorsOf(List<Post> posts) {
+    final List<String> authors = new ArrayList<>();
+    for (Post post : posts) {
+      authors.add(post.author);
+    }
+    return authors;
+  }
+
+  private static List<String> titlesOf(List<Post> posts) {
+    final List<String> titles = new ArrayList<>();
+    for (Post post : posts) {
+      titles.add(post.title);
+    }
+    return titles;
+  }
+
+  private static String keyAndType(FirebaseChildEvent event) {
+    return event.getDataSnapshot().getKey() + " " + event.getEventType();
+  }
+
+  public static class Post {
+
+    public String author;
+    public String title;
+
+    public Post() {
+    }
+
+    Post(String author, String title) {
+      this.author = author;
+      this.title = title;
+    }
+  }
+}
@@ -15,12 +15,26 @@
  */
 package com.ezhome.rxfirebase2;
 
+import com.ezhome.rxfirebase2.database.BoundedBuffer;
+import com.ezhome.rxfirebase2.database.BufferStats;
+import com.ezhome.rxfirebase2.database.DataSnapshotMapper;
+import com.ezhome.rxfirebase2.database.FirebaseChildEventBatch;
 import com.ezhome.rxfirebase2.database.RxFirebaseDatabase;
+import com.ezhome.rxfirebase2.exception.FirebasePermissionDeniedException;
+import com.ezhome.rxfirebase2.instrumentation.InMemoryFirebaseInstrumentation;
+import com.ezhome.rxfirebase2.instrumentation.NoOpFirebaseInstrumentation;
+import com.google.firebase.database.ChildEventListener;
 import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
 import com.google.firebase.database.DatabaseReference;
 import com.google.firebase.database.Query;
+import com.google.firebase.database.ValueEventListener;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -28,12 +42,24 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import rx.Observable;
+import rx.Observer;
+import rx.exceptions.MissingBackpressureException;
 import rx.observers.TestSubscriber;
 import rx.schedulers.Schedulers;
+import rx.schedulers.TestScheduler;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class RxFirebaseDatabaseTest extends ApplicationTestCase {
@@ -56,6 +82,8 @@ public class RxFirebaseDatabaseTest extends ApplicationTestCase {
   }
 
   @After public void destroy() {
+    rxFirebase.setListenerLinger(0, TimeUnit.MILLISECONDS);
+    rxFirebase.decodeOn(Schedulers.computation());
     rxFirebase = null;
     spyRxFirebase = null;
   }
@@ -95,6 +123,27 @@ public class RxFirebaseDatabaseTest extends ApplicationTestCase {
     testSubscriber.unsubscribe();
   }
 
+  @Test public void testObserveSetValueResult() {
+    final Object data = new Object();
+    when(mockReference.getKey()).thenReturn(FAKE_RESPONSE);
+    doAnswer(new Answer<Void>() {
+      @Override public Void answer(InvocationOnMock invocation) {
+        ((DatabaseReference.CompletionListener) invocation.getArguments()[1]).onComplete(null,
+            mockReference);
+        return null;
+      }
+    }).when(mockReference).setValue(eq(data), any(DatabaseReference.CompletionListener.class));
+
+    TestSubscriber<FirebaseWriteResult> testSubscriber = new TestSubscriber<>();
+    rxFirebase.observeSetValueResult(mockReference, data).subscribe(testSubscriber);
+
+    testSubscriber.assertNoErrors();
+    testSubscriber.assertValueCount(1);
+    testSubscriber.assertCompleted();
+    assertThat(testSubscriber.getOnNextEvents().get(0).getKey()).isEqualTo(FAKE_RESPONSE);
+    verify(mockReference, never()).addListenerForSingleValueEvent(any(ValueEventListener.class));
+  }
+
   @Test public void testObserveChildValue() {
     when(spyRxFirebase.observeChildEvent(mockRef)).thenReturn(
         Observable.just(mockFirebaseChildEvent));
@@ -193,4 +242,368 @@ public class RxFirebaseDatabaseTest extends ApplicationTestCase {
     testSubscriber.assertCompleted();
     testSubscriber.unsubscribe();
   }
+
+  @Test public void testObserveValueEventSharesListener() {
+    final ValueEventListener[] listener = captureValueEventListener(mockReference);
+
+    TestSubscriber<DataSnapshot> firstSubscriber = new TestSubscriber<>();
+    TestSubscriber<DataSnapshot> secondSubscriber = new TestSubscriber<>();
+    rxFirebase.observeValueEvent(mockReference).subscribe(firstSubscriber);
+    listener[0].onDataChange(mockDataSnapshot);
+    rxFirebase.observeValueEvent(mockReference).subscribe(secondSubscriber);
+
+    verify(mockReference, times(1)).addValueEventListener(any(ValueEventListener.class));
+    firstSubscriber.assertValue(mockDataSnapshot);
+    secondSubscriber.assertValue(mockDataSnapshot);
+
+    firstSubscriber.unsubscribe();
+    verify(mockReference, never()).removeEventListener(any(ValueEventListener.class));
+    secondSubscriber.unsubscribe();
+    verify(mockReference).removeEventListener(listener[0]);
+  }
+
+  @Test public void testObserveValueEventLingersListener() {
+    final ValueEventListener[] listener = captureValueEventListener(mockReference);
+    final TestScheduler testScheduler = new TestScheduler();
+    rxFirebase.setListenerLinger(5, TimeUnit.SECONDS, testScheduler);
+
+    TestSubscriber<DataSnapshot> testSubscriber = new TestSubscriber<>();
+    rxFirebase.observeValueEvent(mockReference).subscribe(testSubscriber);
+    testSubscriber.unsubscribe();
+    testScheduler.advanceTimeBy(4, TimeUnit.SECONDS);
+    rxFirebase.observeValueEvent(mockReference).subscribe(new TestSubscriber<DataSnapshot>())
+        .unsubscribe();
+    testScheduler.advanceTimeBy(4, TimeUnit.SECONDS);
+
+    verify(mockReference, times(1)).addValueEventListener(any(ValueEventListener.class));
+    verify(mockReference, never()).removeEventListener(any(ValueEventListener.class));
+    testScheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+    verify(mockReference).removeEventListener(listener[0]);
+  }
+
+  @Test public void testObserveValueEventTyped() {
+    final ValueEventListener[] listener = captureValueEventListener(mockReference);
+    final DataSnapshot mockChildSnapshot = mock(DataSnapshot.class);
+    when(mockChildSnapshot.getValue(String.class)).thenReturn(FAKE_RESPONSE);
+    when(mockDataSnapshot.getChildrenCount()).thenReturn(2L);
+    when(mockDataSnapshot.getChildren()).thenReturn(
+        Arrays.asList(mockChildSnapshot, mockChildSnapshot));
+    rxFirebase.decodeOn(Schedulers.immediate());
+
+    TestSubscriber<List<String>> testSubscriber = new TestSubscriber<>();
+    rxFirebase.observeValueEvent(mockReference, DataSnapshotMapper.listOf(String.class))
+        .subscribe(testSubscriber);
+    listener[0].onDataChange(mockDataSnapshot);
+
+    testSubscriber.assertNoErrors();
+    testSubscriber.assertValue(Arrays.asList(FAKE_RESPONSE, FAKE_RESPONSE));
+    testSubscriber.unsubscribe();
+  }
+
+  @Test public void testObserveList() {
+    final ChildEventListener[] listener = captureChildEventListener(mockRef);
+    rxFirebase.decodeOn(Schedulers.immediate());
+
+    TestSubscriber<FirebaseListEvent<String>> testSubscriber = new TestSubscriber<>();
+    rxFirebase.observeList(mockRef, String.class).subscribe(testSubscriber);
+    listener[0].onChildAdded(childSnapshot("a"), null);
+    listener[0].onChildAdded(childSnapshot("c"), "a");
+    listener[0].onChildAdded(childSnapshot("b"), "a");
+    listener[0].onChildMoved(childSnapshot("c"), null);
+    listener[0].onChildRemoved(childSnapshot("a"));
+
+    testSubscriber.assertNoErrors();
+    testSubscriber.assertValueCount(5);
+    final FirebaseListEvent<String> listEvent = testSubscriber.getOnNextEvents().get(4);
+    assertThat(listEvent.getList()).containsExactly("c", "b");
+    assertThat(listEvent.getKeys()).containsExactly("c", "b");
+    assertThat(listEvent.getChanges()).containsExactly(
+        new FirebaseListEvent.Change(FirebaseListEvent.Change.Type.REMOVED, 1, 1, 1));
+    assertThat(testSubscriber.getOnNextEvents().get(3).getChanges()).containsExactly(
+        new FirebaseListEvent.Change(FirebaseListEvent.Change.Type.MOVED, 2, 0, 1));
+
+    // A duplicate added event replaces the child
+    listener[0].onChildAdded(childSnapshot("b"), "c");
+    listener[0].onChildAdded(childSnapshot("c"), "b");
+    testSubscriber.assertValueCount(7);
+    assertThat(testSubscriber.getOnNextEvents().get(5).getChanges()).containsExactly(
+        new FirebaseListEvent.Change(FirebaseListEvent.Change.Type.CHANGED, 1, 1, 1));
+    final FirebaseListEvent<String> replaced = testSubscriber.getOnNextEvents().get(6);
+    assertThat(replaced.getList()).containsExactly("b", "c");
+    assertThat(replaced.getChanges()).containsExactly(
+        new FirebaseListEvent.Change(FirebaseListEvent.Change.Type.REMOVED, 0, 0, 1),
+        new FirebaseListEvent.Change(FirebaseListEvent.Change.Type.INSERTED, 1, 1, 1));
+    testSubscriber.unsubscribe();
+  }
+
+  @Test public void testObserveChildEventBatched() {
+    final ChildEventListener[] listener = captureChildEventListener(mockRef);
+    final TestScheduler testScheduler = new TestScheduler();
+
+    final List<List<String>> keys = new ArrayList<>();
+    TestSubscriber<FirebaseChildEventBatch> testSubscriber =
+        new TestSubscriber<>(recordBatchKeys(keys));
+    rxFirebase.observeChildEventBatched(mockRef, 100, TimeUnit.MILLISECONDS, 2, testScheduler)
+        .subscribe(testSubscriber);
+    listener[0].onChildAdded(childSnapshot("a"), null);
+    listener[0].onChildAdded(childSnapshot("b"), "a");
+
+    testSubscriber.assertValueCount(1);
+    assertThat(keys.get(0)).containsExactly("a", "b");
+
+    listener[0].onChildAdded(childSnapshot("c"), "b");
+
+    testScheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+    testSubscriber.assertValueCount(2);
+    // The delivered batch was recycled and taken again from the pool
+    final FirebaseChildEventBatch secondBatch = testSubscriber.getOnNextEvents().get(1);
+    assertThat(secondBatch).isSameAs(testSubscriber.getOnNextEvents().get(0));
+    assertThat(keys.get(1)).containsExactly("c");
+    testSubscriber.unsubscribe();
+  }
+
+  @Test public void testObserveChildEventBatchedSharesListener() {
+    final ChildEventListener[] listener = captureChildEventListener(mockRef);
+    final TestScheduler testScheduler = new TestScheduler();
+
+    final List<List<String>> keys = new ArrayList<>();
+    TestSubscriber<FirebaseChildEvent> childSubscriber = new TestSubscriber<>();
+    TestSubscriber<FirebaseChildEventBatch> batchSubscriber =
+        new TestSubscriber<>(recordBatchKeys(keys));
+    rxFirebase.observeChildEvent(mockRef).subscribe(childSubscriber);
+    listener[0].onChildAdded(childSnapshot("a"), null);
+    rxFirebase.observeChildEventBatched(mockRef, 100, TimeUnit.MILLISECONDS, 2, testScheduler)
+        .subscribe(batchSubscriber);
+    listener[0].onChildAdded(childSnapshot("b"), "a");
+
+    verify(mockRef, times(1)).addChildEventListener(any(ChildEventListener.class));
+    // The late subscriber receives the current children first
+    batchSubscriber.assertValueCount(1);
+    assertThat(keys.get(0)).containsExactly("a", "b");
+
+    childSubscriber.unsubscribe();
+    batchSubscriber.unsubscribe();
+    verify(mockRef).removeEventListener(listener[0]);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testDeliveredBatchCannotBeReadAfterItsDelivery() {
+    final ChildEventListener[] listener = captureChildEventListener(mockRef);
+
+    TestSubscriber<FirebaseChildEventBatch> testSubscriber = new TestSubscriber<>();
+    rxFirebase.observeChildEventBatched(mockRef, 100, TimeUnit.MILLISECONDS, 1,
+        new TestScheduler()).subscribe(testSubscriber);
+    listener[0].onChildAdded(childSnapshot("a"), null);
+
+    testSubscriber.assertValueCount(1);
+    testSubscriber.getOnNextEvents().get(0).size();
+  }
+
+  @Test public void testObserveChildEventTypesShareListener() {
+    final ChildEventListener[] listener = captureChildEventListener(mockReference);
+
+    TestSubscriber<FirebaseChildEvent> addedSubscriber = new TestSubscriber<>();
+    TestSubscriber<FirebaseChildEvent> removedSubscriber = new TestSubscriber<>();
+    rxFirebase.observeChildAdded(mockReference).subscribe(addedSubscriber);
+    rxFirebase.observeChildRemoved(mockReference).subscribe(removedSubscriber);
+    listener[0].onChildAdded(childSnapshot("a"), null);
+    listener[0].onChildAdded(childSnapshot("b"), "a");
+    listener[0].onChildRemoved(childSnapshot("a"));
+
+    verify(mockReference, times(1)).addChildEventListener(any(ChildEventListener.class));
+    addedSubscriber.assertValueCount(2);
+    removedSubscriber.assertValueCount(1);
+    assertThat(removedSubscriber.getOnNextEvents().get(0).getEventType()).isEqualTo(
+        FirebaseChildEvent.EventType.REMOVED);
+
+    listener[0].onChildAdded(childSnapshot("c"), null);
+    listener[0].onChildMoved(childSnapshot("b"), null);
+
+    TestSubscriber<FirebaseChildEvent> lateSubscriber = new TestSubscriber<>();
+    rxFirebase.observeChildAdded(mockReference).subscribe(lateSubscriber);
+    lateSubscriber.assertValueCount(2);
+    assertThat(lateSubscriber.getOnNextEvents().get(0).getDataSnapshot().getKey()).isEqualTo("b");
+    assertThat(lateSubscriber.getOnNextEvents().get(1).getPreviousChildName()).isEqualTo("b");
+
+    addedSubscriber.unsubscribe();
+    removedSubscriber.unsubscribe();
+    verify(mockReference, never()).removeEventListener(any(ChildEventListener.class));
+    lateSubscriber.unsubscribe();
+    verify(mockReference).removeEventListener(listener[0]);
+  }
+
+  @Test public void testObserveTypedChildEventsShareListener() {
+    final ChildEventListener[] listener = captureChildEventListener(mockRef);
+    rxFirebase.decodeOn(Schedulers.immediate());
+
+    TestSubscriber<TypedFirebaseChildEvent<String>> typedSubscriber = new TestSubscriber<>();
+    TestSubscriber<FirebaseListEvent<String>> listSubscriber = new TestSubscriber<>();
+    rxFirebase.observeChildEvent(mockRef, String.class).subscribe(typedSubscriber);
+    listener[0].onChildAdded(childSnapshot("a"), null);
+    rxFirebase.observeList(mockRef, String.class).subscribe(listSubscriber);
+    listener[0].onChildAdded(childSnapshot("b"), "a");
+
+    verify(mockRef, times(1)).addChildEventListener(any(ChildEventListener.class));
+    typedSubscriber.assertValueCount(2);
+    assertThat(typedSubscriber.getOnNextEvents().get(1).getValue()).isEqualTo("b");
+    // The late subscriber receives the current children first
+    listSubscriber.assertValueCount(2);
+    assertThat(listSubscriber.getOnNextEvents().get(1).getList()).containsExactly("a", "b");
+
+    typedSubscriber.unsubscribe();
+    verify(mockRef, never()).removeEventListener(any(ChildEventListener.class));
+    listSubscriber.unsubscribe();
+    verify(mockRef).removeEventListener(listener[0]);
+  }
+
+  @Test public void testObserveChildEventBoundedBufferConflates() {
+    final ChildEventListener[] listener = captureChildEventListener(mockRef);
+
+    TestSubscriber<FirebaseChildEvent> testSubscriber = new TestSubscriber<>(0);
+    rxFirebase.observeChildEvent(mockRef, BoundedBuffer.of(3, BoundedBuffer.Overflow.CONFLATE))
+        .subscribe(testSubscriber);
+    listener[0].onChildAdded(childSnapshot("a"), null);
+    listener[0].onChildAdded(childSnapshot("b"), "a");
+    listener[0].onChildChanged(childSnapshot("a"), null);
+    listener[0].onChildAdded(childSnapshot("c"), "b");
+    listener[0].onChildRemoved(childSnapshot("c"));
+
+    final BufferStats stats = rxFirebase.getBufferStats().get(0);
+    assertThat(stats.getQueueDepth()).isEqualTo(2);
+    assertThat(stats.getDroppedCount()).isEqualTo(3);
+
+    // The conflated child keeps its position, before the sibling added after it
+    testSubscriber.requestMore(3);
+    testSubscriber.assertValueCount(2);
+    final FirebaseChildEvent conflated = testSubscriber.getOnNextEvents().get(0);
+    assertThat(conflated.getDataSnapshot().getKey()).isEqualTo("a");
+    assertThat(conflated.getEventType()).isEqualTo(FirebaseChildEvent.EventType.ADDED);
+    assertThat(testSubscriber.getOnNextEvents().get(1).getDataSnapshot().getKey())
+        .isEqualTo("b");
+    assertThat(stats.getDeliveredCount()).isEqualTo(2);
+    assertThat(stats.getMaxQueueDepth()).isEqualTo(3);
+
+    testSubscriber.unsubscribe();
+    assertThat(rxFirebase.getBufferStats()).isEmpty();
+  }
+
+  @Test public void testObserveChildEventBoundedBufferConflatesMoves() {
+    final ChildEventListener[] listener = captureChildEventListener(mockRef);
+
+    TestSubscriber<FirebaseChildEvent> testSubscriber = new TestSubscriber<>(0);
+    rxFirebase.observeChildEvent(mockRef, BoundedBuffer.of(2, BoundedBuffer.Overflow.CONFLATE))
+        .subscribe(testSubscriber);
+    listener[0].onChildMoved(childSnapshot("a"), "c");
+    listener[0].onChildChanged(childSnapshot("a"), "c");
+    listener[0].onChildRemoved(childSnapshot("b"));
+    listener[0].onChildAdded(childSnapshot("b"), "a");
+
+    testSubscriber.requestMore(2);
+    testSubscriber.assertValueCount(2);
+    final FirebaseChildEvent moved = testSubscriber.getOnNextEvents().get(0);
+    assertThat(moved.getDataSnapshot().getKey()).isEqualTo("a");
+    assertThat(moved.getEventType()).isEqualTo(FirebaseChildEvent.EventType.MOVED);
+    assertThat(moved.getPreviousChildName()).isEqualTo("c");
+    final FirebaseChildEvent readded = testSubscriber.getOnNextEvents().get(1);
+    assertThat(readded.getDataSnapshot().getKey()).isEqualTo("b");
+    assertThat(readded.getEventType()).isEqualTo(FirebaseChildEvent.EventType.MOVED);
+    assertThat(readded.getPreviousChildName()).isEqualTo("a");
+    testSubscriber.unsubscribe();
+  }
+
+  @Test public void testObserveValueEventBoundedBufferErrors() {
+    final ValueEventListener[] listener = captureValueEventListener(mockReference);
+
+    TestSubscriber<DataSnapshot> testSubscriber = new TestSubscriber<>(0);
+    rxFirebase.observeValueEvent(mockReference, BoundedBuffer.of(1, BoundedBuffer.Overflow.ERROR))
+        .subscribe(testSubscriber);
+    listener[0].onDataChange(mockDataSnapshot);
+    listener[0].onDataChange(mockDataSnapshot);
+
+    testSubscriber.assertNoErrors();
+    testSubscriber.requestMore(1);
+    testSubscriber.assertValue(mockDataSnapshot);
+    testSubscriber.assertError(MissingBackpressureException.class);
+    verify(mockReference).removeEventListener(listener[0]);
+  }
+
+  @Test public void testInstrumentation() {
+    final ValueEventListener[] listener = captureValueEventListener(mockReference);
+    final InMemoryFirebaseInstrumentation instrumentation = new InMemoryFirebaseInstrumentation();
+    rxFirebase.setInstrumentation(instrumentation);
+    final String path = mockReference.toString();
+
+    TestSubscriber<DataSnapshot> firstSubscriber = new TestSubscriber<>();
+    TestSubscriber<DataSnapshot> secondSubscriber = new TestSubscriber<>();
+    rxFirebase.observeValueEvent(mockReference).subscribe(firstSubscriber);
+    rxFirebase.observeValueEvent(mockReference).subscribe(secondSubscriber);
+    assertThat(instrumentation.getListenerCount(path)).isEqualTo(2);
+
+    listener[0].onDataChange(mockDataSnapshot);
+    listener[0].onDataChange(mockDataSnapshot);
+    assertThat(instrumentation.getEmissionCount(path)).isEqualTo(2);
+    assertThat(instrumentation.getFirstSnapshotLatency().getCount()).isEqualTo(1);
+
+    final DatabaseError databaseError = mock(DatabaseError.class);
+    when(databaseError.getCode()).thenReturn(DatabaseError.PERMISSION_DENIED);
+    listener[0].onCancelled(databaseError);
+    firstSubscriber.assertError(FirebasePermissionDeniedException.class);
+    secondSubscriber.assertError(FirebasePermissionDeniedException.class);
+    assertThat(instrumentation.getErrorCount(FirebasePermissionDeniedException.class))
+        .isEqualTo(1);
+    assertThat(instrumentation.getListenerCounts()).isEmpty();
+
+    rxFirebase.setInstrumentation(null);
+    assertThat(rxFirebase.getInstrumentation()).isSameAs(NoOpFirebaseInstrumentation.INSTANCE);
+  }
+
+  private static Observer<FirebaseChildEventBatch> recordBatchKeys(
+      final List<List<String>> keys) {
+    return new Observer<FirebaseChildEventBatch>() {
+      @Override public void onNext(FirebaseChildEventBatch batch) {
+        final List<String> batchKeys = new ArrayList<>();
+        for (FirebaseChildEvent event : batch) {
+          batchKeys.add(event.getDataSnapshot().getKey());
+        }
+        keys.add(batchKeys);
+      }
+
+      @Override public void onError(Throwable e) {
+      }
+
+      @Override public void onCompleted() {
+      }
+    };
+  }
+
+  private static DataSnapshot childSnapshot(String key) {
+    final DataSnapshot dataSnapshot = mock(DataSnapshot.class);
+    when(dataSnapshot.getKey()).thenReturn(key);
+    when(dataSnapshot.getValue(String.class)).thenReturn(key);
+    return dataSnapshot;
+  }
+
+  private static ChildEventListener[] captureChildEventListener(Query query) {
+    final ChildEventListener[] listener = new ChildEventListener[1];
+    when(query.addChildEventListener(any(ChildEventListener.class))).thenAnswer(
+        new Answer<ChildEventListener>() {
+          @Override public ChildEventListener answer(InvocationOnMock invocation) {
+            listener[0] = (ChildEventListener) invocation.getArguments()[0];
+            return listener[0];
+          }
+        });
+    return listener;
+  }
+
+  private static ValueEventListener[] captureValueEventListener(Query query) {
+    final ValueEventListener[] listener = new ValueEventListener[1];
+    when(query.addValueEventListener(any(ValueEventListener.class))).thenAnswer(
+        new Answer<ValueEventListener>() {
+          @Override public ValueEventListener answer(InvocationOnMock invocation) {
+            listener[0] = (ValueEventListener) invocation.getArguments()[0];
+            return listener[0];
+          }
+        });
+    return listener;
+  }
 }
@@ -0,0 +1,177 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2;
+
+import com.ezhome.rxfirebase2.database.RxFirebaseDatabase;
+import com.ezhome.rxfirebase2.database.WriteBatcher;
+import com.google.firebase.database.DatabaseReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class WriteBatcherTest extends ApplicationTestCase {
+
+  @Mock private DatabaseReference mockRoot;
+  @Captor private ArgumentCaptor<Map<String, Object>> updateCaptor;
+
+  private TestScheduler testScheduler;
+  private WriteBatcher writeBatcher;
+
+  @Before public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    doAnswer(new Answer<Void>() {
+      @Override public Void answer(InvocationOnMock invocation) {
+        ((DatabaseReference.CompletionListener) invocation.getArguments()[1]).onComplete(null,
+            mockRoot);
+        return null;
+      }
+    }).when(mockRoot)
+        .updateChildren(anyMapOf(String.class, Object.class),
+            any(DatabaseReference.CompletionListener.class));
+    testScheduler = new TestScheduler();
+    writeBatcher = new WriteBatcher(RxFirebaseDatabase.getInstance(), mockRoot, 1,
+        TimeUnit.SECONDS, 3, testScheduler);
+  }
+
+  @Test public void testWritesAreCoalescedInWindow() {
+    TestSubscriber<FirebaseWriteResult> firstSubscriber = new TestSubscriber<>();
+    TestSubscriber<FirebaseWriteResult> secondSubscriber = new TestSubscriber<>();
+    writeBatcher.observeSetValue("counters/a", 1).subscribe(firstSubscriber);
+    writeBatcher.observeSetValue("counters/a", 2).subscribe(secondSubscriber);
+    writeBatcher.observeSetValue("/counters/b/", 3).subscribe(new TestSubscriber<>());
+
+    verify(mockRoot, never()).updateChildren(anyMapOf(String.class, Object.class),
+        any(DatabaseReference.CompletionListener.class));
+    testScheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+
+    verify(mockRoot, times(1)).updateChildren(updateCaptor.capture(),
+        any(DatabaseReference.CompletionListener.class));
+    final Map<String, Object> expected = new HashMap<>();
+    expected.put("counters/a", 2);
+    expected.put("counters/b", 3);
+    assertThat(updateCaptor.getValue()).isEqualTo(expected);
+
+    firstSubscriber.assertCompleted();
+    secondSubscriber.assertCompleted();
+    assertThat(secondSubscriber.getOnNextEvents().get(0).getKey()).isEqualTo("a");
+    assertThat(writeBatcher.getCoalescedCount()).isEqualTo(1);
+    assertThat(writeBatcher.getMaxBatchSize()).isEqualTo(2);
+  }
+
+  @Test public void testCancelledWritesAreNotFlushed() {
+    TestSubscriber<FirebaseWriteResult> firstSubscriber = new TestSubscriber<>();
+    TestSubscriber<FirebaseWriteResult> secondSubscriber = new TestSubscriber<>();
+    TestSubscriber<FirebaseWriteResult> thirdSubscriber = new TestSubscriber<>();
+    writeBatcher.observeSetValue("counters/a", 1).subscribe(firstSubscriber);
+    writeBatcher.observeSetValue("counters/a", 2).subscribe(secondSubscriber);
+    writeBatcher.observeSetValue("counters/b", 3).subscribe(thirdSubscriber);
+    secondSubscriber.unsubscribe();
+    thirdSubscriber.unsubscribe();
+    testScheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+
+    verify(mockRoot, times(1)).updateChildren(updateCaptor.capture(),
+        any(DatabaseReference.CompletionListener.class));
+    final Map<String, Object> expected = new HashMap<>();
+    expected.put("counters/a", 1);
+    assertThat(updateCaptor.getValue()).isEqualTo(expected);
+    firstSubscriber.assertCompleted();
+  }
+
+  @Test public void testCountFlushesBeforeWindow() {
+    writeBatcher.observeSetValue("a", 1).subscribe(new TestSubscriber<>());
+    writeBatcher.observeSetValue("b", 2).subscribe(new TestSubscriber<>());
+    writeBatcher.observeSetValue("c", 3).subscribe(new TestSubscriber<>());
+
+    verify(mockRoot, times(1)).updateChildren(anyMapOf(String.class, Object.class),
+        any(DatabaseReference.CompletionListener.class));
+    assertThat(writeBatcher.getFlushCount()).isEqualTo(1);
+  }
+
+  @Test public void testAncestorPathFlushesPendingBatch() {
+    writeBatcher.observeSetValue("posts/a/title", 1).subscribe(new TestSubscriber<>());
+    writeBatcher.observeSetValue("posts/a", 2).subscribe(new TestSubscriber<>());
+
+    verify(mockRoot, times(1)).updateChildren(anyMapOf(String.class, Object.class),
+        any(DatabaseReference.CompletionListener.class));
+  }
+
+  @Test public void testConcurrentFlushesReachTheSdkInOrder() throws Exception {
+    final List<Object> applied = new ArrayList<>();
+    doAnswer(new Answer<Void>() {
+      @Override public Void answer(InvocationOnMock invocation) {
+        final Map<?, ?> update = (Map<?, ?>) invocation.getArguments()[0];
+        synchronized (applied) {
+          applied.add(update.get("counters/a"));
+        }
+        ((DatabaseReference.CompletionListener) invocation.getArguments()[1]).onComplete(null,
+            mockRoot);
+        return null;
+      }
+    }).when(mockRoot)
+        .updateChildren(anyMapOf(String.class, Object.class),
+            any(DatabaseReference.CompletionListener.class));
+
+    final int writes = 500;
+    final int[] written = new int[1];
+    final Runnable writer = new Runnable() {
+      @Override public void run() {
+        for (int index = 0; index < writes; index++) {
+          // The writes are enqueued in the order of their values, the flushes race
+          synchronized (written) {
+            written[0]++;
+            writeBatcher.observeSetValue("counters/a", written[0])
+                .subscribe(new TestSubscriber<>());
+          }
+          writeBatcher.flush();
+        }
+      }
+    };
+    final Thread first = new Thread(writer);
+    final Thread second = new Thread(writer);
+    first.start();
+    second.start();
+    first.join();
+    second.join();
+    writeBatcher.flush();
+
+    synchronized (applied) {
+      for (int index = 1; index < applied.size(); index++) {
+        assertThat((Integer) applied.get(index)).isGreaterThan((Integer) applied.get(index - 1));
+      }
+      assertThat(applied.get(applied.size() - 1)).isEqualTo(2 * writes);
+    }
+  }
+}
@@ -0,0 +1,809 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.local;
+
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseException;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.MutableData;
+import com.google.firebase.database.Query;
+import com.google.firebase.database.Transaction;
+import com.google.firebase.database.ValueEventListener;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.schedulers.Schedulers;
+
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.mock;
+
+/**
+ * An in-memory stand-in of a Firebase database for tests. The references,
+ * queries and snapshots it returns are mocks backed by a local tree, which
+ * supports value and child listeners, single value events, setValue,
+ * updateChildren, removeValue, push, transactions and ordering, range and
+ * limit queries.
+ *
+ * The listeners receive their first data and the writes are acknowledged
+ * after the configured latency on the configured {@link Scheduler}, so a
+ * {@link rx.schedulers.TestScheduler} makes the timing deterministic. The
+ * local events of a write are fired immediately, as the SDK does.
+ */
+public final class LocalFirebase {
+
+  private static final String URL = "https://local.firebaseio.com";
+
+  private static final String PUSH_CHARS =
+      "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz";
+
+  private final Map<String, DatabaseReference> references = new HashMap<>();
+  private final List<Registration> registrations = new ArrayList<>();
+  private Object root;
+  private Scheduler scheduler = Schedulers.immediate();
+  private Scheduler.Worker worker = scheduler.createWorker();
+  private long latencyMillis;
+  private int listenErrorCode;
+  private int writeFailures;
+  private int writeErrorCode;
+  private int transactionConflicts;
+  private long pushCount;
+  private long writeCount;
+
+  private LocalFirebase(Object root) {
+    this.root = LocalValues.normalize(root, 0);
+  }
+
+  /**
+   * Creates an empty database
+   *
+   * @return {@link LocalFirebase}
+   */
+  public static LocalFirebase empty() {
+    return new LocalFirebase(null);
+  }
+
+  /**
+   * Creates a database seeded from a JSON document
+   *
+   * @param json {@link String} the JSON export of a database
+   * @return {@link LocalFirebase}
+   */
+  public static LocalFirebase fromJson(String json) {
+    return new LocalFirebase(LocalJson.parse(json));
+  }
+
+  /**
+   * Creates a database seeded from a JSON file, e.g. server/sample-data.json
+   *
+   * @param file {@link File} the JSON export of a database
+   * @return {@link LocalFirebase}
+   * @throws IOException when the file cannot be read
+   */
+  public static LocalFirebase fromJson(File file) throws IOException {
+    final byte[] bytes = new byte[(int) file.length()];
+    final DataInputStream input = new DataInputStream(new FileInputStream(file));
+    try {
+      input.readFully(bytes);
+    } finally {
+      input.close();
+    }
+    return fromJson(new String(bytes, "UTF-8"));
+  }
+
+  /**
+   * Sets the scheduler on which the delayed events are delivered
+   *
+   * @param scheduler {@link Scheduler}, e.g. a {@link rx.schedulers.TestScheduler}
+   * @return {@link LocalFirebase}
+   */
+  public synchronized LocalFirebase setScheduler(Scheduler scheduler) {
+    this.worker.unsubscribe();
+    this.scheduler = scheduler;
+    this.worker = scheduler.createWorker();
+    return this;
+  }
+
+  /**
+   * Sets the delay of the first data of the listeners and of the write acknowledgements
+   *
+   * @param latency the latency, 0 to deliver them immediately
+   * @param unit {@link TimeUnit} of the latency
+   * @return {@link LocalFirebase}
+   */
+  public synchronized LocalFirebase setLatency(long latency, TimeUnit unit) {
+    this.latencyMillis = unit.toMillis(latency);
+    return this;
+  }
+
+  /**
+   * Fails the next writes with the provided error instead of applying them
+   *
+   * @param count the number of writes to fail
+   * @param errorCode the {@link DatabaseError} code
+   * @return {@link LocalFirebase}
+   */
+  public synchronized LocalFirebase failNextWrites(int count, int errorCode) {
+    this.writeFailures = count;
+    this.writeErrorCode = errorCode;
+    return this;
+  }
+
+  /**
+   * Rejects the next transaction attempts as if another client had changed the data,
+   * so their handlers run again
+   *
+   * @param count the number of rejected attempts
+   * @return {@link LocalFirebase}
+   */
+  public synchronized LocalFirebase conflictNextTransactions(int count) {
+    this.transactionConflicts = count;
+    return this;
+  }
+
+  /**
+   * Cancels the new listeners with the provided error instead of delivering their data
+   *
+   * @param errorCode the {@link DatabaseError} code, 0 to accept the listeners again
+   * @return {@link LocalFirebase}
+   */
+  public synchronized LocalFirebase failListens(int errorCode) {
+    this.listenErrorCode = errorCode;
+    return this;
+  }
+
+  /**
+   * Cancels the active listeners at or below the provided path with an error
+   *
+   * @param path {@link String} the path
+   * @param errorCode the {@link DatabaseError} code
+   */
+  public void cancelListeners(String path, int errorCode) {
+    final String normalized = LocalValues.normalizePath(path);
+    final List<Registration> cancelled = new ArrayList<>();
+    synchronized (this) {
+      final Iterator<Registration> iterator = registrations.iterator();
+      while (iterator.hasNext()) {
+        final Registration registration = iterator.next();
+        if (LocalValues.contains(normalized, registration.spec.path)) {
+          registration.active = false;
+          iterator.remove();
+          cancelled.add(registration);
+        }
+      }
+    }
+    for (Registration registration : cancelled) {
+      registration.cancel(errorCode);
+    }
+  }
+
+  /**
+   * Sets the client connection state reported at .info/connected
+   *
+   * @param connected whether the client is connected
+   */
+  public void setConnected(boolean connected) {
+    final String path = LocalValues.INFO + "/connected";
+    write(reference(path), Collections.<String, Object>singletonMap(path, connected), null);
+  }
+
+  public DatabaseReference getReference() {
+    return reference("");
+  }
+
+  public DatabaseReference getReference(String path) {
+    return reference(LocalValues.normalizePath(path));
+  }
+
+  /**
+   * Returns a copy of the value stored at the provided path
+   *
+   * @param path {@link String} the path
+   * @return the value as {@link DataSnapshot#getValue()} returns it
+   */
+  public synchronized Object getValue(String path) {
+    return LocalValues.plain(LocalValues.get(root, LocalValues.normalizePath(path)));
+  }
+
+  /**
+   * Returns the number of attached value and child listeners
+   *
+   * @return the count of listeners
+   */
+  public synchronized int getListenerCount() {
+    return registrations.size();
+  }
+
+  /**
+   * Returns the number of applied writes
+   *
+   * @return the count of writes
+   */
+  public synchronized long getWriteCount() {
+    return writeCount;
+  }
+
+  private synchronized DatabaseReference reference(String path) {
+    DatabaseReference reference = references.get(path);
+    if (reference == null) {
+      reference = mock(DatabaseReference.class, new QueryAnswer(new LocalQuerySpec(path), true));
+      references.put(path, reference);
+    }
+    return reference;
+  }
+
+  private Query query(LocalQuerySpec spec) {
+    return mock(Query.class, new QueryAnswer(spec, false));
+  }
+
+  private DataSnapshot snapshot(String path, Object value) {
+    return mock(DataSnapshot.class, new SnapshotAnswer(path, value));
+  }
+
+  private static DatabaseError error(final int code) {
+    final String message = "Local database error " + code;
+    return mock(DatabaseError.class, new Answer<Object>() {
+      @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+        switch (invocation.getMethod().getName()) {
+          case "getCode":
+            return code;
+          case "getMessage":
+            return message;
+          case "getDetails":
+            return "";
+          case "toException":
+            return new DatabaseException(message);
+          default:
+            return RETURNS_DEFAULTS.answer(invocation);
+        }
+      }
+    });
+  }
+
+  private void addListener(final LocalQuerySpec spec, ValueEventListener valueListener,
+      ChildEventListener childListener, boolean single) {
+    final Registration registration =
+        new Registration(spec, valueListener, childListener, single);
+    final long delay;
+    synchronized (this) {
+      if (!single) {
+        registrations.add(registration);
+      }
+      delay = latencyMillis;
+    }
+    schedule(new Action0() {
+      @Override public void call() {
+        deliverInitial(registration);
+      }
+    }, delay);
+  }
+
+  private void deliverInitial(Registration registration) {
+    final int errorCode;
+    final List<Action0> events = new ArrayList<>();
+    synchronized (this) {
+      if (!registration.active) {
+        return;
+      }
+      errorCode = listenErrorCode;
+      if (errorCode != 0 || registration.single) {
+        registration.active = false;
+        registrations.remove(registration);
+      }
+      if (errorCode == 0) {
+        final Object view =
+            registration.spec.view(LocalValues.get(root, registration.spec.path));
+        registration.view = view;
+        registration.ready = true;
+        registration.initialEvents(view, events);
+      }
+    }
+    if (errorCode != 0) {
+      registration.cancel(errorCode);
+      return;
+    }
+    for (Action0 event : events) {
+      event.call();
+    }
+  }
+
+  private synchronized void removeListener(Object listener) {
+    final Iterator<Registration> iterator = registrations.iterator();
+    while (iterator.hasNext()) {
+      final Registration registration = iterator.next();
+      if (registration.valueListener == listener || registration.childListener == listener) {
+        registration.active = false;
+        iterator.remove();
+      }
+    }
+  }
+
+  private void write(final DatabaseReference reference, Map<String, Object> values,
+      final DatabaseReference.CompletionListener listener) {
+    final DatabaseError error;
+    final long delay;
+    final List<Action0> events = new ArrayList<>();
+    synchronized (this) {
+      delay = latencyMillis;
+      if (writeFailures > 0) {
+        writeFailures--;
+        error = error(writeErrorCode);
+      } else {
+        error = null;
+        final long now = scheduler.now();
+        Object newRoot = root;
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+          newRoot = LocalValues.set(newRoot, entry.getKey(),
+              LocalValues.normalize(entry.getValue(), now));
+        }
+        root = newRoot;
+        writeCount++;
+        for (Registration registration : registrations) {
+          if (registration.ready && registration.isAffectedBy(values.keySet())) {
+            final Object view =
+                registration.spec.view(LocalValues.get(root, registration.spec.path));
+            registration.changeEvents(registration.view, view, events);
+            registration.view = view;
+          }
+        }
+      }
+    }
+    for (Action0 event : events) {
+      event.call();
+    }
+    if (listener != null) {
+      schedule(new Action0() {
+        @Override public void call() {
+          listener.onComplete(error, reference);
+        }
+      }, delay);
+    }
+  }
+
+  private void runTransaction(DatabaseReference reference, String path,
+      Transaction.Handler handler) {
+    while (true) {
+      final Object current;
+      synchronized (this) {
+        current = LocalValues.get(root, path);
+      }
+      final MutableDataAnswer answer = new MutableDataAnswer(path, current);
+      final Transaction.Result result =
+          handler.doTransaction(mock(MutableData.class, answer));
+      if (!result.isSuccess()) {
+        handler.onComplete(null, false, snapshot(path, current));
+        return;
+      }
+      synchronized (this) {
+        if (transactionConflicts > 0) {
+          transactionConflicts--;
+          continue;
+        }
+      }
+      write(reference, Collections.singletonMap(path, answer.value), null);
+      synchronized (this) {
+        handler.onComplete(null, true, snapshot(path, LocalValues.get(root, path)));
+      }
+      return;
+    }
+  }
+
+  private synchronized DatabaseReference push(String path) {
+    long time = scheduler.now();
+    final char[] id = new char[20];
+    for (int index = 7; index >= 0; index--) {
+      id[index] = PUSH_CHARS.charAt((int) (time % 64));
+      time /= 64;
+    }
+    long count = pushCount++;
+    for (int index = 19; index >= 8; index--) {
+      id[index] = PUSH_CHARS.charAt((int) (count % 64));
+      count /= 64;
+    }
+    return reference(LocalValues.child(path, new String(id)));
+  }
+
+  private void schedule(Action0 action, long delayMillis) {
+    final Scheduler.Worker worker;
+    synchronized (this) {
+      worker = this.worker;
+    }
+    if (delayMillis == 0) {
+      worker.schedule(action);
+    } else {
+      worker.schedule(action, delayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Returns the keys which keep their relative order, the longest increasing
+   * subsequence of their new positions, so the other ones are reported as moved
+   */
+  private static Set<String> unmovedKeys(List<String> oldOrder, Map<String, Integer> newIndex) {
+    final int size = oldOrder.size();
+    final int[] tails = new int[size];
+    final int[] previous = new int[size];
+    int length = 0;
+    for (int index = 0; index < size; index++) {
+      final int position = newIndex.get(oldOrder.get(index));
+      int low = 0;
+      int high = length;
+      while (low < high) {
+        final int middle = (low + high) >>> 1;
+        if (newIndex.get(oldOrder.get(tails[middle])) < position) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      previous[index] = low > 0 ? tails[low - 1] : -1;
+      tails[low] = index;
+      if (low == length) {
+        length++;
+      }
+    }
+    final Set<String> unmoved = new HashSet<>();
+    for (int index = length > 0 ? tails[length - 1] : -1; index >= 0; index = previous[index]) {
+      unmoved.add(oldOrder.get(index));
+    }
+    return unmoved;
+  }
+
+  /**
+   * A value or child listener attached to a query
+   */
+  private final class Registration {
+
+    final LocalQuerySpec spec;
+    final ValueEventListener valueListener;
+    final ChildEventListener childListener;
+    final boolean single;
+    boolean active = true;
+    boolean ready;
+    Object view;
+
+    Registration(LocalQuerySpec spec, ValueEventListener valueListener,
+        ChildEventListener childListener, boolean single) {
+      this.spec = spec;
+      this.valueListener = valueListener;
+      this.childListener = childListener;
+      this.single = single;
+    }
+
+    boolean isAffectedBy(Set<String> paths) {
+      for (String path : paths) {
+        if (LocalValues.related(spec.path, path)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    void cancel(int errorCode) {
+      final DatabaseError error = error(errorCode);
+      if (valueListener != null) {
+        valueListener.onCancelled(error);
+      } else {
+        childListener.onCancelled(error);
+      }
+    }
+
+    void initialEvents(Object view, List<Action0> events) {
+      if (valueListener != null) {
+        final DataSnapshot dataSnapshot = snapshot(spec.path, view);
+        events.add(new Action0() {
+          @Override public void call() {
+            valueListener.onDataChange(dataSnapshot);
+          }
+        });
+        return;
+      }
+      changeEvents(null, view, events);
+    }
+
+    void changeEvents(Object oldView, Object newView, List<Action0> events) {
+      if (valueListener != null) {
+        if (!Objects.equals(oldView, newView)) {
+          final DataSnapshot dataSnapshot = snapshot(spec.path, newView);
+          events.add(new Action0() {
+            @Override public void call() {
+              if (active) {
+                valueListener.onDataChange(dataSnapshot);
+              }
+            }
+          });
+        }
+        return;
+      }
+      final Map<String, Object> oldChildren = children(oldView);
+      final Map<String, Object> newChildren = children(newView);
+      final List<String> newOrder = LocalValues.childKeys(newView);
+      final Map<String, Integer> newIndex = new HashMap<>();
+      for (int index = 0; index < newOrder.size(); index++) {
+        newIndex.put(newOrder.get(index), index);
+      }
+      final List<String> oldCommon = new ArrayList<>();
+      for (String key : LocalValues.childKeys(oldView)) {
+        if (newChildren.containsKey(key)) {
+          oldCommon.add(key);
+        } else {
+          childEvent(EventKind.REMOVED, key, oldChildren.get(key), null, events);
+        }
+      }
+      final Set<String> unmoved = unmovedKeys(oldCommon, newIndex);
+      String previousChildName = null;
+      for (String key : newOrder) {
+        final Object value = newChildren.get(key);
+        if (!oldChildren.containsKey(key)) {
+          childEvent(EventKind.ADDED, key, value, previousChildName, events);
+        } else {
+          if (!Objects.equals(oldChildren.get(key), value)) {
+            childEvent(EventKind.CHANGED, key, value, previousChildName, events);
+          }
+          if (!unmoved.contains(key)) {
+            childEvent(EventKind.MOVED, key, value, previousChildName, events);
+          }
+        }
+        previousChildName = key;
+      }
+    }
+
+    private void childEvent(final EventKind kind, String key, Object value,
+        final String previousChildName, List<Action0> events) {
+      final DataSnapshot dataSnapshot = snapshot(LocalValues.child(spec.path, key), value);
+      events.add(new Action0() {
+        @Override public void call() {
+          if (!active) {
+            return;
+          }
+          switch (kind) {
+            case ADDED:
+              childListener.onChildAdded(dataSnapshot, previousChildName);
+              break;
+            case CHANGED:
+              childListener.onChildChanged(dataSnapshot, previousChildName);
+              break;
+            case REMOVED:
+              childListener.onChildRemoved(dataSnapshot);
+              break;
+            default:
+              childListener.onChildMoved(dataSnapshot, previousChildName);
+              break;
+          }
+        }
+      });
+    }
+
+    private Map<String, Object> children(Object view) {
+      return view instanceof Map ? LocalValues.asMap(view)
+          : Collections.<String, Object>emptyMap();
+    }
+  }
+
+  private enum EventKind {
+    ADDED, CHANGED, REMOVED, MOVED
+  }
+
+  /**
+   * Answers the methods of the mocked references and queries
+   */
+  private final class QueryAnswer implements Answer<Object> {
+
+    private final LocalQuerySpec spec;
+    private final boolean reference;
+
+    QueryAnswer(LocalQuerySpec spec, boolean reference) {
+      this.spec = spec;
+      this.reference = reference;
+    }
+
+    @SuppressWarnings("unchecked") @Override public Object answer(InvocationOnMock invocation)
+        throws Throwable {
+      final Object[] arguments = invocation.getArguments();
+      final DatabaseReference.CompletionListener completionListener =
+          arguments.length > 0
+              && arguments[arguments.length - 1] instanceof DatabaseReference.CompletionListener
+              ? (DatabaseReference.CompletionListener) arguments[arguments.length - 1] : null;
+      switch (invocation.getMethod().getName()) {
+        case "addValueEventListener":
+          addListener(spec, (ValueEventListener) arguments[0], null, false);
+          return arguments[0];
+        case "addChildEventListener":
+          addListener(spec, null, (ChildEventListener) arguments[0], false);
+          return arguments[0];
+        case "addListenerForSingleValueEvent":
+          addListener(spec, (ValueEventListener) arguments[0], null, true);
+          return null;
+        case "removeEventListener":
+          removeListener(arguments[0]);
+          return null;
+        case "keepSynced":
+          return null;
+        case "orderByKey":
+        case "orderByPriority":
+          return query(spec.orderBy(LocalQuerySpec.ORDER_BY_KEY, null));
+        case "orderByValue":
+          return query(spec.orderBy(LocalQuerySpec.ORDER_BY_VALUE, null));
+        case "orderByChild":
+          return query(spec.orderBy(LocalQuerySpec.ORDER_BY_CHILD, (String) arguments[0]));
+        case "startAt":
+          return query(spec.startAt(arguments[0], keyArgument(arguments)));
+        case "endAt":
+          return query(spec.endAt(arguments[0], keyArgument(arguments)));
+        case "equalTo":
+          return query(spec.startAt(arguments[0], keyArgument(arguments))
+              .endAt(arguments[0], keyArgument(arguments)));
+        case "limitToFirst":
+          return query(spec.limit((Integer) arguments[0], false));
+        case "limitToLast":
+          return query(spec.limit((Integer) arguments[0], true));
+        case "getRef":
+          return reference(spec.path);
+        case "toString":
+          return reference ? URL + '/' + spec.path : URL + '/' + spec.path + spec;
+        default:
+          break;
+      }
+      if (!reference) {
+        return RETURNS_DEFAULTS.answer(invocation);
+      }
+      final DatabaseReference self = (DatabaseReference) invocation.getMock();
+      switch (invocation.getMethod().getName()) {
+        case "child":
+          return reference(LocalValues.child(spec.path, (String) arguments[0]));
+        case "push":
+          return push(spec.path);
+        case "getKey":
+          return LocalValues.key(spec.path);
+        case "getParent":
+          final String parent = LocalValues.parent(spec.path);
+          return parent == null ? null : reference(parent);
+        case "getRoot":
+          return reference("");
+        case "setValue":
+          write(self, Collections.singletonMap(spec.path, arguments[0]), completionListener);
+          return null;
+        case "removeValue":
+          write(self, Collections.<String, Object>singletonMap(spec.path, null),
+              completionListener);
+          return null;
+        case "updateChildren":
+          final Map<String, Object> values = new HashMap<>();
+          for (Map.Entry<String, Object> entry : ((Map<String, Object>) arguments[0]).entrySet()) {
+            values.put(LocalValues.child(spec.path, entry.getKey()), entry.getValue());
+          }
+          write(self, values, completionListener);
+          return null;
+        case "runTransaction":
+          runTransaction(self, spec.path, (Transaction.Handler) arguments[0]);
+          return null;
+        default:
+          return RETURNS_DEFAULTS.answer(invocation);
+      }
+    }
+
+    private String keyArgument(Object[] arguments) {
+      return arguments.length > 1 && arguments[1] instanceof String ? (String) arguments[1] : null;
+    }
+  }
+
+  /**
+   * Answers the methods of the mocked data of a transaction
+   */
+  private static final class MutableDataAnswer implements Answer<Object> {
+
+    private final String path;
+    private Object value;
+
+    MutableDataAnswer(String path, Object value) {
+      this.path = path;
+      this.value = value;
+    }
+
+    @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+      final Object[] arguments = invocation.getArguments();
+      switch (invocation.getMethod().getName()) {
+        case "getKey":
+          return LocalValues.key(path);
+        case "getValue":
+          if (arguments.length == 1) {
+            return LocalValues.convert(value, (Class<?>) arguments[0]);
+          }
+          return LocalValues.plain(value);
+        case "setValue":
+          value = arguments[0];
+          return null;
+        case "hasChildren":
+          return value instanceof Map;
+        case "getChildrenCount":
+          return value instanceof Map ? (long) LocalValues.asMap(value).size() : 0L;
+        case "toString":
+          return "MutableData { key = " + LocalValues.key(path) + ", value = " + value + " }";
+        default:
+          return RETURNS_DEFAULTS.answer(invocation);
+      }
+    }
+  }
+
+  /**
+   * Answers the methods of the mocked snapshots
+   */
+  private final class SnapshotAnswer implements Answer<Object> {
+
+    private final String path;
+    private final Object value;
+
+    SnapshotAnswer(String path, Object value) {
+      this.path = path;
+      this.value = value;
+    }
+
+    @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+      final Object[] arguments = invocation.getArguments();
+      switch (invocation.getMethod().getName()) {
+        case "getKey":
+          return LocalValues.key(path);
+        case "getValue":
+          if (arguments.length == 1 && arguments[0] instanceof Class) {
+            return LocalValues.convert(value, (Class<?>) arguments[0]);
+          }
+          if (arguments.length == 1 && !(arguments[0] instanceof Boolean)) {
+            throw new UnsupportedOperationException("GenericTypeIndicator is not supported");
+          }
+          return LocalValues.plain(value);
+        case "child":
+          final String childPath = LocalValues.normalizePath((String) arguments[0]);
+          return snapshot(LocalValues.child(path, childPath), LocalValues.get(value, childPath));
+        case "hasChild":
+          return LocalValues.get(value, LocalValues.normalizePath((String) arguments[0])) != null;
+        case "hasChildren":
+          return value instanceof Map;
+        case "exists":
+          return value != null;
+        case "getChildrenCount":
+          return value instanceof Map ? (long) LocalValues.asMap(value).size() : 0L;
+        case "getChildren":
+          final List<DataSnapshot> children = new ArrayList<>();
+          for (String key : LocalValues.childKeys(value)) {
+            children.add(snapshot(LocalValues.child(path, key), LocalValues.asMap(value).get(key)));
+          }
+          return children;
+        case "getRef":
+          return reference(path);
+        case "toString":
+          return "DataSnapshot { key = " + LocalValues.key(path) + ", value = " + value + " }";
+        default:
+          return RETURNS_DEFAULTS.answer(invocation);
+      }
+    }
+  }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.local;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal JSON parser for the seed files of {@link LocalFirebase}. Objects
+ * are parsed to {@link Map}s, arrays to {@link List}s, integral numbers to
+ * {@link Long}s and the other numbers to {@link Double}s.
+ */
+final class LocalJson {
+
+  private final String json;
+  private int position;
+
+  private LocalJson(String json) {
+    this.json = json;
+  }
+
+  /**
+   * Parses a JSON document
+   *
+   * @param json {@link String} the document
+   * @return the parsed value
+   */
+  static Object parse(String json) {
+    final LocalJson parser = new LocalJson(json);
+    final Object value = parser.readValue();
+    parser.skipWhitespace();
+    if (parser.position != json.length()) {
+      throw parser.error("Unexpected trailing content");
+    }
+    return value;
+  }
+
+  private Object readValue() {
+    skipWhitespace();
+    if (position >= json.length()) {
+      throw error("Unexpected end of document");
+    }
+    final char c = json.charAt(position);
+    switch (c) {
+      case '{':
+        return readObject();
+      case '[':
+        return readArray();
+      case '"':
+        return readString();
+      case 't':
+        expect("true");
+        return Boolean.TRUE;
+      case 'f':
+        expect("false");
+        return Boolean.FALSE;
+      case 'n':
+        expect("null");
+        return null;
+      default:
+        return readNumber();
+    }
+  }
+
+  private Map<String, Object> readObject() {
+    final Map<String, Object> object = new HashMap<>();
+    position++;
+    skipWhitespace();
+    if (peek() == '}') {
+      position++;
+      return object;
+    }
+    for (;;) {
+      skipWhitespace();
+      final String key = readString();
+      skipWhitespace();
+      expect(":");
+      object.put(key, readValue());
+      skipWhitespace();
+      final char c = next();
+      if (c == '}') {
+        return object;
+      }
+      if (c != ',') {
+        throw error("Expected , or }");
+      }
+    }
+  }
+
+  private List<Object> readArray() {
+    final List<Object> array = new ArrayList<>();
+    position++;
+    skipWhitespace();
+    if (peek() == ']') {
+      position++;
+      return array;
+    }
+    for (;;) {
+      array.add(readValue());
+      skipWhitespace();
+      final char c = next();
+      if (c == ']') {
+        return array;
+      }
+      if (c != ',') {
+        throw error("Expected , or ]");
+      }
+    }
+  }
+
+  private String readString() {
+    if (next() != '"') {
+      throw error("Expected a string");
+    }
+    final StringBuilder builder = new StringBuilder();
+    for (;;) {
+      final char c = next();
+      if (c == '"') {
+        return builder.toString();
+      }
+      if (c != '\\') {
+        builder.append(c);
+        continue;
+      }
+      final char escaped = next();
+      switch (escaped) {
+        case 'b':
+          builder.append('\b');
+          break;
+        case 'f':
+          builder.append('\f');
+          break;
+        case 'n':
+          builder.append('\n');
+          break;
+        case 'r':
+          builder.append('\r');
+          break;
+        case 't':
+          builder.append('\t');
+          break;
+        case 'u':
+          if (position + 4 > json.length()) {
+            throw error("Invalid unicode escape");
+          }
+          builder.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+          position += 4;
+          break;
+        default:
+          builder.append(escaped);
+          break;
+      }
+    }
+  }
+
+  private Object readNumber() {
+    final int start = position;
+    while (position < json.length() && "+-0123456789.eE".indexOf(json.charAt(position)) >= 0) {
+      position++;
+    }
+    final String number = json.substring(start, position);
+    if (number.isEmpty()) {
+      throw error("Unexpected character");
+    }
+    try {
+      if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+        return Long.parseLong(number);
+      }
+      return Double.parseDouble(number);
+    } catch (NumberFormatException e) {
+      throw error("Invalid number " + number);
+    }
+  }
+
+  private void expect(String token) {
+    if (!json.startsWith(token, position)) {
+      throw error("Expected " + token);
+    }
+    position += token.length();
+  }
+
+  private char peek() {
+    if (position >= json.length()) {
+      throw error("Unexpected end of document");
+    }
+    return json.charAt(position);
+  }
+
+  private char next() {
+    final char c = peek();
+    position++;
+    return c;
+  }
+
+  private void skipWhitespace() {
+    while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+      position++;
+    }
+  }
+
+  private IllegalArgumentException error(String message) {
+    return new IllegalArgumentException(message + " at position " + position);
+  }
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.local;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The location, ordering, range and limit of a query of {@link LocalFirebase}
+ */
+final class LocalQuerySpec {
+
+  static final int ORDER_BY_KEY = 0;
+  static final int ORDER_BY_CHILD = 1;
+  static final int ORDER_BY_VALUE = 2;
+
+  final String path;
+  private int orderBy = ORDER_BY_KEY;
+  private boolean ordered;
+  private String orderByChild;
+  private boolean hasStart;
+  private Object startValue;
+  private String startKey;
+  private boolean hasEnd;
+  private Object endValue;
+  private String endKey;
+  private int limit;
+  private boolean limitToLast;
+
+  LocalQuerySpec(String path) {
+    this.path = path;
+  }
+
+  /**
+   * Returns whether the query is a plain location without ordering, range or limit
+   */
+  boolean isDefault() {
+    return !ordered && !hasStart && !hasEnd && limit == 0;
+  }
+
+  LocalQuerySpec orderBy(int orderBy, String child) {
+    final LocalQuerySpec copy = copy();
+    copy.ordered = true;
+    copy.orderBy = orderBy;
+    copy.orderByChild = child == null ? null : LocalValues.normalizePath(child);
+    return copy;
+  }
+
+  LocalQuerySpec startAt(Object value, String key) {
+    final LocalQuerySpec copy = copy();
+    copy.hasStart = true;
+    copy.startValue = value;
+    copy.startKey = key;
+    return copy;
+  }
+
+  LocalQuerySpec endAt(Object value, String key) {
+    final LocalQuerySpec copy = copy();
+    copy.hasEnd = true;
+    copy.endValue = value;
+    copy.endKey = key;
+    return copy;
+  }
+
+  LocalQuerySpec limit(int limit, boolean limitToLast) {
+    if (limit <= 0) {
+      throw new IllegalArgumentException("The limit should be positive");
+    }
+    final LocalQuerySpec copy = copy();
+    copy.limit = limit;
+    copy.limitToLast = limitToLast;
+    return copy;
+  }
+
+  /**
+   * Returns the view of a node for this query, an ordered map of the children
+   * in range and within the limit, or the node itself for a plain location
+   *
+   * @param node the node at the path of the query
+   * @return the view, null when it is empty
+   */
+  Object view(Object node) {
+    if (isDefault()) {
+      return node;
+    }
+    if (!(node instanceof Map)) {
+      return null;
+    }
+    final Map<String, Object> children = LocalValues.asMap(node);
+    final List<String> keys = new ArrayList<>(children.keySet());
+    final Comparator<String> comparator = comparator(children);
+    Collections.sort(keys, comparator);
+    final List<String> inRange = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      final Object orderValue = orderValue(key, children.get(key));
+      if (hasStart && compare(orderValue, key, startValue, startKey) < 0) {
+        continue;
+      }
+      if (hasEnd && compare(orderValue, key, endValue, endKey) > 0) {
+        continue;
+      }
+      inRange.add(key);
+    }
+    List<String> limited = inRange;
+    if (limit > 0 && inRange.size() > limit) {
+      limited = limitToLast ? inRange.subList(inRange.size() - limit, inRange.size())
+          : inRange.subList(0, limit);
+    }
+    if (limited.isEmpty()) {
+      return null;
+    }
+    final Map<String, Object> view = new LinkedHashMap<>();
+    for (String key : limited) {
+      view.put(key, children.get(key));
+    }
+    return view;
+  }
+
+  @Override public String toString() {
+    final StringBuilder builder = new StringBuilder("{");
+    if (ordered) {
+      builder.append("orderBy=").append(orderBy == ORDER_BY_KEY ? "key"
+          : orderBy == ORDER_BY_VALUE ? "value" : "child:" + orderByChild);
+    }
+    if (hasStart) {
+      builder.append(",startAt=").append(startValue).append(':').append(startKey);
+    }
+    if (hasEnd) {
+      builder.append(",endAt=").append(endValue).append(':').append(endKey);
+    }
+    if (limit > 0) {
+      builder.append(limitToLast ? ",limitToLast=" : ",limitToFirst=").append(limit);
+    }
+    return builder.append('}').toString();
+  }
+
+  private Comparator<String> comparator(final Map<String, Object> children) {
+    if (orderBy == ORDER_BY_KEY) {
+      return LocalValues.KEY_ORDER;
+    }
+    return new Comparator<String>() {
+      @Override public int compare(String first, String second) {
+        final int result = LocalValues.compareValues(orderValue(first, children.get(first)),
+            orderValue(second, children.get(second)));
+        return result != 0 ? result : LocalValues.KEY_ORDER.compare(first, second);
+      }
+    };
+  }
+
+  private Object orderValue(String key, Object child) {
+    switch (orderBy) {
+      case ORDER_BY_CHILD:
+        return LocalValues.get(child, orderByChild);
+      case ORDER_BY_VALUE:
+        return child;
+      default:
+        return key;
+    }
+  }
+
+  private int compare(Object orderValue, String key, Object boundValue, String boundKey) {
+    if (orderBy == ORDER_BY_KEY) {
+      return LocalValues.KEY_ORDER.compare(key, String.valueOf(boundValue));
+    }
+    final int result = LocalValues.compareValues(orderValue, boundValue);
+    if (result != 0 || boundKey == null) {
+      return result;
+    }
+    return LocalValues.KEY_ORDER.compare(key, boundKey);
+  }
+
+  private LocalQuerySpec copy() {
+    final LocalQuerySpec copy = new LocalQuerySpec(path);
+    copy.orderBy = orderBy;
+    copy.ordered = ordered;
+    copy.orderByChild = orderByChild;
+    copy.hasStart = hasStart;
+    copy.startValue = startValue;
+    copy.startKey = startKey;
+    copy.hasEnd = hasEnd;
+    copy.endValue = endValue;
+    copy.endKey = endKey;
+    copy.limit = limit;
+    copy.limitToLast = limitToLast;
+    return copy;
+  }
+}
@@ -0,0 +1,539 @@
+/**
+ * Copyright 2016 Ezhome Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ezhome.rxfirebase2.local;
+
+import com.google.firebase.database.DatabaseException;
+import com.google.firebase.database.Exclude;
+import com.google.firebase.database.PropertyName;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The paths, values and ordering rules of the tree of {@link LocalFirebase}.
+ * The stored nodes are never mutated, a write copies the maps along its path,
+ * so snapshots and views can keep references to them.
+ */
+final class LocalValues {
+
+  private static final Pattern INTEGER_KEY = Pattern.compile("-?[1-9][0-9]{0,9}|0");
+
+  /**
+   * The root node of the client state, e.g. .info/connected
+   */
+  static final String INFO = ".info";
+
+  /**
+   * Orders keys as Firebase does, 32 bit integers first numerically and then strings
+   */
+  static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+    @Override public int compare(String first, String second) {
+      final Integer firstNumber = asIntegerKey(first);
+      final Integer secondNumber = asIntegerKey(second);
+      if (firstNumber != null && secondNumber != null) {
+        return firstNumber.compareTo(secondNumber);
+      }
+      if (firstNumber != null) {
+        return -1;
+      }
+      if (secondNumber != null) {
+        return 1;
+      }
+      return first.compareTo(second);
+    }
+  };
+
+  private LocalValues() {
+    //empty constructor prevent initialisation
+  }
+
+  /**
+   * Removes the leading, trailing and repeated slashes of a path. Like the SDK
+   * the first segment can be .info
+   *
+   * @param path {@link String} the path
+   * @return the normalized path, empty for the root
+   */
+  static String normalizePath(String path) {
+    final StringBuilder builder = new StringBuilder(path.length());
+    for (String segment : path.split("/")) {
+      if (segment.isEmpty()) {
+        continue;
+      }
+      if (segment.matches(".*[.#$\\[\\]].*")
+          && !(builder.length() == 0 && segment.equals(INFO))) {
+        throw new DatabaseException("Invalid path segment " + segment);
+      }
+      if (builder.length() > 0) {
+        builder.append('/');
+      }
+      builder.append(segment);
+    }
+    return builder.toString();
+  }
+
+  static String child(String path, String childPath) {
+    final String normalized = normalizePath(childPath);
+    if (path.isEmpty()) {
+      return normalized;
+    }
+    return normalized.isEmpty() ? path : path + '/' + normalized;
+  }
+
+  static String parent(String path) {
+    if (path.isEmpty()) {
+      return null;
+    }
+    final int slash = path.lastIndexOf('/');
+    return slash < 0 ? "" : path.substring(0, slash);
+  }
+
+  static String key(String path) {
+    return path.isEmpty() ? null : path.substring(path.lastIndexOf('/') + 1);
+  }
+
+  /**
+   * Returns whether one of the paths contains the other one
+   */
+  static boolean related(String first, String second) {
+    return contains(first, second) || contains(second, first);
+  }
+
+  /**
+   * Returns whether the ancestor path is or contains the descendant path
+   */
+  static boolean contains(String ancestor, String descendant) {
+    return ancestor.isEmpty() || descendant.equals(ancestor) || descendant.startsWith(
+        ancestor + '/');
+  }
+
+  /**
+   * Returns the node at the provided path
+   *
+   * @param node the root node
+   * @param path {@link String} normalized path relative to the node
+   * @return the node, null when it does not exist
+   */
+  static Object get(Object node, String path) {
+    if (path.isEmpty()) {
+      return node;
+    }
+    Object current = node;
+    for (String segment : path.split("/")) {
+      if (!(current instanceof Map)) {
+        return null;
+      }
+      current = ((Map<?, ?>) current).get(segment);
+    }
+    return current;
+  }
+
+  /**
+   * Returns a copy of the root node where the provided path holds the value.
+   * Only the maps along the path are copied.
+   *
+   * @param node the root node
+   * @param path {@link String} normalized path relative to the node
+   * @param value the normalized value, null to remove it
+   * @return the new root node
+   */
+  static Object set(Object node, String path, Object value) {
+    if (path.isEmpty()) {
+      return value;
+    }
+    final int slash = path.indexOf('/');
+    final String segment = slash < 0 ? path : path.substring(0, slash);
+    final String rest = slash < 0 ? "" : path.substring(slash + 1);
+    final Map<String, Object> copy = new HashMap<>();
+    if (node instanceof Map) {
+      copy.putAll(asMap(node));
+    }
+    final Object child = set(copy.get(segment), rest, value);
+    if (child == null) {
+      copy.remove(segment);
+    } else {
+      copy.put(segment, child);
+    }
+    return copy.isEmpty() ? null : copy;
+  }
+
+  /**
+   * Converts a written value to the stored representation: maps of strings,
+   * longs, doubles and booleans without empty maps
+   *
+   * @param value the written value
+   * @param now the server time which replaces the timestamp placeholders
+   * @return the normalized value, null when it is empty
+   */
+  static Object normalize(Object value, long now) {
+    if (value == null || value instanceof String || value instanceof Boolean) {
+      return value;
+    }
+    if (value instanceof Number) {
+      return normalizeNumber((Number) value);
+    }
+    if (value instanceof Character || value instanceof Enum) {
+      return value.toString();
+    }
+    if (value instanceof Map) {
+      final Map<?, ?> map = (Map<?, ?>) value;
+      if (map.size() == 1 && "timestamp".equals(map.get(".sv"))) {
+        return now;
+      }
+      final Map<String, Object> normalized = new HashMap<>();
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        final String key = String.valueOf(entry.getKey());
+        if (key.equals(".priority")) {
+          continue;
+        }
+        final Object child = normalize(entry.getValue(), now);
+        if (child != null) {
+          normalized.put(key, child);
+        }
+      }
+      return normalized.isEmpty() ? null : normalized;
+    }
+    if (value instanceof Collection) {
+      return normalize(indexed(new ArrayList<>((Collection<?>) value)), now);
+    }
+    if (value.getClass().isArray()) {
+      final List<Object> list = new ArrayList<>();
+      for (int index = 0; index < Array.getLength(value); index++) {
+        list.add(Array.get(value, index));
+      }
+      return normalize(indexed(list), now);
+    }
+    return normalize(beanToMap(value), now);
+  }
+
+  /**
+   * Returns a copy of a stored value as the SDK returns it from
+   * {@link com.google.firebase.database.DataSnapshot#getValue()}
+   */
+  static Object plain(Object value) {
+    if (!(value instanceof Map)) {
+      return value;
+    }
+    final Map<String, Object> copy = new HashMap<>();
+    for (Map.Entry<String, Object> entry : asMap(value).entrySet()) {
+      copy.put(entry.getKey(), plain(entry.getValue()));
+    }
+    return copy;
+  }
+
+  /**
+   * Returns the keys of the children of a node in the order of its view, or by key
+   */
+  static List<String> childKeys(Object node) {
+    if (!(node instanceof Map)) {
+      return Collections.emptyList();
+    }
+    final List<String> keys = new ArrayList<>(asMap(node).keySet());
+    if (!(node instanceof LinkedHashMap)) {
+      Collections.sort(keys, KEY_ORDER);
+    }
+    return keys;
+  }
+
+  /**
+   * Compares two values as the ordering by child or by value of Firebase does:
+   * null, false, true, numbers, strings and then objects
+   */
+  static int compareValues(Object first, Object second) {
+    final int firstRank = rank(first);
+    final int secondRank = rank(second);
+    if (firstRank != secondRank) {
+      return firstRank < secondRank ? -1 : 1;
+    }
+    if (first instanceof Number) {
+      return Double.compare(((Number) first).doubleValue(), ((Number) second).doubleValue());
+    }
+    if (first instanceof String) {
+      return ((String) first).compareTo((String) second);
+    }
+    return 0;
+  }
+
+  /**
+   * Converts a stored value to the provided type, as
+   * {@link com.google.firebase.database.DataSnapshot#getValue(Class)} does
+   *
+   * @param value the stored value
+   * @param type {@link Type} the requested type
+   * @return the converted value
+   */
+  @SuppressWarnings("unchecked") static Object convert(Object value, Type type) {
+    if (value == null) {
+      return null;
+    }
+    if (type instanceof ParameterizedType) {
+      return convertParameterized(value, (ParameterizedType) type);
+    }
+    final Class<?> clazz = (Class<?>) type;
+    if (clazz == Object.class) {
+      return plain(value);
+    }
+    if (clazz == String.class) {
+      if (value instanceof String) {
+        return value;
+      }
+      throw conversionError(value, clazz);
+    }
+    if (clazz == Boolean.class || clazz == boolean.class) {
+      if (value instanceof Boolean) {
+        return value;
+      }
+      throw conversionError(value, clazz);
+    }
+    if (Number.class.isAssignableFrom(clazz) || (clazz.isPrimitive() && clazz != void.class)) {
+      if (!(value instanceof Number)) {
+        throw conversionError(value, clazz);
+      }
+      return convertNumber((Number) value, clazz);
+    }
+    if (clazz.isEnum()) {
+      return Enum.valueOf((Class<Enum>) clazz, String.valueOf(value));
+    }
+    if (Map.class.isAssignableFrom(clazz)) {
+      if (value instanceof Map) {
+        return plain(value);
+      }
+      throw conversionError(value, clazz);
+    }
+    if (List.class.isAssignableFrom(clazz)) {
+      return convertParameterized(value, null);
+    }
+    if (!(value instanceof Map)) {
+      throw conversionError(value, clazz);
+    }
+    return mapToBean(asMap(value), clazz);
+  }
+
+  @SuppressWarnings("unchecked") static Map<String, Object> asMap(Object node) {
+    return (Map<String, Object>) node;
+  }
+
+  private static Object convertParameterized(Object value, ParameterizedType type) {
+    final Class<?> raw = type == null ? List.class : (Class<?>) type.getRawType();
+    if (List.class.isAssignableFrom(raw)) {
+      final Type elementType = type == null ? Object.class : type.getActualTypeArguments()[0];
+      final List<Object> list = new ArrayList<>();
+      if (value instanceof Map) {
+        for (String key : childKeys(value)) {
+          list.add(convert(asMap(value).get(key), elementType));
+        }
+      } else {
+        list.add(convert(value, elementType));
+      }
+      return list;
+    }
+    if (Map.class.isAssignableFrom(raw)) {
+      if (!(value instanceof Map)) {
+        throw conversionError(value, raw);
+      }
+      final Type valueType = type.getActualTypeArguments()[1];
+      final Map<String, Object> map = new HashMap<>();
+      for (Map.Entry<String, Object> entry : asMap(value).entrySet()) {
+        map.put(entry.getKey(), convert(entry.getValue(), valueType));
+      }
+      return map;
+    }
+    return convert(value, raw);
+  }
+
+  private static Object convertNumber(Number number, Class<?> clazz) {
+    if (clazz == Integer.class || clazz == int.class) {
+      return number.intValue();
+    }
+    if (clazz == Long.class || clazz == long.class) {
+      return number.longValue();
+    }
+    if (clazz == Double.class || clazz == double.class) {
+      return number.doubleValue();
+    }
+    if (clazz == Float.class || clazz == float.class) {
+      return number.floatValue();
+    }
+    if (clazz == Short.class || clazz == short.class) {
+      return number.shortValue();
+    }
+    if (clazz == Byte.class || clazz == byte.class) {
+      return number.byteValue();
+    }
+    if (clazz == Number.class) {
+      return number;
+    }
+    throw conversionError(number, clazz);
+  }
+
+  private static Object normalizeNumber(Number number) {
+    if (number instanceof Double || number instanceof Float) {
+      final double value = number.doubleValue();
+      if (value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE) {
+        return (long) value;
+      }
+      return value;
+    }
+    return number.longValue();
+  }
+
+  private static Map<String, Object> indexed(List<?> list) {
+    final Map<String, Object> map = new HashMap<>();
+    for (int index = 0; index < list.size(); index++) {
+      map.put(String.valueOf(index), list.get(index));
+    }
+    return map;
+  }
+
+  private static Map<String, Object> beanToMap(Object bean) {
+    final Map<String, Object> map = new HashMap<>();
+    for (Field field : bean.getClass().getFields()) {
+      if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers())
+          || field.isAnnotationPresent(Exclude.class)) {
+        continue;
+      }
+      try {
+        map.put(propertyName(field.getName(), field.getAnnotation(PropertyName.class)),
+            field.get(bean));
+      } catch (IllegalAccessException e) {
+        throw new DatabaseException("Failed to read " + field);
+      }
+    }
+    for (Method method : bean.getClass().getMethods()) {
+      final String property = getterProperty(method);
+      if (property == null) {
+        continue;
+      }
+      try {
+        map.put(propertyName(property, method.getAnnotation(PropertyName.class)),
+            method.invoke(bean));
+      } catch (Exception e) {
+        throw new DatabaseException("Failed to read " + method);
+      }
+    }
+    return map;
+  }
+
+  private static Object mapToBean(Map<String, Object> map, Class<?> clazz) {
+    final Object bean;
+    try {
+      final Constructor<?> constructor = clazz.getDeclaredConstructor();
+      constructor.setAccessible(true);
+      bean = constructor.newInstance();
+    } catch (Exception e) {
+      throw new DatabaseException(clazz.getName() + " does not define a no-argument constructor");
+    }
+    final Map<String, Method> setters = new HashMap<>();
+    for (Method method : clazz.getMethods()) {
+      if (method.getName().startsWith("set") && method.getName().length() > 3
+          && method.getParameterTypes().length == 1 && !Modifier.isStatic(method.getModifiers())) {
+        setters.put(propertyName(decapitalize(method.getName().substring(3)),
+            method.getAnnotation(PropertyName.class)), method);
+      }
+    }
+    final Map<String, Field> fields = new HashMap<>();
+    for (Field field : clazz.getFields()) {
+      if (!Modifier.isStatic(field.getModifiers())) {
+        fields.put(propertyName(field.getName(), field.getAnnotation(PropertyName.class)), field);
+      }
+    }
+    for (Map.Entry<String, Object> entry : map.entrySet()) {
+      try {
+        final Method setter = setters.get(entry.getKey());
+        if (setter != null) {
+          setter.invoke(bean, convert(entry.getValue(), setter.getGenericParameterTypes()[0]));
+          continue;
+        }
+        final Field field = fields.get(entry.getKey());
+        if (field != null) {
+          field.set(bean, convert(entry.getValue(), field.getGenericType()));
+        }
+      } catch (DatabaseException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new DatabaseException("Failed to set " + entry.getKey() + " of " + clazz.getName());
+      }
+    }
+    return bean;
+  }
+
+  private static String getterProperty(Method method) {
+    if (method.getParameterTypes().length != 0 || Modifier.isStatic(method.getModifiers())
+        || method.getDeclaringClass() == Object.class || method.isAnnotationPresent(
+        Exclude.class)) {
+      return null;
+    }
+    final String name = method.getName();
+    if (name.startsWith("get") && name.length() > 3) {
+      return decapitalize(name.substring(3));
+    }
+    if (name.startsWith("is") && name.length() > 2 && (method.getReturnType() == boolean.class
+        || method.getReturnType() == Boolean.class)) {
+      return decapitalize(name.substring(2));
+    }
+    return null;
+  }
+
+  private static String propertyName(String name, PropertyName annotation) {
+    return annotation == null ? name : annotation.value();
+  }
+
+  private static String decapitalize(String name) {
+    return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+  }
+
+  private static DatabaseException conversionError(Object value, Class<?> clazz) {
+    return new DatabaseException(
+        "Failed to convert value of type " + value.getClass().getName() + " to " + clazz.getName());
+  }
+
+  private static int rank(Object value) {
+    if (value == null) {
+      return 0;
+    }
+    if (value instanceof Boolean) {
+      return (Boolean) value ? 2 : 1;
+    }
+    if (value instanceof Number) {
+      return 3;
+    }
+    if (value instanceof String) {
+      return 4;
+    }
+    return 5;
+  }
+
+  private static Integer asIntegerKey(String key) {
+    if (!INTEGER_KEY.matcher(key).matches()) {
+      return null;
+    }
+    final long number = Long.parseLong(key);
+    return number < Integer.MIN_VALUE || number > Integer.MAX_VALUE ? null : (int) number;
+  }
+}